@@ -46,9 +46,10 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
 
   /**
    * The main Path to source artifact cache. There will always be exactly one canonical
-   * artifact for a given source path.
+   * artifact for a given source path. Non-final only because it is replaced rather than
+   * cleared, to free the memory it took up.
    */
-  private final Map<PathFragment, Artifact> pathToSourceArtifact = new HashMap<>();
+  private SourceArtifactTable pathToSourceArtifact = new SourceArtifactTable();
 
   /**
    * Map of package names to source root paths so that we can create source
@@ -79,7 +80,7 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
    * Clear the cache.
    */
   public synchronized void clear() {
-    pathToSourceArtifact.clear();
+    pathToSourceArtifact = new SourceArtifactTable();
     packageRoots = null;
     derivedRoots = ImmutableList.of();
     artifactIdRegistry = new ArtifactIdRegistry();
@@ -202,7 +203,7 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
       // with the same exec path but a different Owner, but we also need to reuse Artifacts from
       // previous builds.
       artifact = createArtifact(path, root, execPath, owner, type);
-      pathToSourceArtifact.put(execPath, artifact);
+      pathToSourceArtifact.put(artifact);
     } else {
       // TODO(bazel-team): Maybe we should check for equality of the fileset bit. However, that
       // would require us to differentiate between artifact-creating and artifact-getting calls to
@@ -308,7 +309,7 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
    * Returns all source artifacts created by the artifact factory.
    */
   public synchronized Iterable<Artifact> getSourceArtifacts() {
-    return ImmutableList.copyOf(pathToSourceArtifact.values());
+    return pathToSourceArtifact.values();
   }
 
   // Non-final only because clear()ing a map does not actually free the memory it took up, so we
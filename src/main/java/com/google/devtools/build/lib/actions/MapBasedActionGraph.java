@@ -16,11 +16,17 @@ package com.google.devtools.build.lib.actions;
 
 import com.google.common.base.Preconditions;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
 
 /**
  * An action graph that resolves generating actions by looking them up in a map.
+ *
+ * <p>An action whose registration fails with an {@link ActionConflictException} is removed from
+ * the outputs it was already registered for, so the graph is as if it had never been registered.
  */
 @ThreadSafe
 public final class MapBasedActionGraph implements MutableActionGraph {
@@ -35,13 +41,19 @@ public final class MapBasedActionGraph implements MutableActionGraph {
 
   @Override
   public void registerAction(Action action) throws ActionConflictException {
+    List<Artifact> registeredOutputs = new ArrayList<>();
     for (Artifact artifact : action.getOutputs()) {
       Action previousAction = generatingActionMap.putAndGet(artifact, action);
       if (previousAction != null && previousAction != action
           && !Actions.canBeShared(action, previousAction)) {
+        // Leave no trace of the action, so that it does not need to be unregistered.
         generatingActionMap.remove(artifact, action);
+        for (Artifact registeredOutput : registeredOutputs) {
+          generatingActionMap.remove(registeredOutput, action);
+        }
         throw new ActionConflictException(artifact, previousAction, action);
       }
+      registeredOutputs.add(artifact);
     }
   }
 
@@ -16,6 +16,8 @@ package com.google.devtools.build.lib.actions;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.google.devtools.build.lib.syntax.SkylarkCallable;
 import com.google.devtools.build.lib.syntax.SkylarkModule;
 import com.google.devtools.build.lib.vfs.Path;
@@ -51,7 +53,7 @@ public final class Root implements Comparable<Root>, Serializable {
    * Returns the given path as a source root. The path may not be {@code null}.
    */
   public static Root asSourceRoot(Path path) {
-    return new Root(null, path);
+    return intern(new Root(null, path));
   }
 
   /**
@@ -62,7 +64,7 @@ public final class Root implements Comparable<Root>, Serializable {
    */
   @VisibleForTesting
   public static Root asDerivedRoot(Path path) {
-    return new Root(path, path);
+    return intern(new Root(path, path));
   }
 
   /**
@@ -75,14 +77,14 @@ public final class Root implements Comparable<Root>, Serializable {
   public static Root asDerivedRoot(Path execRoot, Path root) {
     Preconditions.checkArgument(root.startsWith(execRoot));
     Preconditions.checkArgument(!root.equals(execRoot));
-    return new Root(execRoot, root);
+    return intern(new Root(execRoot, root));
   }
 
   public static Root middlemanRoot(Path execRoot, Path outputDir) {
     Path root = outputDir.getRelative("internal");
     Preconditions.checkArgument(root.startsWith(execRoot));
     Preconditions.checkArgument(!root.equals(execRoot));
-    return new Root(execRoot, root, true);
+    return intern(new Root(execRoot, root, true));
   }
 
   /**
@@ -91,7 +93,21 @@ public final class Root implements Comparable<Root>, Serializable {
    * exist!
    */
   static Root execRootAsDerivedRoot(Path execRoot) {
-    return new Root(execRoot, execRoot);
+    return intern(new Root(execRoot, execRoot));
+  }
+
+  // Every artifact points to its root, and configurations create their roots anew each time they
+  // are created, so equal roots are shared. Middleman roots are equal to the derived root for
+  // the same directory, so they are interned separately.
+  private static final Interner<Root> ROOTS = Interners.newWeakInterner();
+  private static final Interner<Root> MIDDLEMAN_ROOTS = Interners.newWeakInterner();
+
+  private static Root intern(Root root) {
+    return root.isMiddlemanRoot ? MIDDLEMAN_ROOTS.intern(root) : ROOTS.intern(root);
+  }
+
+  private Object readResolve() {
+    return intern(this);
   }
 
   @Nullable private final Path execRoot;
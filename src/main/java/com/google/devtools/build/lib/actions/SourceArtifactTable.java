@@ -0,0 +1,117 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadCompatible;
+import com.google.devtools.build.lib.vfs.PathFragment;
+
+import javax.annotation.Nullable;
+
+/**
+ * The canonical source artifacts of an {@link ArtifactFactory}, keyed by exec path.
+ *
+ * <p>Since an artifact knows its exec path, the table stores only the artifacts themselves, next
+ * to the cached hash codes of their exec paths, in open-addressing arrays. Compared to a
+ * {@code HashMap}, this saves an entry object per source file, of which there can be millions.
+ */
+@ThreadCompatible
+final class SourceArtifactTable {
+  private static final int INITIAL_CAPACITY = 64;
+
+  private int[] hashes = new int[INITIAL_CAPACITY];
+  private Artifact[] artifacts = new Artifact[INITIAL_CAPACITY];
+  private int size = 0;
+
+  private static int index(int hash, int mask) {
+    // PathFragment hash codes are string hashes, whose low bits are poorly distributed.
+    return (hash ^ (hash >>> 16)) & mask;
+  }
+
+  /**
+   * Returns the slot that holds the artifact with the given exec path, or the empty slot where it
+   * would go.
+   */
+  private int find(PathFragment execPath, int hash) {
+    int mask = artifacts.length - 1;
+    for (int i = index(hash, mask); ; i = (i + 1) & mask) {
+      Artifact artifact = artifacts[i];
+      if (artifact == null
+          || (hashes[i] == hash && artifact.getExecPath().equals(execPath))) {
+        return i;
+      }
+    }
+  }
+
+  /**
+   * Returns the artifact with the given exec path, or null if there is none.
+   */
+  @Nullable
+  Artifact get(PathFragment execPath) {
+    return artifacts[find(execPath, execPath.hashCode())];
+  }
+
+  /**
+   * Adds {@code artifact}, replacing any artifact with the same exec path.
+   */
+  void put(Artifact artifact) {
+    PathFragment execPath = artifact.getExecPath();
+    int hash = execPath.hashCode();
+    int slot = find(execPath, hash);
+    if (artifacts[slot] == null) {
+      if (2 * (size + 1) > artifacts.length) {
+        grow();
+        slot = find(execPath, hash);
+      }
+      size++;
+    }
+    hashes[slot] = hash;
+    artifacts[slot] = artifact;
+  }
+
+  int size() {
+    return size;
+  }
+
+  /**
+   * Returns a copy of the artifacts in the table, in no particular order.
+   */
+  ImmutableList<Artifact> values() {
+    ImmutableList.Builder<Artifact> result = ImmutableList.builder();
+    for (Artifact artifact : artifacts) {
+      if (artifact != null) {
+        result.add(artifact);
+      }
+    }
+    return result.build();
+  }
+
+  private void grow() {
+    int[] oldHashes = hashes;
+    Artifact[] oldArtifacts = artifacts;
+    hashes = new int[oldArtifacts.length * 2];
+    artifacts = new Artifact[oldArtifacts.length * 2];
+    int mask = artifacts.length - 1;
+    for (int i = 0; i < oldArtifacts.length; i++) {
+      if (oldArtifacts[i] != null) {
+        int slot = index(oldHashes[i], mask);
+        while (artifacts[slot] != null) {
+          slot = (slot + 1) & mask;
+        }
+        hashes[slot] = oldHashes[i];
+        artifacts[slot] = oldArtifacts[i];
+      }
+    }
+  }
+}
@@ -42,6 +42,7 @@ import com.google.devtools.build.lib.analysis.config.BuildConfigurationCollectio
 import com.google.devtools.build.lib.analysis.config.ConfigMatchingProvider;
 import com.google.devtools.build.lib.collect.nestedset.NestedSet;
 import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetFlattenCache;
 import com.google.devtools.build.lib.collect.nestedset.Order;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadCompatible;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
@@ -167,6 +168,27 @@ public class BuildView {
         + "Reduces memory usage by ~10%, but makes further incremental builds slower.")
     public boolean discardAnalysisCache;
 
+    @Option(name = "experimental_keep_previous_configurations",
+        defaultValue = "false",
+        category = "experimental",
+        help = "When the build options change, keep the analysis cache of the previous "
+        + "configurations instead of discarding it, so that switching back to the previous "
+        + "options does not require re-analysis. Configurations that did not change at all, such "
+        + "as the host configuration for most option changes, are reused right away. This is "
+        + "not fragment-aware: every target of a changed configuration is analyzed again, even "
+        + "if it does not read the changed options. Increases memory usage by up to one more set "
+        + "of configured targets.")
+    public boolean keepPreviousConfigurations;
+
+    @Option(name = "experimental_nested_set_flatten_cache_size",
+        defaultValue = "0",
+        category = "experimental",
+        help = "The number of elements of large nested sets, such as classpaths, whose flattened "
+        + "form is kept in memory, so that consumers do not flatten them again. Each element "
+        + "costs about 4 bytes; 4194304 (about 16MB plus per-set overhead) suits large builds. "
+        + "0 disables the cache.")
+    public long nestedSetFlattenCacheSize;
+
     @Option(name = "keep_forward_graph",
             deprecationWarning = "keep_forward_graph is now a no-op and will be removed in an "
             + "upcoming Blaze release",
@@ -577,6 +599,7 @@ public class BuildView {
 
     skyframeBuildView.setWarningListener(eventHandler);
     skyframeExecutor.setErrorEventListener(eventHandler);
+    NestedSetFlattenCache.setMaximumElements(viewOptions.nestedSetFlattenCacheSize);
 
     LOG.info("Starting analysis");
     pollInterruptedStatus();
@@ -591,12 +614,21 @@ public class BuildView {
     // because we need to make sure that the legacy action graph does not contain multiple actions
     // with different versions of the same (target/host/etc.) configuration.
     // In the future the action graph will be probably be keyed by configurations, which should
-    // obviate the need for this workaround.
+    // obviate the need for this workaround. With --experimental_keep_previous_configurations, the
+    // configured targets of the previous configurations are kept instead.
     //
     // Also if --discard_analysis_cache was used in the last build we want to clear the legacy
     // data.
-    if ((this.configurations != null && !configurations.equals(this.configurations))
-        || skyframeAnalysisWasDiscarded) {
+    boolean configurationsChanged =
+        this.configurations != null && !configurations.equals(this.configurations);
+    if (configurationsChanged && viewOptions.keepPreviousConfigurations
+        && !skyframeAnalysisWasDiscarded) {
+      // Skyframe keys carry their configuration, so the actions of the previous configurations
+      // cannot clash with the current ones; only the artifact conflict check needs to skip them.
+      LOG.info("Keeping analysis cache of previous configurations");
+      skyframeExecutor.dropConfiguredTargetsExcept(configurations, this.configurations);
+      skyframeCacheWasInvalidated = true;
+    } else if (configurationsChanged || skyframeAnalysisWasDiscarded) {
       skyframeExecutor.dropConfiguredTargets();
       skyframeCacheWasInvalidated = true;
       clear();
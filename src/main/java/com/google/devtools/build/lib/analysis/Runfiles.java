@@ -36,10 +36,11 @@ import com.google.devtools.build.lib.vfs.PathFragment;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -96,7 +97,7 @@ public final class Runfiles {
   // equals to the third one if they are not the same instance (which they almost never are)
   //
   // Goodnight, prince(ss)?, and sweet dreams.
-  private static final class SymlinkEntry {
+  static final class SymlinkEntry {
     private final PathFragment path;
     private final Artifact artifact;
 
@@ -253,7 +254,7 @@ public final class Runfiles {
   @VisibleForTesting
   public NestedSet<Artifact> getArtifacts() {
     NestedSetBuilder<Artifact> allArtifacts = NestedSetBuilder.stableOrder();
-    allArtifacts.addAll(unconditionalArtifacts.toCollection());
+    allArtifacts.addTransitive(unconditionalArtifacts);
     for (PruningManifest manifest : getPruningManifests()) {
       allArtifacts.addTransitive(manifest.getCandidateRunfiles());
     }
@@ -291,20 +292,31 @@ public final class Runfiles {
    */
   public static Map<PathFragment, Artifact> filterListForObscuringSymlinks(
       EventHandler eventHandler, Location location, Map<PathFragment, Artifact> workingManifest) {
-    Map<PathFragment, Artifact> newManifest = new HashMap<>();
+    Map<PathFragment, Artifact> newManifest = new HashMap<>(workingManifest);
+    removeObscuringSymlinks(eventHandler, location, newManifest);
+    return newManifest;
+  }
+
+  /**
+   * Like {@link #filterListForObscuringSymlinks}, but removes the obscured entries from the given
+   * manifest instead of copying the rest of it.
+   */
+  private static void removeObscuringSymlinks(
+      EventHandler eventHandler, Location location, Map<PathFragment, Artifact> manifest) {
+    // Collect first, so that every entry is checked against the unfiltered manifest.
+    List<PathFragment> obscured = new ArrayList<>();
 
     outer:
-    for (Iterator<Entry<PathFragment, Artifact>> i = workingManifest.entrySet().iterator();
-         i.hasNext(); ) {
-      Entry<PathFragment, Artifact> entry = i.next();
+    for (Entry<PathFragment, Artifact> entry : manifest.entrySet()) {
       PathFragment source = entry.getKey();
       Artifact symlink = entry.getValue();
       // drop nested entries; warn if this changes anything
       int n = source.segmentCount();
       for (int j = 1; j < n; ++j) {
         PathFragment prefix = source.subFragment(0, n - j);
-        Artifact ancestor = workingManifest.get(prefix);
+        Artifact ancestor = manifest.get(prefix);
         if (ancestor != null) {
+          obscured.add(source);
           // This is an obscuring symlink, so just drop it and move on if there's no reporter.
           if (eventHandler == null) {
             continue outer;
@@ -319,9 +331,10 @@ public final class Runfiles {
           continue outer;
         }
       }
-      newManifest.put(entry.getKey(), entry.getValue());
     }
-    return newManifest;
+    for (PathFragment source : obscured) {
+      manifest.remove(source);
+    }
   }
 
   /**
@@ -336,6 +349,23 @@ public final class Runfiles {
   public Pair<Map<PathFragment, Artifact>, Map<PathFragment, Artifact>> getRunfilesInputs(
       EventHandler eventHandler, Location location)
           throws IOException {
+    Map<PathFragment, Artifact> manifest = getManifestBelowSuffix(eventHandler, location);
+    PathFragment path = new PathFragment(suffix);
+    Map<PathFragment, Artifact> result = new HashMap<>();
+    for (Map.Entry<PathFragment, Artifact> entry : manifest.entrySet()) {
+      result.put(path.getRelative(entry.getKey()), entry.getValue());
+    }
+    return Pair.of(result, getRootSymlinksAsMap());
+  }
+
+  /**
+   * Returns the normal source tree entries of {@link #getRunfilesInputs}, but relative to the
+   * {@link #getSuffix suffix} directory rather than to the runfiles root. This is the only map
+   * built while computing the runfiles tree; callers that stream the entries out, like
+   * {@link SourceManifestAction}, should prefer it to avoid a second, re-rooted copy.
+   */
+  Map<PathFragment, Artifact> getManifestBelowSuffix(EventHandler eventHandler,
+      Location location) throws IOException {
     Map<PathFragment, Artifact> manifest = getSymlinksAsMap();
     // Add unconditional artifacts (committed to inclusion on construction of runfiles).
     for (Artifact artifact : getUnconditionalArtifactsWithoutMiddlemen()) {
@@ -349,25 +379,21 @@ public final class Runfiles {
       for (Artifact artifact : pruningManifest.getCandidateRunfiles()) {
         allowedRunfiles.put(artifact.getRootRelativePath().getPathString(), artifact);
       }
-      BufferedReader reader = new BufferedReader(
-          new InputStreamReader(pruningManifest.getManifestFile().getPath().getInputStream()));
-      String line;
-      while ((line = reader.readLine()) != null) {
-        Artifact artifact = allowedRunfiles.get(line);
-        if (artifact != null) {
-          manifest.put(artifact.getRootRelativePath(), artifact);
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+          pruningManifest.getManifestFile().getPath().getInputStream()))) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          Artifact artifact = allowedRunfiles.get(line);
+          if (artifact != null) {
+            manifest.put(artifact.getRootRelativePath(), artifact);
+          }
         }
       }
     }
 
-    manifest = filterListForObscuringSymlinks(eventHandler, location, manifest);
+    removeObscuringSymlinks(eventHandler, location, manifest);
     manifest.putAll(manifestExpander.apply(manifest));
-    PathFragment path = new PathFragment(suffix);
-    Map<PathFragment, Artifact> result = new HashMap<>();
-    for (Map.Entry<PathFragment, Artifact> entry : manifest.entrySet()) {
-      result.put(path.getRelative(entry.getKey()), entry.getValue());
-    }
-    return Pair.of(result, (Map<PathFragment, Artifact>) new HashMap<>(getRootSymlinksAsMap()));
+    return manifest;
   }
 
   /**
@@ -22,9 +22,9 @@ import com.google.devtools.build.lib.actions.ActionOwner;
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.Executor;
 import com.google.devtools.build.lib.analysis.actions.AbstractFileWriteAction;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetDigester;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.util.Fingerprint;
-import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.vfs.PathFragment;
 
 import java.io.BufferedWriter;
@@ -55,6 +55,35 @@ public class SourceManifestAction extends AbstractFileWriteAction {
 
   private static final String GUID = "07459553-a3d0-4d37-9d78-18ed942470f4";
 
+  private static final NestedSetDigester<Runfiles.SymlinkEntry> SYMLINK_DIGESTER =
+      new NestedSetDigester<>(new NestedSetDigester.ElementFingerprinter<Runfiles.SymlinkEntry>() {
+        @Override
+        public void addElement(Fingerprint f, Runfiles.SymlinkEntry entry) {
+          f.addPath(entry.getPath());
+          f.addPath(entry.getArtifact().getPath());
+        }
+      });
+
+  private static final NestedSetDigester<Artifact> ARTIFACT_DIGESTER =
+      new NestedSetDigester<>(new NestedSetDigester.ElementFingerprinter<Artifact>() {
+        @Override
+        public void addElement(Fingerprint f, Artifact artifact) {
+          if (Artifact.MIDDLEMAN_FILTER.apply(artifact)) {
+            f.addPath(artifact.getRootRelativePath());
+            f.addPath(artifact.getPath());
+          }
+        }
+      });
+
+  private static final Comparator<Map.Entry<PathFragment, Artifact>> ENTRY_COMPARATOR =
+      new Comparator<Map.Entry<PathFragment, Artifact>>() {
+        @Override
+        public int compare(Map.Entry<PathFragment, Artifact> path1,
+            Map.Entry<PathFragment, Artifact> path2) {
+          return path1.getKey().compareTo(path2.getKey());
+        }
+      };
+
   /**
    * Interface for defining manifest formatting and reporting specifics.
    */
@@ -111,18 +140,19 @@ public class SourceManifestAction extends AbstractFileWriteAction {
   @VisibleForTesting
   public void writeOutputFile(OutputStream out, EventHandler eventHandler)
       throws IOException {
-    writeFile(out, runfiles.getRunfilesInputs(eventHandler, getOwner().getLocation()));
+    writeFile(out, runfiles.getManifestBelowSuffix(eventHandler, getOwner().getLocation()),
+        runfiles.getRootSymlinksAsMap());
   }
 
   @Override
-  public DeterministicWriter newDeterministicWriter(EventHandler eventHandler, Executor executor)
-      throws IOException {
-    final Pair<Map<PathFragment, Artifact>, Map<PathFragment, Artifact>> runfilesInputs =
-        runfiles.getRunfilesInputs(eventHandler, getOwner().getLocation());
+  public DeterministicWriter newDeterministicWriter(final EventHandler eventHandler,
+      Executor executor) throws IOException {
+    // The runfiles map is only computed once the file is actually written, so that nothing large
+    // is held onto between the two calls.
     return new DeterministicWriter() {
       @Override
       public void writeOutputFile(OutputStream out) throws IOException {
-        writeFile(out, runfilesInputs);
+        SourceManifestAction.this.writeOutputFile(out, eventHandler);
       }
     };
   }
@@ -146,37 +176,31 @@ public class SourceManifestAction extends AbstractFileWriteAction {
    * file.
    *
    * @param out is the message stream to write errors to.
-   * @param output The actual mapping of the output manifest.
+   * @param manifest the normal entries, relative to the runfiles suffix directory
+   * @param rootSymlinks the entries that live outside the source tree
    * @throws IOException
    */
-  private void writeFile(OutputStream out,
-                         Pair<Map<PathFragment, Artifact>, Map<PathFragment, Artifact>> output)
-      throws IOException {
+  private void writeFile(OutputStream out, Map<PathFragment, Artifact> manifest,
+      Map<PathFragment, Artifact> rootSymlinks) throws IOException {
     Writer manifestFile = new BufferedWriter(new OutputStreamWriter(out, ISO_8859_1));
 
-    Comparator<Map.Entry<PathFragment, Artifact>> fragmentComparator =
-          new Comparator<Map.Entry<PathFragment, Artifact>>() {
-      @Override
-      public int compare(Map.Entry<PathFragment, Artifact> path1,
-                         Map.Entry<PathFragment, Artifact> path2) {
-        return path1.getKey().compareTo(path2.getKey());
-      }
-    };
-
     List<Map.Entry<PathFragment, Artifact>> sortedRootLinks =
-      new ArrayList<>(output.second.entrySet());
-    Collections.sort(sortedRootLinks, fragmentComparator);
+      new ArrayList<>(rootSymlinks.entrySet());
+    Collections.sort(sortedRootLinks, ENTRY_COMPARATOR);
 
+    // All entries share the suffix directory, so sorting them before prepending it yields the
+    // same order as sorting the full paths.
     List<Map.Entry<PathFragment, Artifact>> sortedManifest =
-      new ArrayList<>(output.first.entrySet());
-    Collections.sort(sortedManifest, fragmentComparator);
+      new ArrayList<>(manifest.entrySet());
+    Collections.sort(sortedManifest, ENTRY_COMPARATOR);
 
     for (Map.Entry<PathFragment, Artifact> line : sortedRootLinks) {
       manifestWriter.writeEntry(manifestFile, line.getKey(), line.getValue());
     }
 
+    PathFragment suffix = new PathFragment(runfiles.getSuffix());
     for (Map.Entry<PathFragment, Artifact> line : sortedManifest) {
-      manifestWriter.writeEntry(manifestFile, line.getKey(), line.getValue());
+      manifestWriter.writeEntry(manifestFile, suffix.getRelative(line.getKey()), line.getValue());
     }
     manifestFile.flush();
   }
@@ -195,23 +219,12 @@ public class SourceManifestAction extends AbstractFileWriteAction {
   protected String computeKey() {
     Fingerprint f = new Fingerprint();
     f.addString(GUID);
-    Map<PathFragment, Artifact> symlinks = runfiles.getSymlinksAsMap();
-    f.addInt(symlinks.size());
-    for (Map.Entry<PathFragment, Artifact> symlink : symlinks.entrySet()) {
-      f.addPath(symlink.getKey());
-      f.addPath(symlink.getValue().getPath());
-    }
-    Map<PathFragment, Artifact> rootSymlinks = runfiles.getRootSymlinksAsMap();
-    f.addInt(rootSymlinks.size());
-    for (Map.Entry<PathFragment, Artifact> rootSymlink : rootSymlinks.entrySet()) {
-      f.addPath(rootSymlink.getKey());
-      f.addPath(rootSymlink.getValue().getPath());
-    }
-
-    for (Artifact artifact : runfiles.getArtifactsWithoutMiddlemen()) {
-      f.addPath(artifact.getRootRelativePath());
-      f.addPath(artifact.getPath());
-    }
+    // The nested sets are added by their digests, which are shared by all runfiles trees that
+    // contain them. Which of several entries for the same path wins is determined by the order of
+    // the entries, which the digests preserve.
+    SYMLINK_DIGESTER.addTo(f, runfiles.getSymlinks());
+    SYMLINK_DIGESTER.addTo(f, runfiles.getRootSymlinks());
+    ARTIFACT_DIGESTER.addTo(f, runfiles.getArtifacts());
     return f.hexDigestAndReset();
   }
 
@@ -23,6 +23,9 @@ import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.Executor;
 import com.google.devtools.build.lib.actions.ResourceSet;
 import com.google.devtools.build.lib.util.Fingerprint;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.IOException;
 
 /**
  * Action responsible for the symlink tree creation.
@@ -68,6 +71,32 @@ public class SymlinkTreeAction extends AbstractAction {
     return filesetTree;
   }
 
+  /**
+   * Returns where the output manifest of the previous execution is kept while the action runs.
+   * It lives next to the symlink tree rather than inside it, so that it never shows up as a
+   * runfile.
+   */
+  public static Path getPreviousOutputManifest(Path outputManifest) {
+    Path treeRoot = outputManifest.getParentDirectory();
+    return treeRoot.getParentDirectory().getChild(treeRoot.getBaseName() + ".previous_manifest");
+  }
+
+  /**
+   * Instead of deleting the output manifest, moves it aside, so that the symlink tree can be
+   * updated incrementally from the difference between the old and the new manifest.
+   */
+  @Override
+  protected void deleteOutputs(Path execRoot) throws IOException {
+    Path manifest = outputManifest.getPath();
+    Path previous = getPreviousOutputManifest(manifest);
+    previous.delete();
+    if (!filesetTree && manifest.isFile()) {
+      manifest.renameTo(previous);
+    } else {
+      super.deleteOutputs(execRoot);
+    }
+  }
+
   @Override
   public String getMnemonic() {
     return "SymlinkTree";
@@ -19,6 +19,9 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.collect.CollectionUtils;
+import com.google.devtools.build.lib.util.Fingerprint;
+
+import java.io.IOException;
 
 /**
  * A representation of a command line to be executed by a SpawnAction.
@@ -29,6 +32,52 @@ public abstract class CommandLine {
    */
   public abstract Iterable<String> arguments();
 
+  /**
+   * Receives the arguments of a command line one at a time.
+   */
+  public interface ArgumentWriter {
+    void write(String argument) throws IOException;
+  }
+
+  /**
+   * Passes the arguments of the command line to {@code writer}, in order. Implementations that can
+   * produce their arguments without expanding all of them into a list first override this.
+   */
+  public void writeArguments(ArgumentWriter writer) throws IOException {
+    for (String argument : arguments()) {
+      writer.write(argument);
+    }
+  }
+
+  /**
+   * Returns the total length of the arguments, counting one separator after each of them. This is
+   * the size of a parameter file holding the command line, and is computed without keeping the
+   * expanded arguments around.
+   */
+  public long getArgumentsLength() {
+    final long[] length = {0};
+    try {
+      writeArguments(new ArgumentWriter() {
+        @Override
+        public void write(String argument) {
+          length[0] += argument.length() + 1;
+        }
+      });
+    } catch (IOException e) {
+      // The writer above never throws.
+      throw new IllegalStateException(e);
+    }
+    return length[0];
+  }
+
+  /**
+   * Adds the command line to an action key. The result must change whenever {@link #arguments}
+   * changes, but implementations need not add the arguments themselves.
+   */
+  public void addToFingerprint(Fingerprint f) {
+    f.addStrings(arguments());
+  }
+
   /**
    * Returns whether the command line represents a shell command with the given shell executable.
    * This is used to give better error messages.
@@ -88,6 +137,20 @@ public abstract class CommandLine {
         return Iterables.concat(executableArgs, commandLine.arguments());
       }
 
+      @Override
+      public void writeArguments(ArgumentWriter writer) throws IOException {
+        for (String argument : executableArgs) {
+          writer.write(argument);
+        }
+        commandLine.writeArguments(writer);
+      }
+
+      @Override
+      public void addToFingerprint(Fingerprint f) {
+        f.addStrings(executableArgs);
+        commandLine.addToFingerprint(f);
+      }
+
       @Override
       public boolean isShellCommand() {
         return isShellCommand;
@@ -109,6 +172,13 @@ public abstract class CommandLine {
         }
         return builder.build();
       }
+
+      @Override
+      public void writeArguments(ArgumentWriter writer) throws IOException {
+        for (CharSequence arg : arguments) {
+          writer.write(arg.toString());
+        }
+      }
     };
   }
 
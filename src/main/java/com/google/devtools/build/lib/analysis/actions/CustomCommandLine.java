@@ -19,21 +19,91 @@ import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.collect.CollectionUtils;
 import com.google.devtools.build.lib.collect.nestedset.NestedSet;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetDigester;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetVisitor;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
 import com.google.devtools.build.lib.syntax.Label;
+import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.vfs.PathFragment;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 /**
  * A customizable, serializable class for building memory efficient command lines.
  */
 @Immutable
 public final class CustomCommandLine extends CommandLine {
 
+  // Tags that keep the fingerprints of different kinds of fragments apart.
+  private static final int EXPANDED_FRAGMENT = 0;
+  private static final int INTERSPERSED_NESTED_SET = 1;
+  private static final int JOINED_NESTED_SET = 2;
+
+  /**
+   * Digests nested sets of arbitrary objects by their string representation, which is what ends up
+   * on the command line.
+   */
+  private static final NestedSetDigester<Object> STRING_DIGESTER = new NestedSetDigester<>(
+      new NestedSetDigester.ElementFingerprinter<Object>() {
+        @Override
+        public void addElement(Fingerprint fingerprint, Object element) {
+          fingerprint.addString(element.toString());
+        }
+      });
+
+  /**
+   * Digests nested sets of artifacts by their exec paths. Middlemen do not appear on command lines.
+   */
+  private static final NestedSetDigester<Artifact> EXEC_PATH_DIGESTER = new NestedSetDigester<>(
+      new NestedSetDigester.ElementFingerprinter<Artifact>() {
+        @Override
+        public void addElement(Fingerprint fingerprint, Artifact element) {
+          if (Artifact.MIDDLEMAN_FILTER.apply(element)) {
+            fingerprint.addString(element.getExecPathString());
+          }
+        }
+      });
+
   private abstract static class ArgvFragment {
-    abstract void eval(ImmutableList.Builder<String> builder);
+    /**
+     * Passes the arguments of this fragment to {@code writer}, one at a time.
+     */
+    abstract void write(ArgumentWriter writer) throws IOException;
+
+    /**
+     * Adds the arguments of this fragment to the fingerprint. Fragments over nested sets override
+     * this to add the digests of the sets rather than their expansion.
+     */
+    void addToFingerprint(Fingerprint f) {
+      f.addInt(EXPANDED_FRAGMENT);
+      f.addStrings(expand(ImmutableList.of(this)));
+    }
+  }
+
+  /**
+   * Collects the arguments of the given fragments into a list.
+   */
+  private static ImmutableList<String> expand(Iterable<ArgvFragment> fragments) {
+    final ImmutableList.Builder<String> builder = ImmutableList.builder();
+    ArgumentWriter collector = new ArgumentWriter() {
+      @Override
+      public void write(String argument) {
+        builder.add(argument);
+      }
+    };
+    try {
+      for (ArgvFragment fragment : fragments) {
+        fragment.write(collector);
+      }
+    } catch (IOException e) {
+      // The collector never throws.
+      throw new IllegalStateException(e);
+    }
+    return builder.build();
   }
 
   // It's better to avoid anonymous classes if we want to serialize command lines
@@ -46,8 +116,8 @@ public final class CustomCommandLine extends CommandLine {
     }
 
     @Override
-    void eval(ImmutableList.Builder<String> builder) {
-      builder.add(arg.toString());
+    void write(ArgumentWriter writer) throws IOException {
+      writer.write(arg.toString());
     }
   }
 
@@ -62,8 +132,36 @@ public final class CustomCommandLine extends CommandLine {
     }
 
     @Override
-    void eval(ImmutableList.Builder<String> builder) {
-      builder.add(Artifact.joinExecPaths(delimiter, artifacts));
+    void write(ArgumentWriter writer) throws IOException {
+      if (!(artifacts instanceof NestedSet)) {
+        writer.write(Artifact.joinExecPaths(delimiter, artifacts));
+        return;
+      }
+      // Stream the nested set straight into the argument instead of flattening it first.
+      final StringBuilder joined = new StringBuilder();
+      ((NestedSet<Artifact>) artifacts).forEachElement(new NestedSetVisitor.Receiver<Artifact>() {
+        @Override
+        public void accept(Artifact artifact) {
+          if (Artifact.MIDDLEMAN_FILTER.apply(artifact)) {
+            if (joined.length() > 0) {
+              joined.append(delimiter);
+            }
+            joined.append(artifact.getExecPathString());
+          }
+        }
+      });
+      writer.write(joined.toString());
+    }
+
+    @Override
+    void addToFingerprint(Fingerprint f) {
+      if (!(artifacts instanceof NestedSet)) {
+        super.addToFingerprint(f);
+        return;
+      }
+      f.addInt(JOINED_NESTED_SET);
+      f.addString(delimiter);
+      EXEC_PATH_DIGESTER.addTo(f, (NestedSet<Artifact>) artifacts);
     }
   }
 
@@ -78,9 +176,9 @@ public final class CustomCommandLine extends CommandLine {
     }
 
     @Override
-    void eval(ImmutableList.Builder<String> builder) {
+    void write(ArgumentWriter writer) throws IOException {
       // PathFragment.toString() uses getPathString()
-      builder.add(String.format(template, (Object[]) paths));
+      writer.write(String.format(template, (Object[]) paths));
     }
   }
 
@@ -93,8 +191,8 @@ public final class CustomCommandLine extends CommandLine {
   public abstract static class CustomArgv extends ArgvFragment {
 
     @Override
-    void eval(ImmutableList.Builder<String> builder) {
-      builder.add(argv());
+    void write(ArgumentWriter writer) throws IOException {
+      writer.write(argv());
     }
 
     public abstract String argv();
@@ -106,8 +204,10 @@ public final class CustomCommandLine extends CommandLine {
   public abstract static class CustomMultiArgv extends ArgvFragment {
 
     @Override
-    void eval(ImmutableList.Builder<String> builder) {
-      builder.addAll(argv());
+    void write(ArgumentWriter writer) throws IOException {
+      for (String arg : argv()) {
+        writer.write(arg);
+      }
     }
 
     public abstract Iterable<String> argv();
@@ -124,8 +224,19 @@ public final class CustomCommandLine extends CommandLine {
     }
 
     @Override
-    void eval(ImmutableList.Builder<String> builder) {
-      builder.add(Joiner.on(delimiter).join(paths));
+    void write(ArgumentWriter writer) throws IOException {
+      writer.write(Joiner.on(delimiter).join(paths));
+    }
+
+    @Override
+    void addToFingerprint(Fingerprint f) {
+      if (!(paths instanceof NestedSet)) {
+        super.addToFingerprint(f);
+        return;
+      }
+      f.addInt(JOINED_NESTED_SET);
+      f.addString(delimiter);
+      STRING_DIGESTER.addTo(f, (NestedSet<PathFragment>) paths);
     }
   }
 
@@ -148,43 +259,82 @@ public final class CustomCommandLine extends CommandLine {
     private final String beforeEach;
     private final String formatEach;
 
+    /**
+     * The nested set {@code sequence} was derived from, if any, together with the digester that
+     * renders its elements the way {@code sequence} does.
+     */
+    @Nullable private final NestedSet<?> nestedSet;
+    @Nullable private final NestedSetDigester<?> digester;
+
     /**
      * Do not call from outside this class because this does not guarantee that {@code sequence} is
      * immutable.
      */
-    private InterspersingArgs(Iterable<?> sequence, String beforeEach, String formatEach) {
+    private InterspersingArgs(Iterable<?> sequence, String beforeEach, String formatEach,
+        @Nullable NestedSet<?> nestedSet, @Nullable NestedSetDigester<?> digester) {
       this.sequence = sequence;
       this.beforeEach = beforeEach;
       this.formatEach = formatEach;
+      this.nestedSet = nestedSet;
+      this.digester = digester;
     }
 
     static InterspersingArgs fromStrings(
         Iterable<?> sequence, String beforeEach, String formatEach) {
-      return new InterspersingArgs(
-          CollectionUtils.makeImmutable(sequence), beforeEach, formatEach);
+      sequence = CollectionUtils.makeImmutable(sequence);
+      return sequence instanceof NestedSet
+          ? new InterspersingArgs(sequence, beforeEach, formatEach, (NestedSet<?>) sequence,
+              STRING_DIGESTER)
+          : new InterspersingArgs(sequence, beforeEach, formatEach, null, null);
     }
 
     static InterspersingArgs fromExecPaths(
         Iterable<Artifact> sequence, String beforeEach, String formatEach) {
-      return new InterspersingArgs(
-          Artifact.toExecPaths(CollectionUtils.makeImmutable(sequence)), beforeEach, formatEach);
+      sequence = CollectionUtils.makeImmutable(sequence);
+      return sequence instanceof NestedSet
+          ? new InterspersingArgs(Artifact.toExecPaths(sequence), beforeEach, formatEach,
+              (NestedSet<?>) sequence, EXEC_PATH_DIGESTER)
+          : new InterspersingArgs(Artifact.toExecPaths(sequence), beforeEach, formatEach,
+              null, null);
+    }
+
+    // The digester always matches the element type of the nested set; see the factory methods.
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    @Override
+    void addToFingerprint(Fingerprint f) {
+      if (nestedSet == null) {
+        super.addToFingerprint(f);
+        return;
+      }
+      f.addInt(INTERSPERSED_NESTED_SET);
+      f.addBoolean(beforeEach != null);
+      if (beforeEach != null) {
+        f.addString(beforeEach);
+      }
+      f.addBoolean(formatEach != null);
+      if (formatEach != null) {
+        f.addString(formatEach);
+      }
+      ((NestedSetDigester) digester).addTo(f, nestedSet);
     }
 
     @Override
-    void eval(ImmutableList.Builder<String> builder) {
+    void write(ArgumentWriter writer) throws IOException {
+      // Most callers format with a plain "%s", which would only copy each argument.
+      String format = "%s".equals(formatEach) ? null : formatEach;
       for (Object item : sequence) {
         if (item == null) {
           continue;
         }
 
         if (beforeEach != null) {
-          builder.add(beforeEach);
+          writer.write(beforeEach);
         }
         String arg = item.toString();
-        if (formatEach != null) {
-          arg = String.format(formatEach, arg);
+        if (format != null) {
+          arg = String.format(format, arg);
         }
-        builder.add(arg);
+        writer.write(arg);
       }
     }
   }
@@ -349,10 +499,29 @@ public final class CustomCommandLine extends CommandLine {
 
   @Override
   public Iterable<String> arguments() {
-    ImmutableList.Builder<String> builder = ImmutableList.builder();
+    return expand(arguments);
+  }
+
+  /**
+   * Streams the arguments fragment by fragment, so that writing a parameter file or measuring the
+   * command line never holds more than one expanded argument at a time.
+   */
+  @Override
+  public void writeArguments(ArgumentWriter writer) throws IOException {
     for (ArgvFragment arg : arguments) {
-      arg.eval(builder);
+      arg.write(writer);
+    }
+  }
+
+  /**
+   * Nested sets in the command line are added by their digests, which are shared with every
+   * other command line that contains the same sets, instead of being expanded.
+   */
+  @Override
+  public void addToFingerprint(Fingerprint f) {
+    f.addInt(arguments.size());
+    for (ArgvFragment arg : arguments) {
+      arg.addToFingerprint(f);
     }
-    return builder.build();
   }
 }
@@ -142,14 +142,17 @@ public final class ParamFileHelper {
   /**
    * Estimates the params file size for the given arguments.
    */
-  private static int getParamFileSize(
+  private static long getParamFileSize(
       List<String> executableArgs, Iterable<String> arguments, CommandLine commandLine) {
-    Iterable<String> actualArguments = (commandLine != null) ? commandLine.arguments() : arguments;
-    return getParamFileSize(executableArgs) + getParamFileSize(actualArguments);
+    // Command lines can measure themselves without expanding their arguments into a list.
+    long argumentsSize = (commandLine != null)
+        ? commandLine.getArgumentsLength()
+        : getParamFileSize(arguments);
+    return getParamFileSize(executableArgs) + argumentsSize;
   }
 
-  private static int getParamFileSize(Iterable<String> args) {
-    int size = 0;
+  private static long getParamFileSize(Iterable<String> args) {
+    long size = 0;
     for (String s : args) {
       size += s.length() + 1;
     }
@@ -90,11 +90,14 @@ public final class ParameterFileWriteAction extends AbstractFileWriteAction {
    * Writes the arguments from the list into the parameter file.
    */
   private void writeContentUnquoted(OutputStream outputStream) throws IOException {
-    OutputStreamWriter out = new OutputStreamWriter(outputStream, charset);
-    for (String line : commandLine.arguments()) {
-      out.write(line);
-      out.write('\n');
-    }
+    final OutputStreamWriter out = new OutputStreamWriter(outputStream, charset);
+    commandLine.writeArguments(new CommandLine.ArgumentWriter() {
+      @Override
+      public void write(String argument) throws IOException {
+        out.write(argument);
+        out.write('\n');
+      }
+    });
     out.flush();
   }
 
@@ -103,11 +106,14 @@ public final class ParameterFileWriteAction extends AbstractFileWriteAction {
    * quoting (if required).
    */
   private void writeContentQuoted(OutputStream outputStream) throws IOException {
-    OutputStreamWriter out = new OutputStreamWriter(outputStream, charset);
-    for (String line : ShellEscaper.escapeAll(commandLine.arguments())) {
-      out.write(line);
-      out.write('\n');
-    }
+    final OutputStreamWriter out = new OutputStreamWriter(outputStream, charset);
+    commandLine.writeArguments(new CommandLine.ArgumentWriter() {
+      @Override
+      public void write(String argument) throws IOException {
+        out.write(ShellEscaper.escapeString(argument));
+        out.write('\n');
+      }
+    });
     out.flush();
   }
 
@@ -116,7 +122,7 @@ public final class ParameterFileWriteAction extends AbstractFileWriteAction {
     Fingerprint f = new Fingerprint();
     f.addString(GUID);
     f.addString(String.valueOf(makeExecutable));
-    f.addStrings(commandLine.arguments());
+    commandLine.addToFingerprint(f);
     return f.hexDigestAndReset();
   }
 }
@@ -14,6 +14,7 @@
 package com.google.devtools.build.lib.analysis.config;
 
 import com.google.devtools.build.lib.analysis.config.BuildConfiguration.Fragment;
+import com.google.devtools.build.lib.util.Fingerprint;
 
 import javax.annotation.Nullable;
 
@@ -36,4 +37,12 @@ public interface ConfigurationFragmentFactory {
    * @return the exact type of the fragment this factory creates.
    */
   Class<? extends Fragment> creates();
+
+  /**
+   * Adds the values of exactly those options that {@link #create} reads, directly or through the
+   * fragments and helpers it uses, to {@code fingerprint}. Build options that add the same values
+   * must produce equivalent fragments, which lets configurations that only differ in other
+   * options, such as the target and the host configuration, share one instance.
+   */
+  void addRequiredOptions(BuildOptions buildOptions, Fingerprint fingerprint);
 }
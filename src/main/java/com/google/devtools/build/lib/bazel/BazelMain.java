@@ -30,6 +30,7 @@ public final class BazelMain {
       com.google.devtools.build.lib.bazel.BazelRepositoryModule.class,
       com.google.devtools.build.lib.bazel.rules.BazelRulesModule.class,
       com.google.devtools.build.lib.standalone.StandaloneModule.class,
+      com.google.devtools.build.lib.remote.RemoteModule.class,
       com.google.devtools.build.lib.runtime.BuildSummaryStatsModule.class,
       com.google.devtools.build.lib.webstatusserver.WebStatusServerModule.class
   );
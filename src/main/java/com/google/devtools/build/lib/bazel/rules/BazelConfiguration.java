@@ -20,6 +20,7 @@ import com.google.devtools.build.lib.analysis.config.BuildOptions;
 import com.google.devtools.build.lib.analysis.config.ConfigurationEnvironment;
 import com.google.devtools.build.lib.analysis.config.ConfigurationFragmentFactory;
 import com.google.devtools.build.lib.analysis.config.InvalidConfigurationException;
+import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.util.OS;
 import com.google.devtools.build.lib.vfs.PathFragment;
 
@@ -41,6 +42,11 @@ public class BazelConfiguration extends Fragment {
     public Class<? extends Fragment> creates() {
       return BazelConfiguration.class;
     }
+
+    @Override
+    public void addRequiredOptions(BuildOptions buildOptions, Fingerprint fingerprint) {
+      // The fragment does not depend on any options.
+    }
   }
 
   public BazelConfiguration() {
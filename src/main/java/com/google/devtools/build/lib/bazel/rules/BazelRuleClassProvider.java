@@ -91,6 +91,7 @@ import com.google.devtools.build.lib.rules.objc.ObjcXcodeprojRule;
 import com.google.devtools.build.lib.rules.workspace.BindRule;
 import com.google.devtools.build.lib.syntax.Label;
 import com.google.devtools.build.lib.syntax.SkylarkType;
+import com.google.devtools.build.lib.util.Fingerprint;
 
 /**
  * A rule class provider implementing the rules Bazel knows.
@@ -114,6 +115,11 @@ public class BazelRuleClassProvider {
       JavaOptions javaOptions = buildOptions.get(JavaOptions.class);
       return javaOptions.javaCpu == null ? "default" : javaOptions.javaCpu;
     }
+
+    @Override
+    public void addRequiredOptions(BuildOptions buildOptions, Fingerprint fingerprint) {
+      fingerprint.addString(String.valueOf(buildOptions.get(JavaOptions.class).javaCpu));
+    }
   };
 
   private static class BazelPrerequisiteValidator implements PrerequisiteValidator {
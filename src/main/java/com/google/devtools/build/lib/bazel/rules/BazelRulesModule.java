@@ -57,7 +57,8 @@ public class BazelRulesModule extends BlazeModule {
         category = "strategy",
         help = "Specify how spawn actions are executed by default."
             + "'standalone' means run all of them locally."
-            + "'sandboxed' means run them in namespaces based sandbox (available only on Linux)")
+            + "'sandboxed' means run them in namespaces based sandbox (available only on Linux). "
+            + "'remote' means ship them to the worker given by --remote_worker")
     public String spawnStrategy;
 
     @Option(
@@ -65,6 +65,9 @@ final class EmptyNestedSet<E> extends NestedSet<E> {
     return ImmutableSet.of();
   }
 
+  @Override
+  public void forEachElement(NestedSetVisitor.Receiver<? super E> receiver) {}
+
   @Override
   public String toString() {
     return "{}";
@@ -65,6 +65,13 @@ abstract class ImmutableListDirectsNestedSet<E> extends NestedSet<E> {
     return directDeps;
   }
 
+  @Override
+  public void forEachElement(NestedSetVisitor.Receiver<? super E> receiver) {
+    for (E e : directDeps) {
+      receiver.accept(e);
+    }
+  }
+
   @SuppressWarnings("unchecked")
   @Override
   public Set<E> toSet() {
@@ -13,8 +13,8 @@
 // limitations under the License.
 package com.google.devtools.build.lib.collect.nestedset;
 
-import com.google.common.collect.ImmutableCollection;
-import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A nested set expander that implements a variation of left-to-right preordering.
@@ -31,7 +31,9 @@ import com.google.common.collect.ImmutableList;
  * possible, both for items and for references to nested sets.
  *
  * <p>The left-to-right pre-order-like ordering is implemented by running a
- * right-to-left postorder traversal and then reversing the result.
+ * right-to-left postorder traversal and then reversing the result. Unlike the
+ * other orders, this one therefore cannot be streamed: whether an element is
+ * emitted depends on its last occurrence, so the elements are buffered.
  *
  * <p>The reason naive left-to left-to-right preordering is not used here is that
  * it does not handle diamond-like structures properly. For example, take the
@@ -75,17 +77,18 @@ import com.google.common.collect.ImmutableList;
 final class LinkOrderExpander<E> implements NestedSetExpander<E> {
   @Override
   public void expandInto(NestedSet<E> nestedSet, Uniqueifier uniqueifier,
-      ImmutableCollection.Builder<E> builder) {
-    ImmutableList.Builder<E> result = ImmutableList.builder();
+      NestedSetVisitor.Receiver<? super E> receiver) {
+    List<E> result = new ArrayList<>();
     internalEnumerate(nestedSet, uniqueifier, result);
-    builder.addAll(result.build().reverse());
+    for (int i = result.size() - 1; i >= 0; i--) {
+      receiver.accept(result.get(i));
+    }
   }
 
   // We suppress unchecked warning so that we can access the internal raw structure of the
   // NestedSet.
   @SuppressWarnings("unchecked")
-  private void internalEnumerate(NestedSet<E> set, Uniqueifier uniqueifier,
-      ImmutableCollection.Builder<E> builder) {
+  private void internalEnumerate(NestedSet<E> set, Uniqueifier uniqueifier, List<E> builder) {
     NestedSet[] transitiveSets = set.transitiveSets();
     for (int i = transitiveSets.length - 1; i >= 0; i--) {
       NestedSet<E> subset = transitiveSets[i];
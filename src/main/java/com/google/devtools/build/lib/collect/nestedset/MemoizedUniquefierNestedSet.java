@@ -31,9 +31,15 @@ public abstract class MemoizedUniquefierNestedSet<E> extends NestedSet<E> {
 
   @Override
   public List<E> toList() {
+    ImmutableList<E> cached = NestedSetFlattenCache.get(this);
+    if (cached != null) {
+      return cached;
+    }
     ImmutableList.Builder<E> builder = new ImmutableList.Builder<>();
     memoizedFill(builder);
-    return builder.build();
+    ImmutableList<E> result = builder.build();
+    NestedSetFlattenCache.put(this, result);
+    return result;
   }
 
   @Override
@@ -43,6 +49,15 @@ public abstract class MemoizedUniquefierNestedSet<E> extends NestedSet<E> {
     return builder.build();
   }
 
+  /**
+   * Once the memo exists, uniqueness is decided by replaying its bitmap, so apart from link
+   * order, which must buffer, the traversal allocates nothing proportional to the set's size.
+   */
+  @Override
+  public void forEachElement(NestedSetVisitor.Receiver<? super E> receiver) {
+    memoizedFill(receiver);
+  }
+
   /**
    * It does not make sense to have a {@code MemoizedUniquefierNestedSet} if it is empty.
    */
@@ -56,19 +71,32 @@ public abstract class MemoizedUniquefierNestedSet<E> extends NestedSet<E> {
   /**
    * Fill a collection builder by using a memoized {@code Uniqueifier} for faster uniqueness check.
    */
-  final void memoizedFill(ImmutableCollection.Builder<E> builder) {
+  final void memoizedFill(final ImmutableCollection.Builder<E> builder) {
+    memoizedFill(new NestedSetVisitor.Receiver<E>() {
+      @Override
+      public void accept(E arg) {
+        builder.add(arg);
+      }
+    });
+  }
+
+  /**
+   * Pass every unique element to the receiver by using a memoized {@code Uniqueifier} for faster
+   * uniqueness check.
+   */
+  final void memoizedFill(NestedSetVisitor.Receiver<? super E> receiver) {
     Uniqueifier memoed;
     synchronized (this) {
       Object memo = getMemo();
       if (memo == null) {
         RecordingUniqueifier uniqueifier = new RecordingUniqueifier();
-        getOrder().<E>expander().expandInto(this, uniqueifier, builder);
+        getOrder().<E>expander().expandInto(this, uniqueifier, receiver);
         setMemo(uniqueifier.getMemo());
         return;
       } else {
         memoed = RecordingUniqueifier.createReplayUniqueifier(memo);
       }
     }
-    getOrder().<E>expander().expandInto(this, memoed, builder);
+    getOrder().<E>expander().expandInto(this, memoed, receiver);
   }
 }
@@ -13,8 +13,6 @@
 // limitations under the License.
 package com.google.devtools.build.lib.collect.nestedset;
 
-import com.google.common.collect.ImmutableCollection;
-
 /**
  * A nested set expander that implements naive left-to-right preordering.
  *
@@ -37,17 +35,17 @@ final class NaiveLinkOrderExpander<E> implements NestedSetExpander<E> {
   @SuppressWarnings("unchecked")
   @Override
   public void expandInto(NestedSet<E> set, Uniqueifier uniqueifier,
-      ImmutableCollection.Builder<E> builder) {
+      NestedSetVisitor.Receiver<? super E> receiver) {
 
     for (Object e : set.directMembers()) {
       if (uniqueifier.isUnique(e)) {
-        builder.add((E) e);
+        receiver.accept((E) e);
       }
     }
 
     for (NestedSet<E> subset : set.transitiveSets()) {
       if (!subset.isEmpty() && uniqueifier.isUnique(subset)) {
-        expandInto(subset, uniqueifier, builder);
+        expandInto(subset, uniqueifier, receiver);
       }
     }
   }
@@ -91,6 +91,19 @@ public abstract class NestedSet<E> implements Iterable<E>, Serializable {
    */
   public abstract Set<E> toSet();
 
+  /**
+   * Passes all unique elements of this set (including subsets) to {@code receiver}, in the same
+   * order as {@link #toList}.
+   *
+   * <p>Unlike iteration, this does not materialize the flattened list, so it should be preferred
+   * by consumers that only stream the elements, for example to a fingerprint or a file.
+   */
+  public void forEachElement(NestedSetVisitor.Receiver<? super E> receiver) {
+    for (E element : toCollection()) {
+      receiver.accept(element);
+    }
+  }
+
   /**
    * Returns true if this set is equal to {@code other} based on the top-level
    * elements and object identity (==) of direct subsets.  As such, this function
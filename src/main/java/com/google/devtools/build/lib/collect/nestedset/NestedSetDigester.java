@@ -0,0 +1,95 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.devtools.build.lib.util.Fingerprint;
+
+/**
+ * Adds nested sets to {@link Fingerprint}s by a digest of their structure rather than by their
+ * flattened contents.
+ *
+ * <p>The digest of a set covers its order, its direct members, as rendered by an
+ * {@link ElementFingerprinter}, and the digests of its transitive subsets, in the order in which
+ * they were added. It therefore determines the flattened contents of the set, so it can stand in
+ * for them in action keys. The converse does not hold: two sets with the same contents but
+ * a different structure have different digests.
+ *
+ * <p>Digests of sets with transitive members are cached, keyed weakly by the identity of the set.
+ * Since action inputs and command lines share most of their transitive subsets, adding a set to a
+ * fingerprint usually only hashes the few nodes that are specific to it, instead of every
+ * element. A digester, and with it its cache, must be shared by everyone rendering elements the
+ * same way, so instances are typically kept in constants.
+ */
+public final class NestedSetDigester<E> {
+
+  /**
+   * Renders the part of an element that a digest should depend on.
+   */
+  public interface ElementFingerprinter<E> {
+    void addElement(Fingerprint fingerprint, E element);
+  }
+
+  private final ElementFingerprinter<? super E> elementFingerprinter;
+  private final Cache<NestedSet<?>, byte[]> digests =
+      CacheBuilder.newBuilder().weakKeys().build();
+
+  public NestedSetDigester(ElementFingerprinter<? super E> elementFingerprinter) {
+    this.elementFingerprinter = Preconditions.checkNotNull(elementFingerprinter);
+  }
+
+  /**
+   * Adds the digest of {@code set} to {@code fingerprint}.
+   */
+  public void addTo(Fingerprint fingerprint, NestedSet<? extends E> set) {
+    fingerprint.addBytes(digest(set));
+  }
+
+  /**
+   * Returns the digest of {@code set}.
+   */
+  public byte[] digest(NestedSet<? extends E> set) {
+    if (set.transitiveSets().length == 0) {
+      // Leaves are cheap to digest and numerous, so they are not worth a cache entry.
+      return computeDigest(set);
+    }
+    byte[] digest = digests.getIfPresent(set);
+    if (digest == null) {
+      digest = computeDigest(set);
+      digests.put(set, digest);
+    }
+    return digest;
+  }
+
+  // We suppress unchecked warning so that we can access the internal raw structure of the
+  // NestedSet.
+  @SuppressWarnings("unchecked")
+  private byte[] computeDigest(NestedSet<? extends E> set) {
+    Fingerprint fingerprint = new Fingerprint();
+    fingerprint.addInt(set.getOrder().ordinal());
+    Object[] directMembers = set.directMembers();
+    fingerprint.addInt(directMembers.length);
+    for (Object member : directMembers) {
+      elementFingerprinter.addElement(fingerprint, (E) member);
+    }
+    NestedSet[] transitiveSets = set.transitiveSets();
+    fingerprint.addInt(transitiveSets.length);
+    for (NestedSet<? extends E> subset : transitiveSets) {
+      fingerprint.addBytes(digest(subset));
+    }
+    return fingerprint.digestAndReset();
+  }
+}
@@ -13,18 +13,17 @@
 // limitations under the License.
 package com.google.devtools.build.lib.collect.nestedset;
 
-import com.google.common.collect.ImmutableCollection;
-
 /**
- * An expander that converts a nested set into a flattened collection.
+ * An expander that converts a nested set into a flattened sequence of elements.
  *
  * <p>Expanders are initialized statically (there is one for each order), so they should
  * contain no state and all methods must be threadsafe.
  */
 interface NestedSetExpander<E> {
   /**
-   * Flattens the NestedSet into the builder.
+   * Flattens the NestedSet, passing each unique element to the receiver in the order defined by
+   * the expander.
    */
   void expandInto(NestedSet<E> nestedSet, Uniqueifier uniqueifier,
-      ImmutableCollection.Builder<E> builder);
+      NestedSetVisitor.Receiver<? super E> receiver);
 }
@@ -0,0 +1,158 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.profiler.MemoryProfiler;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+/**
+ * A process-wide cache of flattened nested sets.
+ *
+ * <p>Large transitive sets, such as runtime classpaths or link libraries, are flattened by many
+ * consumers. The cache keeps the result of {@link NestedSet#toList} for such sets, keyed weakly by
+ * the identity of the set, so that an entry goes away together with its set. The total number of
+ * cached elements is bounded by {@code --experimental_nested_set_flatten_cache_size}, and the
+ * least recently used entries are evicted first. The cache is disabled by default.
+ *
+ * <p>Hit and miss counts and an estimate of the retained heap are reported through the
+ * {@link MemoryProfiler}. Only sets large enough to be cached count as misses.
+ */
+public final class NestedSetFlattenCache {
+
+  /** Flattening sets smaller than this is cheap enough not to be worth caching. */
+  @VisibleForTesting
+  static final int MIN_CACHED_SIZE = 64;
+
+  // An ImmutableList costs a reference per element, plus the list, its array and the cache entry.
+  private static final long BYTES_PER_ELEMENT = 4;
+  private static final long BYTES_PER_ENTRY = 96;
+
+  private static final AtomicLong hits = new AtomicLong();
+  private static final AtomicLong misses = new AtomicLong();
+  private static final AtomicLong retainedElements = new AtomicLong();
+  private static final AtomicLong retainedEntries = new AtomicLong();
+
+  private static long maximumElements = 0;
+  // Null while caching is disabled.
+  @Nullable private static volatile Cache<NestedSet<?>, ImmutableList<?>> cache = null;
+
+  static {
+    MemoryProfiler.instance().registerStatistics("nested_set_flatten_cache",
+        new MemoryProfiler.StatisticsProvider() {
+          @Override
+          public Map<String, Long> getStatistics() {
+            return NestedSetFlattenCache.getStatistics();
+          }
+        });
+  }
+
+  private NestedSetFlattenCache() {}
+
+  private static Cache<NestedSet<?>, ImmutableList<?>> createCache(long maximumElements) {
+    return CacheBuilder.newBuilder()
+        .weakKeys()
+        .maximumWeight(maximumElements)
+        .weigher(new Weigher<NestedSet<?>, ImmutableList<?>>() {
+          @Override
+          public int weigh(NestedSet<?> key, ImmutableList<?> value) {
+            return value.size();
+          }
+        })
+        .removalListener(new RemovalListener<NestedSet<?>, ImmutableList<?>>() {
+          @Override
+          public void onRemoval(RemovalNotification<NestedSet<?>, ImmutableList<?>> removal) {
+            retainedElements.addAndGet(-removal.getValue().size());
+            retainedEntries.decrementAndGet();
+          }
+        })
+        .build();
+  }
+
+  /**
+   * Returns the cached flattened form of {@code set}, or null if there is none.
+   */
+  @SuppressWarnings("unchecked")
+  @Nullable
+  static <E> ImmutableList<E> get(NestedSet<E> set) {
+    Cache<NestedSet<?>, ImmutableList<?>> currentCache = cache;
+    if (currentCache == null) {
+      return null;
+    }
+    ImmutableList<E> result = (ImmutableList<E>) currentCache.getIfPresent(set);
+    if (result != null) {
+      hits.incrementAndGet();
+    }
+    return result;
+  }
+
+  /**
+   * Records the flattened form of {@code set} after a call to {@link #get} missed, if it is large
+   * enough to be worth keeping.
+   */
+  static <E> void put(NestedSet<E> set, ImmutableList<E> flattened) {
+    Cache<NestedSet<?>, ImmutableList<?>> currentCache = cache;
+    if (currentCache == null || flattened.size() < MIN_CACHED_SIZE) {
+      return;
+    }
+    misses.incrementAndGet();
+    retainedElements.addAndGet(flattened.size());
+    retainedEntries.incrementAndGet();
+    currentCache.put(set, flattened);
+  }
+
+  /**
+   * Makes the cache hold at most {@code maximumElements} elements in total; 0 disables caching.
+   * If the limit changes, all entries are dropped.
+   */
+  public static synchronized void setMaximumElements(long maximumElements) {
+    if (maximumElements == NestedSetFlattenCache.maximumElements) {
+      return;
+    }
+    Cache<NestedSet<?>, ImmutableList<?>> old = cache;
+    cache = maximumElements == 0 ? null : createCache(maximumElements);
+    NestedSetFlattenCache.maximumElements = maximumElements;
+    if (old != null) {
+      old.invalidateAll();
+    }
+  }
+
+  /**
+   * Returns the hit and miss counts, and the number of elements and estimated bytes retained.
+   */
+  static Map<String, Long> getStatistics() {
+    Cache<NestedSet<?>, ImmutableList<?>> currentCache = cache;
+    if (currentCache != null) {
+      // Let entries of collected sets be accounted for.
+      currentCache.cleanUp();
+    }
+    long elements = retainedElements.get();
+    return ImmutableMap.of(
+        "hits", hits.get(),
+        "misses", misses.get(),
+        "elements", elements,
+        "bytes", elements * BYTES_PER_ELEMENT + retainedEntries.get() * BYTES_PER_ENTRY);
+  }
+}
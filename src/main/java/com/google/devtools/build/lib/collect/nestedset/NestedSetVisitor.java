@@ -35,7 +35,7 @@ public final class NestedSetVisitor<E> {
 
   /**
    * For each element of the NestedSet the {@code Reciver} will receive one element during the
-   * visitation.
+   * visitation. Also used by {@link NestedSet#forEachElement}.
    */
   public interface Receiver<E> {
     void accept(E arg);
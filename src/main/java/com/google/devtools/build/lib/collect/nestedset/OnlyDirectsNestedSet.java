@@ -62,6 +62,14 @@ abstract class OnlyDirectsNestedSet<E> extends NestedSet<E> {
     return (List<E>) ImmutableList.copyOf(directDeps);
   }
 
+  @SuppressWarnings("unchecked")
+  @Override
+  public void forEachElement(NestedSetVisitor.Receiver<? super E> receiver) {
+    for (Object e : directDeps) {
+      receiver.accept((E) e);
+    }
+  }
+
   @SuppressWarnings("unchecked")
   @Override
   public Set<E> toSet() {
@@ -153,6 +153,16 @@ public class ExecutionOptions extends OptionsBase {
   public Map<TestTimeout, Integer> testTimeout;
 
 
+  @Option(name = "experimental_dynamic_test_sharding",
+      defaultValue = "false",
+      category = "testing",
+      help = "If enabled, the local shards of a sharded test share a queue of test cases, ordered "
+          + "slowest first according to the durations recorded by previous runs, so that test "
+          + "runners which support it, such as the shell unittest.bash, can balance test cases "
+          + "between shards dynamically. The queue directory is passed in TEST_SHARD_QUEUE_DIR; "
+          + "static shard indices are still provided for test cases that are not in the queue.")
+  public boolean dynamicTestSharding;
+
   @Option(name = "resource_autosense",
       defaultValue = "false",
       category = "strategy",
@@ -202,6 +212,26 @@ public class ExecutionOptions extends OptionsBase {
   )
   public int localTestJobs;
 
+  @Option(name = "spawn_output_cache_size",
+      defaultValue = "0",
+      category = "strategy",
+      help = "The maximum size, in megabytes, of the local spawn output cache. When greater than "
+          + "0, the outputs of locally executed spawns are kept in a content-addressed store and "
+          + "reused when the same command runs again on the same inputs, even if the outputs "
+          + "were deleted in the meantime. Least recently used outputs are evicted first. The "
+          + "limit applies to the whole cache directory, including the outputs stored by other "
+          + "workspaces sharing it. 0 disables the cache.")
+  public int spawnOutputCacheSizeMb;
+
+  @Option(name = "spawn_output_cache_dir",
+      defaultValue = "null",
+      category = "strategy",
+      converter = OptionsUtils.PathFragmentConverter.class,
+      help = "The directory of the local spawn output cache. Defaults to a directory below the "
+          + "output base. Point several workspaces at the same directory to share outputs "
+          + "between them.")
+  public PathFragment spawnOutputCacheDir;
+
   public boolean usingLocalTestJobs() {
     return localTestJobs != 0;
   }
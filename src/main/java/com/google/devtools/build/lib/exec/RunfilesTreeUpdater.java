@@ -0,0 +1,266 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.exec;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Brings an existing runfiles tree up to date by applying the difference between the manifest
+ * it was last built from and a new manifest, instead of rescanning the whole tree the way the
+ * build-runfiles tool does.
+ *
+ * <p>The manifest format is the one understood by build-runfiles: one line per entry, holding
+ * the path of the entry relative to the tree root, a space, and an absolute symlink target, or
+ * nothing for an empty file. Fileset manifests, which contain metadata lines and relative
+ * targets, are not handled here.
+ *
+ * <p>The previous manifest tells which entries changed, but the entries it says are unchanged
+ * are still checked with one {@code readlink} each, so that a tree damaged by hand, by deleting
+ * or retargeting a symlink, is repaired as build-runfiles would. Unlike build-runfiles, the
+ * updater does not list the directories of the tree, so files added to it by hand are left
+ * alone. If there is no previous manifest, or anything goes wrong half-way, {@link #update}
+ * returns false after making sure that no stale manifest is left behind, and the caller must
+ * fall back to a full rebuild.
+ */
+public final class RunfilesTreeUpdater {
+  private static final String OUTPUT_MANIFEST = "MANIFEST";
+
+  /** Below this many changes, the overhead of a thread pool is not worth it. */
+  private static final int PARALLEL_THRESHOLD = 64;
+
+  private final int parallelism;
+
+  /**
+   * @param parallelism the number of threads used to create and delete symlinks
+   */
+  public RunfilesTreeUpdater(int parallelism) {
+    this.parallelism = parallelism;
+  }
+
+  /**
+   * Updates the tree rooted at {@code treeRoot} to match {@code inputManifest}.
+   *
+   * @param previousManifest the manifest the tree was last built from, typically
+   *     {@code treeRoot/MANIFEST}; it is consumed by this call
+   * @return true if the tree is up to date and {@code treeRoot/MANIFEST} has been written; false
+   *     if the state of the tree is unknown and it must be rebuilt from scratch
+   */
+  public boolean update(Path inputManifest, Path treeRoot, Path previousManifest)
+      throws InterruptedException {
+    Path outputManifest = treeRoot.getChild(OUTPUT_MANIFEST);
+    try {
+      if (!treeRoot.isDirectory(Symlinks.NOFOLLOW) || !previousManifest.exists()) {
+        return false;
+      }
+      Map<String, String> oldEntries = parseManifest(previousManifest);
+      Map<String, String> newEntries = parseManifest(inputManifest);
+      // From here on, the tree is in flux; make sure a failure leaves no stale record of it.
+      previousManifest.delete();
+      outputManifest.delete();
+
+      final List<Path> removals = new ArrayList<>();
+      for (Map.Entry<String, String> entry : oldEntries.entrySet()) {
+        if (!Objects.equals(entry.getValue(), newEntries.get(entry.getKey()))) {
+          removals.add(treeRoot.getRelative(entry.getKey()));
+        }
+      }
+      final Map<Path, String> additions = new LinkedHashMap<>();
+      final Map<Path, String> unchanged = new LinkedHashMap<>();
+      for (Map.Entry<String, String> entry : newEntries.entrySet()) {
+        Path path = treeRoot.getRelative(entry.getKey());
+        if (!Objects.equals(entry.getValue(), oldEntries.get(entry.getKey()))) {
+          additions.put(path, entry.getValue());
+        } else {
+          unchanged.put(path, entry.getValue());
+        }
+      }
+
+      final List<Path> damaged = Collections.synchronizedList(new ArrayList<Path>());
+      runAll(new ArrayList<>(unchanged.keySet()), new Action<Path>() {
+        @Override
+        public void apply(Path path) throws IOException {
+          if (!isUpToDate(path, unchanged.get(path))) {
+            damaged.add(path);
+          }
+        }
+      });
+      for (Path path : damaged) {
+        additions.put(path, unchanged.get(path));
+      }
+
+      runAll(removals, new Action<Path>() {
+        @Override
+        public void apply(Path path) throws IOException {
+          path.delete();
+        }
+      });
+      pruneEmptyParents(removals, treeRoot);
+
+      // Create directories serially, parents first, so that the parallel phase does not race.
+      TreeSet<Path> directories = new TreeSet<>();
+      for (Path path : additions.keySet()) {
+        directories.add(path.getParentDirectory());
+      }
+      for (Path directory : directories) {
+        if (!directory.isDirectory(Symlinks.NOFOLLOW)) {
+          directory.delete();
+          FileSystemUtils.createDirectoryAndParents(directory);
+        }
+      }
+
+      runAll(new ArrayList<>(additions.keySet()), new Action<Path>() {
+        @Override
+        public void apply(Path path) throws IOException {
+          if (path.isDirectory(Symlinks.NOFOLLOW)) {
+            // Used to be the parent of removed entries.
+            FileSystemUtils.deleteTree(path);
+          } else {
+            path.delete();
+          }
+          String target = additions.get(path);
+          if (target.isEmpty()) {
+            FileSystemUtils.createEmptyFile(path);
+          } else {
+            path.createSymbolicLink(new PathFragment(target));
+          }
+        }
+      });
+
+      Path tmp = treeRoot.getChild(OUTPUT_MANIFEST + ".tmp");
+      FileSystemUtils.copyFile(inputManifest, tmp);
+      tmp.renameTo(outputManifest);
+      return true;
+    } catch (IOException e) {
+      try {
+        outputManifest.delete();
+      } catch (IOException ignored) {
+        // The caller's full rebuild will deal with it.
+      }
+      return false;
+    }
+  }
+
+  /** Returns whether {@code path} is the symlink, or the empty file, its entry asks for. */
+  private static boolean isUpToDate(Path path, String target) {
+    try {
+      if (target.isEmpty()) {
+        return path.isFile(Symlinks.NOFOLLOW) && path.getFileSize(Symlinks.NOFOLLOW) == 0;
+      }
+      return path.isSymbolicLink() && path.readSymbolicLink().getPathString().equals(target);
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Removes directories that became empty because all of their entries were removed. Directories
+   * still needed by new entries are recreated afterwards.
+   */
+  private static void pruneEmptyParents(List<Path> removed, Path treeRoot) throws IOException {
+    for (Path path : removed) {
+      Path dir = path.getParentDirectory();
+      while (dir != null && !dir.equals(treeRoot) && dir.startsWith(treeRoot)
+          && dir.isDirectory(Symlinks.NOFOLLOW) && dir.getDirectoryEntries().isEmpty()) {
+        dir.delete();
+        dir = dir.getParentDirectory();
+      }
+    }
+  }
+
+  /**
+   * Parses a runfiles manifest into a map from entry path to symlink target, with an empty
+   * target for empty files.
+   *
+   * @throws IOException if the manifest cannot be read or is malformed
+   */
+  static Map<String, String> parseManifest(Path manifest) throws IOException {
+    Map<String, String> entries = new LinkedHashMap<>();
+    for (String line : FileSystemUtils.iterateLinesAsLatin1(manifest)) {
+      if (line.isEmpty()) {
+        continue;
+      }
+      int space = line.indexOf(' ');
+      if (space <= 0 || line.indexOf(' ', space + 1) >= 0 || line.startsWith("/")) {
+        throw new IOException("malformed runfiles manifest line in " + manifest + ": " + line);
+      }
+      String target = line.substring(space + 1);
+      if (!target.isEmpty() && !target.startsWith("/")) {
+        throw new IOException("relative symlink target in " + manifest + ": " + line);
+      }
+      entries.put(line.substring(0, space), target);
+    }
+    return entries;
+  }
+
+  private interface Action<T> {
+    void apply(T item) throws IOException;
+  }
+
+  private <T> void runAll(List<T> items, final Action<T> action)
+      throws IOException, InterruptedException {
+    if (items.size() < PARALLEL_THRESHOLD || parallelism <= 1) {
+      for (T item : items) {
+        action.apply(item);
+      }
+      return;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+        new ThreadFactoryBuilder().setNameFormat("runfiles-updater-%d").build());
+    try {
+      List<Future<Void>> futures = new ArrayList<>();
+      int shardSize = (items.size() + parallelism - 1) / parallelism;
+      for (int start = 0; start < items.size(); start += shardSize) {
+        final List<T> shard = items.subList(start, Math.min(items.size(), start + shardSize));
+        futures.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws IOException {
+            for (T item : shard) {
+              action.apply(item);
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> future : futures) {
+        future.get();
+      }
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+}
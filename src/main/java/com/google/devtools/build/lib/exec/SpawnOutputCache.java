@@ -0,0 +1,514 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.exec;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.actions.ActionInput;
+import com.google.devtools.build.lib.actions.ActionInputFileCache;
+import com.google.devtools.build.lib.actions.ActionInputHelper;
+import com.google.devtools.build.lib.actions.Artifact.MiddlemanExpander;
+import com.google.devtools.build.lib.actions.DigestOfDirectoryException;
+import com.google.devtools.build.lib.actions.Spawn;
+import com.google.devtools.build.lib.util.Fingerprint;
+import com.google.devtools.build.lib.util.io.FileOutErr;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.protobuf.ByteString;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A local, content-addressed store of spawn outputs.
+ *
+ * <p>Unlike the action cache, which only decides whether outputs already on disk are up to
+ * date, this cache keeps a copy of every output it has seen, keyed by the digest of its
+ * contents. Spawns are keyed by their command line, environment, the digests of their inputs
+ * and the exec paths of their outputs, so a spawn whose outputs were deleted, or that was
+ * already executed in another workspace sharing the same cache directory, can be satisfied by
+ * copying the stored outputs into place instead of executing it. Outputs are copied rather than
+ * hardlinked, since Blaze changes the mode of outputs and may write to them, which would change
+ * the stored blob for every entry that shares it.
+ *
+ * <p>The store is laid out as two directories below the cache root: {@code cas/} holds the
+ * output contents, named by their MD5 digest, and {@code ac/} holds one small text file per
+ * spawn key, listing the digest, mode and exec path of each output, and the digests of the
+ * stdout and stderr of the spawn, which are replayed on a hit. Blobs are evicted in
+ * least-recently-used order, by modification time, once their total size exceeds the
+ * configured limit; a spawn entry that refers to an evicted blob is treated as a miss.
+ *
+ * <p>The limit applies to the whole directory, which other servers may share. Each server counts
+ * what it stores itself, and rescans the directory whenever that count grows past the limit or
+ * by a tenth of the limit since the last scan, so the directory exceeds the limit by at most a
+ * tenth of it per server between scans.
+ */
+@ThreadSafe
+public final class SpawnOutputCache {
+
+  /** Bump whenever the key computation or the entry format changes. */
+  private static final String VERSION = "2";
+
+  private static final String CAS_DIR = "cas";
+  private static final String ACTION_DIR = "ac";
+  private static final String TMP_SUFFIX = ".tmp";
+  private static final Splitter TAB_SPLITTER = Splitter.on('\t').limit(4);
+
+  /** Mode field of the entry lines recording stdout and stderr. */
+  private static final String STDOUT_MODE = "o";
+  private static final String STDERR_MODE = "e";
+
+  /**
+   * Temporary files older than this were left behind by a server that died; younger ones may
+   * still be written by another server sharing the directory.
+   */
+  private static final long STALE_TMP_AGE_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+  private final Path casRoot;
+  private final Path actionRoot;
+  private final long maxSizeBytes;
+
+  /** Makes the temporary file names of this server unique among servers sharing the cache. */
+  private final String tmpPrefix = TMP_SUFFIX + UUID.randomUUID() + ".";
+  private final AtomicLong tmpCounter = new AtomicLong();
+
+  /** Blob digest to blob size, in access order. */
+  @GuardedBy("this")
+  private final LinkedHashMap<String, Long> blobs = new LinkedHashMap<>(16, 0.75f, true);
+  @GuardedBy("this")
+  private long currentSizeBytes = 0;
+  @GuardedBy("this")
+  private long bytesStoredSinceScan = 0;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong uncacheable = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong bytesMaterialized = new AtomicLong();
+
+  /**
+   * Creates a cache rooted at {@code root}, picking up any blobs left there by previous servers
+   * or by other workspaces sharing the directory.
+   *
+   * @param root the cache directory; created if it does not exist
+   * @param maxSizeBytes the total size of stored outputs above which blobs are evicted
+   */
+  public SpawnOutputCache(Path root, long maxSizeBytes) throws IOException {
+    Preconditions.checkArgument(maxSizeBytes > 0, maxSizeBytes);
+    this.casRoot = root.getChild(CAS_DIR);
+    this.actionRoot = root.getChild(ACTION_DIR);
+    this.maxSizeBytes = maxSizeBytes;
+    FileSystemUtils.createDirectoryAndParents(casRoot);
+    FileSystemUtils.createDirectoryAndParents(actionRoot);
+    synchronized (this) {
+      deleteStaleTemporaryFiles(actionRoot);
+      scan();
+      evictIfNeeded();
+    }
+  }
+
+  /**
+   * Replaces the in-memory view of the store by the blobs that are in the directory now, which
+   * includes blobs stored and excludes blobs evicted by other servers.
+   */
+  @GuardedBy("this")
+  private void scan() throws IOException {
+    deleteStaleTemporaryFiles(casRoot);
+    List<Path> existing = new ArrayList<>();
+    final Map<Path, Long> mtimes = new LinkedHashMap<>();
+    final Map<Path, Long> sizes = new LinkedHashMap<>();
+    for (Path blob : casRoot.getDirectoryEntries()) {
+      if (blob.getBaseName().contains(TMP_SUFFIX)) {
+        continue;
+      }
+      long mtime;
+      long size;
+      try {
+        mtime = blob.getLastModifiedTime();
+        size = blob.getFileSize();
+      } catch (IOException e) {
+        // Evicted by another server in the meantime.
+        continue;
+      }
+      existing.add(blob);
+      mtimes.put(blob, mtime);
+      sizes.put(blob, size);
+    }
+    // Oldest first, so that the least recently used blobs are evicted first.
+    Collections.sort(existing, new Comparator<Path>() {
+      @Override
+      public int compare(Path a, Path b) {
+        return Long.compare(mtimes.get(a), mtimes.get(b));
+      }
+    });
+    blobs.clear();
+    currentSizeBytes = 0;
+    for (Path blob : existing) {
+      long size = sizes.get(blob);
+      blobs.put(blob.getBaseName(), size);
+      currentSizeBytes += size;
+    }
+    bytesStoredSinceScan = 0;
+  }
+
+  private static void deleteStaleTemporaryFiles(Path dir) throws IOException {
+    long now = System.currentTimeMillis();
+    for (Path file : dir.getDirectoryEntries()) {
+      if (!file.getBaseName().contains(TMP_SUFFIX)) {
+        continue;
+      }
+      try {
+        if (now - file.getLastModifiedTime() > STALE_TMP_AGE_MILLIS) {
+          // Left over by a server that died while storing an output.
+          file.delete();
+        }
+      } catch (IOException e) {
+        // Renamed or deleted by the server writing it.
+      }
+    }
+  }
+
+  /**
+   * Computes the cache key of the given spawn, or returns null if the spawn cannot be cached.
+   *
+   * <p>Spawns with runfiles or fileset manifests are not cached, because the contents of those
+   * trees are not visible through {@link Spawn#getInputFiles}. Spawns tagged {@code local} are
+   * not cached either, since they are allowed to depend on the state of the host.
+   */
+  @Nullable
+  public String computeKey(Spawn spawn, ActionInputFileCache inputFileCache,
+      MiddlemanExpander middlemanExpander) throws IOException {
+    if (!spawn.getRunfilesManifests().isEmpty() || !spawn.getFilesetManifests().isEmpty()
+        || spawn.getExecutionInfo().containsKey("local")) {
+      uncacheable.incrementAndGet();
+      return null;
+    }
+
+    List<ActionInput> inputs =
+        ActionInputHelper.expandMiddlemen(spawn.getInputFiles(), middlemanExpander);
+    Collections.sort(inputs, EXEC_PATH_ORDER);
+
+    Fingerprint fp = new Fingerprint();
+    fp.addString(VERSION);
+    fp.addStrings(spawn.getArguments());
+    if (spawn.getEnvironment() == null) {
+      fp.addBoolean(false);
+    } else {
+      fp.addBoolean(true);
+      fp.addStringMap(spawn.getEnvironment());
+    }
+    fp.addInt(inputs.size());
+    for (ActionInput input : inputs) {
+      ByteString digest;
+      try {
+        digest = inputFileCache.getDigest(input);
+      } catch (DigestOfDirectoryException e) {
+        digest = null;
+      }
+      if (digest == null) {
+        uncacheable.incrementAndGet();
+        return null;
+      }
+      fp.addString(input.getExecPathString());
+      fp.addBytes(digest.toByteArray());
+    }
+    fp.addStrings(ActionInputHelper.toExecPaths(spawn.getOutputFiles()));
+    return fp.hexDigestAndReset();
+  }
+
+  /**
+   * Materializes the outputs recorded for {@code key} below {@code execRoot}, and replays the
+   * recorded stdout and stderr on {@code outErr}.
+   *
+   * @return true on a cache hit, in which case all outputs of the spawn are in place; false on
+   *     a miss, in which case the spawn must be executed
+   */
+  public boolean tryMaterialize(String key, Path execRoot, FileOutErr outErr)
+      throws IOException {
+    Path entry = actionRoot.getChild(key);
+    List<OutputEntry> outputs = readEntry(entry);
+    if (outputs == null) {
+      misses.incrementAndGet();
+      return false;
+    }
+    for (OutputEntry output : outputs) {
+      if (!touchBlob(output)) {
+        // One of the outputs was evicted; the entry is useless now.
+        entry.delete();
+        misses.incrementAndGet();
+        return false;
+      }
+    }
+    // All output files are copied before stdout and stderr are replayed, so that a failed copy
+    // leaves nothing on the console of a spawn that is then executed after all.
+    List<OutputEntry> streams = new ArrayList<>();
+    for (OutputEntry output : outputs) {
+      if (output.mode.equals(STDOUT_MODE) || output.mode.equals(STDERR_MODE)) {
+        streams.add(output);
+        continue;
+      }
+      Path blob = casRoot.getChild(output.digest);
+      Path target = execRoot.getRelative(output.execPath);
+      FileSystemUtils.createDirectoryAndParents(target.getParentDirectory());
+      target.delete();
+      FileSystemUtils.copyFile(blob, target);
+      // The copy inherits the read-only mode of the blob; outputs of a spawn are writable.
+      target.setWritable(true);
+      target.setExecutable(output.mode.equals("x"));
+      bytesMaterialized.addAndGet(output.size);
+    }
+    for (OutputEntry output : streams) {
+      replay(casRoot.getChild(output.digest), output.mode.equals(STDOUT_MODE)
+          ? outErr.getOutputStream() : outErr.getErrorStream());
+      bytesMaterialized.addAndGet(output.size);
+    }
+    hits.incrementAndGet();
+    return true;
+  }
+
+  private static void replay(Path blob, OutputStream out) throws IOException {
+    out.write(FileSystemUtils.readContent(blob));
+    out.flush();
+  }
+
+  /**
+   * Stores the outputs of a spawn that has just been executed under {@code key}, together with
+   * the stdout and stderr recorded in {@code outErr}. Nothing is stored if one of the declared
+   * outputs was not produced.
+   */
+  public void store(String key, Collection<? extends ActionInput> outputFiles, Path execRoot,
+      FileOutErr outErr) throws IOException {
+    List<OutputEntry> outputs = new ArrayList<>();
+    for (ActionInput output : outputFiles) {
+      Path path = execRoot.getRelative(output.getExecPathString());
+      if (!path.isFile()) {
+        return;
+      }
+      outputs.add(storeBlob(path, path.isExecutable() ? "x" : "-", output.getExecPathString()));
+    }
+    if (outErr.hasRecordedStdout()) {
+      outputs.add(storeBlob(outErr.getOutputFile(), STDOUT_MODE, ""));
+    }
+    if (outErr.hasRecordedStderr()) {
+      outputs.add(storeBlob(outErr.getErrorFile(), STDERR_MODE, ""));
+    }
+    writeEntry(actionRoot.getChild(key), outputs);
+    evictIfNeeded();
+  }
+
+  private OutputEntry storeBlob(Path path, String mode, String execPath) throws IOException {
+    String digest = Fingerprint.hexDigest(path.getMD5Digest());
+    long size = path.getFileSize();
+    Path blob = casRoot.getChild(digest);
+    if (!blob.exists()) {
+      // Write to a temporary name first so that concurrent readers never see partial blobs.
+      Path tmp = newTemporaryFile(casRoot, digest);
+      FileSystemUtils.copyFile(path, tmp);
+      // The modification time orders blobs for eviction, so do not keep the one of the output.
+      tmp.setLastModifiedTime(-1L);
+      tmp.setWritable(false);
+      tmp.renameTo(blob);
+    } else {
+      blob.setLastModifiedTime(-1L);
+    }
+    addBlob(digest, size);
+    return new OutputEntry(digest, size, mode, execPath);
+  }
+
+  private Path newTemporaryFile(Path dir, String name) {
+    return dir.getChild(name + tmpPrefix + tmpCounter.incrementAndGet());
+  }
+
+  private synchronized void addBlob(String digest, long size) {
+    if (blobs.put(digest, size) == null) {
+      currentSizeBytes += size;
+      bytesStoredSinceScan += size;
+    }
+  }
+
+  /** Marks the blob as recently used; returns false if it is no longer in the store. */
+  private boolean touchBlob(OutputEntry output) throws IOException {
+    Path blob = casRoot.getChild(output.digest);
+    if (!blob.exists()) {
+      // Evicted, possibly by another server sharing this directory.
+      synchronized (this) {
+        Long size = blobs.remove(output.digest);
+        if (size != null) {
+          currentSizeBytes -= size;
+        }
+      }
+      return false;
+    }
+    blob.setLastModifiedTime(-1L);
+    synchronized (this) {
+      if (blobs.put(output.digest, output.size) == null) {
+        // Stored by another server since the last scan.
+        currentSizeBytes += output.size;
+      }
+    }
+    return true;
+  }
+
+  private synchronized void evictIfNeeded() throws IOException {
+    if (currentSizeBytes <= maxSizeBytes && bytesStoredSinceScan <= maxSizeBytes / 10) {
+      return;
+    }
+    // Take the blobs of other servers sharing the directory into account.
+    scan();
+    Iterator<Map.Entry<String, Long>> it = blobs.entrySet().iterator();
+    while (currentSizeBytes > maxSizeBytes && it.hasNext()) {
+      Map.Entry<String, Long> eldest = it.next();
+      it.remove();
+      currentSizeBytes -= eldest.getValue();
+      casRoot.getChild(eldest.getKey()).delete();
+      evictions.incrementAndGet();
+    }
+  }
+
+  @Nullable
+  private static List<OutputEntry> readEntry(Path entry) throws IOException {
+    if (!entry.exists()) {
+      return null;
+    }
+    ImmutableList.Builder<OutputEntry> outputs = ImmutableList.builder();
+    for (String line : FileSystemUtils.iterateLinesAsLatin1(entry)) {
+      if (line.isEmpty()) {
+        continue;
+      }
+      List<String> fields = TAB_SPLITTER.splitToList(line);
+      if (fields.size() != 4) {
+        // Corrupt or from an incompatible version; treat as a miss.
+        return null;
+      }
+      outputs.add(new OutputEntry(fields.get(0), Long.parseLong(fields.get(1)), fields.get(2),
+          fields.get(3)));
+    }
+    return outputs.build();
+  }
+
+  private void writeEntry(Path entry, List<OutputEntry> outputs) throws IOException {
+    StringBuilder content = new StringBuilder();
+    for (OutputEntry output : outputs) {
+      content.append(output.digest).append('\t')
+          .append(output.size).append('\t')
+          .append(output.mode).append('\t')
+          .append(output.execPath).append('\n');
+    }
+    Path tmp = newTemporaryFile(entry.getParentDirectory(), entry.getBaseName());
+    FileSystemUtils.writeContent(tmp, ISO_8859_1, content.toString());
+    tmp.renameTo(entry);
+  }
+
+  /** Returns a snapshot of the hit/miss statistics of this cache. */
+  public Statistics getStatistics() {
+    synchronized (this) {
+      return new Statistics(hits.get(), misses.get(), uncacheable.get(), evictions.get(),
+          bytesMaterialized.get(), currentSizeBytes);
+    }
+  }
+
+  private static final Comparator<ActionInput> EXEC_PATH_ORDER = new Comparator<ActionInput>() {
+    @Override
+    public int compare(ActionInput a, ActionInput b) {
+      return a.getExecPathString().compareTo(b.getExecPathString());
+    }
+  };
+
+  /**
+   * One line of a spawn entry. The mode is {@code x} or {@code -} for an executable or
+   * non-executable output, or {@link #STDOUT_MODE} or {@link #STDERR_MODE}.
+   */
+  private static final class OutputEntry {
+    final String digest;
+    final long size;
+    final String mode;
+    final String execPath;
+
+    OutputEntry(String digest, long size, String mode, String execPath) {
+      this.digest = digest;
+      this.size = size;
+      this.mode = mode;
+      this.execPath = execPath;
+    }
+  }
+
+  /** Immutable snapshot of the counters of a {@link SpawnOutputCache}. */
+  public static final class Statistics {
+    private final long hits;
+    private final long misses;
+    private final long uncacheable;
+    private final long evictions;
+    private final long bytesMaterialized;
+    private final long sizeBytes;
+
+    Statistics(long hits, long misses, long uncacheable, long evictions, long bytesMaterialized,
+        long sizeBytes) {
+      this.hits = hits;
+      this.misses = misses;
+      this.uncacheable = uncacheable;
+      this.evictions = evictions;
+      this.bytesMaterialized = bytesMaterialized;
+      this.sizeBytes = sizeBytes;
+    }
+
+    public long getHits() {
+      return hits;
+    }
+
+    public long getMisses() {
+      return misses;
+    }
+
+    public long getUncacheable() {
+      return uncacheable;
+    }
+
+    public long getEvictions() {
+      return evictions;
+    }
+
+    public long getBytesMaterialized() {
+      return bytesMaterialized;
+    }
+
+    public long getSizeBytes() {
+      return sizeBytes;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("spawn output cache: %d hits, %d misses, %d uncacheable, "
+          + "%d evictions, %d bytes materialized, %d bytes stored",
+          hits, misses, uncacheable, evictions, bytesMaterialized, sizeBytes);
+    }
+  }
+}
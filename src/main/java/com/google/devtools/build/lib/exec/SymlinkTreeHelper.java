@@ -21,6 +21,7 @@ import com.google.devtools.build.lib.actions.BaseSpawn;
 import com.google.devtools.build.lib.actions.ExecException;
 import com.google.devtools.build.lib.actions.ResourceManager;
 import com.google.devtools.build.lib.actions.ResourceSet;
+import com.google.devtools.build.lib.analysis.SymlinkTreeAction;
 import com.google.devtools.build.lib.analysis.config.BinTools;
 import com.google.devtools.build.lib.analysis.config.BuildConfiguration;
 import com.google.devtools.build.lib.shell.CommandException;
@@ -47,6 +48,9 @@ public final class SymlinkTreeHelper {
    */
   public static final ResourceSet RESOURCE_SET = ResourceSet.createWithRamCpuIo(1000, 0.5, 0.75);
 
+  private static final RunfilesTreeUpdater UPDATER =
+      new RunfilesTreeUpdater(Runtime.getRuntime().availableProcessors());
+
   private final PathFragment inputManifest;
   private final PathFragment symlinkTreeRoot;
   private final boolean filesetTree;
@@ -79,9 +83,14 @@ public final class SymlinkTreeHelper {
    *
    * @param config the configuration that is used for creating the symlink tree.
    * @throws CommandException
+   * @throws InterruptedException if interrupted while updating the tree in-process
    */
   public void createSymlinksUsingCommand(Path execRoot,
-      BuildConfiguration config, BinTools binTools) throws CommandException {
+      BuildConfiguration config, BinTools binTools)
+      throws CommandException, InterruptedException {
+    if (updateIncrementally(execRoot)) {
+      return;
+    }
     List<String> argv = getSpawnArgumentList(execRoot, binTools);
 
     CommandBuilder builder = new CommandBuilder();
@@ -91,8 +100,10 @@ public final class SymlinkTreeHelper {
   }
 
   /**
-   * Creates symlink tree using appropriate method. At this time tree
-   * always created using build-runfiles helper application.
+   * Creates symlink tree using appropriate method. Runfiles trees whose
+   * previous state is known are updated in-process by applying the
+   * difference between the old and the new manifest; everything else is
+   * (re)created using build-runfiles helper application.
    *
    * Note: method may try to acquire resources - meaning that it would
    * block for undetermined period of time. If it is interrupted during
@@ -108,6 +119,9 @@ public final class SymlinkTreeHelper {
         actionExecutionContext.getExecutor().getExecRoot(), binTools);
     try {
       ResourceManager.instance().acquireResources(action, RESOURCE_SET);
+      if (updateIncrementally(actionExecutionContext.getExecutor().getExecRoot())) {
+        return;
+      }
       actionExecutionContext.getExecutor().getSpawnActionContext(action.getMnemonic()).exec(
           new BaseSpawn.Local(args, ImmutableMap.<String, String>of(), action),
           actionExecutionContext);
@@ -116,6 +130,25 @@ public final class SymlinkTreeHelper {
     }
   }
 
+  /**
+   * Tries to bring an existing runfiles tree up to date in-process. The
+   * previous state of the tree is taken from its output manifest, or from
+   * where {@link SymlinkTreeAction} moved it aside before execution.
+   *
+   * @return false if the tree has to be rebuilt from scratch
+   */
+  private boolean updateIncrementally(Path execRoot) throws InterruptedException {
+    if (filesetTree) {
+      return false;
+    }
+    Path treeRoot = execRoot.getRelative(symlinkTreeRoot);
+    Path outputManifest = treeRoot.getChild("MANIFEST");
+    Path previousManifest = outputManifest.exists()
+        ? outputManifest
+        : SymlinkTreeAction.getPreviousOutputManifest(outputManifest);
+    return UPDATER.update(execRoot.getRelative(inputManifest), treeRoot, previousManifest);
+  }
+
   /**
    * Returns the complete argument list build-runfiles has to be called with.
    */
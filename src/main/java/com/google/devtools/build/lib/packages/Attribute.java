@@ -1221,6 +1221,14 @@ public final class Attribute implements Comparable<Attribute> {
     return condition == null ? Predicates.<AttributeMap>alwaysTrue() : condition;
   }
 
+  /**
+   * Returns true iff this attribute has a condition, which makes its default value depend on the
+   * rule.
+   */
+  boolean hasCondition() {
+    return condition != null;
+  }
+
   public PredicateWithMessage<Object> getAllowedValues() {
     return allowedValues;
   }
@@ -13,8 +13,10 @@
 // limitations under the License.
 package com.google.devtools.build.lib.packages;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.devtools.build.lib.events.Location;
 
+import java.util.Arrays;
 import java.util.BitSet;
 
 /**
@@ -32,25 +34,33 @@ import java.util.BitSet;
  */
 public class AttributeContainer {
 
+  private static final int[] NO_INDICES = new int[0];
+  private static final Object[] NO_VALUES = new Object[0];
+
   private final RuleClass ruleClass;
 
-  // Attribute values, keyed by attribute index:
-  private final Object[] attributeValues;
+  // The indices of the attributes that have a slot in this container, in increasing order. An
+  // attribute without a slot has the default value its rule class shares between all rules (see
+  // RuleClass#getSharedDefaultValue) and no location, so a rule only pays for the attributes that
+  // are set in the BUILD file or that have a default that depends on the rule or its package.
+  private int[] slotIndices = NO_INDICES;
 
-  // Whether an attribute value has been set explicitly in the BUILD file, keyed by attribute index.
-  private final BitSet attributeValueExplicitlySpecified;
+  // Attribute values, keyed by slot. The slot arrays are always exactly as long as the number of
+  // slots: a rule keeps them for the lifetime of its package, and the few slots it has are all
+  // added while the rule is created.
+  private Object[] slotValues = NO_VALUES;
 
-  // Attribute locations, keyed by attribute index:
-  private final Location[] attributeLocations;
+  // Attribute locations, keyed by slot, or null if no location was set:
+  private Location[] slotLocations;
+
+  // Whether an attribute value has been set explicitly in the BUILD file, keyed by attribute index.
+  private final BitSet attributeValueExplicitlySpecified = new BitSet();
 
   /**
    * Create a container for a rule of the given rule class.
    */
   AttributeContainer(RuleClass ruleClass) {
     this.ruleClass = ruleClass;
-    this.attributeValues = new Object[ruleClass.getAttributeCount()];
-    this.attributeValueExplicitlySpecified = new BitSet(ruleClass.getAttributeCount());
-    this.attributeLocations = new Location[ruleClass.getAttributeCount()];
   }
 
   /**
@@ -65,7 +75,7 @@ public class AttributeContainer {
    */
   public Object getAttr(String attrName) {
     Integer idx = ruleClass.getAttributeIndex(attrName);
-    return idx != null ? attributeValues[idx] : null;
+    return idx != null ? getAttributeValue(idx) : null;
   }
 
   /**
@@ -86,31 +96,95 @@ public class AttributeContainer {
    */
   public Location getAttributeLocation(String attrName) {
     Integer idx = ruleClass.getAttributeIndex(attrName);
-    return idx != null ? attributeLocations[idx] : null;
+    if (idx == null || slotLocations == null) {
+      return null;
+    }
+    int slot = findSlot(idx);
+    return slot >= 0 ? slotLocations[slot] : null;
   }
 
   Object getAttributeValue(int index) {
-    return attributeValues[index];
+    int slot = findSlot(index);
+    return slot >= 0 ? slotValues[slot] : ruleClass.getSharedDefaultValue(index);
   }
 
   void setAttributeValue(Attribute attribute, Object value, boolean explicit) {
     Integer index = ruleClass.getAttributeIndex(attribute.getName());
-    attributeValues[index] = value;
+    setAttributeValue(index, value);
     attributeValueExplicitlySpecified.set(index, explicit);
   }
 
   void setAttributeValueByName(String attrName, Object value) {
     Integer index = ruleClass.getAttributeIndex(attrName);
-    attributeValues[index] = value;
+    setAttributeValue(index, value);
     attributeValueExplicitlySpecified.set(index);
   }
 
   void setAttributeLocation(int attrIndex, Location location) {
-    attributeLocations[attrIndex] = location;
+    int slot = findSlot(attrIndex);
+    if (slot < 0) {
+      slot = addSlot(-slot - 1, attrIndex);
+    }
+    if (slotLocations == null) {
+      slotLocations = new Location[slotValues.length];
+    }
+    slotLocations[slot] = location;
   }
 
   void setAttributeLocation(Attribute attribute, Location location) {
     Integer index = ruleClass.getAttributeIndex(attribute.getName());
-    attributeLocations[index] = location;
+    setAttributeLocation(index, location);
+  }
+
+  private void setAttributeValue(int index, Object value) {
+    int slot = findSlot(index);
+    if (slot < 0) {
+      if (value == ruleClass.getSharedDefaultValue(index)) {
+        return;
+      }
+      slot = addSlot(-slot - 1, index);
+    }
+    slotValues[slot] = value;
+  }
+
+  /**
+   * Returns the slot of the attribute with the given index, or {@code -(insertion point) - 1} if
+   * the attribute has no slot.
+   */
+  private int findSlot(int index) {
+    return Arrays.binarySearch(slotIndices, index);
+  }
+
+  @VisibleForTesting
+  int getSlotCount() {
+    return slotIndices.length;
+  }
+
+  /**
+   * Inserts a slot for the attribute with the given index at {@code slot}, holding the shared
+   * default value and no location, and returns it.
+   */
+  private int addSlot(int slot, int index) {
+    int slotCount = slotIndices.length;
+    int tail = slotCount - slot;
+    int[] indices = new int[slotCount + 1];
+    System.arraycopy(slotIndices, 0, indices, 0, slot);
+    System.arraycopy(slotIndices, slot, indices, slot + 1, tail);
+    indices[slot] = index;
+    slotIndices = indices;
+
+    Object[] values = new Object[slotCount + 1];
+    System.arraycopy(slotValues, 0, values, 0, slot);
+    System.arraycopy(slotValues, slot, values, slot + 1, tail);
+    values[slot] = ruleClass.getSharedDefaultValue(index);
+    slotValues = values;
+
+    if (slotLocations != null) {
+      Location[] locations = new Location[slotCount + 1];
+      System.arraycopy(slotLocations, 0, locations, 0, slot);
+      System.arraycopy(slotLocations, slot, locations, slot + 1, tail);
+      slotLocations = locations;
+    }
+    return slot;
   }
 }
@@ -552,10 +552,10 @@ public class Package implements Serializable {
   /**
    * Returns this package's workspace name.
    *
-   * <p>Package-private to encourage callers to get their workspace name from a rule, not a
+   * <p>Callers that have a rule should get their workspace name from the rule, not the
    * package.</p>
    */
-  String getWorkspaceName() {
+  public String getWorkspaceName() {
     return workspaceName;
   }
 
@@ -852,6 +852,13 @@ public class Package implements Serializable {
      */
     private Map<String, OutputFile> outputFilePrefixes = new HashMap<>();
 
+    /**
+     * The list values of the attributes of the rules in this package. Rules with equal values,
+     * such as the same visibility or dependencies, share one list. Like {@link
+     * #outputFilePrefixes}, this is not passed to the package itself.
+     */
+    private Map<List<?>, List<?>> attributeListValues = new HashMap<>();
+
     private boolean alreadyBuilt = false;
 
     private EventHandler builderEventHandler = new EventHandler() {
@@ -897,6 +904,20 @@ public class Package implements Serializable {
       return buildFileLabel;
     }
 
+    /**
+     * Returns the first list equal to {@code value} that was interned in this package, or
+     * {@code value} itself. The list must be immutable.
+     */
+    @SuppressWarnings("unchecked")
+    <T> List<T> internAttributeValue(List<T> value) {
+      List<?> interned = attributeListValues.get(value);
+      if (interned == null) {
+        attributeListValues.put(value, value);
+        return value;
+      }
+      return (List<T>) interned;
+    }
+
     Path getFilename() {
       return filename;
     }
@@ -373,6 +373,13 @@ public final class PackageFactory {
     this.preprocessorFactory = preprocessorFactory;
   }
 
+  /**
+   * Returns whether {@link #preprocess} may do anything but return the BUILD file unchanged.
+   */
+  public boolean hasPreprocessor() {
+    return preprocessorFactory != Preprocessor.Factory.NullFactory.INSTANCE;
+  }
+
  /**
    * Sets the syscalls cache used in globbing.
    */
@@ -800,6 +800,13 @@ public final class RuleClass {
    */
   private final Attribute[] attributes;
 
+  /**
+   * The default value of each attribute that is the same for all rules of this class, by
+   * attribute index, or null if the default depends on the rule or its package. Rules do not
+   * store the values of attributes that have these defaults.
+   */
+  private final Object[] sharedDefaultValues;
+
   /**
    * The set of implicit outputs generated by a rule, expressed as a function
    * of that rule.
@@ -928,6 +935,14 @@ public final class RuleClass {
     for (Attribute attribute : attributes) {
       attributeIndex.put(attribute.getName(), index++);
     }
+
+    this.sharedDefaultValues = new Object[attributes.length];
+    for (int i = 0; i < attributes.length; i++) {
+      Attribute attribute = attributes[i];
+      if (!attribute.hasCondition() && !isPackageDefault(attribute)) {
+        sharedDefaultValues[i] = attribute.getDefaultValue(null);
+      }
+    }
   }
 
   /**
@@ -1003,6 +1018,14 @@ public final class RuleClass {
     return attributes[attrIndex];
   }
 
+  /**
+   * Returns the default value of the attribute whose index is 'attrIndex' if
+   * it is the same for all rules of this class, and null otherwise.
+   */
+  Object getSharedDefaultValue(int attrIndex) {
+    return sharedDefaultValues[attrIndex];
+  }
+
   /**
    * Returns the attribute whose name is 'attrName'; fails if not found.
    */
@@ -1167,6 +1190,8 @@ public final class RuleClass {
       }
 
       if (value == null) {
+        // Unlike the shared default, a missing value reads as null.
+        rule.setAttributeValue(attribute, null, /*explicit=*/false);
         continue;
       }
 
@@ -1204,7 +1229,8 @@ public final class RuleClass {
       if (attributeValue == Environment.NONE) {  // Ignore all None values.
         continue;
       }
-      Integer attrIndex = setRuleAttributeValue(rule, eventHandler, attributeName, attributeValue);
+      Integer attrIndex =
+          setRuleAttributeValue(rule, pkgBuilder, eventHandler, attributeName, attributeValue);
       if (attrIndex != null) {
         definedAttrs.set(attrIndex);
         checkAttrValNonEmpty(rule, eventHandler, attributeValue, attrIndex);
@@ -1414,6 +1440,14 @@ public final class RuleClass {
     return attr.getDefaultValue(null);
   }
 
+  /**
+   * Returns true iff the default value of the attribute comes from the package
+   * rather than from the attribute (see {@link #getAttributeNoncomputedDefaultValue}).
+   */
+  private static boolean isPackageDefault(Attribute attr) {
+    return attr.getName().equals("licenses") || attr.getName().equals("distribs");
+  }
+
   /**
    * Sets the value of attribute "attrName" in rule "rule", by converting the
    * build-language value "attrVal" to the appropriate type for the attribute.
@@ -1424,6 +1458,7 @@ public final class RuleClass {
    */
   @SuppressWarnings("unchecked")
   private Integer setRuleAttributeValue(Rule rule,
+                                        Package.AbstractBuilder<?, ?> pkgBuilder,
                                         EventHandler eventHandler,
                                         String attrName,
                                         Object attrVal) {
@@ -1454,7 +1489,7 @@ public final class RuleClass {
         if (attr.isOrderIndependent()) {
           converted = Ordering.natural().sortedCopy((List<? extends Comparable<?>>) converted);
         }
-        converted = ImmutableList.copyOf((List<?>) converted);
+        converted = pkgBuilder.internAttributeValue(ImmutableList.copyOf((List<?>) converted));
       }
     } catch (Type.ConversionException e) {
       rule.reportError(rule.getLabel() + ": " + e.getMessage(), eventHandler);
@@ -139,4 +139,27 @@ public class PackageCacheOptions extends OptionsBase {
       category = "undocumented",
       help = "Threshold for number of loaded packages before skyframe-m1 cache eviction kicks in")
   public int minLoadedPkgCountForCtNodeEviction;
+
+  @Option(name = "experimental_skylark_compile_threshold",
+      defaultValue = "-1",
+      category = "experimental",
+      help = "If non-negative, the body of a Skylark function is compiled into a faster form once "
+          + "the function has been called this many times. Compiled functions behave like "
+          + "interpreted ones.")
+  public int skylarkCompileThreshold;
+
+  @Option(name = "experimental_persistent_package_cache",
+      defaultValue = "false",
+      category = "experimental",
+      help = "If true, loaded packages are saved under the output base, and a new server "
+          + "deserializes them instead of evaluating their BUILD files again, as long as the BUILD "
+          + "files, the Skylark extensions they load and the matches of their globs are unchanged.")
+  public boolean persistentPackageCache;
+
+  @Option(name = "experimental_persistent_package_cache_size",
+      defaultValue = "256",
+      category = "experimental",
+      help = "The size in megabytes above which the least recently used packages saved by "
+          + "--experimental_persistent_package_cache are deleted.")
+  public int persistentPackageCacheSizeMb;
 }
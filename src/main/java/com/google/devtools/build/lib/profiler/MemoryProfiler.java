@@ -18,6 +18,8 @@ import java.io.OutputStream;
 import java.io.PrintStream;
 import java.lang.management.ManagementFactory;
 import java.lang.management.MemoryUsage;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Blaze memory profiler.
@@ -34,6 +36,9 @@ import java.lang.management.MemoryUsage;
  * an application and the JVM implementation allocate memory from the
  * <em>native heap</em>.
  *
+ * <p>Components that retain memory on purpose, such as caches, can register a
+ * {@link StatisticsProvider} whose counters are stored along with the memory usage.
+ *
  * <p>The script in /devtools/blaze/scripts/blaze-memchart.sh can be used for post processing.
  */
 public final class MemoryProfiler {
@@ -44,8 +49,27 @@ public final class MemoryProfiler {
     return INSTANCE;
   }
 
+  /**
+   * A source of counters that are written to the memory profile at the end of every phase.
+   */
+  public interface StatisticsProvider {
+    /**
+     * Returns the current value of each counter, by counter name.
+     */
+    Map<String, Long> getStatistics();
+  }
+
   private PrintStream memoryProfile;
   private ProfilePhase currentPhase;
+  private final Map<String, StatisticsProvider> statisticsProviders = new LinkedHashMap<>();
+
+  /**
+   * Registers a provider whose counters are reported under the given name, replacing any
+   * provider previously registered under that name.
+   */
+  public synchronized void registerStatistics(String name, StatisticsProvider provider) {
+    statisticsProviders.put(name, provider);
+  }
 
   public synchronized void start(OutputStream out) {
     this.memoryProfile = (out == null) ? null : new PrintStream(out);
@@ -74,6 +98,13 @@ public final class MemoryProfiler {
       memoryProfile.println(name + ":non-heap:used:" + memoryUsage.getUsed());
       memoryProfile.println(name + ":non-heap:commited:" + memoryUsage.getCommitted());
       memoryProfile.println(name + ":non-heap:max:" + memoryUsage.getMax());
+
+      for (Map.Entry<String, StatisticsProvider> provider : statisticsProviders.entrySet()) {
+        for (Map.Entry<String, Long> counter : provider.getValue().getStatistics().entrySet()) {
+          memoryProfile.println(name + ":" + provider.getKey() + ":" + counter.getKey() + ":"
+              + counter.getValue());
+        }
+      }
       currentPhase = nextPhase;
     }
   }
@@ -72,6 +72,8 @@ public enum ProfilerTask {
   CRITICAL_PATH("critical path", -1, 0x666699, 0),
   CRITICAL_PATH_COMPONENT("critical path component", -1, 0x666699, 0),
   IDE_BUILD_INFO("ide_build_info", -1, 0xCC6633, 0),
+  AST_FILE_CACHE("parsed file cache", -1, 0x669966, 0),
+  PREPROCESS_BUILD_FILE("BUILD file preprocessing", -1, 0x99CC66, 0),
   UNKNOWN("Unknown event", -1, 0x339966, 0);
 
   // Size of the ProfilerTask value space.
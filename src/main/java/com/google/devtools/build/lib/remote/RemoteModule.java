@@ -0,0 +1,164 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.net.HostAndPort;
+import com.google.devtools.build.lib.actions.ActionContextProvider;
+import com.google.devtools.build.lib.actions.ActionGraph;
+import com.google.devtools.build.lib.actions.ActionInputFileCache;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.Executor.ActionContext;
+import com.google.devtools.build.lib.actions.ExecutorInitException;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.exec.ExecutionOptions;
+import com.google.devtools.build.lib.runtime.BlazeModule;
+import com.google.devtools.build.lib.runtime.BlazeRuntime;
+import com.google.devtools.build.lib.runtime.Command;
+import com.google.devtools.build.lib.runtime.GotOptionsEvent;
+import com.google.devtools.build.lib.standalone.LocalSpawnStrategy;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.common.options.OptionsBase;
+import com.google.devtools.common.options.OptionsProvider;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * Module that contributes the "remote" spawn strategy, and optionally runs an in-process
+ * {@link RemoteWorker} for it to talk to.
+ */
+public class RemoteModule extends BlazeModule {
+  private static final String LOCAL_WORKER_DIR = "remote-worker";
+  private static final long LOCAL_WORKER_MAX_BLOB_BYTES = 256L << 20;
+
+  private BlazeRuntime runtime;
+  private OptionsProvider optionsProvider;
+  private RemoteWorker localWorker;
+
+  private class RemoteActionContextProvider implements ActionContextProvider {
+    private final RemoteSpawnStrategy strategy;
+
+    RemoteActionContextProvider(RemoteSpawnStrategy strategy) {
+      this.strategy = strategy;
+    }
+
+    @Override
+    public Iterable<ActionContext> getActionContexts() {
+      return ImmutableList.<ActionContext>of(strategy);
+    }
+
+    @Override
+    public void executorCreated(Iterable<ActionContext> usedContexts) {
+    }
+
+    @Override
+    public void executionPhaseStarting(ActionInputFileCache actionInputFileCache,
+        ActionGraph actionGraph, Iterable<Artifact> topLevelArtifacts) {
+    }
+
+    @Override
+    public void executionPhaseEnding() {
+      if (strategy.getStatistics().getRemoteSpawns() > 0) {
+        runtime.getReporter().handle(Event.info(strategy.getStatistics().toString()));
+      }
+    }
+  }
+
+  @Override
+  public void beforeCommand(BlazeRuntime blazeRuntime, Command command) {
+    this.runtime = blazeRuntime;
+    runtime.getEventBus().register(this);
+  }
+
+  @Override
+  public Iterable<Class<? extends OptionsBase>> getCommandOptions(Command command) {
+    return command.builds()
+        ? ImmutableList.<Class<? extends OptionsBase>>of(RemoteOptions.class)
+        : ImmutableList.<Class<? extends OptionsBase>>of();
+  }
+
+  @Subscribe
+  public void gotOptions(GotOptionsEvent event) {
+    optionsProvider = event.getOptions();
+  }
+
+  @Override
+  public ActionContextProvider getActionContextProvider() {
+    RemoteOptions options = optionsProvider.getOptions(RemoteOptions.class);
+    if (options == null || (options.remoteWorker.isEmpty() && !options.remoteLocalWorker)) {
+      return null;
+    }
+
+    InetSocketAddress address;
+    byte[] token;
+    if (options.remoteLocalWorker) {
+      try {
+        if (localWorker == null) {
+          localWorker = RemoteWorker.start(
+              runtime.getDirectories().getOutputBase().getChild(LOCAL_WORKER_DIR),
+              LOCAL_WORKER_MAX_BLOB_BYTES);
+        }
+      } catch (IOException e) {
+        runtime.getReporter().handle(
+            Event.error("Cannot start the local remote execution worker: " + e.getMessage()));
+        return null;
+      }
+      address = new InetSocketAddress(InetAddress.getLoopbackAddress(), localWorker.getPort());
+      token = localWorker.getToken();
+    } else {
+      HostAndPort hostAndPort;
+      try {
+        hostAndPort = HostAndPort.fromString(options.remoteWorker);
+      } catch (IllegalArgumentException e) {
+        runtime.getReporter().handle(
+            Event.error("Invalid --remote_worker '" + options.remoteWorker + "'"));
+        return null;
+      }
+      address = new InetSocketAddress(hostAndPort.getHostText(), hostAndPort.getPort());
+      token = new byte[0];
+      if (options.remoteWorkerTokenFile != null) {
+        Path tokenFile = runtime.getWorkingDirectory().getRelative(options.remoteWorkerTokenFile);
+        try {
+          token = FileSystemUtils.readContent(tokenFile);
+        } catch (IOException e) {
+          runtime.getReporter().handle(Event.error(
+              "Cannot read --remote_worker_token_file " + tokenFile + ": " + e.getMessage()));
+          return null;
+        }
+      }
+    }
+
+    boolean verboseFailures = optionsProvider.getOptions(ExecutionOptions.class).verboseFailures;
+    Path execRoot = runtime.getDirectories().getExecRoot();
+    return new RemoteActionContextProvider(new RemoteSpawnStrategy(address, token, execRoot,
+        new LocalSpawnStrategy(execRoot, verboseFailures), verboseFailures,
+        options.remoteTimeout * 1000));
+  }
+
+  @Override
+  public void afterCommand() {
+    if (localWorker != null) {
+      try {
+        localWorker.close();
+      } catch (IOException e) {
+        // Nothing useful to do; the worker's threads are daemons.
+      }
+      localWorker = null;
+    }
+  }
+}
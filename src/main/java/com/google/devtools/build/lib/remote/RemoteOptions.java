@@ -0,0 +1,53 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import com.google.devtools.build.lib.util.OptionsUtils;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionsBase;
+
+/**
+ * Options for the "remote" spawn strategy.
+ */
+public class RemoteOptions extends OptionsBase {
+  @Option(name = "remote_worker",
+      defaultValue = "",
+      category = "strategy",
+      help = "The host:port of the worker that executes spawns for --spawn_strategy=remote.")
+  public String remoteWorker;
+
+  @Option(name = "remote_worker_token_file",
+      defaultValue = "null",
+      category = "strategy",
+      converter = OptionsUtils.PathFragmentConverter.class,
+      help = "A file holding the token that --remote_worker requires from its clients.")
+  public PathFragment remoteWorkerTokenFile;
+
+  @Option(name = "remote_timeout",
+      defaultValue = "600",
+      category = "strategy",
+      help = "How many seconds to wait for an answer from the worker, including the execution "
+          + "of a spawn, before giving up on it.")
+  public int remoteTimeout;
+
+  @Option(name = "remote_local_worker",
+      defaultValue = "false",
+      category = "strategy",
+      help = "Start an in-process stand-in worker for --spawn_strategy=remote instead of "
+          + "connecting to --remote_worker. For testing, and for measuring how many bytes "
+          + "remote execution would transfer, only: the worker runs the spawns on this machine, "
+          + "unsandboxed, and keeps up to 256 MB of inputs and outputs in memory.")
+  public boolean remoteLocalWorker;
+}
@@ -0,0 +1,268 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.protobuf.ByteString;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * The wire format spoken between {@link RemoteSpawnStrategy} and a {@link RemoteWorker}.
+ *
+ * <p>A connection starts with the token of the worker, see {@link #writeToken}; the worker closes
+ * connections that do not present it. After that, every request starts with a one-byte opcode
+ * and is answered by exactly one response on the same connection; a connection may carry any
+ * number of requests. Blobs are addressed by opaque
+ * digests chosen by whoever uploads them, so that the client can reuse the digests it already
+ * holds in its {@link com.google.devtools.build.lib.actions.ActionInputFileCache}.
+ *
+ * <ul>
+ *   <li>{@link #FIND_MISSING}: a list of digests; answered by the sublist the worker does not
+ *       have.
+ *   <li>{@link #UPLOAD}: a digest and its contents; answered by an empty acknowledgement.
+ *   <li>{@link #EXECUTE}: an {@link ExecuteRequest}; answered by an {@link ExecuteResponse}.
+ *   <li>{@link #DOWNLOAD}: a digest; answered by a presence flag and, if present, the contents.
+ * </ul>
+ */
+final class RemoteProtocol {
+
+  static final byte FIND_MISSING = 1;
+  static final byte UPLOAD = 2;
+  static final byte EXECUTE = 3;
+  static final byte DOWNLOAD = 4;
+
+  /** Tokens are read before the client is authenticated, so their length is bounded. */
+  static final int MAX_TOKEN_LENGTH = 1024;
+
+  private RemoteProtocol() {}
+
+  static void writeToken(DataOutputStream out, byte[] token) throws IOException {
+    writeBytes(out, token);
+  }
+
+  static byte[] readToken(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > MAX_TOKEN_LENGTH) {
+      throw new IOException("Invalid remote protocol token length " + length);
+    }
+    byte[] token = new byte[length];
+    in.readFully(token);
+    return token;
+  }
+
+  /** An input or output file of a remote execution, identified by exec path and digest. */
+  static final class FileEntry {
+    final String execPath;
+    final ByteString digest;
+    final long size;
+    final boolean executable;
+
+    FileEntry(String execPath, ByteString digest, long size, boolean executable) {
+      this.execPath = execPath;
+      this.digest = digest;
+      this.size = size;
+      this.executable = executable;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+      out.writeUTF(execPath);
+      writeBytes(out, digest);
+      out.writeLong(size);
+      out.writeBoolean(executable);
+    }
+
+    static FileEntry readFrom(DataInputStream in) throws IOException {
+      return new FileEntry(in.readUTF(), readBytes(in), in.readLong(), in.readBoolean());
+    }
+  }
+
+  /** A spawn, reduced to what the worker needs to run it. */
+  static final class ExecuteRequest {
+    final ImmutableList<String> arguments;
+    @Nullable final ImmutableMap<String, String> environment;
+    final ImmutableList<FileEntry> inputs;
+    final ImmutableList<String> outputs;
+
+    ExecuteRequest(List<String> arguments, @Nullable Map<String, String> environment,
+        List<FileEntry> inputs, List<String> outputs) {
+      this.arguments = ImmutableList.copyOf(arguments);
+      this.environment = environment == null ? null : ImmutableMap.copyOf(environment);
+      this.inputs = ImmutableList.copyOf(inputs);
+      this.outputs = ImmutableList.copyOf(outputs);
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+      writeStrings(out, arguments);
+      if (environment == null) {
+        out.writeInt(-1);
+      } else {
+        out.writeInt(environment.size());
+        for (Map.Entry<String, String> entry : environment.entrySet()) {
+          writeString(out, entry.getKey());
+          writeString(out, entry.getValue());
+        }
+      }
+      out.writeInt(inputs.size());
+      for (FileEntry input : inputs) {
+        input.writeTo(out);
+      }
+      writeStrings(out, outputs);
+    }
+
+    static ExecuteRequest readFrom(DataInputStream in) throws IOException {
+      List<String> arguments = readStrings(in);
+      ImmutableMap<String, String> environment = null;
+      int envSize = in.readInt();
+      if (envSize >= 0) {
+        ImmutableMap.Builder<String, String> builder = ImmutableMap.builder();
+        for (int i = 0; i < envSize; i++) {
+          builder.put(readString(in), readString(in));
+        }
+        environment = builder.build();
+      }
+      int inputCount = in.readInt();
+      ImmutableList.Builder<FileEntry> inputs = ImmutableList.builder();
+      for (int i = 0; i < inputCount; i++) {
+        inputs.add(FileEntry.readFrom(in));
+      }
+      return new ExecuteRequest(arguments, environment, inputs.build(), readStrings(in));
+    }
+  }
+
+  /**
+   * The result of a remote execution. An exit code of -1 together with a non-null error message
+   * means that the worker could not run the command at all; if {@code inputsMissing} is set, that
+   * is because it evicted some of the inputs since they were uploaded, and the request may be
+   * retried.
+   */
+  static final class ExecuteResponse {
+    final int exitCode;
+    @Nullable final String error;
+    final boolean inputsMissing;
+    final byte[] stdout;
+    final byte[] stderr;
+    final ImmutableList<FileEntry> outputs;
+
+    ExecuteResponse(int exitCode, @Nullable String error, boolean inputsMissing, byte[] stdout,
+        byte[] stderr, List<FileEntry> outputs) {
+      this.exitCode = exitCode;
+      this.error = error;
+      this.inputsMissing = inputsMissing;
+      this.stdout = stdout;
+      this.stderr = stderr;
+      this.outputs = ImmutableList.copyOf(outputs);
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+      out.writeInt(exitCode);
+      out.writeBoolean(inputsMissing);
+      out.writeBoolean(error != null);
+      if (error != null) {
+        writeString(out, error);
+      }
+      writeBytes(out, stdout);
+      writeBytes(out, stderr);
+      out.writeInt(outputs.size());
+      for (FileEntry output : outputs) {
+        output.writeTo(out);
+      }
+    }
+
+    static ExecuteResponse readFrom(DataInputStream in) throws IOException {
+      int exitCode = in.readInt();
+      boolean inputsMissing = in.readBoolean();
+      String error = in.readBoolean() ? readString(in) : null;
+      byte[] stdout = readBytes(in).toByteArray();
+      byte[] stderr = readBytes(in).toByteArray();
+      int outputCount = in.readInt();
+      ImmutableList.Builder<FileEntry> outputs = ImmutableList.builder();
+      for (int i = 0; i < outputCount; i++) {
+        outputs.add(FileEntry.readFrom(in));
+      }
+      return new ExecuteResponse(exitCode, error, inputsMissing, stdout, stderr,
+          outputs.build());
+    }
+  }
+
+  // DataOutputStream.writeUTF is limited to 64k, which command lines and environments may exceed.
+  static void writeString(DataOutputStream out, String s) throws IOException {
+    writeBytes(out, s.getBytes(UTF_8));
+  }
+
+  static String readString(DataInputStream in) throws IOException {
+    return new String(readBytes(in).toByteArray(), UTF_8);
+  }
+
+  static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+    out.writeInt(strings.size());
+    for (String s : strings) {
+      writeString(out, s);
+    }
+  }
+
+  static ImmutableList<String> readStrings(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    ImmutableList.Builder<String> result = ImmutableList.builder();
+    for (int i = 0; i < count; i++) {
+      result.add(readString(in));
+    }
+    return result.build();
+  }
+
+  static void writeBytes(DataOutputStream out, ByteString bytes) throws IOException {
+    out.writeInt(bytes.size());
+    bytes.writeTo(out);
+  }
+
+  static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  static ByteString readBytes(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      throw new IOException("Corrupt remote protocol stream: negative length " + length);
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return ByteString.copyFrom(bytes);
+  }
+
+  static void writeDigests(DataOutputStream out, List<ByteString> digests) throws IOException {
+    out.writeInt(digests.size());
+    for (ByteString digest : digests) {
+      writeBytes(out, digest);
+    }
+  }
+
+  static ImmutableList<ByteString> readDigests(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    ImmutableList.Builder<ByteString> result = ImmutableList.builder();
+    for (int i = 0; i < count; i++) {
+      result.add(readBytes(in));
+    }
+    return result.build();
+  }
+}
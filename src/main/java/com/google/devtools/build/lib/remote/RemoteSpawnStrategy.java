@@ -0,0 +1,324 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.actions.ActionExecutionContext;
+import com.google.devtools.build.lib.actions.ActionInput;
+import com.google.devtools.build.lib.actions.ActionInputFileCache;
+import com.google.devtools.build.lib.actions.ActionInputHelper;
+import com.google.devtools.build.lib.actions.DigestOfDirectoryException;
+import com.google.devtools.build.lib.actions.EnvironmentalExecException;
+import com.google.devtools.build.lib.actions.ExecException;
+import com.google.devtools.build.lib.actions.ExecutionStrategy;
+import com.google.devtools.build.lib.actions.Executor;
+import com.google.devtools.build.lib.actions.Spawn;
+import com.google.devtools.build.lib.actions.SpawnActionContext;
+import com.google.devtools.build.lib.actions.UserExecException;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.remote.RemoteProtocol.ExecuteRequest;
+import com.google.devtools.build.lib.remote.RemoteProtocol.ExecuteResponse;
+import com.google.devtools.build.lib.remote.RemoteProtocol.FileEntry;
+import com.google.devtools.build.lib.syntax.Label;
+import com.google.devtools.build.lib.util.CommandFailureUtils;
+import com.google.devtools.build.lib.util.io.FileOutErr;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.protobuf.ByteString;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Strategy that ships spawns, and their inputs by digest, to a {@link RemoteWorker}.
+ *
+ * <p>Before each execution the strategy asks the worker which of the input digests it is
+ * missing and uploads only those; after the execution it fetches the outputs the worker
+ * produced. Every connection starts with the token of the worker. Spawns that cannot be
+ * described by their inputs
+ * alone (those with runfiles or fileset trees, directory inputs, or that are not remotable) are
+ * executed by the local fallback strategy instead.
+ */
+@ExecutionStrategy(name = { "remote" }, contextType = SpawnActionContext.class)
+public class RemoteSpawnStrategy implements SpawnActionContext {
+  private static final int CONNECT_TIMEOUT_MILLIS = 10000;
+
+  /** How often a read from the worker wakes up to check whether the build was interrupted. */
+  private static final int POLL_INTERVAL_MILLIS = 1000;
+
+  /** How often an execution is attempted whose inputs the worker evicted in the meantime. */
+  private static final int MAX_ATTEMPTS = 3;
+
+  private final InetSocketAddress workerAddress;
+  private final byte[] workerToken;
+  private final Path execRoot;
+  private final SpawnActionContext fallbackStrategy;
+  private final boolean verboseFailures;
+  private final int timeoutMillis;
+  private final RemoteTransferStatistics statistics = new RemoteTransferStatistics();
+
+  public RemoteSpawnStrategy(InetSocketAddress workerAddress, byte[] workerToken, Path execRoot,
+      SpawnActionContext fallbackStrategy, boolean verboseFailures, int timeoutMillis) {
+    this.workerAddress = workerAddress;
+    this.workerToken = workerToken.clone();
+    this.execRoot = execRoot;
+    this.fallbackStrategy = fallbackStrategy;
+    this.verboseFailures = verboseFailures;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  public RemoteTransferStatistics getStatistics() {
+    return statistics;
+  }
+
+  /**
+   * Executes the given {@code spawn} on the worker, or locally if it cannot be shipped.
+   */
+  @Override
+  public void exec(Spawn spawn, ActionExecutionContext actionExecutionContext)
+      throws ExecException, InterruptedException {
+    List<FileEntry> inputs = spawn.isRemotable()
+        && spawn.getRunfilesManifests().isEmpty()
+        && spawn.getFilesetManifests().isEmpty()
+        ? describeInputs(spawn, actionExecutionContext)
+        : null;
+    if (inputs == null) {
+      statistics.spawnExecutedLocally();
+      fallbackStrategy.exec(spawn, actionExecutionContext);
+      return;
+    }
+
+    Executor executor = actionExecutionContext.getExecutor();
+    if (executor.reportsSubcommands()) {
+      executor.reportSubcommand(Label.print(spawn.getOwner().getLabel()),
+          spawn.asShellCommand(executor.getExecRoot()));
+    }
+
+    ExecuteResponse response;
+    try (Socket socket = new Socket()) {
+      socket.connect(workerAddress, CONNECT_TIMEOUT_MILLIS);
+      socket.setSoTimeout(Math.min(POLL_INTERVAL_MILLIS, timeoutMillis));
+      DataInputStream in = new DataInputStream(new BufferedInputStream(
+          new InterruptibleInputStream(socket.getInputStream(), timeoutMillis)));
+      DataOutputStream out =
+          new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+      RemoteProtocol.writeToken(out, workerToken);
+
+      ExecuteRequest request = new ExecuteRequest(spawn.getArguments(), spawn.getEnvironment(),
+          inputs, ImmutableList.copyOf(ActionInputHelper.toExecPaths(spawn.getOutputFiles())));
+      int attempts = 0;
+      do {
+        uploadMissingInputs(inputs, actionExecutionContext.getActionInputFileCache(), in, out);
+
+        long startTime = Profiler.nanoTimeMaybe();
+        out.writeByte(RemoteProtocol.EXECUTE);
+        request.writeTo(out);
+        out.flush();
+        response = ExecuteResponse.readFrom(in);
+        Profiler.instance().logSimpleTask(startTime, ProfilerTask.REMOTE_EXECUTION,
+            spawn.getResourceOwner());
+      } while (response.inputsMissing && ++attempts < MAX_ATTEMPTS);
+      if (response.inputsMissing) {
+        throw new EnvironmentalExecException("Remote execution on " + workerAddress
+            + " failed: the worker evicted the inputs again in each of " + MAX_ATTEMPTS
+            + " attempts");
+      }
+
+      FileOutErr outErr = actionExecutionContext.getFileOutErr();
+      outErr.getOutputStream().write(response.stdout);
+      outErr.getErrorStream().write(response.stderr);
+
+      if (response.error == null && response.exitCode == 0) {
+        fetchOutputs(response.outputs, in, out);
+      }
+    } catch (IOException e) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      throw new EnvironmentalExecException(
+          "Remote execution on " + workerAddress + " failed: " + e.getMessage(), e);
+    }
+    statistics.spawnExecutedRemotely();
+
+    if (response.error != null || response.exitCode != 0) {
+      String message = CommandFailureUtils.describeCommandFailure(verboseFailures,
+          spawn.getArguments(), spawn.getEnvironment(), execRoot.getPathString());
+      throw new UserExecException(String.format("%s: %s", message,
+          response.error != null ? response.error : "exit " + response.exitCode));
+    }
+  }
+
+  /**
+   * Returns the inputs of the spawn with their digests, or null if the spawn has an input that
+   * cannot be shipped by digest.
+   */
+  private List<FileEntry> describeInputs(Spawn spawn,
+      ActionExecutionContext actionExecutionContext) throws ExecException {
+    ActionInputFileCache inputFileCache = actionExecutionContext.getActionInputFileCache();
+    List<FileEntry> result = new ArrayList<>();
+    try {
+      for (ActionInput input : ActionInputHelper.expandMiddlemen(spawn.getInputFiles(),
+          actionExecutionContext.getMiddlemanExpander())) {
+        ByteString digest = inputFileCache.getDigest(input);
+        if (digest == null) {
+          return null;
+        }
+        Path path = execRoot.getRelative(input.getExecPathString());
+        result.add(new FileEntry(input.getExecPathString(), digest,
+            inputFileCache.getSizeInBytes(input), path.isExecutable()));
+      }
+    } catch (DigestOfDirectoryException e) {
+      return null;
+    } catch (IOException e) {
+      throw new EnvironmentalExecException("Failed to digest inputs for remote execution: "
+          + e.getMessage(), e);
+    }
+    return result;
+  }
+
+  private void uploadMissingInputs(List<FileEntry> inputs, ActionInputFileCache inputFileCache,
+      DataInputStream in, DataOutputStream out) throws IOException {
+    // Several exec paths may share a digest; each blob is uploaded at most once.
+    Map<ByteString, FileEntry> byDigest = new LinkedHashMap<>();
+    for (FileEntry input : inputs) {
+      byDigest.put(input.digest, input);
+    }
+
+    long startTime = Profiler.nanoTimeMaybe();
+    out.writeByte(RemoteProtocol.FIND_MISSING);
+    RemoteProtocol.writeDigests(out, ImmutableList.copyOf(byDigest.keySet()));
+    out.flush();
+    List<ByteString> missing = RemoteProtocol.readDigests(in);
+
+    long missingBytes = 0;
+    for (ByteString digest : missing) {
+      FileEntry input = byDigest.get(digest);
+      byte[] content = FileSystemUtils.readContent(execRoot.getRelative(input.execPath));
+      out.writeByte(RemoteProtocol.UPLOAD);
+      RemoteProtocol.writeBytes(out, digest);
+      RemoteProtocol.writeBytes(out, content);
+      missingBytes += content.length;
+    }
+    out.flush();
+    for (int i = 0; i < missing.size(); i++) {
+      in.readBoolean();
+    }
+
+    long totalBytes = 0;
+    for (FileEntry input : byDigest.values()) {
+      totalBytes += input.size;
+    }
+    statistics.uploaded(missingBytes);
+    statistics.deduplicated(Math.max(0, totalBytes - missingBytes));
+    Profiler.instance().logSimpleTask(startTime, ProfilerTask.UPLOAD_TIME,
+        "upload " + missing.size() + " of " + byDigest.size() + " inputs");
+  }
+
+  private void fetchOutputs(List<FileEntry> outputs, DataInputStream in, DataOutputStream out)
+      throws IOException {
+    long startTime = Profiler.nanoTimeMaybe();
+    for (FileEntry output : outputs) {
+      // The outputs were deleted before the action was executed, so all of them are fetched.
+      Path path = execRoot.getRelative(output.execPath);
+      out.writeByte(RemoteProtocol.DOWNLOAD);
+      RemoteProtocol.writeBytes(out, output.digest);
+      out.flush();
+      if (!in.readBoolean()) {
+        throw new IOException("worker lost output " + output.execPath);
+      }
+      ByteString content = RemoteProtocol.readBytes(in);
+      FileSystemUtils.createDirectoryAndParents(path.getParentDirectory());
+      path.delete();
+      FileSystemUtils.writeContent(path, content.toByteArray());
+      path.setExecutable(output.executable);
+      statistics.downloaded(content.size());
+    }
+    Profiler.instance().logSimpleTask(startTime, ProfilerTask.FETCH,
+        "fetch " + outputs.size() + " outputs");
+  }
+
+  /**
+   * Input stream of a socket with a short read timeout that turns an interrupt of the reading
+   * thread into an {@link InterruptedIOException}, with the interrupt flag still set, and fails
+   * once the worker has not sent anything for the given timeout.
+   */
+  private static final class InterruptibleInputStream extends FilterInputStream {
+    private final int timeoutMillis;
+
+    InterruptibleInputStream(InputStream in, int timeoutMillis) {
+      super(in);
+      this.timeoutMillis = timeoutMillis;
+    }
+
+    @Override
+    public int read() throws IOException {
+      long waitedMillis = 0;
+      while (true) {
+        try {
+          return super.read();
+        } catch (SocketTimeoutException e) {
+          waitedMillis = checkWait(waitedMillis);
+        }
+      }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      long waitedMillis = 0;
+      while (true) {
+        try {
+          return super.read(b, off, len);
+        } catch (SocketTimeoutException e) {
+          waitedMillis = checkWait(waitedMillis);
+        }
+      }
+    }
+
+    private long checkWait(long waitedMillis) throws IOException {
+      if (Thread.currentThread().isInterrupted()) {
+        throw new InterruptedIOException("interrupted while waiting for the worker");
+      }
+      waitedMillis += Math.min(POLL_INTERVAL_MILLIS, timeoutMillis);
+      if (waitedMillis >= timeoutMillis) {
+        throw new SocketTimeoutException(
+            "no answer from the worker for " + timeoutMillis / 1000 + " seconds");
+      }
+      return waitedMillis;
+    }
+  }
+
+  @Override
+  public String strategyLocality(String mnemonic, boolean remotable) {
+    return remotable ? "remote" : fallbackStrategy.strategyLocality(mnemonic, remotable);
+  }
+
+  @Override
+  public boolean isRemotable(String mnemonic, boolean remotable) {
+    return remotable;
+  }
+}
@@ -0,0 +1,82 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Counts the bytes {@link RemoteSpawnStrategy} moves to and from the worker, and the bytes it
+ * avoided moving because the other side already had them.
+ */
+@ThreadSafe
+public final class RemoteTransferStatistics {
+  private final AtomicLong remoteSpawns = new AtomicLong();
+  private final AtomicLong localFallbacks = new AtomicLong();
+  private final AtomicLong bytesUploaded = new AtomicLong();
+  private final AtomicLong bytesDeduplicated = new AtomicLong();
+  private final AtomicLong bytesDownloaded = new AtomicLong();
+
+  void spawnExecutedRemotely() {
+    remoteSpawns.incrementAndGet();
+  }
+
+  void spawnExecutedLocally() {
+    localFallbacks.incrementAndGet();
+  }
+
+  void uploaded(long bytes) {
+    bytesUploaded.addAndGet(bytes);
+  }
+
+  void deduplicated(long bytes) {
+    bytesDeduplicated.addAndGet(bytes);
+  }
+
+  void downloaded(long bytes) {
+    bytesDownloaded.addAndGet(bytes);
+  }
+
+  public long getRemoteSpawns() {
+    return remoteSpawns.get();
+  }
+
+  public long getLocalFallbacks() {
+    return localFallbacks.get();
+  }
+
+  /** Bytes of input contents sent to the worker. */
+  public long getBytesUploaded() {
+    return bytesUploaded.get();
+  }
+
+  /** Bytes of input contents the worker already had, and that were therefore not sent. */
+  public long getBytesDeduplicated() {
+    return bytesDeduplicated.get();
+  }
+
+  /** Bytes of output contents fetched from the worker. */
+  public long getBytesDownloaded() {
+    return bytesDownloaded.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("remote execution: %d spawns remote, %d local; "
+        + "uploaded %d bytes (%d deduplicated), downloaded %d bytes",
+        getRemoteSpawns(), getLocalFallbacks(), getBytesUploaded(), getBytesDeduplicated(),
+        getBytesDownloaded());
+  }
+}
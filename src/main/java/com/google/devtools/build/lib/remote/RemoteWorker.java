@@ -0,0 +1,293 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.remote.RemoteProtocol.ExecuteRequest;
+import com.google.devtools.build.lib.remote.RemoteProtocol.ExecuteResponse;
+import com.google.devtools.build.lib.remote.RemoteProtocol.FileEntry;
+import com.google.devtools.build.lib.shell.AbnormalTerminationException;
+import com.google.devtools.build.lib.shell.Command;
+import com.google.devtools.build.lib.shell.CommandException;
+import com.google.devtools.build.lib.shell.TerminationStatus;
+import com.google.devtools.build.lib.util.Fingerprint;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.protobuf.ByteString;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * An in-process stand-in for a remote execution service, for tests only.
+ *
+ * <p>The worker listens on a loopback socket, keeps uploaded blobs in memory, and runs each
+ * {@link ExecuteRequest} in a fresh scratch directory below its work root, staging the inputs
+ * from its blob store and adding the declared outputs back to it. It exists so that
+ * {@link RemoteSpawnStrategy} can be exercised, and its transfer behavior measured, without a
+ * real remote execution cluster.
+ *
+ * <p>The worker runs any command line it is sent, unsandboxed and as the user that started it.
+ * It therefore only serves clients that present the random token it generated on startup, see
+ * {@link #getToken}. The blob store holds at most a fixed number of bytes, evicting the least
+ * recently used blobs beyond that; an execution whose inputs were evicted is answered with
+ * {@link ExecuteResponse#inputsMissing}, so that the client uploads them again.
+ */
+public final class RemoteWorker implements Closeable {
+
+  private static final int TOKEN_LENGTH = 32;
+
+  private final Path workRoot;
+  private final ServerSocket serverSocket;
+  private final byte[] token;
+  private final long maxBlobBytes;
+  private final ExecutorService connectionPool = Executors.newCachedThreadPool();
+  private final AtomicInteger nextScratchDir = new AtomicInteger();
+  private volatile boolean closed = false;
+
+  /** Blob digest to contents, in access order. */
+  @GuardedBy("this")
+  private final LinkedHashMap<ByteString, byte[]> blobs = new LinkedHashMap<>(16, 0.75f, true);
+  @GuardedBy("this")
+  private long blobBytes = 0;
+
+  private RemoteWorker(Path workRoot, ServerSocket serverSocket, byte[] token,
+      long maxBlobBytes) {
+    this.workRoot = workRoot;
+    this.serverSocket = serverSocket;
+    this.token = token;
+    this.maxBlobBytes = maxBlobBytes;
+  }
+
+  /**
+   * Starts a worker on an ephemeral loopback port, running commands below {@code workRoot} and
+   * keeping at most {@code maxBlobBytes} of blobs in memory.
+   */
+  public static RemoteWorker start(Path workRoot, long maxBlobBytes) throws IOException {
+    FileSystemUtils.createDirectoryAndParents(workRoot);
+    FileSystemUtils.deleteTreesBelow(workRoot);
+    byte[] token = new byte[TOKEN_LENGTH];
+    new SecureRandom().nextBytes(token);
+    final RemoteWorker worker = new RemoteWorker(workRoot,
+        new ServerSocket(0, 50, InetAddress.getLoopbackAddress()), token, maxBlobBytes);
+    Thread acceptor = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        worker.acceptLoop();
+      }
+    }, "remote-worker-acceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+    return worker;
+  }
+
+  /** Returns the loopback port the worker is listening on. */
+  public int getPort() {
+    return serverSocket.getLocalPort();
+  }
+
+  /** Returns the token clients have to present, see {@link RemoteProtocol#writeToken}. */
+  public byte[] getToken() {
+    return token.clone();
+  }
+
+  /** Returns the number of distinct blobs the worker holds. */
+  public synchronized int getBlobCount() {
+    return blobs.size();
+  }
+
+  /** Returns the total size of the blobs the worker holds. */
+  public synchronized long getBlobBytes() {
+    return blobBytes;
+  }
+
+  private synchronized boolean hasBlob(ByteString digest) {
+    // Uses get rather than containsKey so that the blob counts as recently used.
+    return blobs.get(digest) != null;
+  }
+
+  private synchronized byte[] getBlob(ByteString digest) {
+    return blobs.get(digest);
+  }
+
+  private synchronized void putBlob(ByteString digest, byte[] content) {
+    byte[] previous = blobs.put(digest, content);
+    blobBytes += content.length - (previous == null ? 0 : previous.length);
+    // Never evicts the blob just added, even if it exceeds the limit on its own.
+    Iterator<byte[]> it = blobs.values().iterator();
+    while (blobBytes > maxBlobBytes && blobs.size() > 1) {
+      blobBytes -= it.next().length;
+      it.remove();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    serverSocket.close();
+    connectionPool.shutdownNow();
+  }
+
+  private void acceptLoop() {
+    while (!closed) {
+      final Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (IOException e) {
+        // Either close() was called or the socket is broken; in both cases we are done.
+        return;
+      }
+      connectionPool.execute(new Runnable() {
+        @Override
+        public void run() {
+          serve(socket);
+        }
+      });
+    }
+  }
+
+  private void serve(Socket socket) {
+    try (Socket s = socket;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+        DataOutputStream out =
+            new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+      if (!MessageDigest.isEqual(token, RemoteProtocol.readToken(in))) {
+        return;
+      }
+      while (true) {
+        byte opcode;
+        try {
+          opcode = in.readByte();
+        } catch (EOFException e) {
+          return;
+        }
+        handle(opcode, in, out);
+        out.flush();
+      }
+    } catch (SocketException e) {
+      // The client went away.
+    } catch (IOException e) {
+      // A broken connection only affects the client on the other end; keep serving others.
+    }
+  }
+
+  private void handle(byte opcode, DataInputStream in, DataOutputStream out) throws IOException {
+    switch (opcode) {
+      case RemoteProtocol.FIND_MISSING:
+        List<ByteString> missing = new ArrayList<>();
+        for (ByteString digest : RemoteProtocol.readDigests(in)) {
+          if (!hasBlob(digest)) {
+            missing.add(digest);
+          }
+        }
+        RemoteProtocol.writeDigests(out, missing);
+        break;
+      case RemoteProtocol.UPLOAD:
+        ByteString digest = RemoteProtocol.readBytes(in);
+        putBlob(digest, RemoteProtocol.readBytes(in).toByteArray());
+        out.writeBoolean(true);
+        break;
+      case RemoteProtocol.EXECUTE:
+        execute(ExecuteRequest.readFrom(in)).writeTo(out);
+        break;
+      case RemoteProtocol.DOWNLOAD:
+        byte[] content = getBlob(RemoteProtocol.readBytes(in));
+        out.writeBoolean(content != null);
+        if (content != null) {
+          RemoteProtocol.writeBytes(out, content);
+        }
+        break;
+      default:
+        throw new IOException("Unknown remote protocol opcode " + opcode);
+    }
+  }
+
+  private ExecuteResponse execute(ExecuteRequest request) throws IOException {
+    Path scratch = workRoot.getChild(Integer.toString(nextScratchDir.incrementAndGet()));
+    FileSystemUtils.createDirectoryAndParents(scratch);
+    try {
+      for (FileEntry input : request.inputs) {
+        byte[] content = getBlob(input.digest);
+        if (content == null) {
+          return new ExecuteResponse(-1, "input " + input.execPath + " was not uploaded",
+              /*inputsMissing=*/true, new byte[0], new byte[0], ImmutableList.<FileEntry>of());
+        }
+        Path path = scratch.getRelative(input.execPath);
+        FileSystemUtils.createDirectoryAndParents(path.getParentDirectory());
+        FileSystemUtils.writeContent(path, content);
+        path.setExecutable(input.executable);
+      }
+      for (String output : request.outputs) {
+        FileSystemUtils.createDirectoryAndParents(scratch.getRelative(output).getParentDirectory());
+      }
+
+      Command cmd = new Command(request.arguments.toArray(new String[0]), request.environment,
+          scratch.getPathFile());
+      ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+      ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+      int exitCode = 0;
+      try {
+        cmd.execute(Command.NO_INPUT, Command.NO_OBSERVER, stdout, stderr,
+            /*killSubprocessOnInterrupt=*/true);
+      } catch (AbnormalTerminationException e) {
+        TerminationStatus status = e.getResult().getTerminationStatus();
+        exitCode = status.exited() ? status.getExitCode() : 128 + status.getTerminatingSignal();
+      } catch (CommandException e) {
+        return failure(e.getMessage());
+      }
+
+      ImmutableList.Builder<FileEntry> outputs = ImmutableList.builder();
+      for (String output : request.outputs) {
+        Path path = scratch.getRelative(output);
+        if (!path.isFile()) {
+          continue;
+        }
+        byte[] content = FileSystemUtils.readContent(path);
+        ByteString digest = ByteString.copyFromUtf8(Fingerprint.hexDigest(path.getMD5Digest()));
+        putBlob(digest, content);
+        outputs.add(new FileEntry(output, digest, content.length, path.isExecutable()));
+      }
+      return new ExecuteResponse(exitCode, null, /*inputsMissing=*/false, stdout.toByteArray(),
+          stderr.toByteArray(), outputs.build());
+    } finally {
+      FileSystemUtils.deleteTree(scratch);
+    }
+  }
+
+  private static ExecuteResponse failure(String message) {
+    return new ExecuteResponse(-1, message, /*inputsMissing=*/false, new byte[0], new byte[0],
+        ImmutableList.<FileEntry>of());
+  }
+}
@@ -17,6 +17,7 @@ package com.google.devtools.build.lib.rules.cpp;
 import com.google.common.base.Function;
 import com.google.devtools.build.lib.analysis.BlazeDirectories;
 import com.google.devtools.build.lib.analysis.RedirectChaser;
+import com.google.devtools.build.lib.analysis.config.BuildConfiguration;
 import com.google.devtools.build.lib.analysis.config.BuildConfiguration.Fragment;
 import com.google.devtools.build.lib.analysis.config.BuildOptions;
 import com.google.devtools.build.lib.analysis.config.ConfigurationEnvironment;
@@ -30,6 +31,7 @@ import com.google.devtools.build.lib.packages.Rule;
 import com.google.devtools.build.lib.packages.Target;
 import com.google.devtools.build.lib.syntax.Label;
 import com.google.devtools.build.lib.syntax.Label.SyntaxException;
+import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.view.config.crosstool.CrosstoolConfig;
 
@@ -44,6 +46,23 @@ public class CppConfigurationLoader implements ConfigurationFragmentFactory {
     return CppConfiguration.class;
   }
 
+  @Override
+  public void addRequiredOptions(BuildOptions buildOptions, Fingerprint fingerprint) {
+    addCrosstoolOptions(buildOptions, fingerprint);
+  }
+
+  /**
+   * Adds the options that the C++ fragment reads: all C++ options, the CPU the toolchain is
+   * selected for, and the compilation mode.
+   */
+  public static void addCrosstoolOptions(BuildOptions buildOptions, Fingerprint fingerprint) {
+    BuildConfiguration.Options options = buildOptions.get(BuildConfiguration.Options.class);
+    fingerprint.addString(buildOptions.get(CppOptions.class).cacheKey());
+    fingerprint.addString(String.valueOf(options.cpu));
+    fingerprint.addString(String.valueOf(options.hostCpu));
+    fingerprint.addString(options.compilationMode.toString());
+  }
+
   private final Function<String, String> cpuTransformer;
 
   /**
@@ -22,6 +22,7 @@ import com.google.devtools.build.lib.analysis.config.ConfigurationFragmentFactor
 import com.google.devtools.build.lib.analysis.config.InvalidConfigurationException;
 import com.google.devtools.build.lib.rules.java.JavaConfiguration.JavaClasspathMode;
 import com.google.devtools.build.lib.syntax.Label;
+import com.google.devtools.build.lib.util.Fingerprint;
 
 /**
  * A loader that creates JavaConfiguration instances based on JavaBuilder configurations and
@@ -48,6 +49,12 @@ public class JavaConfigurationLoader implements ConfigurationFragmentFactory {
   public Class<? extends Fragment> creates() {
     return JavaConfiguration.class;
   }
+
+  @Override
+  public void addRequiredOptions(BuildOptions buildOptions, Fingerprint fingerprint) {
+    fingerprint.addString(buildOptions.get(JavaOptions.class).cacheKey());
+    cpuSupplier.addRequiredOptions(buildOptions, fingerprint);
+  }
   
   public JavaConfiguration create(JavaOptions javaOptions, Label javaToolchain, String javaCpu)
           throws InvalidConfigurationException {
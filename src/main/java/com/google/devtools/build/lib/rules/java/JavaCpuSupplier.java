@@ -17,6 +17,7 @@ package com.google.devtools.build.lib.rules.java;
 import com.google.devtools.build.lib.analysis.config.BuildOptions;
 import com.google.devtools.build.lib.analysis.config.ConfigurationEnvironment;
 import com.google.devtools.build.lib.analysis.config.InvalidConfigurationException;
+import com.google.devtools.build.lib.util.Fingerprint;
 
 /**
  * Determines the CPU to be used for Java compilation from the build options and the
@@ -28,4 +29,11 @@ public interface JavaCpuSupplier {
    */
   String getJavaCpu(BuildOptions buildOptions, ConfigurationEnvironment env)
       throws InvalidConfigurationException;
-}
\ No newline at end of file
+
+  /**
+   * Adds the values of the options that {@link #getJavaCpu} reads to {@code fingerprint}, for the
+   * {@link com.google.devtools.build.lib.analysis.config.ConfigurationFragmentFactory}s that use
+   * this supplier.
+   */
+  void addRequiredOptions(BuildOptions buildOptions, Fingerprint fingerprint);
+}
@@ -29,6 +29,7 @@ import com.google.devtools.build.lib.packages.Target;
 import com.google.devtools.build.lib.packages.Type;
 import com.google.devtools.build.lib.syntax.Label;
 import com.google.devtools.build.lib.syntax.Label.SyntaxException;
+import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.vfs.PathFragment;
 
 import java.util.List;
@@ -82,6 +83,12 @@ public final class JvmConfigurationLoader implements ConfigurationFragmentFactor
     return Jvm.class;
   }
 
+  @Override
+  public void addRequiredOptions(BuildOptions buildOptions, Fingerprint fingerprint) {
+    fingerprint.addString(buildOptions.get(JavaOptions.class).javaBase);
+    cpuSupplier.addRequiredOptions(buildOptions, fingerprint);
+  }
+
   @Nullable
   private Jvm createDefault(ConfigurationEnvironment lookup, String javaHome, String cpu)
       throws InvalidConfigurationException {
@@ -23,6 +23,7 @@ import com.google.devtools.build.lib.analysis.config.InvalidConfigurationExcepti
 import com.google.devtools.build.lib.packages.NoSuchPackageException;
 import com.google.devtools.build.lib.packages.NoSuchTargetException;
 import com.google.devtools.build.lib.syntax.Label;
+import com.google.devtools.build.lib.util.Fingerprint;
 
 /**
  * A loader that creates ObjcConfiguration instances based on Objective-C configurations and
@@ -60,6 +61,14 @@ public class ObjcConfigurationLoader implements ConfigurationFragmentFactory {
     return ObjcConfiguration.class;
   }
 
+  @Override
+  public void addRequiredOptions(BuildOptions buildOptions, Fingerprint fingerprint) {
+    Options options = buildOptions.get(BuildConfiguration.Options.class);
+    fingerprint.addString(buildOptions.get(ObjcCommandLineOptions.class).cacheKey());
+    fingerprint.addBoolean(options.collectCodeCoverage);
+    fingerprint.addString(options.compilationMode.toString());
+  }
+
   private static Label forceLoad(ConfigurationEnvironment env, String target)
       throws InvalidConfigurationException {
     Label label = null;
@@ -20,9 +20,11 @@ import com.google.devtools.build.lib.analysis.config.ConfigurationEnvironment;
 import com.google.devtools.build.lib.analysis.config.ConfigurationFragmentFactory;
 import com.google.devtools.build.lib.analysis.config.InvalidConfigurationException;
 import com.google.devtools.build.lib.rules.cpp.CppConfiguration;
+import com.google.devtools.build.lib.rules.cpp.CppConfigurationLoader;
 import com.google.devtools.build.lib.rules.cpp.CppOptions;
 import com.google.devtools.build.lib.rules.cpp.CrosstoolConfigurationLoader;
 import com.google.devtools.build.lib.syntax.Label;
+import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.view.config.crosstool.CrosstoolConfig;
 
 import javax.annotation.Nullable;
@@ -75,5 +77,12 @@ public class PythonConfigurationLoader implements ConfigurationFragmentFactory {
   public Class<? extends Fragment> creates() {
     return PythonConfiguration.class;
   }
+
+  @Override
+  public void addRequiredOptions(BuildOptions buildOptions, Fingerprint fingerprint) {
+    fingerprint.addString(buildOptions.get(PythonOptions.class).cacheKey());
+    // Through the C++ fragment and the toolchain selection.
+    CppConfigurationLoader.addCrosstoolOptions(buildOptions, fingerprint);
+  }
 }
 
@@ -41,6 +41,7 @@ import com.google.devtools.common.options.OptionsClassProvider;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 import java.util.Map;
 
@@ -65,6 +66,8 @@ public class StandaloneTestStrategy extends TestStrategy {
 
   private static final String TEST_SETUP = "tools/test/test-setup.sh";
 
+  private final TestShardQueue shardQueue = new TestShardQueue();
+
   @Override
   public void exec(TestRunnerAction action, ActionExecutionContext actionExecutionContext)
       throws ExecException, InterruptedException {
@@ -77,7 +80,19 @@ public class StandaloneTestStrategy extends TestStrategy {
     }
 
     Path workingDirectory = runfilesDir.getRelative(action.getRunfilesPrefix());
+    Path execRoot = actionExecutionContext.getExecutor().getExecRoot();
     Map<String, String> env = getEnv(action, runfilesDir);
+    if (executionOptions.dynamicTestSharding && action.isSharded()) {
+      try {
+        Path queueDir = shardQueue.getOrCreateQueue(execRoot.getRelative(action.getBaseDir()),
+            action.getRunNumber());
+        if (queueDir != null) {
+          env.put(TestShardQueue.QUEUE_DIR_ENV, queueDir.getPathString());
+        }
+      } catch (IOException e) {
+        // Without a queue the shards simply fall back to static sharding.
+      }
+    }
     Spawn spawn = new BaseSpawn(getArgs(action), env,
         action.getTestProperties().getExecutionInfo(),
         action,
@@ -98,6 +113,9 @@ public class StandaloneTestStrategy extends TestStrategy {
       TestResultData data = execute(
           actionExecutionContext.withFileOutErr(fileOutErr), spawn, action);
       appendStderr(fileOutErr.getOutputFile(), fileOutErr.getErrorFile());
+      if (executionOptions.dynamicTestSharding) {
+        recordTestTimings(action, data, execRoot);
+      }
       finalizeTest(actionExecutionContext, action, data);
     } catch (IOException e) {
       executor.getEventHandler().handle(Event.error("Caught I/O exception: " + e));
@@ -116,6 +134,28 @@ public class StandaloneTestStrategy extends TestStrategy {
     }
   }
 
+  /**
+   * Adds the per-test-case durations of this run to the target's timing history, for ordering
+   * the shard queues of future runs.
+   */
+  private void recordTestTimings(TestRunnerAction action, TestResultData data, Path execRoot)
+      throws IOException {
+    TestCase details = data.hasTestCase() ? data.getTestCase() : null;
+    if (details == null) {
+      try (InputStream in = action.resolve(execRoot).getXmlOutputPath().getInputStream()) {
+        details = new TestXmlOutputParser().parseXmlIntoTestResult(in);
+      } catch (IOException | TestXmlOutputParserException e) {
+        // No (readable) XML output; nothing to learn from this run.
+        return;
+      }
+    }
+    if (details == null) {
+      return;
+    }
+    shardQueue.recordShard(execRoot.getRelative(action.getBaseDir()), action.getRunNumber(),
+        action.getExecutionSettings().getTotalShards(), TestTimingHistory.collect(details));
+  }
+
   private Map<String, String> getEnv(TestRunnerAction action, Path runfilesDir) {
     Map<String, String> vars = getDefaultTestEnvironment(action);
     BuildConfiguration config = action.getConfiguration();
@@ -0,0 +1,130 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.rules.test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Shared work queues for dynamically sharded tests.
+ *
+ * <p>With static sharding each shard runs the test cases selected by {@code TEST_SHARD_INDEX}
+ * and {@code TEST_TOTAL_SHARDS}, so a shard that happens to get the slow test cases finishes
+ * long after the others. With dynamic sharding, all shards of one run of a test additionally
+ * get {@code TEST_SHARD_QUEUE_DIR}, a directory holding one file per test case known from
+ * previous runs. The files are named by a zero-padded sequence number, slowest test case first,
+ * and contain the test case name ("{@code class#method}"). A test runner that speaks this
+ * protocol repeatedly claims the lowest-numbered file by renaming it into the {@code claimed}
+ * subdirectory (the rename fails if another shard got there first) and runs the named test
+ * case, if it still exists. Test cases missing from the queue, e.g. because they were added
+ * since the last run, are still run according to the static shard index. The shell test runner,
+ * {@code src/test/shell/unittest.bash}, speaks this protocol.
+ *
+ * <p>One instance is used per build, so each run of a test gets a fresh queue. Once all shards of
+ * a run have reported their durations, the timing history of the test is replaced by them, so
+ * that test cases which were deleted leave the history.
+ */
+@ThreadSafe
+final class TestShardQueue {
+  static final String QUEUE_DIR_ENV = "TEST_SHARD_QUEUE_DIR";
+  private static final String CLAIMED_DIR = "claimed";
+
+  /** Queue directory to whether it was populated, for the queues created by this build. */
+  private final ConcurrentMap<Path, Boolean> queues = new ConcurrentHashMap<>();
+
+  /** The durations reported so far by the shards of each run of a test in this build. */
+  @GuardedBy("this")
+  private final Map<Path, RunTimings> runTimings = new HashMap<>();
+
+  private static final class RunTimings {
+    final Map<String, Long> timings = new TreeMap<>();
+    int reportedShards = 0;
+  }
+
+  /**
+   * Returns the queue directory shared by all shards of run {@code runNumber} of the sharded
+   * test whose actions live in {@code baseDir}, creating and populating it on first use, or null
+   * if there is no timing history to order the queue by yet.
+   */
+  @Nullable
+  Path getOrCreateQueue(Path baseDir, int runNumber) throws IOException {
+    Path queueDir = getQueueDir(baseDir, runNumber);
+    Boolean populated = queues.get(queueDir);
+    if (populated == null) {
+      synchronized (this) {
+        populated = queues.get(queueDir);
+        if (populated == null) {
+          populated = populate(queueDir,
+              TestTimingHistory.load(TestTimingHistory.getHistoryFile(baseDir)));
+          queues.put(queueDir, populated);
+        }
+      }
+    }
+    return populated ? queueDir : null;
+  }
+
+  /**
+   * Adds the durations reported by one shard of run {@code runNumber} of the test whose actions
+   * live in {@code baseDir} to its timing history. When the last of its {@code totalShards}
+   * shards reports, the history is replaced by the durations of this run.
+   */
+  synchronized void recordShard(Path baseDir, int runNumber, int totalShards,
+      Map<String, Long> timings) throws IOException {
+    Path historyFile = TestTimingHistory.getHistoryFile(baseDir);
+    TestTimingHistory.update(historyFile, timings);
+    Path queueDir = getQueueDir(baseDir, runNumber);
+    RunTimings run = runTimings.get(queueDir);
+    if (run == null) {
+      run = new RunTimings();
+      runTimings.put(queueDir, run);
+    }
+    run.timings.putAll(timings);
+    if (++run.reportedShards >= Math.max(1, totalShards)) {
+      runTimings.remove(queueDir);
+      TestTimingHistory.write(historyFile, run.timings);
+    }
+  }
+
+  private static Path getQueueDir(Path baseDir, int runNumber) {
+    return baseDir.getChild(String.format("test_run_%d.shard_queue", runNumber + 1));
+  }
+
+  private static boolean populate(Path queueDir, Map<String, Long> history) throws IOException {
+    FileSystemUtils.deleteTree(queueDir);
+    if (history.isEmpty()) {
+      return false;
+    }
+    FileSystemUtils.createDirectoryAndParents(queueDir.getChild(CLAIMED_DIR));
+    List<String> testCases = TestTimingHistory.slowestFirst(history);
+    for (int i = 0; i < testCases.size(); i++) {
+      FileSystemUtils.writeContent(queueDir.getChild(String.format("%08d", i)), UTF_8,
+          testCases.get(i) + "\n");
+    }
+    return true;
+  }
+}
@@ -0,0 +1,131 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.rules.test;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Splitter;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.view.test.TestStatus.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Per-test-case durations of previous runs of a test target.
+ *
+ * <p>The history is kept in a small text file next to the cache status files of the target's
+ * test actions, one "{@code <millis>\t<test case>}" line per test case, and is rewritten
+ * whenever one of the target's shards completes, see {@link TestShardQueue#recordShard}. It is
+ * what {@link TestShardQueue} uses to
+ * hand out the slowest test cases first.
+ */
+final class TestTimingHistory {
+  private static final String FILE_NAME = "test.timings";
+  private static final Splitter TAB_SPLITTER = Splitter.on('\t').limit(2);
+
+  private TestTimingHistory() {}
+
+  /** Returns the history file of the target whose test actions live in {@code baseDir}. */
+  static Path getHistoryFile(Path baseDir) {
+    return baseDir.getChild(FILE_NAME);
+  }
+
+  /**
+   * Returns the durations of the leaf test cases in {@code root}, keyed by
+   * "{@code class#name}", or by name alone for test cases without a class.
+   */
+  static Map<String, Long> collect(TestCase root) {
+    Map<String, Long> result = new TreeMap<>();
+    collect(root, result);
+    return result;
+  }
+
+  private static void collect(TestCase testCase, Map<String, Long> result) {
+    if (testCase.getType() == TestCase.Type.TEST_CASE) {
+      if (testCase.getRun() && testCase.hasRunDurationMillis()) {
+        String name = testCase.getClassName().isEmpty()
+            ? testCase.getName()
+            : testCase.getClassName() + "#" + testCase.getName();
+        result.put(name, testCase.getRunDurationMillis());
+      }
+      return;
+    }
+    for (TestCase child : testCase.getChildList()) {
+      collect(child, result);
+    }
+  }
+
+  /** Reads a history file; returns an empty map if it does not exist or cannot be read. */
+  static Map<String, Long> load(Path historyFile) {
+    Map<String, Long> result = new TreeMap<>();
+    if (!historyFile.exists()) {
+      return result;
+    }
+    try {
+      String content = new String(FileSystemUtils.readContent(historyFile), UTF_8);
+      for (String line : Splitter.on('\n').omitEmptyStrings().split(content)) {
+        List<String> fields = TAB_SPLITTER.splitToList(line);
+        if (fields.size() == 2) {
+          result.put(fields.get(1), Long.parseLong(fields.get(0)));
+        }
+      }
+    } catch (IOException | NumberFormatException e) {
+      // A damaged history only costs us load balancing; start over.
+      result.clear();
+    }
+    return result;
+  }
+
+  /**
+   * Merges {@code timings} into the history file, replacing older durations of the same test
+   * cases.
+   */
+  static void update(Path historyFile, Map<String, Long> timings) throws IOException {
+    if (timings.isEmpty()) {
+      return;
+    }
+    Map<String, Long> merged = load(historyFile);
+    merged.putAll(timings);
+    write(historyFile, merged);
+  }
+
+  /** Replaces the history file by {@code timings}. */
+  static void write(Path historyFile, Map<String, Long> timings) throws IOException {
+    StringBuilder content = new StringBuilder();
+    for (Map.Entry<String, Long> entry : new TreeMap<>(timings).entrySet()) {
+      content.append(entry.getValue()).append('\t').append(entry.getKey()).append('\n');
+    }
+    FileSystemUtils.writeContent(historyFile, UTF_8, content.toString());
+  }
+
+  /** Returns the test case names of {@code history}, slowest first. */
+  static List<String> slowestFirst(final Map<String, Long> history) {
+    List<String> names = new ArrayList<>(history.keySet());
+    Collections.sort(names, new Comparator<String>() {
+      @Override
+      public int compare(String a, String b) {
+        int byDuration = Long.compare(history.get(b), history.get(a));
+        return byDuration != 0 ? byDuration : a.compareTo(b);
+      }
+    });
+    return names;
+  }
+}
@@ -216,6 +216,9 @@ public class RunCommand implements BlazeCommand  {
     } catch (CommandException e) {
       runtime.getReporter().handle(Event.error("Error creating runfiles: " + e.getMessage()));
       return ExitCode.LOCAL_ENVIRONMENTAL_ERROR;
+    } catch (InterruptedException e) {
+      runtime.getReporter().handle(Event.error("Interrupted while creating runfiles"));
+      return ExitCode.INTERRUPTED;
     }
 
     List<String> args = runTargetArgs;
@@ -337,7 +340,7 @@ public class RunCommand implements BlazeCommand  {
    * @throws CommandException
    */
   private Path ensureRunfilesBuilt(BlazeRuntime runtime, ConfiguredTarget target)
-      throws CommandException {
+      throws CommandException, InterruptedException {
     FilesToRunProvider provider = target.getProvider(FilesToRunProvider.class);
     RunfilesSupport runfilesSupport = provider == null ? null : provider.getRunfilesSupport();
     if (runfilesSupport == null) {
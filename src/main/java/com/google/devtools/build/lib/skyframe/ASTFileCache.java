@@ -0,0 +1,99 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.syntax.BuildFileAST;
+import com.google.devtools.build.lib.syntax.ExpressionStatement;
+import com.google.devtools.build.lib.syntax.FuncallExpression;
+import com.google.devtools.build.lib.syntax.Statement;
+import com.google.devtools.build.lib.util.Fingerprint;
+import com.google.devtools.build.lib.vfs.Path;
+
+import javax.annotation.Nullable;
+
+/**
+ * Syntax trees of parsed files, keyed by the path of the file and a digest of its content.
+ *
+ * <p>The cache lives as long as the server and is not cleared when Skyframe invalidates an
+ * {@link ASTFileLookupValue}, so a file that was touched, or changed and changed back, is not
+ * parsed again. Only trees that were parsed without any events are kept, since the events of a
+ * parse are not replayed on a hit, and that include no other file, since the key only covers the
+ * content of the parsed file itself. The values are soft so that the cache gives way to memory
+ * pressure.
+ */
+@ThreadSafe
+final class ASTFileCache {
+
+  /** A cached syntax tree and the time it took to parse it. */
+  static final class Entry {
+    private final BuildFileAST ast;
+    private final long parseTimeNanos;
+
+    private Entry(BuildFileAST ast, long parseTimeNanos) {
+      this.ast = ast;
+      this.parseTimeNanos = parseTimeNanos;
+    }
+
+    BuildFileAST getAST() {
+      return ast;
+    }
+
+    long getParseTimeNanos() {
+      return parseTimeNanos;
+    }
+  }
+
+  private final Cache<String, Entry> entries = CacheBuilder.newBuilder().softValues().build();
+
+  /**
+   * Returns the key of the tree for the given file content. Skylark and BUILD files are parsed
+   * differently, so the kind of parse is part of the key too.
+   */
+  static String key(Path path, boolean skylark, char[] content) {
+    return new Fingerprint()
+        .addPath(path)
+        .addBoolean(skylark)
+        .addString(new String(content))
+        .hexDigestAndReset();
+  }
+
+  /**
+   * Returns true if {@code ast} inlines other files with {@code include()}. The parser replaces
+   * each include with a call to {@code mocksubinclude} followed by the included statements.
+   */
+  static boolean hasIncludes(BuildFileAST ast) {
+    for (Statement stmt : ast.getStatements()) {
+      if (stmt instanceof ExpressionStatement
+          && ((ExpressionStatement) stmt).getExpression() instanceof FuncallExpression) {
+        FuncallExpression call = (FuncallExpression) ((ExpressionStatement) stmt).getExpression();
+        if (call.getFunction().getName().equals("mocksubinclude")) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  @Nullable
+  Entry get(String key) {
+    return entries.getIfPresent(key);
+  }
+
+  void put(String key, BuildFileAST ast, long parseTimeNanos) {
+    entries.put(key, new Entry(ast, parseTimeNanos));
+  }
+}
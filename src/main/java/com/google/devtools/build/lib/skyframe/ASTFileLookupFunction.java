@@ -14,10 +14,16 @@
 
 package com.google.devtools.build.lib.skyframe;
 
+import com.google.common.annotations.VisibleForTesting;
+import com.google.devtools.build.lib.events.EventHandler;
+import com.google.devtools.build.lib.events.StoredEventHandler;
 import com.google.devtools.build.lib.packages.CachingPackageLocator;
 import com.google.devtools.build.lib.packages.RuleClassProvider;
 import com.google.devtools.build.lib.pkgcache.PathPackageLocator;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.syntax.BuildFileAST;
+import com.google.devtools.build.lib.syntax.ParserInputSource;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.RootedPath;
@@ -28,6 +34,7 @@ import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nullable;
@@ -36,6 +43,10 @@ import javax.annotation.Nullable;
  * A SkyFunction for {@link ASTFileLookupValue}s. Tries to locate a file and load it as a
  * syntax tree and cache the resulting {@link BuildFileAST}. If the file doesn't exist
  * the function doesn't fail but returns a specific NO_FILE ASTLookupValue.
+ *
+ * <p>Syntax trees are also kept in an {@link ASTFileCache} keyed by the content of the file, so
+ * that re-evaluating the value of a file whose content did not change returns the same tree
+ * without parsing it again.
  */
 public class ASTFileLookupFunction implements SkyFunction {
 
@@ -92,6 +103,7 @@ public class ASTFileLookupFunction implements SkyFunction {
   private final AtomicReference<PathPackageLocator> pkgLocator;
   private final RuleClassProvider ruleClassProvider;
   private final CachingPackageLocator packageManager;
+  private final ASTFileCache astFileCache = new ASTFileCache();
 
   public ASTFileLookupFunction(AtomicReference<PathPackageLocator> pkgLocator,
       CachingPackageLocator packageManager,
@@ -118,11 +130,7 @@ public class ASTFileLookupFunction implements SkyFunction {
       // Skylark files end with bzl.
       boolean parseAsSkylark = astFilePathFragment.getPathString().endsWith(".bzl");
       try {
-        ast = parseAsSkylark
-            ? BuildFileAST.parseSkylarkFile(path, env.getListener(),
-                packageManager, ruleClassProvider.getSkylarkValidationEnvironment().clone())
-            : BuildFileAST.parseBuildFile(path, env.getListener(),
-                packageManager, false);
+        ast = parse(path, parseAsSkylark, env.getListener());
       } catch (IOException e) {
         throw new ASTLookupFunctionException(new ErrorReadingSkylarkExtensionException(
             e.getMessage()), Transience.TRANSIENT);
@@ -132,6 +140,41 @@ public class ASTFileLookupFunction implements SkyFunction {
     return ASTFileLookupValue.withFile(ast);
   }
 
+  /**
+   * Returns the syntax tree of {@code path}, from the cache if a file with the same content was
+   * parsed without events before. Hits and the parse time they saved are logged to the profiler.
+   */
+  @VisibleForTesting
+  BuildFileAST parse(Path path, boolean parseAsSkylark, EventHandler listener)
+      throws IOException {
+    long startTime = Profiler.nanoTimeMaybe();
+    ParserInputSource input = ParserInputSource.create(path);
+    String key = ASTFileCache.key(path, parseAsSkylark, input.getContent());
+    ASTFileCache.Entry entry = astFileCache.get(key);
+    if (entry != null) {
+      Profiler.instance().logSimpleTask(startTime, ProfilerTask.AST_FILE_CACHE,
+          String.format("hit %s, saved %d us", path,
+              TimeUnit.NANOSECONDS.toMicros(entry.getParseTimeNanos())));
+      return entry.getAST();
+    }
+
+    long parseStartTime = System.nanoTime();
+    StoredEventHandler eventHandler = new StoredEventHandler();
+    // Included files are inlined into BUILD files, so their content would have to be part of the
+    // key; trees with includes are simply not cached.
+    BuildFileAST ast = parseAsSkylark
+        ? BuildFileAST.parseSkylarkFile(input, eventHandler,
+            packageManager, ruleClassProvider.getSkylarkValidationEnvironment().clone())
+        : BuildFileAST.parseBuildFile(input, eventHandler, packageManager, false);
+    long parseTimeNanos = System.nanoTime() - parseStartTime;
+    eventHandler.replayOn(listener);
+    if (eventHandler.isEmpty() && !ast.containsErrors() && !ASTFileCache.hasIncludes(ast)) {
+      astFileCache.put(key, ast, parseTimeNanos);
+    }
+    Profiler.instance().logSimpleTask(startTime, ProfilerTask.AST_FILE_CACHE, "miss " + path);
+    return ast;
+  }
+
   private FileLookupResult getASTFile(Environment env, PathFragment astFilePathFragment)
       throws ASTLookupFunctionException {
     for (Path packagePathEntry : pkgLocator.get().getPathEntries()) {
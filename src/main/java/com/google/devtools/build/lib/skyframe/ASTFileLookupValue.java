@@ -49,6 +49,27 @@ public class ASTFileLookupValue implements SkyValue {
     return ast;
   }
 
+  /**
+   * Values are equal if they hold the same tree. {@link ASTFileLookupFunction} returns the same
+   * tree for a file whose content did not change, which lets Skyframe skip re-evaluating the
+   * values that depend on it.
+   */
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof ASTFileLookupValue)) {
+      return false;
+    }
+    return ast == ((ASTFileLookupValue) obj).ast;
+  }
+
+  @Override
+  public int hashCode() {
+    return System.identityHashCode(ast);
+  }
+
   static void checkInputArgument(PathFragment astFilePathFragment) throws ASTLookupInputException {
     if (astFilePathFragment.isAbsolute()) {
       throw new ASTLookupInputException(String.format(
@@ -0,0 +1,121 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.collect.Ordering;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the evaluations of {@link ConfiguredTargetFunction} per rule class, how many of them were
+ * Skyframe restarts because of missing dependencies, and the time spent in them.
+ */
+@ThreadSafe
+final class AnalysisStatistics {
+
+  /** The counters of one rule class. */
+  private static final class Counters {
+    private final AtomicLong evaluations = new AtomicLong();
+    private final AtomicLong restarts = new AtomicLong();
+    private final AtomicLong nanos = new AtomicLong();
+  }
+
+  private static final Ordering<Map.Entry<String, Counters>> BY_TIME_DESCENDING =
+      new Ordering<Map.Entry<String, Counters>>() {
+        @Override
+        public int compare(Map.Entry<String, Counters> left, Map.Entry<String, Counters> right) {
+          return Long.compare(right.getValue().nanos.get(), left.getValue().nanos.get());
+        }
+      };
+
+  private final ConcurrentMap<String, Counters> byRuleClass = new ConcurrentHashMap<>();
+
+  /**
+   * Records one evaluation of a target of the given rule class (or target kind, for targets that
+   * are not rules).
+   *
+   * @param restarted whether the evaluation returned for missing dependencies
+   */
+  void record(String ruleClass, boolean restarted, long nanos) {
+    Counters counters = byRuleClass.get(ruleClass);
+    if (counters == null) {
+      counters = new Counters();
+      Counters existing = byRuleClass.putIfAbsent(ruleClass, counters);
+      if (existing != null) {
+        counters = existing;
+      }
+    }
+    counters.evaluations.incrementAndGet();
+    if (restarted) {
+      counters.restarts.incrementAndGet();
+    }
+    counters.nanos.addAndGet(nanos);
+  }
+
+  void clear() {
+    byRuleClass.clear();
+  }
+
+  long getEvaluations() {
+    long evaluations = 0;
+    for (Counters counters : byRuleClass.values()) {
+      evaluations += counters.evaluations.get();
+    }
+    return evaluations;
+  }
+
+  long getRestarts() {
+    long restarts = 0;
+    for (Counters counters : byRuleClass.values()) {
+      restarts += counters.restarts.get();
+    }
+    return restarts;
+  }
+
+  long getEvaluations(String ruleClass) {
+    Counters counters = byRuleClass.get(ruleClass);
+    return counters == null ? 0 : counters.evaluations.get();
+  }
+
+  long getRestarts(String ruleClass) {
+    Counters counters = byRuleClass.get(ruleClass);
+    return counters == null ? 0 : counters.restarts.get();
+  }
+
+  /**
+   * Returns a summary with one line per rule class, the most expensive first, limited to
+   * {@code maxRuleClasses} lines.
+   */
+  String report(int maxRuleClasses) {
+    StringBuilder report = new StringBuilder(String.format(
+        "Analysis: %d configured target evaluations, %d restarts",
+        getEvaluations(), getRestarts()));
+    List<Map.Entry<String, Counters>> entries = new ArrayList<>(byRuleClass.entrySet());
+    for (Map.Entry<String, Counters> entry :
+        BY_TIME_DESCENDING.leastOf(entries, maxRuleClasses)) {
+      Counters counters = entry.getValue();
+      report.append(String.format("%n  %s: %d evaluations, %d restarts, %d ms",
+          entry.getKey(), counters.evaluations.get(), counters.restarts.get(),
+          TimeUnit.NANOSECONDS.toMillis(counters.nanos.get())));
+    }
+    return report.toString();
+  }
+}
@@ -0,0 +1,357 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.actions.Action;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.ArtifactPrefixConflictException;
+import com.google.devtools.build.lib.actions.MapBasedActionGraph;
+import com.google.devtools.build.lib.actions.MutableActionGraph.ActionConflictException;
+import com.google.devtools.build.lib.concurrent.ExecutorShutdownUtil;
+import com.google.devtools.build.lib.concurrent.Sharder;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadCompatible;
+import com.google.devtools.build.lib.concurrent.ThrowableRecordingRunnableWrapper;
+import com.google.devtools.build.lib.skyframe.SkyframeActionExecutor.ConflictException;
+import com.google.devtools.build.lib.vfs.PathFragment;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Finds actions that generate the same artifact, and artifacts whose paths are prefixes of each
+ * other, in the actions of a set of {@link ActionLookupValue}s.
+ *
+ * <p>The action graph and the sorted output paths are kept between calls to {@link #update}, which
+ * only registers the actions of values it has not seen before and unregisters those of values that
+ * are gone. Only the output paths of these actions, and of actions that were in conflict before,
+ * are checked again, so an incremental build that re-analyzed a few targets pays for those targets
+ * rather than for the whole graph.
+ */
+@ThreadCompatible
+final class ArtifactConflictFinder {
+
+  /** Work done on one shard of a parallel step. */
+  private interface ShardProcessor<T> {
+    void process(List<T> shard);
+  }
+
+  // Unlike other action graphs, a MapBasedActionGraph does not keep any trace of actions that fail
+  // to register, so they need not be unregistered.
+  private final MapBasedActionGraph actionGraph = new MapBasedActionGraph();
+  private final ConcurrentSkipListMap<PathFragment, Artifact> artifactPathMap =
+      new ConcurrentSkipListMap<>();
+  private final ConcurrentMap<Action, ConflictException> badActions = new ConcurrentHashMap<>();
+  /**
+   * The number of registered values that hold each action. The same action object may be held by
+   * several values, so it stays in {@link #actionGraph} until the last of them is gone.
+   */
+  private final ConcurrentMap<Action, AtomicInteger> actionReferences = new ConcurrentHashMap<>();
+  /** The values whose actions are in {@link #actionGraph}, compared by identity. */
+  private Set<ActionLookupValue> registeredValues = Sets.newIdentityHashSet();
+
+  /**
+   * Brings the action graph up to date with {@code values} and returns all actions that are in
+   * conflict with another one, as {@link SkyframeActionExecutor#findAndStoreArtifactConflicts}
+   * describes.
+   */
+  ImmutableMap<Action, ConflictException> update(Iterable<ActionLookupValue> values)
+      throws InterruptedException {
+    Set<ActionLookupValue> currentValues = Sets.newIdentityHashSet();
+    List<ActionLookupValue> addedValues = new ArrayList<>();
+    for (ActionLookupValue value : values) {
+      if (currentValues.add(value) && !registeredValues.contains(value)) {
+        addedValues.add(value);
+      }
+    }
+    List<ActionLookupValue> removedValues = new ArrayList<>();
+    for (ActionLookupValue value : registeredValues) {
+      if (!currentValues.contains(value)) {
+        removedValues.add(value);
+      }
+    }
+
+    boolean success = false;
+    try {
+      forEachShard(removedValues, new ShardProcessor<ActionLookupValue>() {
+        @Override
+        public void process(List<ActionLookupValue> shard) {
+          for (ActionLookupValue value : shard) {
+            unregister(value);
+          }
+        }
+      });
+      registeredValues = currentValues;
+
+      // A conflict may have gone away with the values that were removed, so the actions that are
+      // still in conflict are checked again.
+      List<Action> actionsToRegister = new ArrayList<>();
+      final Queue<PathFragment> changedPaths = new ConcurrentLinkedQueue<>();
+      for (Action action : new ArrayList<>(badActions.keySet())) {
+        if (badActions.remove(action).isActionConflict()) {
+          actionsToRegister.add(action);
+        } else {
+          for (Artifact output : action.getOutputs()) {
+            changedPaths.add(output.getExecPath());
+          }
+        }
+      }
+
+      forEachShard(addedValues, new ShardProcessor<ActionLookupValue>() {
+        @Override
+        public void process(List<ActionLookupValue> shard) {
+          for (ActionLookupValue value : shard) {
+            register(value, changedPaths);
+          }
+        }
+      });
+      for (Action action : actionsToRegister) {
+        Map<Artifact, Action> outputs = new HashMap<>();
+        for (Artifact output : action.getOutputs()) {
+          outputs.put(output, action);
+        }
+        register(outputs, changedPaths);
+      }
+
+      // Only look for prefix conflicts once all paths are in the map.
+      forEachShard(new HashSet<>(changedPaths), new ShardProcessor<PathFragment>() {
+        @Override
+        public void process(List<PathFragment> shard) {
+          for (PathFragment path : shard) {
+            checkPrefixes(path);
+          }
+        }
+      });
+      success = true;
+    } finally {
+      if (!success) {
+        // The graph is in an unknown state; start over next time.
+        clear();
+      }
+    }
+    return ImmutableMap.copyOf(badActions);
+  }
+
+  /**
+   * Forgets all actions, so that the next {@link #update} checks the whole graph.
+   */
+  void clear() {
+    actionGraph.clear();
+    artifactPathMap.clear();
+    badActions.clear();
+    actionReferences.clear();
+    registeredValues = Sets.newIdentityHashSet();
+  }
+
+  /**
+   * Registers the actions of {@code value} that no other registered value holds, and adds the paths
+   * of their outputs to {@code changedPaths}.
+   */
+  private void register(ActionLookupValue value, Collection<PathFragment> changedPaths) {
+    Set<Action> newActions = new HashSet<>();
+    for (Action action : new HashSet<>(value.getMapForConsistencyCheck().values())) {
+      if (acquire(action)) {
+        newActions.add(action);
+      }
+    }
+    Map<Artifact, Action> generatingActions = new HashMap<>();
+    for (Map.Entry<Artifact, Action> entry : value.getMapForConsistencyCheck().entrySet()) {
+      if (newActions.contains(entry.getValue())) {
+        generatingActions.put(entry.getKey(), entry.getValue());
+      }
+    }
+    register(generatingActions, changedPaths);
+  }
+
+  /**
+   * Registers the actions of the given artifact-to-action map and adds the paths of their outputs
+   * to {@code changedPaths}.
+   */
+  private void register(Map<Artifact, Action> generatingActions,
+      Collection<PathFragment> changedPaths) {
+    Set<Action> registeredActions = new HashSet<>();
+    Set<Action> failedActions = new HashSet<>();
+    for (Map.Entry<Artifact, Action> entry : generatingActions.entrySet()) {
+      Action action = entry.getValue();
+      // We have an entry for each <action, artifact> pair. Only try to register each action once.
+      if (!registeredActions.contains(action) && !failedActions.contains(action)) {
+        try {
+          actionGraph.registerAction(action);
+          registeredActions.add(action);
+        } catch (ActionConflictException e) {
+          badActions.put(action, new ConflictException(e));
+          failedActions.add(action);
+        }
+      }
+      // We do not add the path->artifact mapping for an action in error; we don't need to check
+      // it since this action is already in error.
+      if (registeredActions.contains(action)) {
+        artifactPathMap.put(entry.getKey().getExecPath(), entry.getKey());
+        changedPaths.add(entry.getKey().getExecPath());
+      }
+    }
+  }
+
+  private void unregister(ActionLookupValue value) {
+    for (Action action : new HashSet<>(value.getMapForConsistencyCheck().values())) {
+      if (!release(action)) {
+        // Another registered value still holds the action.
+        continue;
+      }
+      ConflictException conflict = badActions.remove(action);
+      if (conflict != null && conflict.isActionConflict()) {
+        // The action never made it into the graph.
+        continue;
+      }
+      actionGraph.unregisterAction(action);
+      for (Artifact output : action.getOutputs()) {
+        // Shared actions of other values may still generate the output.
+        if (actionGraph.getGeneratingAction(output) == null) {
+          artifactPathMap.remove(output.getExecPath());
+        }
+      }
+    }
+  }
+
+  /**
+   * Records that one more registered value holds {@code action}, and returns whether it is the
+   * first one.
+   */
+  private boolean acquire(Action action) {
+    AtomicInteger references = actionReferences.get(action);
+    if (references == null) {
+      AtomicInteger newReferences = new AtomicInteger();
+      references = actionReferences.putIfAbsent(action, newReferences);
+      if (references == null) {
+        references = newReferences;
+      }
+    }
+    return references.incrementAndGet() == 1;
+  }
+
+  /**
+   * Records that one registered value less holds {@code action}, and returns whether it was the
+   * last one. Values are only released before any are acquired in the same {@link #update}.
+   */
+  private boolean release(Action action) {
+    AtomicInteger references = Preconditions.checkNotNull(actionReferences.get(action), action);
+    if (references.decrementAndGet() > 0) {
+      return false;
+    }
+    actionReferences.remove(action);
+    return true;
+  }
+
+  /**
+   * Reports the prefix conflicts of {@code path}. Like a single scan over the sorted paths, it
+   * reports a path only against the shortest output path that is a prefix of it, and checks the
+   * paths below {@code path} only if there is no such prefix.
+   */
+  private void checkPrefixes(PathFragment path) {
+    if (!artifactPathMap.containsKey(path)) {
+      return;
+    }
+    PathFragment prefix = getShortestPrefix(path);
+    if (prefix != null) {
+      reportPrefixConflict(prefix, path);
+      return;
+    }
+    for (PathFragment other : artifactPathMap.tailMap(path, false).keySet()) {
+      if (!other.startsWith(path)) {
+        break;
+      }
+      reportPrefixConflict(path, other);
+    }
+  }
+
+  @Nullable
+  private PathFragment getShortestPrefix(PathFragment path) {
+    for (int i = 1; i < path.segmentCount(); i++) {
+      PathFragment prefix = path.subFragment(0, i);
+      if (artifactPathMap.containsKey(prefix)) {
+        return prefix;
+      }
+    }
+    return null;
+  }
+
+  private void reportPrefixConflict(PathFragment pathI, PathFragment pathJ) {
+    Artifact artifactI = Preconditions.checkNotNull(artifactPathMap.get(pathI), pathI);
+    Artifact artifactJ = Preconditions.checkNotNull(artifactPathMap.get(pathJ), pathJ);
+    Action actionI =
+        Preconditions.checkNotNull(actionGraph.getGeneratingAction(artifactI), artifactI);
+    Action actionJ =
+        Preconditions.checkNotNull(actionGraph.getGeneratingAction(artifactJ), artifactJ);
+    if (actionI.shouldReportPathPrefixConflict(actionJ)) {
+      ArtifactPrefixConflictException exception = new ArtifactPrefixConflictException(pathI,
+          pathJ, actionI.getOwner().getLabel(), actionJ.getOwner().getLabel());
+      badActions.put(actionI, new ConflictException(exception));
+      badActions.put(actionJ, new ConflictException(exception));
+    }
+  }
+
+  /**
+   * Runs {@code processor} over shards of {@code items} in a thread pool. Registering and checking
+   * actions is CPU-bound.
+   */
+  private static <T> void forEachShard(Collection<T> items, final ShardProcessor<T> processor)
+      throws InterruptedException {
+    if (items.isEmpty()) {
+      return;
+    }
+    int numJobs = Runtime.getRuntime().availableProcessors();
+    Sharder<T> sharder = new Sharder<>(numJobs, items.size());
+    for (T item : items) {
+      sharder.add(item);
+    }
+
+    ThrowableRecordingRunnableWrapper wrapper =
+        new ThrowableRecordingRunnableWrapper("ArtifactConflictFinder#forEachShard");
+    ExecutorService executor = Executors.newFixedThreadPool(
+        numJobs,
+        new ThreadFactoryBuilder().setNameFormat("ArtifactConflictFinder %d").build());
+    for (final List<T> shard : sharder) {
+      executor.execute(wrapper.wrap(new Runnable() {
+        @Override
+        public void run() {
+          processor.process(shard);
+        }
+      }));
+    }
+    boolean interrupted = ExecutorShutdownUtil.interruptibleShutdown(executor);
+    Throwables.propagateIfPossible(wrapper.getFirstThrownError());
+    if (interrupted) {
+      throw new InterruptedException();
+    }
+  }
+}
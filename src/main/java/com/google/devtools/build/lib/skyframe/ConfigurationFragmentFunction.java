@@ -45,12 +45,15 @@ public class ConfigurationFragmentFunction implements SkyFunction {
 
   private final Supplier<ImmutableList<ConfigurationFragmentFactory>> configurationFragments;
   private final Supplier<Set<Package>> configurationPackages;
+  private final SharedConfigurationFragments sharedFragments;
 
   public ConfigurationFragmentFunction(
       Supplier<ImmutableList<ConfigurationFragmentFactory>> configurationFragments,
-      Supplier<Set<Package>> configurationPackages) {
+      Supplier<Set<Package>> configurationPackages,
+      SharedConfigurationFragments sharedFragments) {
     this.configurationFragments = configurationFragments;
     this.configurationPackages = configurationPackages;
+    this.sharedFragments = sharedFragments;
   }
 
   @Override
@@ -60,6 +63,16 @@ public class ConfigurationFragmentFunction implements SkyFunction {
         (ConfigurationFragmentKey) skyKey.argument();
     BuildOptions buildOptions = configurationFragmentKey.getBuildOptions();
     ConfigurationFragmentFactory factory = getFactory(configurationFragmentKey.getFragmentType());
+    SkyKey canonicalKey = sharedFragments.getCanonicalKey(factory, buildOptions, skyKey);
+    if (!canonicalKey.equals(skyKey)) {
+      // Another configuration reads the same options, so share its fragment. Depending on its node
+      // keeps this one up to date if the files the fragment was created from change.
+      try {
+        return env.getValueOrThrow(canonicalKey, InvalidConfigurationException.class);
+      } catch (InvalidConfigurationException e) {
+        throw new ConfigurationFragmentFunctionException(e);
+      }
+    }
     try {
       PackageProviderForConfigurations loadedPackageProvider = 
           new SkyframePackageLoaderWithValueEnvironment(env, configurationPackages.get());
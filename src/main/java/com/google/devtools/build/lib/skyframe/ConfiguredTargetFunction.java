@@ -50,6 +50,7 @@ import com.google.devtools.build.lib.skyframe.AspectFunction.AspectCreationExcep
 import com.google.devtools.build.lib.skyframe.SkyframeExecutor.BuildViewProvider;
 import com.google.devtools.build.lib.syntax.EvalException;
 import com.google.devtools.build.lib.syntax.Label;
+import com.google.devtools.build.lib.util.BlazeClock;
 import com.google.devtools.build.skyframe.SkyFunction;
 import com.google.devtools.build.skyframe.SkyFunctionException;
 import com.google.devtools.build.skyframe.SkyKey;
@@ -153,6 +154,29 @@ final class ConfiguredTargetFunction implements SkyFunction {
     TargetAndConfiguration ctgValue =
         new TargetAndConfiguration(target, configuration);
 
+    long startNanos = BlazeClock.nanoTime();
+    ConfiguredTargetValue value = null;
+    boolean returned = false;
+    try {
+      value = compute(view, env, ctgValue);
+      returned = true;
+      return value;
+    } finally {
+      view.getAnalysisStatistics().record(getRuleClass(target), returned && value == null,
+          BlazeClock.nanoTime() - startNanos);
+    }
+  }
+
+  private static String getRuleClass(Target target) {
+    return target instanceof Rule ? ((Rule) target).getRuleClass() : target.getTargetKind();
+  }
+
+  @Nullable
+  private ConfiguredTargetValue compute(SkyframeBuildView view, Environment env,
+      TargetAndConfiguration ctgValue)
+      throws ConfiguredTargetFunctionException, InterruptedException {
+    Target target = ctgValue.getTarget();
+    BuildConfiguration configuration = ctgValue.getConfiguration();
     SkyframeDependencyResolver resolver = view.createDependencyResolver(env);
     if (resolver == null) {
       return null;
@@ -161,12 +185,14 @@ final class ConfiguredTargetFunction implements SkyFunction {
     try {
       // Get the configuration targets that trigger this rule's configurable attributes.
       Set<ConfigMatchingProvider> configConditions =
-          getConfigConditions(ctgValue.getTarget(), env, resolver, ctgValue);
+          getConfigConditions(target, env, resolver, ctgValue);
       if (configConditions == null) {
         // Those targets haven't yet been resolved.
         return null;
       }
 
+      // Request what the analysis environment needs in the same batch as the dependencies.
+      view.prefetchAnalysisEnvironmentValues(env);
       ListMultimap<Attribute, ConfiguredTarget> depValueMap =
           computeDependencies(env, resolver, ctgValue, null, configConditions);
       return createConfiguredTarget(
@@ -207,24 +233,47 @@ final class ConfiguredTargetFunction implements SkyFunction {
       throw new DependencyEvaluationException(new ConfiguredValueCreationException(e.print()));
     }
 
-    // 2. Resolve configured target dependencies and handle errors.
+    // 2. Request the configured targets and the aspects of all dependencies at once, so that
+    // Skyframe evaluates them in one batch rather than aspects only after a restart.
+    prefetchDependencies(env, depValueNames.values());
+
+    // 3. Resolve configured target dependencies and handle errors.
     Map<SkyKey, ConfiguredTarget> depValues =
         resolveConfiguredTargetDependencies(env, depValueNames.values(), ctgValue.getTarget());
     if (depValues == null) {
       return null;
     }
 
-    // 3. Resolve required aspects.
+    // 4. Resolve required aspects.
     ListMultimap<SkyKey, Aspect> depAspects = resolveAspectDependencies(
         env, depValues, depValueNames.values());
     if (depAspects == null) {
       return null;
     }
 
-    // 3. Merge the dependent configured targets and aspects into a single map.
+    // 5. Merge the dependent configured targets and aspects into a single map.
     return mergeAspects(depValueNames, depValues, depAspects);
   }
 
+  /**
+   * Requests the configured targets of {@code deps} together with all their aspects in a single
+   * batch. The values are not looked at here: errors are reported, and missing values detected,
+   * when {@link #resolveConfiguredTargetDependencies} and {@link #resolveAspectDependencies} ask
+   * for them again. All exceptions that those declare are declared here as well, so that
+   * requesting a value early never changes how its error is handled.
+   */
+  private static void prefetchDependencies(Environment env, Collection<Dependency> deps) {
+    Set<SkyKey> keys = new HashSet<>();
+    for (Dependency dep : deps) {
+      keys.add(TO_KEYS.apply(dep));
+      for (Class<? extends ConfiguredAspectFactory> depAspect : dep.getAspects()) {
+        keys.add(AspectValue.key(dep.getLabel(), dep.getConfiguration(), depAspect));
+      }
+    }
+    env.getValuesOrThrow(keys, NoSuchThingException.class, AspectCreationException.class,
+        ConfiguredValueCreationException.class);
+  }
+
   /**
    * Merges the each direct dependency configured target with the aspects associated with it.
    *
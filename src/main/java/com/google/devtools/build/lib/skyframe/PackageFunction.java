@@ -34,12 +34,15 @@ import com.google.devtools.build.lib.packages.CachingPackageLocator;
 import com.google.devtools.build.lib.packages.InvalidPackageNameException;
 import com.google.devtools.build.lib.packages.NoSuchPackageException;
 import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.PackageDeserializer;
+import com.google.devtools.build.lib.packages.PackageDeserializer.PackageDeserializationException;
 import com.google.devtools.build.lib.packages.PackageFactory;
 import com.google.devtools.build.lib.packages.PackageFactory.Globber;
 import com.google.devtools.build.lib.packages.PackageIdentifier;
 import com.google.devtools.build.lib.packages.PackageIdentifier.RepositoryName;
 import com.google.devtools.build.lib.packages.PackageLoadedEvent;
 import com.google.devtools.build.lib.packages.Preprocessor;
+import com.google.devtools.build.lib.packages.RuleClass;
 import com.google.devtools.build.lib.packages.RuleVisibility;
 import com.google.devtools.build.lib.packages.Target;
 import com.google.devtools.build.lib.profiler.Profiler;
@@ -70,6 +73,7 @@ import com.google.devtools.build.skyframe.ValueOrException4;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -93,7 +97,10 @@ public class PackageFunction implements SkyFunction {
   private final AtomicBoolean showLoadingProgress;
   private final AtomicReference<EventBus> eventBus;
   private final AtomicInteger numPackagesLoaded;
+  private final PersistentPackageCache persistentPackageCache;
+  private final PreprocessorResultCache preprocessorResultCache;
   private final Profiler profiler = Profiler.instance();
+  private final Clock clock = new JavaClock();
 
   private static final PathFragment PRELUDE_FILE_FRAGMENT =
       new PathFragment(Constants.PRELUDE_FILE_DEPOT_RELATIVE_PATH);
@@ -108,7 +115,9 @@ public class PackageFunction implements SkyFunction {
   public PackageFunction(Reporter reporter, PackageFactory packageFactory,
       CachingPackageLocator pkgLocator, AtomicBoolean showLoadingProgress,
       ConcurrentMap<PackageIdentifier, Package.LegacyBuilder> packageFunctionCache,
-      AtomicReference<EventBus> eventBus, AtomicInteger numPackagesLoaded) {
+      AtomicReference<EventBus> eventBus, AtomicInteger numPackagesLoaded,
+      PersistentPackageCache persistentPackageCache,
+      PreprocessorResultCache preprocessorResultCache) {
     this.reporter = reporter;
 
     this.packageFactory = packageFactory;
@@ -117,6 +126,8 @@ public class PackageFunction implements SkyFunction {
     this.packageFunctionCache = packageFunctionCache;
     this.eventBus = eventBus;
     this.numPackagesLoaded = numPackagesLoaded;
+    this.persistentPackageCache = persistentPackageCache;
+    this.preprocessorResultCache = preprocessorResultCache;
   }
 
   private static void maybeThrowFilesystemInconsistency(String packageName,
@@ -466,9 +477,42 @@ public class PackageFunction implements SkyFunction {
       return null;
     }
 
+    String persistentCacheKey = null;
+    // The preprocessor is not part of the key, so preprocessed packages are not cached.
+    if (persistentPackageCache.isEnabled() && replacementContents == null
+        && !packageFactory.hasPreprocessor()) {
+      persistentCacheKey = persistentPackageCache.key(packageId, buildFilePath,
+          inputSource.getContent(),
+          astLookupValue.getAST() == null ? null : astLookupValue.getAST().getContentHashCode(),
+          importResult.importMap, defaultVisibility, externalPkg.getWorkspaceName());
+      if (!packageFunctionCache.containsKey(packageId)) {
+        long startTime = clock.nanoTime();
+        Package cachedPkg = getPersistentlyCachedPackage(persistentCacheKey, packageId,
+            buildFilePath, env);
+        if (env.valuesMissing()) {
+          return null;
+        }
+        if (cachedPkg != null) {
+          // Only packages without errors are saved.
+          postPackageLoaded(packageId, startTime, /*successful=*/true);
+          Event.replayEventsOn(env.getListener(), cachedPkg.getEvents());
+          return new PackageValue(cachedPkg);
+        }
+      }
+    }
+
+    PreprocessedBuildFileValue preprocessedBuildFileValue = null;
+    if (replacementContents == null && packageFactory.hasPreprocessor()) {
+      preprocessedBuildFileValue = (PreprocessedBuildFileValue) env.getValue(
+          PreprocessedBuildFileValue.key(packageId));
+      if (preprocessedBuildFileValue == null) {
+        return null;
+      }
+    }
+
     Package.LegacyBuilder legacyPkgBuilder = loadPackage(externalPkg, inputSource,
-        replacementContents, packageId, buildFilePath, defaultVisibility, preludeStatements,
-        importResult);
+        replacementContents, preprocessedBuildFileValue, packageId, buildFilePath,
+        defaultVisibility, preludeStatements, importResult);
     legacyPkgBuilder.buildPartial();
     try {
       handleLabelsCrossingSubpackagesAndPropagateInconsistentFilesystemExceptions(
@@ -484,6 +528,12 @@ public class PackageFunction implements SkyFunction {
       return null;
     }
     Collection<Pair<String, Boolean>> globPatterns = legacyPkgBuilder.getGlobPatterns();
+    if (preprocessedBuildFileValue != null
+        && !preprocessedBuildFileValue.getGlobPatterns().isEmpty()) {
+      // The preprocessor expanded these globs, so the package depends on them too.
+      globPatterns = ImmutableSet.copyOf(Iterables.concat(globPatterns,
+          preprocessedBuildFileValue.getGlobPatterns()));
+    }
     Map<Label, Path> subincludes = legacyPkgBuilder.getSubincludes();
     Package pkg = legacyPkgBuilder.finishBuild();
     Event.replayEventsOn(env.getListener(), pkg.getEvents());
@@ -509,9 +559,103 @@ public class PackageFunction implements SkyFunction {
           "Package '" + packageName + "' contains errors"),
           pkg.containsTemporaryErrors() ? Transience.TRANSIENT : Transience.PERSISTENT);
     }
+    // Files included with include() are recorded as subincludes too. Neither kind of file is
+    // part of the key, so such packages are not saved.
+    if (persistentCacheKey != null && subincludes.isEmpty()) {
+      savePersistentlyCachedPackage(persistentCacheKey, pkg, globPatterns, env);
+    }
     return new PackageValue(pkg);
   }
 
+  /**
+   * Returns the package saved in the persistent package cache under the given key, or null if
+   * there is none or it is not valid any more. The entry is only valid if its globs still have
+   * the same matches, and if none of its targets crosses into a subpackage.
+   *
+   * <p>Declares the same dependencies on globs and containing packages as loading the package
+   * does, so the caller has to check {@link Environment#valuesMissing} first.
+   */
+  @Nullable
+  private Package getPersistentlyCachedPackage(String cacheKey, PackageIdentifier packageId,
+      Path buildFilePath, Environment env) {
+    PersistentPackageCache.Entry entry = persistentPackageCache.get(cacheKey);
+    if (entry == null) {
+      return null;
+    }
+    // If a glob is in error, loading the package the usual way reports the error.
+    Map<Pair<String, Boolean>, String> globDigests = PersistentPackageCache.getGlobDigests(
+        packageId, entry.getGlobDigests().keySet(), env);
+    if (globDigests == null || !globDigests.equals(entry.getGlobDigests())) {
+      return null;
+    }
+
+    Package pkg;
+    try {
+      pkg = new PackageDeserializer(buildFilePath.getFileSystem(),
+          packageFactory.getRuleClassProvider()).deserialize(entry.getPackage());
+    } catch (PackageDeserializationException e) {
+      return null;
+    }
+    Set<SkyKey> containingPkgLookupKeys = Sets.newHashSet();
+    for (Target target : pkg.getTargets()) {
+      PathFragment dir = target.getLabel().toPathFragment().getParentDirectory();
+      if (!dir.equals(packageId.getPackageFragment())) {
+        containingPkgLookupKeys.add(ContainingPackageLookupValue.key(
+            new PackageIdentifier(packageId.getRepository(), dir)));
+      }
+    }
+    for (ValueOrException3<BuildFileNotFoundException, InconsistentFilesystemException,
+        FileSymlinkCycleException> containingPkgLookupValue : env.getValuesOrThrow(
+            containingPkgLookupKeys, BuildFileNotFoundException.class,
+            InconsistentFilesystemException.class, FileSymlinkCycleException.class).values()) {
+      ContainingPackageLookupValue value;
+      try {
+        value = (ContainingPackageLookupValue) containingPkgLookupValue.get();
+      } catch (BuildFileNotFoundException | InconsistentFilesystemException
+          | FileSymlinkCycleException e) {
+        return null;
+      }
+      if (value == null || !value.hasContainingPackage()
+          || !value.getContainingPackageName().equals(packageId)) {
+        return null;
+      }
+    }
+    return pkg;
+  }
+
+  /**
+   * Saves a package that was loaded without errors in the persistent package cache, together
+   * with the digests of its globs.
+   */
+  private void savePersistentlyCachedPackage(String cacheKey, Package pkg,
+      Collection<Pair<String, Boolean>> globPatterns, Environment env) {
+    Map<String, RuleClass> ruleClasses = packageFactory.getRuleClassProvider().getRuleClassMap();
+    if (!PersistentPackageCache.canSerialize(pkg, ruleClasses)) {
+      return;
+    }
+    Map<SkyKey, Pair<String, Boolean>> globKeys = new LinkedHashMap<>();
+    for (Pair<String, Boolean> globPattern : globPatterns) {
+      try {
+        globKeys.put(GlobValue.key(pkg.getPackageIdentifier(), globPattern.getFirst(),
+            globPattern.getSecond()), globPattern);
+      } catch (InvalidGlobPatternException e) {
+        // Globs that make it to pkg.getGlobPatterns() should already be filtered for errors.
+        throw new IllegalStateException(e);
+      }
+    }
+    // These are dependencies of the package already, so they are all available.
+    Map<SkyKey, SkyValue> globValues = env.getValues(globKeys.keySet());
+    Map<Pair<String, Boolean>, String> globDigests = new LinkedHashMap<>();
+    for (Map.Entry<SkyKey, Pair<String, Boolean>> globKey : globKeys.entrySet()) {
+      GlobValue globValue = (GlobValue) globValues.get(globKey.getKey());
+      if (globValue == null) {
+        return;
+      }
+      globDigests.put(globKey.getValue(), PersistentPackageCache.globDigest(globValue));
+    }
+    persistentPackageCache.put(cacheKey, globDigests, pkg, ruleClasses);
+  }
+
   private SkylarkImportResult fetchImportsFromBuildFile(Path buildFilePath,
       PathFragment buildFileFragment, RepositoryName repo,
       List<Statement> preludeStatements, ParserInputSource inputSource,
@@ -533,15 +677,22 @@ public class PackageFunction implements SkyFunction {
     Map<PathFragment, SkylarkEnvironment> importMap = new HashMap<>();
     ImmutableList.Builder<SkylarkFileDependency> fileDependencies = ImmutableList.builder();
     try {
+      Map<PathFragment, SkyKey> importLookupKeys = new LinkedHashMap<>();
       for (PathFragment importFile : imports) {
-        SkyKey importsLookupKey =
-            SkylarkImportLookupValue.key(repo, buildFileFragment, importFile);
+        importLookupKeys.put(importFile,
+            SkylarkImportLookupValue.key(repo, buildFileFragment, importFile));
+      }
+      // The imports are independent of each other, so they are requested as one group.
+      Map<SkyKey, ValueOrException4<SkylarkImportFailedException, InconsistentFilesystemException,
+          ASTLookupInputException, BuildFileNotFoundException>> importLookupValues =
+              env.getValuesOrThrow(importLookupKeys.values(), SkylarkImportFailedException.class,
+                  InconsistentFilesystemException.class, ASTLookupInputException.class,
+                  BuildFileNotFoundException.class);
+      for (Map.Entry<PathFragment, SkyKey> entry : importLookupKeys.entrySet()) {
         SkylarkImportLookupValue importLookupValue = (SkylarkImportLookupValue)
-            env.getValueOrThrow(importsLookupKey, SkylarkImportFailedException.class,
-                InconsistentFilesystemException.class, ASTLookupInputException.class,
-                BuildFileNotFoundException.class);
+            importLookupValues.get(entry.getValue()).get();
         if (importLookupValue != null) {
-          importMap.put(importFile, importLookupValue.getImportedEnvironment());
+          importMap.put(entry.getKey(), importLookupValue.getImportedEnvironment());
           fileDependencies.add(importLookupValue.getDependency());
         }
       }
@@ -712,9 +863,14 @@ public class PackageFunction implements SkyFunction {
   /**
    * Constructs a {@link Package} object for the given package using legacy package loading.
    * Note that the returned package may be in error.
+   *
+   * <p>The result of the preprocessor is taken from {@code preprocessedBuildFileValue}, which is
+   * null if there are replacement contents or no preprocessor. If the BUILD file was preprocessed
+   * in this evaluation, the globber the preprocessor used evaluates the package too.
    */
   private Package.LegacyBuilder loadPackage(Package externalPkg,
       ParserInputSource inputSource, @Nullable String replacementContents,
+      @Nullable PreprocessedBuildFileValue preprocessedBuildFileValue,
       PackageIdentifier packageId, Path buildFilePath, RuleVisibility defaultVisibility,
       List<Statement> preludeStatements, SkylarkImportResult importResult)
           throws InterruptedException {
@@ -722,31 +878,33 @@ public class PackageFunction implements SkyFunction {
         : ParserInputSource.create(replacementContents, buildFilePath);
     Package.LegacyBuilder pkgBuilder = packageFunctionCache.get(packageId);
     if (pkgBuilder == null) {
-      Clock clock = new JavaClock();
       long startTime = clock.nanoTime();
       profiler.startTask(ProfilerTask.CREATE_PACKAGE, packageId.toString());
       try {
-        Globber globber = packageFactory.createLegacyGlobber(buildFilePath.getParentDirectory(),
-            packageId, packageLocator);
-        StoredEventHandler localReporter = new StoredEventHandler();
-        Preprocessor.Result preprocessingResult = replacementSource == null
-            ? packageFactory.preprocess(packageId, buildFilePath, inputSource, globber,
-                localReporter)
-                : Preprocessor.Result.noPreprocessing(replacementSource);
+        // Reuse the globs the preprocessor expanded, if it just ran.
+        Globber globber = preprocessedBuildFileValue == null
+            ? null : preprocessorResultCache.takeGlobber(packageId);
+        if (globber == null) {
+          globber = packageFactory.createLegacyGlobber(buildFilePath.getParentDirectory(),
+              packageId, packageLocator);
+        }
+        Preprocessor.Result preprocessingResult;
+        Iterable<Event> preprocessingEvents = ImmutableList.of();
+        if (replacementSource != null) {
+          preprocessingResult = Preprocessor.Result.noPreprocessing(replacementSource);
+        } else if (preprocessedBuildFileValue != null && preprocessedBuildFileValue.hasResult()) {
+          preprocessingResult = preprocessedBuildFileValue.getResult();
+          preprocessingEvents = preprocessedBuildFileValue.getEvents();
+        } else {
+          preprocessingResult = Preprocessor.Result.noPreprocessing(inputSource);
+        }
         pkgBuilder = packageFactory.createPackageFromPreprocessingResult(externalPkg, packageId,
-            buildFilePath, preprocessingResult, localReporter.getEvents(), preludeStatements,
+            buildFilePath, preprocessingResult, preprocessingEvents, preludeStatements,
             importResult.importMap, importResult.fileDependencies, packageLocator,
             defaultVisibility, globber);
-        if (eventBus.get() != null) {
-          eventBus.get().post(new PackageLoadedEvent(packageId.toString(),
-              (clock.nanoTime() - startTime) / (1000 * 1000),
-              // It's impossible to tell if the package was loaded before, so we always pass false.
-              /*reloading=*/false,
-              // This isn't completely correct since we may encounter errors later (e.g. filesystem
-              // inconsistencies)
-              !pkgBuilder.containsErrors()));
-        }
-        numPackagesLoaded.incrementAndGet();
+        // This isn't completely correct since we may encounter errors later (e.g. filesystem
+        // inconsistencies)
+        postPackageLoaded(packageId, startTime, !pkgBuilder.containsErrors());
         packageFunctionCache.put(packageId, pkgBuilder);
       } finally {
         profiler.completeTask(ProfilerTask.CREATE_PACKAGE);
@@ -755,6 +913,21 @@ public class PackageFunction implements SkyFunction {
     return pkgBuilder;
   }
 
+  /**
+   * Reports a package that was loaded, or read from the persistent package cache, since
+   * {@code startTime}.
+   */
+  private void postPackageLoaded(PackageIdentifier packageId, long startTime,
+      boolean successful) {
+    if (eventBus.get() != null) {
+      eventBus.get().post(new PackageLoadedEvent(packageId.toString(),
+          (clock.nanoTime() - startTime) / (1000 * 1000),
+          // It's impossible to tell if the package was loaded before, so we always pass false.
+          /*reloading=*/false, successful));
+    }
+    numPackagesLoaded.incrementAndGet();
+  }
+
   private static class InternalInconsistentFilesystemException extends NoSuchPackageException {
     private boolean isTransient;
 
@@ -0,0 +1,383 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Ordering;
+import com.google.devtools.build.lib.Constants;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.packages.BuildFileNotFoundException;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.PackageIdentifier;
+import com.google.devtools.build.lib.packages.PackageSerializer;
+import com.google.devtools.build.lib.packages.Rule;
+import com.google.devtools.build.lib.packages.RuleClass;
+import com.google.devtools.build.lib.packages.RuleVisibility;
+import com.google.devtools.build.lib.query2.proto.proto2api.Build;
+import com.google.devtools.build.lib.skyframe.GlobValue.InvalidGlobPatternException;
+import com.google.devtools.build.lib.syntax.Label;
+import com.google.devtools.build.lib.syntax.SkylarkEnvironment;
+import com.google.devtools.build.lib.util.Fingerprint;
+import com.google.devtools.build.lib.util.Pair;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.skyframe.SkyFunction.Environment;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.ValueOrException4;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Serialized packages saved under the output base, so that a new server can deserialize a
+ * package instead of evaluating its BUILD file again.
+ *
+ * <p>Entries are found by a key that covers everything the evaluation of a BUILD file reads
+ * apart from its globs: the content of the BUILD file, the prelude, the transitive content of
+ * the loaded Skylark extensions, the default visibility and the installation of Blaze, whose
+ * rule classes the package was built with. Each entry also records the glob patterns of the
+ * package with a digest of their matches. An entry may only be used if the current
+ * {@link GlobValue}s of those patterns have the same matches.
+ *
+ * <p>Packages that include or subinclude other files, or whose BUILD file is preprocessed, are not
+ * cached, since neither the content of those files nor the preprocessor are part of the key.
+ *
+ * <p>The entries are kept below a configured total size by deleting the least recently used
+ * ones, see {@link #evict}.
+ *
+ * <p>Writing and reading entries is best effort: an entry that cannot be written is dropped, and
+ * one that cannot be read is a miss.
+ */
+@ThreadSafe
+final class PersistentPackageCache {
+
+  private static final int FORMAT_VERSION = 2;
+
+  private static final String TMP_SUFFIX = ".tmp";
+
+  // A temporary file this old was left behind by a server that died while writing it.
+  private static final long STALE_TMP_AGE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+  /** A package read from the cache, with the glob digests it is only valid for. */
+  static final class Entry {
+    private final ImmutableMap<Pair<String, Boolean>, String> globDigests;
+    private final Build.Package packagePb;
+
+    private Entry(ImmutableMap<Pair<String, Boolean>, String> globDigests,
+        Build.Package packagePb) {
+      this.globDigests = globDigests;
+      this.packagePb = packagePb;
+    }
+
+    /** Returns the digests of the matches of each glob pattern, see {@link #globDigest}. */
+    ImmutableMap<Pair<String, Boolean>, String> getGlobDigests() {
+      return globDigests;
+    }
+
+    Build.Package getPackage() {
+      return packagePb;
+    }
+  }
+
+  private final Path directory;
+  private final String installation;
+  private final AtomicInteger tempFileCounter = new AtomicInteger();
+  private final AtomicLong bytesWrittenSinceEviction = new AtomicLong();
+  private volatile boolean enabled;
+  private volatile long maxSizeBytes;
+  @GuardedBy("this") private boolean evictedSinceStart;
+
+  /**
+   * Creates a cache that keeps its entries in {@code directory}. Entries written by a different
+   * {@code installation} are never used.
+   */
+  PersistentPackageCache(Path directory, String installation) {
+    this.directory = directory;
+    this.installation = installation;
+  }
+
+  /**
+   * Enables or disables the cache, and sets the total size of the entries above which the least
+   * recently used ones are deleted. The first time the cache is enabled, the entries written by
+   * previous servers are evicted down to that size.
+   */
+  synchronized void setEnabled(boolean enabled, long maxSizeBytes) {
+    this.enabled = enabled;
+    this.maxSizeBytes = maxSizeBytes;
+    if (enabled && !evictedSinceStart) {
+      evictedSinceStart = true;
+      evict();
+    }
+  }
+
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Returns the key of the package evaluated from the given inputs.
+   */
+  String key(PackageIdentifier packageId, Path buildFile, char[] buildFileContent,
+      @Nullable String preludeContentHashCode, Map<PathFragment, SkylarkEnvironment> imports,
+      RuleVisibility defaultVisibility, String workspaceName) {
+    Fingerprint fingerprint = new Fingerprint()
+        .addInt(FORMAT_VERSION)
+        .addString(installation)
+        .addString(packageId.toString())
+        .addPath(buildFile)
+        .addString(new String(buildFileContent))
+        .addString(preludeContentHashCode == null ? "" : preludeContentHashCode)
+        .addString(workspaceName);
+    fingerprint.addInt(defaultVisibility.getDeclaredLabels().size());
+    for (Label label : defaultVisibility.getDeclaredLabels()) {
+      fingerprint.addString(label.toString());
+    }
+    List<PathFragment> importPaths = Ordering.natural().sortedCopy(imports.keySet());
+    fingerprint.addInt(importPaths.size());
+    for (PathFragment importPath : importPaths) {
+      fingerprint.addPath(importPath);
+      fingerprint.addString(imports.get(importPath).getTransitiveFileContentHashCode());
+    }
+    return fingerprint.hexDigestAndReset();
+  }
+
+  /**
+   * Returns a digest of the matches of a glob.
+   */
+  static String globDigest(GlobValue globValue) {
+    List<String> matches = new ArrayList<>();
+    for (PathFragment match : globValue.getMatches()) {
+      matches.add(match.getPathString());
+    }
+    return new Fingerprint().addStrings(Ordering.natural().sortedCopy(matches))
+        .hexDigestAndReset();
+  }
+
+  /**
+   * Returns the digests of the current matches of the given globs, or null if some of their
+   * {@link GlobValue}s are missing or in error.
+   */
+  @Nullable
+  static Map<Pair<String, Boolean>, String> getGlobDigests(PackageIdentifier packageId,
+      Iterable<Pair<String, Boolean>> globPatterns, Environment env) {
+    Map<SkyKey, Pair<String, Boolean>> globKeys = new LinkedHashMap<>();
+    for (Pair<String, Boolean> globPattern : globPatterns) {
+      try {
+        globKeys.put(GlobValue.key(packageId, globPattern.getFirst(), globPattern.getSecond()),
+            globPattern);
+      } catch (InvalidGlobPatternException e) {
+        return null;
+      }
+    }
+    Map<SkyKey, ValueOrException4<IOException, BuildFileNotFoundException,
+        FileSymlinkCycleException, InconsistentFilesystemException>> globValues =
+            env.getValuesOrThrow(globKeys.keySet(), IOException.class,
+                BuildFileNotFoundException.class, FileSymlinkCycleException.class,
+                InconsistentFilesystemException.class);
+    Map<Pair<String, Boolean>, String> globDigests = new LinkedHashMap<>();
+    for (Map.Entry<SkyKey, Pair<String, Boolean>> globKey : globKeys.entrySet()) {
+      GlobValue globValue;
+      try {
+        globValue = (GlobValue) globValues.get(globKey.getKey()).get();
+      } catch (IOException | BuildFileNotFoundException | FileSymlinkCycleException
+          | InconsistentFilesystemException e) {
+        return null;
+      }
+      if (globValue == null) {
+        return null;
+      }
+      globDigests.put(globKey.getValue(), globDigest(globValue));
+    }
+    return globDigests;
+  }
+
+  /**
+   * Returns the entry with the given key, or null if there is none that can be read. The entry
+   * is marked as recently used.
+   */
+  @Nullable
+  Entry get(String key) {
+    Path path = directory.getChild(key);
+    try {
+      if (!path.exists()) {
+        return null;
+      }
+      try (InputStream in = path.getInputStream()) {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != FORMAT_VERSION) {
+          return null;
+        }
+        int globCount = data.readInt();
+        ImmutableMap.Builder<Pair<String, Boolean>, String> globDigests = ImmutableMap.builder();
+        for (int i = 0; i < globCount; i++) {
+          String pattern = data.readUTF();
+          boolean excludeDirs = data.readBoolean();
+          globDigests.put(Pair.of(pattern, excludeDirs), data.readUTF());
+        }
+        Entry entry = new Entry(globDigests.build(), Build.Package.parseFrom(data));
+        path.setLastModifiedTime(-1L);
+        return entry;
+      }
+    } catch (IOException | IllegalArgumentException e) {
+      // A truncated or otherwise unreadable entry is a miss; it will be overwritten.
+      return null;
+    }
+  }
+
+  /**
+   * Returns whether a package can be saved and read back as it is. The workspace name is not
+   * serialized, rules of Skylark rule classes cannot be deserialized, and the serializer does not
+   * support configurable attributes.
+   */
+  static boolean canSerialize(Package pkg, Map<String, RuleClass> ruleClasses) {
+    if (!pkg.getWorkspaceName().equals(Constants.DEFAULT_RUNFILES_PREFIX)) {
+      return false;
+    }
+    for (Rule rule : pkg.getTargets(Rule.class)) {
+      if (ruleClasses.get(rule.getRuleClass()) != rule.getRuleClassObject()
+          || rule.hasConfigurableAttributes()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Serializes a package and saves it under the given key. Returns false if the package is not
+   * saved because it cannot be serialized, see {@link #canSerialize}.
+   */
+  boolean put(String key, Map<Pair<String, Boolean>, String> globDigests, Package pkg,
+      Map<String, RuleClass> ruleClasses) {
+    if (!canSerialize(pkg, ruleClasses)) {
+      return false;
+    }
+    Build.Package packagePb;
+    try {
+      packagePb = PackageSerializer.serializePackage(pkg);
+    } catch (ClassCastException | IllegalArgumentException | IllegalStateException e) {
+      // An attribute value the serializer does not support; the package is simply not saved.
+      return false;
+    }
+    put(key, globDigests, packagePb);
+    return true;
+  }
+
+  /**
+   * Saves a package under the given key. The file is written under a temporary name and then
+   * renamed, so that other servers sharing the output base never read a partial entry.
+   */
+  void put(String key, Map<Pair<String, Boolean>, String> globDigests, Build.Package packagePb) {
+    Path tempPath = directory.getChild(key + TMP_SUFFIX + tempFileCounter.incrementAndGet());
+    try {
+      FileSystemUtils.createDirectoryAndParents(directory);
+      try (OutputStream out = tempPath.getOutputStream()) {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(FORMAT_VERSION);
+        data.writeInt(globDigests.size());
+        for (Map.Entry<Pair<String, Boolean>, String> entry : globDigests.entrySet()) {
+          data.writeUTF(entry.getKey().getFirst());
+          data.writeBoolean(entry.getKey().getSecond());
+          data.writeUTF(entry.getValue());
+        }
+        packagePb.writeTo(data);
+        data.flush();
+      }
+      long size = tempPath.getFileSize();
+      tempPath.renameTo(directory.getChild(key));
+      if (bytesWrittenSinceEviction.addAndGet(size) > maxSizeBytes / 10) {
+        evict();
+      }
+    } catch (IOException e) {
+      // The package is simply not cached.
+      try {
+        tempPath.delete();
+      } catch (IOException ignored) {
+        // Nothing else we can do.
+      }
+    }
+  }
+
+  /**
+   * Deletes the least recently used entries until the remaining ones take at most the configured
+   * size, as well as stale temporary files.
+   */
+  synchronized void evict() {
+    bytesWrittenSinceEviction.set(0);
+    long now = System.currentTimeMillis();
+    List<Path> entries = new ArrayList<>();
+    final Map<Path, Long> mtimes = new HashMap<>();
+    Map<Path, Long> sizes = new HashMap<>();
+    long totalSize = 0;
+    try {
+      if (!directory.exists()) {
+        return;
+      }
+      for (Path path : directory.getDirectoryEntries()) {
+        try {
+          long mtime = path.getLastModifiedTime();
+          if (path.getBaseName().contains(TMP_SUFFIX)) {
+            if (now - mtime > STALE_TMP_AGE_MILLIS) {
+              path.delete();
+            }
+            continue;
+          }
+          long size = path.getFileSize();
+          entries.add(path);
+          mtimes.put(path, mtime);
+          sizes.put(path, size);
+          totalSize += size;
+        } catch (IOException e) {
+          // Deleted in the meantime.
+        }
+      }
+    } catch (IOException e) {
+      return;
+    }
+    // Oldest first, so that the least recently used entries are deleted first.
+    Collections.sort(entries, new Comparator<Path>() {
+      @Override
+      public int compare(Path a, Path b) {
+        return Long.compare(mtimes.get(a), mtimes.get(b));
+      }
+    });
+    for (Path path : entries) {
+      if (totalSize <= maxSizeBytes) {
+        break;
+      }
+      try {
+        path.delete();
+      } catch (IOException e) {
+        // Try the next one.
+      }
+      totalSize -= sizes.get(path);
+    }
+  }
+}
@@ -0,0 +1,173 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.devtools.build.lib.events.StoredEventHandler;
+import com.google.devtools.build.lib.packages.BuildFileNotFoundException;
+import com.google.devtools.build.lib.packages.CachingPackageLocator;
+import com.google.devtools.build.lib.packages.PackageFactory;
+import com.google.devtools.build.lib.packages.PackageFactory.Globber;
+import com.google.devtools.build.lib.packages.PackageIdentifier;
+import com.google.devtools.build.lib.packages.Preprocessor;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.syntax.ParserInputSource;
+import com.google.devtools.build.lib.util.Pair;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.RootedPath;
+import com.google.devtools.build.skyframe.SkyFunction;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * A SkyFunction for {@link PreprocessedBuildFileValue}s. Runs the {@link Preprocessor} on the BUILD
+ * file of a package, unless a BUILD file with the same content was preprocessed before and the
+ * globs the preprocessor expanded still have the same matches, see
+ * {@link PreprocessorResultCache}.
+ *
+ * <p>Errors reading the BUILD file are not reported here. The value is then
+ * {@link PreprocessedBuildFileValue#NOT_PREPROCESSED}, and the {@link PackageFunction} reports the
+ * error when it reads the file itself.
+ */
+public class PreprocessedBuildFileFunction implements SkyFunction {
+
+  private final PackageFactory packageFactory;
+  private final CachingPackageLocator packageLocator;
+  private final PreprocessorResultCache preprocessorResultCache;
+
+  public PreprocessedBuildFileFunction(PackageFactory packageFactory,
+      CachingPackageLocator packageLocator, PreprocessorResultCache preprocessorResultCache) {
+    this.packageFactory = packageFactory;
+    this.packageLocator = packageLocator;
+    this.preprocessorResultCache = preprocessorResultCache;
+  }
+
+  @Override
+  public SkyValue compute(SkyKey key, Environment env) throws InterruptedException {
+    PackageIdentifier packageId = (PackageIdentifier) key.argument();
+    PackageLookupValue packageLookupValue;
+    try {
+      packageLookupValue = (PackageLookupValue) env.getValueOrThrow(
+          PackageLookupValue.key(packageId), BuildFileNotFoundException.class,
+          InconsistentFilesystemException.class);
+    } catch (BuildFileNotFoundException | InconsistentFilesystemException e) {
+      return PreprocessedBuildFileValue.NOT_PREPROCESSED;
+    }
+    if (packageLookupValue == null) {
+      return null;
+    }
+    if (!packageLookupValue.packageExists()) {
+      return PreprocessedBuildFileValue.NOT_PREPROCESSED;
+    }
+    RootedPath buildFileRootedPath = RootedPath.toRootedPath(packageLookupValue.getRoot(),
+        packageId.getPackageFragment().getChild("BUILD"));
+    FileValue buildFileValue;
+    try {
+      buildFileValue = (FileValue) env.getValueOrThrow(FileValue.key(buildFileRootedPath),
+          IOException.class, FileSymlinkCycleException.class,
+          InconsistentFilesystemException.class);
+    } catch (IOException | FileSymlinkCycleException | InconsistentFilesystemException e) {
+      return PreprocessedBuildFileValue.NOT_PREPROCESSED;
+    }
+    if (buildFileValue == null) {
+      return null;
+    }
+    if (!buildFileValue.exists()) {
+      return PreprocessedBuildFileValue.NOT_PREPROCESSED;
+    }
+
+    long startTime = Profiler.nanoTimeMaybe();
+    Path buildFilePath = buildFileRootedPath.asPath();
+    ParserInputSource inputSource;
+    try {
+      inputSource = ParserInputSource.create(buildFilePath);
+    } catch (IOException e) {
+      return PreprocessedBuildFileValue.NOT_PREPROCESSED;
+    }
+    String cacheKey = PreprocessorResultCache.key(buildFilePath, inputSource.getContent());
+    PreprocessorResultCache.Entry entry = preprocessorResultCache.get(cacheKey);
+    if (entry != null) {
+      Map<Pair<String, Boolean>, String> globDigests = PersistentPackageCache.getGlobDigests(
+          packageId, entry.getGlobDigests().keySet(), env);
+      if (env.valuesMissing()) {
+        return null;
+      }
+      if (entry.getGlobDigests().equals(globDigests)) {
+        Profiler.instance().logSimpleTask(startTime, ProfilerTask.PREPROCESS_BUILD_FILE,
+            String.format("hit %s, saved %d us", buildFilePath,
+                TimeUnit.NANOSECONDS.toMicros(entry.getPreprocessingTimeNanos())));
+        return entry.getValue();
+      }
+    }
+
+    entry = preprocessorResultCache.getPending(packageId);
+    if (entry == null || !entry.getKey().equals(cacheKey)) {
+      entry = preprocess(packageId, buildFilePath, inputSource, cacheKey);
+      Profiler.instance().logSimpleTask(startTime, ProfilerTask.PREPROCESS_BUILD_FILE,
+          "miss " + buildFilePath);
+    }
+    // Declare dependencies on the globs the preprocessor expanded, after the fact.
+    Map<Pair<String, Boolean>, String> globDigests = PersistentPackageCache.getGlobDigests(
+        packageId, entry.getValue().getGlobPatterns(), env);
+    if (env.valuesMissing()) {
+      // The pending entry is used when this SkyFunction is called again.
+      return null;
+    }
+    PreprocessedBuildFileValue value = entry.getValue();
+    if (globDigests == null
+        || (value.hasResult() && value.getResult().containsTransientErrors)) {
+      // The PackageFunction declares the same dependencies on globs, and reports their errors.
+      preprocessorResultCache.removePending(packageId);
+    } else {
+      preprocessorResultCache.put(packageId, entry, globDigests);
+    }
+    return value;
+  }
+
+  /**
+   * Runs the preprocessor and saves its result as pending, and the globber it used for the
+   * {@link PackageFunction}.
+   */
+  private PreprocessorResultCache.Entry preprocess(PackageIdentifier packageId,
+      Path buildFilePath, ParserInputSource inputSource, String cacheKey)
+          throws InterruptedException {
+    long preprocessingStartTime = System.nanoTime();
+    Globber globber = packageFactory.createLegacyGlobber(buildFilePath.getParentDirectory(),
+        packageId, packageLocator);
+    StoredEventHandler eventHandler = new StoredEventHandler();
+    Preprocessor.Result result = packageFactory.preprocess(packageId, buildFilePath, inputSource,
+        globber, eventHandler);
+    PreprocessedBuildFileValue value =
+        !result.preprocessed && !result.containsErrors && eventHandler.isEmpty()
+            ? PreprocessedBuildFileValue.NOT_PREPROCESSED
+            : PreprocessedBuildFileValue.create(result, eventHandler.getEvents(),
+                globber.getGlobPatterns());
+    // The package evaluates the same globs, so it takes over the globber and its results.
+    preprocessorResultCache.putGlobber(packageId, globber);
+    return preprocessorResultCache.putPending(packageId, cacheKey, value,
+        System.nanoTime() - preprocessingStartTime);
+  }
+
+  @Nullable
+  @Override
+  public String extractTag(SkyKey skyKey) {
+    return null;
+  }
+}
@@ -0,0 +1,104 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.packages.PackageIdentifier;
+import com.google.devtools.build.lib.packages.Preprocessor;
+import com.google.devtools.build.lib.util.Pair;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+
+/**
+ * A Skyframe value representing the result of running the {@link Preprocessor} on the BUILD file
+ * of a package.
+ *
+ * <p>Most BUILD files are left alone by the preprocessor, without any events. Their value is
+ * {@link #NOT_PREPROCESSED}, which does not hold the content of the file, and the
+ * {@link PackageFunction} parses the file itself.
+ */
+@Immutable
+@ThreadSafe
+public final class PreprocessedBuildFileValue implements SkyValue {
+
+  /** The value of a BUILD file that the preprocessor left alone without any events. */
+  public static final PreprocessedBuildFileValue NOT_PREPROCESSED = new PreprocessedBuildFileValue(
+      null, ImmutableList.<Event>of(), ImmutableSet.<Pair<String, Boolean>>of());
+
+  private final Preprocessor.Result result;
+  private final ImmutableList<Event> events;
+  private final ImmutableSet<Pair<String, Boolean>> globPatterns;
+
+  private PreprocessedBuildFileValue(Preprocessor.Result result, ImmutableList<Event> events,
+      ImmutableSet<Pair<String, Boolean>> globPatterns) {
+    this.result = result;
+    this.events = events;
+    this.globPatterns = globPatterns;
+  }
+
+  /**
+   * Creates the value of a BUILD file that the preprocessor changed, or that it reported events
+   * for.
+   */
+  static PreprocessedBuildFileValue create(Preprocessor.Result result, Iterable<Event> events,
+      Iterable<Pair<String, Boolean>> globPatterns) {
+    return new PreprocessedBuildFileValue(result, ImmutableList.copyOf(events),
+        ImmutableSet.copyOf(globPatterns));
+  }
+
+  /**
+   * Returns whether the result of the preprocessor has to be used instead of the BUILD file.
+   */
+  public boolean hasResult() {
+    return result != null;
+  }
+
+  /**
+   * Returns the result of the preprocessor. Must only be called if {@link #hasResult}.
+   */
+  public Preprocessor.Result getResult() {
+    Preconditions.checkState(hasResult());
+    return result;
+  }
+
+  /**
+   * Returns the events the preprocessor reported. They are not replayed by the
+   * {@link PreprocessedBuildFileFunction}, but become events of the package.
+   */
+  public ImmutableList<Event> getEvents() {
+    return events;
+  }
+
+  /**
+   * Returns the globs that the preprocessor expanded.
+   */
+  public ImmutableSet<Pair<String, Boolean>> getGlobPatterns() {
+    return globPatterns;
+  }
+
+  @Override
+  public String toString() {
+    return "<PreprocessedBuildFileValue hasResult=" + hasResult() + ">";
+  }
+
+  @ThreadSafe
+  public static SkyKey key(PackageIdentifier pkgIdentifier) {
+    return new SkyKey(SkyFunctions.PREPROCESSED_BUILD_FILE, pkgIdentifier);
+  }
+}
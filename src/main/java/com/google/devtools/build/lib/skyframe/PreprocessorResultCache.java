@@ -0,0 +1,168 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.packages.PackageFactory.Globber;
+import com.google.devtools.build.lib.packages.PackageIdentifier;
+import com.google.devtools.build.lib.util.Fingerprint;
+import com.google.devtools.build.lib.util.Pair;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.annotation.Nullable;
+
+/**
+ * Results of the preprocessor, keyed by the path of the BUILD file and a digest of its content.
+ *
+ * <p>Like the {@link ASTFileCache}, the cache is not cleared when Skyframe invalidates a
+ * {@link PreprocessedBuildFileValue}, so a BUILD file that was touched, or changed and changed
+ * back, is not preprocessed again. The preprocessor expands globs, so each entry also records a
+ * digest of the matches of every glob it expanded, see {@link PersistentPackageCache#globDigest},
+ * and may only be used if the current {@link GlobValue}s have the same matches. The cache has to
+ * be cleared whenever the preprocessor changes.
+ *
+ * <p>A fresh result cannot be checked against {@link GlobValue}s that are not computed yet. It is
+ * kept as pending until the {@link PreprocessedBuildFileFunction} is restarted with those values,
+ * so that the BUILD file is not preprocessed twice.
+ *
+ * <p>The globber a BUILD file was preprocessed with is kept until the {@link PackageFunction}
+ * takes it to evaluate the package, so that the globs are not expanded twice.
+ */
+@ThreadSafe
+final class PreprocessorResultCache {
+
+  /** A cached result and the time it took to preprocess the BUILD file. */
+  static final class Entry {
+    private final String key;
+    private final PreprocessedBuildFileValue value;
+    private final ImmutableMap<Pair<String, Boolean>, String> globDigests;
+    private final long preprocessingTimeNanos;
+
+    private Entry(String key, PreprocessedBuildFileValue value,
+        ImmutableMap<Pair<String, Boolean>, String> globDigests, long preprocessingTimeNanos) {
+      this.key = key;
+      this.value = value;
+      this.globDigests = globDigests;
+      this.preprocessingTimeNanos = preprocessingTimeNanos;
+    }
+
+    String getKey() {
+      return key;
+    }
+
+    PreprocessedBuildFileValue getValue() {
+      return value;
+    }
+
+    /** Returns the digests of the matches of each glob, or null if the entry is pending. */
+    @Nullable
+    ImmutableMap<Pair<String, Boolean>, String> getGlobDigests() {
+      return globDigests;
+    }
+
+    long getPreprocessingTimeNanos() {
+      return preprocessingTimeNanos;
+    }
+  }
+
+  private final Cache<String, Entry> entries = CacheBuilder.newBuilder().softValues().build();
+  private final ConcurrentMap<PackageIdentifier, Entry> pendingEntries = Maps.newConcurrentMap();
+  private final ConcurrentMap<PackageIdentifier, Globber> globbers = Maps.newConcurrentMap();
+
+  static String key(Path buildFile, char[] content) {
+    return new Fingerprint()
+        .addPath(buildFile)
+        .addString(new String(content))
+        .hexDigestAndReset();
+  }
+
+  @Nullable
+  Entry get(String key) {
+    return entries.getIfPresent(key);
+  }
+
+  /**
+   * Saves the pending entry of {@code packageId} as a complete one, with the digests of the
+   * current matches of its globs.
+   */
+  void put(PackageIdentifier packageId, Entry entry,
+      Map<Pair<String, Boolean>, String> globDigests) {
+    pendingEntries.remove(packageId);
+    entries.put(entry.getKey(), new Entry(entry.getKey(), entry.getValue(),
+        ImmutableMap.copyOf(globDigests), entry.getPreprocessingTimeNanos()));
+  }
+
+  /** Saves a result whose globs are not checked yet. */
+  Entry putPending(PackageIdentifier packageId, String key, PreprocessedBuildFileValue value,
+      long preprocessingTimeNanos) {
+    Entry entry = new Entry(key, value, null, preprocessingTimeNanos);
+    pendingEntries.put(packageId, entry);
+    return entry;
+  }
+
+  @Nullable
+  Entry getPending(PackageIdentifier packageId) {
+    return pendingEntries.get(packageId);
+  }
+
+  void removePending(PackageIdentifier packageId) {
+    pendingEntries.remove(packageId);
+  }
+
+  /**
+   * Keeps the globber that the BUILD file of {@code packageId} was just preprocessed with, for
+   * the evaluation of the package.
+   */
+  void putGlobber(PackageIdentifier packageId, Globber globber) {
+    Globber previous = globbers.put(packageId, globber);
+    if (previous != null) {
+      previous.onCompletion();
+    }
+  }
+
+  /**
+   * Returns the globber that the BUILD file of {@code packageId} was preprocessed with, or null
+   * if it was not preprocessed in this evaluation. The globber is removed from the cache, and the
+   * caller has to complete it.
+   */
+  @Nullable
+  Globber takeGlobber(PackageIdentifier packageId) {
+    return globbers.remove(packageId);
+  }
+
+  /**
+   * Drops the pending entries and globbers. They are only valid within one evaluation, and are
+   * left behind if it was interrupted.
+   */
+  void clearPending() {
+    pendingEntries.clear();
+    for (Globber globber : globbers.values()) {
+      globber.onInterrupt();
+    }
+    globbers.clear();
+  }
+
+  /** Drops all results, for instance because the preprocessor changed. */
+  void clear() {
+    entries.invalidateAll();
+    clearPending();
+  }
+}
@@ -26,12 +26,15 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
+import com.google.devtools.build.lib.actions.Action;
+import com.google.devtools.build.lib.actions.ActionOwner;
 import com.google.devtools.build.lib.analysis.BlazeDirectories;
 import com.google.devtools.build.lib.analysis.BuildView;
 import com.google.devtools.build.lib.analysis.ConfiguredTarget;
 import com.google.devtools.build.lib.analysis.WorkspaceStatusAction;
 import com.google.devtools.build.lib.analysis.WorkspaceStatusAction.Factory;
 import com.google.devtools.build.lib.analysis.buildinfo.BuildInfoFactory;
+import com.google.devtools.build.lib.analysis.config.BuildConfiguration;
 import com.google.devtools.build.lib.events.Reporter;
 import com.google.devtools.build.lib.packages.Package;
 import com.google.devtools.build.lib.packages.PackageFactory;
@@ -480,6 +483,7 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
     if (skyframeBuildView != null) {
       skyframeBuildView.clearInvalidatedConfiguredTargets();
     }
+    inactiveConfigurations = ImmutableSet.of();
     memoizingEvaluator.delete(
         // We delete any value that can hold an action -- all subclasses of ActionLookupValue -- as
         // well as ActionExecutionValues, since they do not depend on ActionLookupValues.
@@ -493,6 +497,45 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
     );
   }
 
+  @Override
+  protected void deleteConfiguredTargets(Set<BuildConfiguration> retained) {
+    if (skyframeBuildView != null) {
+      skyframeBuildView.clearInvalidatedConfiguredTargets();
+    }
+    memoizingEvaluator.delete(deletedUnlessRetained(retained));
+  }
+
+  /**
+   * Returns a predicate that matches the values {@link #dropConfiguredTargets} deletes, except
+   * those that belong to one of the {@code retained} configurations.
+   */
+  @VisibleForTesting
+  static Predicate<SkyKey> deletedUnlessRetained(final Set<BuildConfiguration> retained) {
+    final Set<String> retainedCacheKeys = Sets.newHashSet();
+    for (BuildConfiguration configuration : retained) {
+      retainedCacheKeys.add(configuration.shortCacheKey());
+    }
+    return new Predicate<SkyKey>() {
+      @Override
+      public boolean apply(SkyKey key) {
+        SkyFunctionName functionName = key.functionName();
+        if (functionName.equals(SkyFunctions.CONFIGURED_TARGET)
+            || functionName.equals(SkyFunctions.ASPECT)
+            || functionName.equals(SkyFunctions.BUILD_INFO_COLLECTION)
+            || functionName.equals(SkyFunctions.TARGET_COMPLETION)) {
+          BuildConfiguration configuration = getConfiguration(key);
+          return configuration != null && !retained.contains(configuration);
+        } else if (functionName.equals(SkyFunctions.ACTION_EXECUTION)) {
+          // Action execution values do not depend on the action lookup values that own them.
+          ActionOwner owner = ((Action) key.argument()).getOwner();
+          return !retainedCacheKeys.contains(owner.getConfigurationShortCacheKey());
+        }
+        // The workspace status value stays: every configured target depends on it.
+        return functionName.equals(SkyFunctions.ACTION_LOOKUP);
+      }
+    };
+  }
+
   /**
    * Deletes all ConfiguredTarget values from the Skyframe cache.
    *
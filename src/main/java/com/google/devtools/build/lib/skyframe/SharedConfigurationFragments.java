@@ -0,0 +1,68 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.devtools.build.lib.analysis.config.BuildOptions;
+import com.google.devtools.build.lib.analysis.config.ConfigurationFragmentFactory;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.util.Fingerprint;
+import com.google.devtools.build.skyframe.SkyKey;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The canonical configuration fragment nodes, keyed by the fragment type and a digest of the
+ * options that its factory reads, as declared by
+ * {@link ConfigurationFragmentFactory#addRequiredOptions}.
+ *
+ * <p>Configurations that only differ in options a fragment does not read, such as the target and
+ * host configurations for some fragments, or the configurations before and after an unrelated
+ * option changed, end up sharing one fragment instance: the fragment node of every configuration
+ * but the first depends on the canonical node and returns its value. Fragments may also depend on
+ * files (e.g. a CROSSTOOL), but since sharing goes through a Skyframe dependency, a shared fragment
+ * is invalidated together with the canonical one.
+ *
+ * <p>The table holds one key per distinct options digest, each of which is also a node in the
+ * graph. It is cleared whenever the fragment nodes are invalidated or dropped, so that it does not
+ * keep the build options of configurations the graph no longer has. Clearing it is always safe: a
+ * node only ever depends on a key that was canonical when it was evaluated, and a canonical node
+ * never depends on another fragment node with the same digest.
+ */
+@ThreadSafe
+final class SharedConfigurationFragments {
+
+  private final ConcurrentMap<String, SkyKey> canonicalKeys = new ConcurrentHashMap<>();
+
+  /**
+   * Returns the key of the node that creates the fragment for {@code key}, which has the given
+   * build options: the first fragment key with the same options digest, or {@code key} itself.
+   */
+  SkyKey getCanonicalKey(ConfigurationFragmentFactory factory, BuildOptions buildOptions,
+      SkyKey key) {
+    SkyKey existing = canonicalKeys.putIfAbsent(digest(factory, buildOptions), key);
+    return existing == null ? key : existing;
+  }
+
+  /** Forgets all canonical keys. */
+  void clear() {
+    canonicalKeys.clear();
+  }
+
+  private static String digest(ConfigurationFragmentFactory factory, BuildOptions buildOptions) {
+    Fingerprint fingerprint = new Fingerprint();
+    factory.addRequiredOptions(buildOptions, fingerprint);
+    return factory.creates().getName() + ":" + fingerprint.hexDigestAndReset();
+  }
+}
@@ -38,6 +38,8 @@ public final class SkyFunctions {
       SkyFunctionName.computed("SKYLARK_IMPORTS_LOOKUP");
   public static final SkyFunctionName GLOB = SkyFunctionName.computed("GLOB");
   public static final SkyFunctionName PACKAGE = SkyFunctionName.computed("PACKAGE");
+  public static final SkyFunctionName PREPROCESSED_BUILD_FILE =
+      SkyFunctionName.computed("PREPROCESSED_BUILD_FILE");
   public static final SkyFunctionName TARGET_MARKER = SkyFunctionName.computed("TARGET_MARKER");
   public static final SkyFunctionName TARGET_PATTERN = SkyFunctionName.computed("TARGET_PATTERN");
   public static final SkyFunctionName RECURSIVE_PKG = SkyFunctionName.computed("RECURSIVE_PKG");
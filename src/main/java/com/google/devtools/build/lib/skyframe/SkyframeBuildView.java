@@ -66,6 +66,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
 
@@ -75,6 +76,10 @@ import javax.annotation.Nullable;
  * <p>Covers enough functionality to work as a substitute for {@code BuildView#configureTargets}.
  */
 public final class SkyframeBuildView {
+  private static final Logger LOG = Logger.getLogger(SkyframeBuildView.class.getName());
+
+  /** The number of rule classes listed in the analysis statistics that are logged at FINE. */
+  private static final int REPORTED_RULE_CLASSES = 20;
 
   private final ConfiguredTargetFactory factory;
   private final ArtifactFactory artifactFactory;
@@ -90,6 +95,7 @@ public final class SkyframeBuildView {
   private final EvaluationProgressReceiver invalidationReceiver =
       new ConfiguredTargetValueInvalidationReceiver();
   private final Set<SkyKey> evaluatedConfiguredTargets = Sets.newConcurrentHashSet();
+  private final AnalysisStatistics analysisStatistics = new AnalysisStatistics();
   // Used to see if checks of graph consistency need to be done after analysis.
   private volatile boolean someConfiguredTargetEvaluated = false;
 
@@ -120,6 +126,7 @@ public final class SkyframeBuildView {
 
   public void resetEvaluatedConfiguredTargetKeysSet() {
     evaluatedConfiguredTargets.clear();
+    analysisStatistics.clear();
   }
 
   public Set<SkyKey> getEvaluatedTargetKeys() {
@@ -178,6 +185,7 @@ public final class SkyframeBuildView {
     } finally {
       enableAnalysis(false);
     }
+    LOG.info(analysisStatistics.report(REPORTED_RULE_CLASSES));
     // For Skyframe m1, note that we already reported action conflicts during action registration
     // in the legacy action graph.
     ImmutableMap<Action, ConflictException> badActions = skyframeExecutor.findArtifactConflicts();
@@ -363,6 +371,23 @@ public final class SkyframeBuildView {
     return !env.valuesMissing();
   }
 
+  /**
+   * Requests the values that {@link #createAnalysisEnvironment} depends on, without waiting for
+   * them. Configured target functions call this together with requesting their dependencies, so
+   * that missing workspace status values do not cost an extra restart once the dependencies are
+   * there.
+   */
+  void prefetchAnalysisEnvironmentValues(Environment env) {
+    getWorkspaceStatusValues(env);
+  }
+
+  /**
+   * Returns the statistics that configured target functions record during analysis.
+   */
+  AnalysisStatistics getAnalysisStatistics() {
+    return analysisStatistics;
+  }
+
   /** Returns null if any build-info values are not ready. */
   @Nullable
   CachingAnalysisEnvironment createAnalysisEnvironment(ArtifactOwner owner,
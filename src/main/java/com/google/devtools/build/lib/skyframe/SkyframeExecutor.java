@@ -44,6 +44,7 @@ import com.google.devtools.build.lib.analysis.BuildView.Options;
 import com.google.devtools.build.lib.analysis.ConfiguredAspectFactory;
 import com.google.devtools.build.lib.analysis.ConfiguredTarget;
 import com.google.devtools.build.lib.analysis.DependencyResolver.Dependency;
+import com.google.devtools.build.lib.analysis.LabelAndConfiguration;
 import com.google.devtools.build.lib.analysis.RuleConfiguredTarget;
 import com.google.devtools.build.lib.analysis.TopLevelArtifactContext;
 import com.google.devtools.build.lib.analysis.WorkspaceStatusAction;
@@ -79,6 +80,7 @@ import com.google.devtools.build.lib.pkgcache.PackageManager;
 import com.google.devtools.build.lib.pkgcache.PathPackageLocator;
 import com.google.devtools.build.lib.pkgcache.TargetPatternEvaluator;
 import com.google.devtools.build.lib.pkgcache.TransitivePackageLoader;
+import com.google.devtools.build.lib.skyframe.BuildInfoCollectionValue.BuildInfoKeyAndConfig;
 import com.google.devtools.build.lib.skyframe.SkyframeActionExecutor.ActionCompletedReceiver;
 import com.google.devtools.build.lib.skyframe.SkyframeActionExecutor.ProgressSupplier;
 import com.google.devtools.build.lib.syntax.Label;
@@ -165,6 +167,12 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   private final AtomicInteger numPackagesLoaded = new AtomicInteger(0);
 
   protected SkyframeBuildView skyframeBuildView;
+
+  /**
+   * Configurations whose configured targets are still in the graph although the current build does
+   * not use them; see {@link #dropConfiguredTargetsExcept}.
+   */
+  protected ImmutableSet<BuildConfiguration> inactiveConfigurations = ImmutableSet.of();
   private EventHandler errorEventListener;
   private ActionLogBufferPathGenerator actionLogBufferPathGenerator;
 
@@ -172,6 +180,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
 
   // AtomicReferences are used here as mutable boxes shared with value builders.
   private final AtomicBoolean showLoadingProgress = new AtomicBoolean();
+  private final AtomicInteger skylarkCompileThreshold = new AtomicInteger(-1);
   protected final AtomicReference<UnixGlob.FilesystemCalls> syscalls =
       new AtomicReference<>(UnixGlob.DEFAULT_SYSCALLS);
   protected final AtomicReference<PathPackageLocator> pkgLocator =
@@ -179,6 +188,8 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   protected final AtomicReference<ImmutableSet<String>> deletedPackages =
       new AtomicReference<>(ImmutableSet.<String>of());
   private final AtomicReference<EventBus> eventBus = new AtomicReference<>();
+  private final PersistentPackageCache persistentPackageCache;
+  private final PreprocessorResultCache preprocessorResultCache = new PreprocessorResultCache();
 
   private final ImmutableList<BuildInfoFactory> buildInfoFactories;
   // Under normal circumstances, the artifact factory persists for the life of a Blaze server, but
@@ -231,6 +242,8 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   private MutableSupplier<ImmutableList<ConfigurationFragmentFactory>> configurationFragments =
       new MutableSupplier<>();
   private MutableSupplier<Set<Package>> configurationPackages = new MutableSupplier<>();
+  private final SharedConfigurationFragments sharedConfigurationFragments =
+      new SharedConfigurationFragments();
   private SkyKey configurationSkyKey = null;
 
   private static final Logger LOG = Logger.getLogger(SkyframeExecutor.class.getName());
@@ -265,6 +278,9 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     this.skyframeActionExecutor = new SkyframeActionExecutor(reporter, resourceManager, eventBus,
         statusReporterRef);
     this.directories = Preconditions.checkNotNull(directories);
+    this.persistentPackageCache = new PersistentPackageCache(
+        directories.getOutputBase().getRelative("package_cache"),
+        directories.getInstallBase().getPathString());
     this.buildInfoFactories = buildInfoFactories;
     this.immutableDirectories = immutableDirectories;
     this.allowedMissingInputs = allowedMissingInputs;
@@ -295,13 +311,15 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     map.put(SkyFunctions.AST_FILE_LOOKUP, new ASTFileLookupFunction(
         pkgLocator, packageManager, pkgFactory.getRuleClassProvider()));
     map.put(SkyFunctions.SKYLARK_IMPORTS_LOOKUP, new SkylarkImportLookupFunction(
-        pkgFactory.getRuleClassProvider(), pkgFactory));
+        pkgFactory.getRuleClassProvider(), pkgFactory, skylarkCompileThreshold));
     map.put(SkyFunctions.GLOB, new GlobFunction());
     map.put(SkyFunctions.TARGET_PATTERN, new TargetPatternFunction(pkgLocator));
     map.put(SkyFunctions.RECURSIVE_PKG, new RecursivePkgFunction());
     map.put(SkyFunctions.PACKAGE, new PackageFunction(
         reporter, pkgFactory, packageManager, showLoadingProgress, packageFunctionCache,
-        eventBus, numPackagesLoaded));
+        eventBus, numPackagesLoaded, persistentPackageCache, preprocessorResultCache));
+    map.put(SkyFunctions.PREPROCESSED_BUILD_FILE, new PreprocessedBuildFileFunction(
+        pkgFactory, packageManager, preprocessorResultCache));
     map.put(SkyFunctions.TARGET_MARKER, new TargetMarkerFunction());
     map.put(SkyFunctions.TRANSITIVE_TARGET, new TransitiveTargetFunction());
     map.put(SkyFunctions.CONFIGURED_TARGET,
@@ -312,7 +330,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     map.put(SkyFunctions.CONFIGURATION_COLLECTION, new ConfigurationCollectionFunction(
         configurationFactory, clientEnv, configurationPackages));
     map.put(SkyFunctions.CONFIGURATION_FRAGMENT, new ConfigurationFragmentFunction(
-        configurationFragments, configurationPackages));
+        configurationFragments, configurationPackages, sharedConfigurationFragments));
     map.put(SkyFunctions.WORKSPACE_FILE, new WorkspaceFileFunction(pkgFactory, directories));
     map.put(SkyFunctions.TARGET_COMPLETION, new TargetCompletionFunction(eventBus));
     map.put(SkyFunctions.TEST_COMPLETION, new TestCompletionFunction());
@@ -437,6 +455,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   public void resetEvaluator() {
     init();
     emittedEventState.clear();
+    sharedConfigurationFragments.clear();
     if (skyframeBuildView != null) {
       skyframeBuildView.clearLegacyData();
     }
@@ -467,11 +486,58 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
    */
   public abstract void dropConfiguredTargets();
 
+  /**
+   * Like {@link #dropConfiguredTargets}, but keeps the values of the {@code current} and
+   * {@code previous} configurations, so that switching back to the previous build options does not
+   * require re-analysis. Configurations that did not change, usually the host configuration, stay
+   * valid as they are. Since configured target keys carry the whole configuration, all values of a
+   * changed configuration are deleted, whichever configuration fragments they read.
+   *
+   * <p>The actions of the previous configurations are ignored by the artifact conflict check, since
+   * they may legitimately generate the same outputs as the actions of the current ones.
+   */
+  public void dropConfiguredTargetsExcept(BuildConfigurationCollection current,
+      BuildConfigurationCollection previous) {
+    Set<BuildConfiguration> currentConfigurations =
+        ImmutableSet.copyOf(current.getAllConfigurations());
+    Set<BuildConfiguration> retained = Sets.union(
+        currentConfigurations, ImmutableSet.copyOf(previous.getAllConfigurations()));
+    deleteConfiguredTargets(retained);
+    inactiveConfigurations =
+        ImmutableSet.copyOf(Sets.difference(retained, currentConfigurations));
+  }
+
+  /**
+   * Deletes the values that {@link #dropConfiguredTargets} deletes, except those that belong to
+   * one of the {@code retained} configurations.
+   */
+  protected abstract void deleteConfiguredTargets(Set<BuildConfiguration> retained);
+
+  /**
+   * Returns the configuration that the given configured target, aspect, build info or target
+   * completion key belongs to, or null if it does not belong to a configuration.
+   */
+  @Nullable
+  static BuildConfiguration getConfiguration(SkyKey key) {
+    Object argument = key.argument();
+    if (argument instanceof ConfiguredTargetKey) {
+      return ((ConfiguredTargetKey) argument).getConfiguration();
+    } else if (argument instanceof AspectValue.AspectKey) {
+      return ((AspectValue.AspectKey) argument).getConfiguration();
+    } else if (argument instanceof BuildInfoKeyAndConfig) {
+      return ((BuildInfoKeyAndConfig) argument).getConfig();
+    } else if (argument instanceof LabelAndConfiguration) {
+      return ((LabelAndConfiguration) argument).getConfiguration();
+    }
+    return null;
+  }
+
   /**
    * Removes ConfigurationFragmentValuess and ConfigurationCollectionValues from the cache.
    */
   @VisibleForTesting
   public void invalidateConfigurationCollection() {
+    sharedConfigurationFragments.clear();
     invalidate(SkyFunctionName.functionIsIn(ImmutableSet.of(SkyFunctions.CONFIGURATION_FRAGMENT,
             SkyFunctions.CONFIGURATION_COLLECTION)));
   }
@@ -749,6 +815,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
 
     // If the PackageFunction was interrupted, there may be stale entries here.
     packageFunctionCache.clear();
+    preprocessorResultCache.clearPending();
     numPackagesLoaded.set(0);
 
     // Reset the stateful SkyframeCycleReporter, which contains cycles from last run.
@@ -781,7 +848,9 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     } else if (!preprocessorFactory.isStillValid()) {
       Preprocessor.Factory newPreprocessorFactory = preprocessorFactorySupplier.getFactory(
           packageManager);
-      invalidate(SkyFunctionName.functionIs(SkyFunctions.PACKAGE));
+      invalidate(SkyFunctionName.functionIsIn(ImmutableSet.of(SkyFunctions.PACKAGE,
+          SkyFunctions.PREPROCESSED_BUILD_FILE)));
+      preprocessorResultCache.clear();
       pkgFactory.setPreprocessorFactory(newPreprocessorFactory);
       preprocessorFactory = newPreprocessorFactory;
     }
@@ -893,12 +962,44 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
         Iterables.getOnlyElement(result.values());
     this.configurationPackages.set(
         Sets.newConcurrentHashSet(configurationValue.getConfigurationPackages()));
-    return configurationValue.getConfigurationCollection();
+    BuildConfigurationCollection configurations = configurationValue.getConfigurationCollection();
+    LOG.info(describeFragmentSharing(configurations));
+    return configurations;
+  }
+
+  /**
+   * Summarizes how many fragment instances the configurations of this build hold in total and how
+   * many of them are distinct, i.e. how well {@link SharedConfigurationFragments} deduplicates.
+   */
+  private String describeFragmentSharing(BuildConfigurationCollection configurations) {
+    Set<BuildConfiguration.Fragment> distinct = Sets.newIdentityHashSet();
+    int total = 0;
+    Collection<BuildConfiguration> allConfigurations = configurations.getAllConfigurations();
+    for (BuildConfiguration configuration : allConfigurations) {
+      for (ConfigurationFragmentFactory factory : configurationFragments.get()) {
+        BuildConfiguration.Fragment fragment = configuration.getFragment(factory.creates());
+        if (fragment != null) {
+          total++;
+          distinct.add(fragment);
+        }
+      }
+    }
+    return String.format("%d configurations hold %d fragments, %d of them distinct",
+        allConfigurations.size(), total, distinct.size());
   }
 
   private Iterable<ActionLookupValue> getActionLookupValues() {
+    Map<SkyKey, SkyValue> doneValues = memoizingEvaluator.getDoneValues();
+    if (!inactiveConfigurations.isEmpty()) {
+      doneValues = Maps.filterKeys(doneValues, new Predicate<SkyKey>() {
+        @Override
+        public boolean apply(SkyKey key) {
+          return !inactiveConfigurations.contains(getConfiguration(key));
+        }
+      });
+    }
     // This filter keeps subclasses of ActionLookupValue.
-    return Iterables.filter(memoizingEvaluator.getDoneValues().values(), ActionLookupValue.class);
+    return Iterables.filter(doneValues.values(), ActionLookupValue.class);
   }
 
   @SuppressWarnings({"unchecked", "rawtypes"})
@@ -1328,6 +1429,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     /** Same as {@link PackageManager#partiallyClear}. */
     void partiallyClear() {
       packageFunctionCache.clear();
+      preprocessorResultCache.clearPending();
     }
   }
 
@@ -1380,6 +1482,9 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
         packageCacheOptions.defaultVisibility, packageCacheOptions.showLoadingProgress,
         defaultsPackageContents, commandId);
     setDeletedPackages(ImmutableSet.copyOf(packageCacheOptions.deletedPackages));
+    skylarkCompileThreshold.set(packageCacheOptions.skylarkCompileThreshold);
+    persistentPackageCache.setEnabled(packageCacheOptions.persistentPackageCache,
+        packageCacheOptions.persistentPackageCacheSizeMb * 1024L * 1024L);
 
     incrementalBuildMonitor = new SkyframeIncrementalBuildMonitor();
     invalidateTransientErrors();
@@ -1428,7 +1533,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
       InterruptedException {
     maybeInjectEmbeddedArtifacts();
 
-    if (checkOutputFiles) {
+    if (shouldCheckOutputFiles(checkOutputFiles)) {
       // Detect external modifications in the output tree.
       FilesystemValueChecker fsnc = new FilesystemValueChecker(memoizingEvaluator, tsgm,
           lastExecutionTimeRange);
@@ -1440,6 +1545,16 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     informAboutNumberOfModifiedFiles();
   }
 
+  /**
+   * Returns whether the output tree has to be checked for modifications before the execution
+   * phase. The retained actions of inactive configurations must notice when the current
+   * configurations overwrite their outputs, so it is checked whenever there are any.
+   */
+  @VisibleForTesting
+  boolean shouldCheckOutputFiles(boolean checkOutputFiles) {
+    return checkOutputFiles || !inactiveConfigurations.isEmpty();
+  }
+
   protected abstract void invalidateDirtyActions(Iterable<SkyKey> dirtyActionValues);
 
   @VisibleForTesting void maybeInjectEmbeddedArtifacts() throws AbruptExitException {
@@ -33,9 +33,13 @@ import com.google.devtools.build.skyframe.SkyFunctionException;
 import com.google.devtools.build.skyframe.SkyFunctionException.Transience;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
+import com.google.devtools.build.skyframe.ValueOrException;
+import com.google.devtools.build.skyframe.ValueOrException3;
 
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A Skyframe function to look up and import a single Skylark extension.
@@ -44,11 +48,13 @@ public class SkylarkImportLookupFunction implements SkyFunction {
 
   private final RuleClassProvider ruleClassProvider;
   private final ImmutableList<Function> nativeRuleFunctions;
+  private final AtomicInteger compileThreshold;
 
-  public SkylarkImportLookupFunction(
-      RuleClassProvider ruleClassProvider, PackageFactory packageFactory) {
+  public SkylarkImportLookupFunction(RuleClassProvider ruleClassProvider,
+      PackageFactory packageFactory, AtomicInteger compileThreshold) {
     this.ruleClassProvider = ruleClassProvider;
     this.nativeRuleFunctions = packageFactory.collectNativeRuleFunctions();
+    this.compileThreshold = compileThreshold;
   }
 
   @Override
@@ -56,17 +62,30 @@ public class SkylarkImportLookupFunction implements SkyFunction {
       InterruptedException {
     PackageIdentifier arg = (PackageIdentifier) skyKey.argument();
     PathFragment file = arg.getPackageFragment();
+    SkyKey astLookupKey;
+    try {
+      astLookupKey = ASTFileLookupValue.key(file);
+    } catch (ASTLookupInputException e) {
+      throw new SkylarkImportLookupFunctionException(e, Transience.PERSISTENT);
+    }
+    SkyKey containingPackageLookupKey = ContainingPackageLookupValue.key(
+        new PackageIdentifier(arg.getRepository(), file.getParentDirectory()));
+    // The syntax tree and the package of the file do not depend on each other, so they are
+    // requested as one group rather than in two restarts.
+    Map<SkyKey, ValueOrException3<ErrorReadingSkylarkExtensionException,
+        InconsistentFilesystemException, BuildFileNotFoundException>> fileValues =
+            env.getValuesOrThrow(ImmutableList.of(astLookupKey, containingPackageLookupKey),
+                ErrorReadingSkylarkExtensionException.class,
+                InconsistentFilesystemException.class, BuildFileNotFoundException.class);
     ASTFileLookupValue astLookupValue = null;
     try {
-      SkyKey astLookupKey = ASTFileLookupValue.key(file);
-      astLookupValue = (ASTFileLookupValue) env.getValueOrThrow(astLookupKey,
-          ErrorReadingSkylarkExtensionException.class, InconsistentFilesystemException.class);
+      astLookupValue = (ASTFileLookupValue) fileValues.get(astLookupKey).get();
     } catch (ErrorReadingSkylarkExtensionException e) {
       throw new SkylarkImportLookupFunctionException(SkylarkImportFailedException.errorReadingFile(
           file, e.getMessage()));
     } catch (InconsistentFilesystemException e) {
       throw new SkylarkImportLookupFunctionException(e, Transience.PERSISTENT);
-    } catch (ASTLookupInputException e) {
+    } catch (BuildFileNotFoundException e) {
       throw new SkylarkImportLookupFunctionException(e, Transience.PERSISTENT);
     }
     if (astLookupValue == null) {
@@ -77,26 +96,37 @@ public class SkylarkImportLookupFunction implements SkyFunction {
       throw new SkylarkImportLookupFunctionException(SkylarkImportFailedException.noFile(file));
     }
 
-    Map<PathFragment, SkylarkEnvironment> importMap = new HashMap<>();
-    ImmutableList.Builder<SkylarkFileDependency> fileDependencies = ImmutableList.builder();
     BuildFileAST ast = astLookupValue.getAST();
     // TODO(bazel-team): Refactor this code and PackageFunction to reduce code duplications.
-    for (PathFragment importFile : ast.getImports()) {
+    Map<PathFragment, SkyKey> importLookupKeys = new LinkedHashMap<>();
+    try {
+      for (PathFragment importFile : ast.getImports()) {
+        importLookupKeys.put(importFile,
+            SkylarkImportLookupValue.key(arg.getRepository(), file, importFile));
+      }
+    } catch (ASTLookupInputException e) {
+      throw new SkylarkImportLookupFunctionException(e, Transience.PERSISTENT);
+    }
+    // All imports are requested as one group, so that they are loaded in parallel and checked
+    // in parallel on incremental builds.
+    Map<SkyKey, ValueOrException<ASTLookupInputException>> importLookupValues =
+        env.getValuesOrThrow(importLookupKeys.values(), ASTLookupInputException.class);
+    Map<PathFragment, SkylarkEnvironment> importMap = new HashMap<>();
+    ImmutableList.Builder<SkylarkFileDependency> fileDependencies = ImmutableList.builder();
+    for (Map.Entry<PathFragment, SkyKey> entry : importLookupKeys.entrySet()) {
       try {
-        SkyKey importsLookupKey =
-            SkylarkImportLookupValue.key(arg.getRepository(), file, importFile);
-        SkylarkImportLookupValue importsLookupValue;
-        importsLookupValue = (SkylarkImportLookupValue) env.getValueOrThrow(
-            importsLookupKey, ASTLookupInputException.class);
+        SkylarkImportLookupValue importsLookupValue = (SkylarkImportLookupValue)
+            importLookupValues.get(entry.getValue()).get();
         if (importsLookupValue != null) {
-          importMap.put(importFile, importsLookupValue.getImportedEnvironment());
+          importMap.put(entry.getKey(), importsLookupValue.getImportedEnvironment());
           fileDependencies.add(importsLookupValue.getDependency());
         }
       } catch (ASTLookupInputException e) {
         throw new SkylarkImportLookupFunctionException(e, Transience.PERSISTENT);
       }
     }
-    Label label = pathFragmentToLabel(arg.getRepository(), file, env);
+    Label label = pathFragmentToLabel(arg.getRepository(), file, fileValues.get(
+        containingPackageLookupKey));
     if (env.valuesMissing()) {
       // This means some imports are unavailable.
       return null;
@@ -120,14 +150,16 @@ public class SkylarkImportLookupFunction implements SkyFunction {
    * Skylark file in its directory hierarchy - finds the package to which the Skylark file belongs.
    * Throws an exception if no such BUILD file exists.
    */
-  private Label pathFragmentToLabel(RepositoryName repo, PathFragment file, Environment env)
+  private Label pathFragmentToLabel(RepositoryName repo, PathFragment file,
+      ValueOrException3<ErrorReadingSkylarkExtensionException, InconsistentFilesystemException,
+          BuildFileNotFoundException> containingPackageLookupResult)
       throws SkylarkImportLookupFunctionException {
     ContainingPackageLookupValue containingPackageLookupValue = null;
     try {
-      PackageIdentifier newPkgId = new PackageIdentifier(repo, file.getParentDirectory());
-      containingPackageLookupValue = (ContainingPackageLookupValue) env.getValueOrThrow(
-          ContainingPackageLookupValue.key(newPkgId),
-          BuildFileNotFoundException.class, InconsistentFilesystemException.class);
+      containingPackageLookupValue =
+          (ContainingPackageLookupValue) containingPackageLookupResult.get();
+    } catch (ErrorReadingSkylarkExtensionException e) {
+      throw new IllegalStateException(e);
     } catch (BuildFileNotFoundException e) {
       // Thrown when there are IO errors looking for BUILD files.
       throw new SkylarkImportLookupFunctionException(e, Transience.PERSISTENT);
@@ -138,7 +170,6 @@ public class SkylarkImportLookupFunction implements SkyFunction {
     if (containingPackageLookupValue == null) {
       return null;
     }
-
     if (!containingPackageLookupValue.hasContainingPackage()) {
       throw new SkylarkImportLookupFunctionException(
           SkylarkImportFailedException.noBuildFile(file));
@@ -178,6 +209,9 @@ public class SkylarkImportLookupFunction implements SkyFunction {
             ruleClassProvider.getNativeModule().getClass(), function.getName(), function);
     }
     extensionEnv.setImportedExtensions(importMap);
+    // Extensions loaded before the threshold changed keep the one they were loaded with; it only
+    // affects how fast their functions run, not what they compute.
+    extensionEnv.setCompileThreshold(compileThreshold.get());
     ast.exec(extensionEnv, eventHandler);
     // Don't fail just replay the events so the original package lookup can fail.
     Event.replayEventsOn(env.getListener(), eventHandler.getEvents());
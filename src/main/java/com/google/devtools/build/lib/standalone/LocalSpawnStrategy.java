@@ -20,6 +20,7 @@ import com.google.devtools.build.lib.actions.Executor;
 import com.google.devtools.build.lib.actions.Spawn;
 import com.google.devtools.build.lib.actions.SpawnActionContext;
 import com.google.devtools.build.lib.actions.UserExecException;
+import com.google.devtools.build.lib.exec.SpawnOutputCache;
 import com.google.devtools.build.lib.shell.Command;
 import com.google.devtools.build.lib.shell.CommandException;
 import com.google.devtools.build.lib.syntax.Label;
@@ -30,9 +31,12 @@ import com.google.devtools.build.lib.util.io.FileOutErr;
 import com.google.devtools.build.lib.vfs.Path;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 /**
  * Strategy that uses subprocessing to execute a process.
  */
@@ -42,8 +46,23 @@ public class LocalSpawnStrategy implements SpawnActionContext {
 
   private final Path processWrapper;
 
+  private final Path execRoot;
+
+  @Nullable private final SpawnOutputCache outputCache;
+
   public LocalSpawnStrategy(Path execRoot, boolean verboseFailures) {
+    this(execRoot, verboseFailures, null);
+  }
+
+  /**
+   * Creates a strategy that consults {@code outputCache}, if non-null, before executing a spawn
+   * and records the outputs of every spawn it executes there.
+   */
+  public LocalSpawnStrategy(Path execRoot, boolean verboseFailures,
+      @Nullable SpawnOutputCache outputCache) {
     this.verboseFailures = verboseFailures;
+    this.execRoot = execRoot;
+    this.outputCache = outputCache;
     this.processWrapper = execRoot.getRelative(
         "_bin/process-wrapper" + OsUtils.executableExtension());
   }
@@ -61,6 +80,21 @@ public class LocalSpawnStrategy implements SpawnActionContext {
           spawn.asShellCommand(executor.getExecRoot()));
     }
 
+    FileOutErr outErr = actionExecutionContext.getFileOutErr();
+    String cacheKey = null;
+    if (outputCache != null) {
+      try {
+        cacheKey = outputCache.computeKey(spawn, actionExecutionContext.getActionInputFileCache(),
+            actionExecutionContext.getMiddlemanExpander());
+        if (cacheKey != null && outputCache.tryMaterialize(cacheKey, execRoot, outErr)) {
+          return;
+        }
+      } catch (IOException e) {
+        // The cache is only an optimization; fall back to executing the spawn.
+        cacheKey = null;
+      }
+    }
+
     // We must wrap the subprocess with process-wrapper to kill the process tree.
     // All actions therefore depend on the process-wrapper file. Since it's embedded,
     // we don't bother with declaring it as an input.
@@ -84,7 +118,6 @@ public class LocalSpawnStrategy implements SpawnActionContext {
     String cwd = executor.getExecRoot().getPathString();
     Command cmd = new Command(args.toArray(new String[]{}), spawn.getEnvironment(), new File(cwd));
 
-    FileOutErr outErr = actionExecutionContext.getFileOutErr();
     try {
       cmd.execute(
           /* stdin */ new byte[]{},
@@ -97,6 +130,14 @@ public class LocalSpawnStrategy implements SpawnActionContext {
           verboseFailures, spawn.getArguments(), spawn.getEnvironment(), cwd);
       throw new UserExecException(String.format("%s: %s", message, e));
     }
+
+    if (cacheKey != null) {
+      try {
+        outputCache.store(cacheKey, spawn.getOutputFiles(), execRoot, outErr);
+      } catch (IOException e) {
+        // The outputs were produced successfully; failing to cache them is not an error.
+      }
+    }
   }
 
   @Override
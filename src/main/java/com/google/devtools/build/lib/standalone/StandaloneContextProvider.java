@@ -26,8 +26,10 @@ import com.google.devtools.build.lib.actions.ExecutionStrategy;
 import com.google.devtools.build.lib.actions.Executor.ActionContext;
 import com.google.devtools.build.lib.actions.ExecutorInitException;
 import com.google.devtools.build.lib.buildtool.BuildRequest;
+import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.exec.ExecutionOptions;
 import com.google.devtools.build.lib.exec.FileWriteStrategy;
+import com.google.devtools.build.lib.exec.SpawnOutputCache;
 import com.google.devtools.build.lib.rules.cpp.IncludeScanningContext;
 import com.google.devtools.build.lib.rules.cpp.LocalGccStrategy;
 import com.google.devtools.build.lib.rules.cpp.LocalLinkStrategy;
@@ -37,14 +39,19 @@ import com.google.devtools.build.lib.rules.test.TestActionContext;
 import com.google.devtools.build.lib.runtime.BlazeRuntime;
 import com.google.devtools.build.lib.util.OS;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
 
 import java.io.IOException;
 
+import javax.annotation.Nullable;
+
 /**
  * Provide a standalone, local execution context.
  */
 public class StandaloneContextProvider implements ActionContextProvider {
 
+  private static final String SPAWN_OUTPUT_CACHE_DIR = "spawn-output-cache";
+
   /**
    * a IncludeScanningContext that does nothing. Since local execution does not need to
    * discover inclusion in advance, we do not need include scanning.
@@ -68,13 +75,16 @@ public class StandaloneContextProvider implements ActionContextProvider {
   private final ActionContext localSpawnStrategy;
   private final ImmutableList<ActionContext> strategies;
   private final BlazeRuntime runtime;
+  @Nullable private final SpawnOutputCache spawnOutputCache;
 
   public StandaloneContextProvider(BlazeRuntime runtime, BuildRequest buildRequest) {
     boolean verboseFailures = buildRequest.getOptions(ExecutionOptions.class).verboseFailures;
 
-    localSpawnStrategy = new LocalSpawnStrategy(
-        runtime.getDirectories().getExecRoot(), verboseFailures);
     this.runtime = runtime;
+    this.spawnOutputCache = createSpawnOutputCache(
+        runtime, buildRequest.getOptions(ExecutionOptions.class));
+    localSpawnStrategy = new LocalSpawnStrategy(
+        runtime.getDirectories().getExecRoot(), verboseFailures, spawnOutputCache);
 
     TestActionContext testStrategy = new StandaloneTestStrategy(buildRequest,
         runtime.getStartupOptionsProvider(), runtime.getBinTools());
@@ -102,6 +112,25 @@ public class StandaloneContextProvider implements ActionContextProvider {
     this.strategies = strategiesBuilder.build();
   }
 
+  @Nullable
+  private static SpawnOutputCache createSpawnOutputCache(BlazeRuntime runtime,
+      ExecutionOptions options) {
+    if (options.spawnOutputCacheSizeMb <= 0) {
+      return null;
+    }
+    Path outputBase = runtime.getDirectories().getOutputBase();
+    Path cacheDir = options.spawnOutputCacheDir == null
+        ? outputBase.getChild(SPAWN_OUTPUT_CACHE_DIR)
+        : outputBase.getRelative(options.spawnOutputCacheDir);
+    try {
+      return new SpawnOutputCache(cacheDir, options.spawnOutputCacheSizeMb * 1024L * 1024L);
+    } catch (IOException e) {
+      runtime.getReporter().handle(Event.warn(
+          "Spawn output cache disabled: cannot initialize " + cacheDir + ": " + e.getMessage()));
+      return null;
+    }
+  }
+
   @Override
   public Iterable<ActionContext> getActionContexts() {
     return strategies;
@@ -119,7 +148,11 @@ public class StandaloneContextProvider implements ActionContextProvider {
   }
 
   @Override
-  public void executionPhaseEnding()  {}
+  public void executionPhaseEnding()  {
+    if (spawnOutputCache != null) {
+      runtime.getReporter().handle(Event.info(spawnOutputCache.getStatistics().toString()));
+    }
+  }
 }
 
 
@@ -218,7 +218,19 @@ public class BuildFileAST extends ASTNode {
   public static BuildFileAST parseSkylarkFile(Path file, EventHandler eventHandler,
       CachingPackageLocator locator, ValidationEnvironment validationEnvironment)
           throws IOException {
-    ParserInputSource input = ParserInputSource.create(file);
+    return parseSkylarkFile(ParserInputSource.create(file), eventHandler, locator,
+        validationEnvironment);
+  }
+
+  /**
+   * Parse the specified Skylark input, returning its AST. All errors during
+   * scanning or parsing will be reported to the reporter.
+   *
+   * @throws IOException if the digest of the file cannot be computed.
+   */
+  public static BuildFileAST parseSkylarkFile(ParserInputSource input, EventHandler eventHandler,
+      CachingPackageLocator locator, ValidationEnvironment validationEnvironment)
+          throws IOException {
     Lexer lexer = new Lexer(input, eventHandler, false);
     Parser.ParseResult result =
         Parser.parseFileForSkylark(lexer, eventHandler, locator, validationEnvironment);
@@ -0,0 +1,156 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.syntax;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.List;
+
+/**
+ * The body of a {@link UserDefinedFunction} compiled into a tree of closures.
+ *
+ * <p>The statements of the body are translated once into {@link Code} objects that run them
+ * without dispatching on the statement kind again. The main difference to executing the
+ * statements is that a return statement completes the code it is in with the return value,
+ * instead of throwing a {@link ReturnStatement.ReturnException} that carries the value up to
+ * the function call. Expressions, and statements that cannot contain a return statement, are
+ * still evaluated by their syntax nodes, so errors are reported exactly as by the interpreter.
+ */
+final class CompiledFunctionBody {
+
+  /**
+   * A compiled statement or block.
+   */
+  private abstract static class Code {
+    /**
+     * Runs the code and returns the value of the return statement that completed it, or null if
+     * execution continues with the next statement.
+     */
+    abstract Object exec(Environment env) throws EvalException, InterruptedException;
+  }
+
+  private final Code body;
+
+  private CompiledFunctionBody(Code body) {
+    this.body = body;
+  }
+
+  /**
+   * Compiles the statements of a function body.
+   */
+  static CompiledFunctionBody compile(List<Statement> statements) {
+    return new CompiledFunctionBody(compileBlock(statements));
+  }
+
+  /**
+   * Runs the function body in {@code env} and returns the value of the function.
+   */
+  Object exec(Environment env) throws EvalException, InterruptedException {
+    Object result = body.exec(env);
+    return result == null ? Environment.NONE : result;
+  }
+
+  private static Code compileBlock(List<Statement> statements) {
+    if (statements.size() == 1) {
+      return compile(statements.get(0));
+    }
+    final Code[] codes = new Code[statements.size()];
+    for (int i = 0; i < codes.length; i++) {
+      codes[i] = compile(statements.get(i));
+    }
+    return new Code() {
+      @Override
+      Object exec(Environment env) throws EvalException, InterruptedException {
+        for (Code code : codes) {
+          Object result = code.exec(env);
+          if (result != null) {
+            return result;
+          }
+        }
+        return null;
+      }
+    };
+  }
+
+  private static Code compile(Statement statement) {
+    if (statement instanceof ReturnStatement) {
+      return compileReturn((ReturnStatement) statement);
+    } else if (statement instanceof IfStatement) {
+      return compileIf((IfStatement) statement);
+    } else if (statement instanceof ForStatement) {
+      return compileFor((ForStatement) statement);
+    } else {
+      return compileStatement(statement);
+    }
+  }
+
+  private static Code compileStatement(final Statement statement) {
+    return new Code() {
+      @Override
+      Object exec(Environment env) throws EvalException, InterruptedException {
+        statement.exec(env);
+        return null;
+      }
+    };
+  }
+
+  private static Code compileReturn(ReturnStatement statement) {
+    final Expression returnExpression = statement.getReturnExpression();
+    return new Code() {
+      @Override
+      Object exec(Environment env) throws EvalException, InterruptedException {
+        return returnExpression.eval(env);
+      }
+    };
+  }
+
+  private static Code compileIf(IfStatement statement) {
+    ImmutableList<IfStatement.ConditionalStatements> thenBlocks = statement.getThenBlocks();
+    final Expression[] conditions = new Expression[thenBlocks.size()];
+    final Code[] thenCodes = new Code[thenBlocks.size()];
+    for (int i = 0; i < conditions.length; i++) {
+      conditions[i] = thenBlocks.get(i).getCondition();
+      thenCodes[i] = compileBlock(thenBlocks.get(i).getStmts());
+    }
+    final Code elseCode = compileBlock(statement.getElseBlock());
+    return new Code() {
+      @Override
+      Object exec(Environment env) throws EvalException, InterruptedException {
+        for (int i = 0; i < conditions.length; i++) {
+          if (EvalUtils.toBoolean(conditions[i].eval(env))) {
+            return thenCodes[i].exec(env);
+          }
+        }
+        return elseCode.exec(env);
+      }
+    };
+  }
+
+  private static Code compileFor(final ForStatement statement) {
+    final Code block = compileBlock(statement.block());
+    final ForStatement.Body body = new ForStatement.Body() {
+      @Override
+      public Object exec(Environment env) throws EvalException, InterruptedException {
+        return block.exec(env);
+      }
+    };
+    return new Code() {
+      @Override
+      Object exec(Environment env) throws EvalException, InterruptedException {
+        return statement.loop(env, body);
+      }
+    };
+  }
+}
@@ -172,6 +172,14 @@ public class Environment {
     return value;
   }
 
+  /**
+   * Returns the value of the variable {@code ident} refers to, like {@link #lookup(String)}.
+   * Environments with frames use the slot the Ident was resolved to, if any.
+   */
+  Object lookup(Ident ident) throws NoSuchVariableException {
+    return lookup(ident.getName());
+  }
+
   /**
    * Like <code>lookup(String)</code>, but instead of throwing an exception in
    * the case where "varname" is not defined, "defaultValue" is returned instead.
@@ -197,6 +205,13 @@ public class Environment {
     env.put(varname, value);
   }
 
+  /**
+   * Updates the value of the variable {@code ident} refers to, like {@link #update(String, Object)}.
+   */
+  void update(Ident ident, Object value) {
+    update(ident.getName(), value);
+  }
+
   /**
    * Same as {@link #update}, but also marks the variable propagating, meaning it will
    * be present in the execution environment of a UserDefinedFunction called from this
@@ -57,22 +57,51 @@ public final class ForStatement extends Statement {
 
   @Override
   void exec(Environment env) throws EvalException, InterruptedException {
+    loop(env, new Body() {
+      @Override
+      public Object exec(Environment env) throws EvalException, InterruptedException {
+        for (Statement stmt : block) {
+          stmt.exec(env);
+        }
+        return null;
+      }
+    });
+  }
+
+  /**
+   * The block of a for loop, as run by {@link #loop}.
+   */
+  interface Body {
+    /**
+     * Runs the block once and returns a value that ends the loop, or null to continue with the
+     * next element.
+     */
+    Object exec(Environment env) throws EvalException, InterruptedException;
+  }
+
+  /**
+   * Assigns each element of the collection to the loop variable and runs {@code body}, until the
+   * elements are exhausted or the body returns a value, which is then returned.
+   */
+  Object loop(Environment env, Body body) throws EvalException, InterruptedException {
     Object o = collection.eval(env);
     Iterable<?> col = EvalUtils.toIterable(o, getLocation());
 
     int i = 0;
     for (Object it : ImmutableList.copyOf(col)) {
       variable.assign(env, getLocation(), it);
-      for (Statement stmt : block) {
-        stmt.exec(env);
+      Object result = body.exec(env);
+      if (result != null) {
+        return result;
       }
       i++;
     }
     // TODO(bazel-team): This should not happen if every collection is immutable.
     if (i != EvalUtils.size(col)) {
       throw new EvalException(getLocation(),
-          String.format("Cannot modify '%s' during during iteration.", collection.toString()));
+          String.format("Cannot modify '%s' during iteration.", collection.toString()));
     }
+    return null;
   }
 
   @Override
@@ -0,0 +1,65 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.syntax;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The local variables of a user defined function, each with the index of its slot in the frame
+ * of a call to the function.
+ *
+ * <p>The layout is built while the function body is validated: parameters come first, in the
+ * order of the signature, then the other local variables in the order they are first assigned.
+ * {@link Ident}s that refer to a local variable remember its slot, so that they can be evaluated
+ * without hashing the name.
+ */
+final class FrameLayout implements Serializable {
+
+  private final List<String> names = new ArrayList<>();
+  private final Map<String, Integer> slots = new HashMap<>();
+
+  /**
+   * Returns the slot of {@code name}, adding it to the layout if it is not there yet.
+   */
+  int add(String name) {
+    Integer slot = slots.get(name);
+    if (slot == null) {
+      slot = names.size();
+      names.add(name);
+      slots.put(name, slot);
+    }
+    return slot;
+  }
+
+  /**
+   * Returns the slot of {@code name}, or -1 if it is not a local variable.
+   */
+  int indexOf(String name) {
+    Integer slot = slots.get(name);
+    return slot == null ? -1 : slot;
+  }
+
+  String getName(int slot) {
+    return names.get(slot);
+  }
+
+  int size() {
+    return names.size();
+  }
+}
@@ -25,6 +25,9 @@ import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.syntax.EvalException.EvalExceptionWithJavaCause;
 import com.google.devtools.build.lib.util.StringUtilities;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
@@ -53,6 +56,8 @@ public final class FuncallExpression extends Expression {
   public static final class MethodDescriptor {
     private final Method method;
     private final SkylarkCallable annotation;
+    // Created on first use. Racing threads create equivalent handles.
+    private MethodHandle invoker;
 
     private MethodDescriptor(Method method, SkylarkCallable annotation) {
       this.method = method;
@@ -63,6 +68,28 @@ public final class FuncallExpression extends Expression {
       return method;
     }
 
+    /**
+     * Returns a handle that calls the method with a receiver, ignored for static methods, and
+     * an array of arguments, and returns the result boxed, or null for void methods.
+     */
+    MethodHandle getInvoker() throws IllegalAccessException {
+      MethodHandle result = invoker;
+      if (result == null) {
+        // This happens when the interface is public but the implementation classes
+        // have reduced visibility.
+        method.setAccessible(true);
+        MethodHandle handle = MethodHandles.lookup().unreflect(method);
+        if (Modifier.isStatic(method.getModifiers())) {
+          handle = MethodHandles.dropArguments(handle, 0, Object.class);
+        }
+        int arity = method.getParameterTypes().length;
+        result = handle.asType(MethodType.genericMethodType(arity + 1))
+            .asSpreader(Object[].class, arity);
+        invoker = result;
+      }
+      return result;
+    }
+
     /**
      * Returns the SkylarkCallable annotation corresponding to this method.
      */
@@ -71,6 +98,38 @@ public final class FuncallExpression extends Expression {
     }
   }
 
+  /**
+   * The method a call site resolved to, with the classes of the receiver and the arguments it
+   * was resolved for. Nearly all call sites always see the same classes, so they can skip looking
+   * up and matching the overloads after the first call.
+   */
+  private static final class ResolvedMethod {
+    private final Class<?> objClass;
+    private final Class<?>[] argClasses;
+    private final MethodDescriptor method;
+
+    private ResolvedMethod(Class<?> objClass, List<Object> args, MethodDescriptor method) {
+      this.objClass = objClass;
+      this.argClasses = new Class<?>[args.size()];
+      for (int i = 0; i < argClasses.length; i++) {
+        argClasses[i] = args.get(i).getClass();
+      }
+      this.method = method;
+    }
+
+    private boolean matches(Class<?> objClass, List<Object> args) {
+      if (this.objClass != objClass || argClasses.length != args.size()) {
+        return false;
+      }
+      for (int i = 0; i < argClasses.length; i++) {
+        if (argClasses[i] != args.get(i).getClass()) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
   private static final LoadingCache<Class<?>, Map<String, List<MethodDescriptor>>> methodCache =
       CacheBuilder.newBuilder()
       .initialCapacity(10)
@@ -174,6 +233,9 @@ public final class FuncallExpression extends Expression {
 
   private final int numPositionalArgs;
 
+  // The Java method this call site called last, if it is a Java method call.
+  private transient ResolvedMethod resolvedMethod;
+
   /**
    * Note: the grammar definition restricts the function value in a function
    * call expression to be a global identifier; however, the representation of
@@ -294,10 +356,14 @@ public final class FuncallExpression extends Expression {
     if (obj == null && !Modifier.isStatic(method.getModifiers())) {
       throw new EvalException(loc, "Method '" + methodName + "' is not static");
     }
-    // This happens when the interface is public but the implementation classes
-    // have reduced visibility.
-    method.setAccessible(true);
-    Object result = method.invoke(obj, args);
+    MethodHandle invoker = methodDescriptor.getInvoker();
+    Object result;
+    try {
+      result = (Object) invoker.invokeExact(obj, args);
+    } catch (Throwable e) {
+      // Report exceptions thrown by the method the way Method.invoke does.
+      throw new InvocationTargetException(e);
+    }
     if (method.getReturnType().equals(Void.TYPE)) {
       return Environment.NONE;
     }
@@ -325,29 +391,14 @@ public final class FuncallExpression extends Expression {
   private Object invokeJavaMethod(
       Object obj, Class<?> objClass, String methodName, List<Object> args) throws EvalException {
     try {
-      MethodDescriptor matchingMethod = null;
-      List<MethodDescriptor> methods = getMethods(objClass, methodName, args.size());
-      if (methods != null) {
-        for (MethodDescriptor method : methods) {
-          Class<?>[] params = method.getMethod().getParameterTypes();
-          int i = 0;
-          boolean matching = true;
-          for (Class<?> param : params) {
-            if (!param.isAssignableFrom(args.get(i).getClass())) {
-              matching = false;
-              break;
-            }
-            i++;
-          }
-          if (matching) {
-            if (matchingMethod == null) {
-              matchingMethod = method;
-            } else {
-              throw new EvalException(func.getLocation(),
-                  "Multiple matching methods for " + formatMethod(methodName, args)
-                  + " in " + EvalUtils.getDataTypeNameFromClass(objClass));
-            }
-          }
+      MethodDescriptor matchingMethod;
+      ResolvedMethod resolved = resolvedMethod;
+      if (resolved != null && resolved.matches(objClass, args)) {
+        matchingMethod = resolved.method;
+      } else {
+        matchingMethod = findJavaMethod(objClass, methodName, args);
+        if (matchingMethod != null && !matchingMethod.getAnnotation().structField()) {
+          resolvedMethod = new ResolvedMethod(objClass, args, matchingMethod);
         }
       }
       if (matchingMethod != null && !matchingMethod.getAnnotation().structField()) {
@@ -375,6 +426,41 @@ public final class FuncallExpression extends Expression {
     }
   }
 
+  /**
+   * Returns the only Skylark callable method of objClass with the given name whose parameters
+   * accept args, or null if there is none.
+   */
+  private MethodDescriptor findJavaMethod(
+      Class<?> objClass, String methodName, List<Object> args)
+      throws EvalException, ExecutionException {
+    MethodDescriptor matchingMethod = null;
+    List<MethodDescriptor> methods = getMethods(objClass, methodName, args.size());
+    if (methods != null) {
+      for (MethodDescriptor method : methods) {
+        Class<?>[] params = method.getMethod().getParameterTypes();
+        int i = 0;
+        boolean matching = true;
+        for (Class<?> param : params) {
+          if (!param.isAssignableFrom(args.get(i).getClass())) {
+            matching = false;
+            break;
+          }
+          i++;
+        }
+        if (matching) {
+          if (matchingMethod == null) {
+            matchingMethod = method;
+          } else {
+            throw new EvalException(func.getLocation(),
+                "Multiple matching methods for " + formatMethod(methodName, args)
+                + " in " + EvalUtils.getDataTypeNameFromClass(objClass));
+          }
+        }
+      }
+    }
+    return matchingMethod;
+  }
+
   private String formatMethod(String methodName, List<Object> args) {
     StringBuilder sb = new StringBuilder();
     sb.append(methodName).append("(");
@@ -21,6 +21,8 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 
+import javax.annotation.Nullable;
+
 /**
  * Syntax node for a function definition.
  */
@@ -29,6 +31,8 @@ public class FunctionDefStatement extends Statement {
   private final Ident ident;
   private final FunctionSignature.WithValues<Expression, Expression> args;
   private final ImmutableList<Statement> statements;
+  // The local variables of the function, known once the function has been validated.
+  @Nullable private FrameLayout frameLayout;
 
   public FunctionDefStatement(Ident ident,
       FunctionSignature.WithValues<Expression, Expression> args,
@@ -53,7 +57,7 @@ public class FunctionDefStatement extends Statement {
     env.update(ident.getName(), new UserDefinedFunction(
         ident, FunctionSignature.WithValues.<Object, SkylarkType>create(
             args.getSignature(), defaultValues, types),
-        statements, (SkylarkEnvironment) env));
+        statements, (SkylarkEnvironment) env, frameLayout));
   }
 
   @Override
@@ -122,6 +126,7 @@ public class FunctionDefStatement extends Statement {
     for (Statement stmts : statements) {
       stmts.validate(localEnv);
     }
+    frameLayout = localEnv.getFrameLayout();
     env.updateFunction(ident.getName(), type, getLocation());
     // Register a dummy return value with an incompatible type if there was no return statement.
     type.setReturnType(SkylarkType.NONE, getLocation());
@@ -18,9 +18,8 @@ package com.google.devtools.build.lib.syntax;
 // (1) intern the strings, so we can use == to compare, and have .equals use the assumption.
 // Then have Argument and Parameter use Ident again instead of String as keys.
 // (2) Use Ident, not String, as keys in the Environment, which will be cleaner.
-// (3) For performance, avoid doing HashMap lookups at runtime, and compile local variable access
-// into array reference with a constant index. Variable lookups are currently a speed bottleneck,
-// as previously measured in an experiment.
+// (3) Resolve global variables to slots as well. Local variables of user defined functions are
+// already resolved to a slot in the FrameLayout of the function during validation.
 /**
  *  Syntax node for an identifier.
  */
@@ -28,6 +27,11 @@ public final class Ident extends Expression {
 
   private final String name;
 
+  // The local variables of the enclosing function and the slot of this variable among them, set
+  // by ValidationEnvironment#resolve. The layout is null if the Ident is not a local variable.
+  private FrameLayout layout;
+  private int slot;
+
   public Ident(String name) {
     this.name = name;
   }
@@ -39,6 +43,19 @@ public final class Ident extends Expression {
     return name;
   }
 
+  void setSlot(FrameLayout layout, int slot) {
+    this.layout = layout;
+    this.slot = slot;
+  }
+
+  FrameLayout getLayout() {
+    return layout;
+  }
+
+  int getSlot() {
+    return slot;
+  }
+
   @Override
   public String toString() {
     return name;
@@ -47,7 +64,7 @@ public final class Ident extends Expression {
   @Override
   Object eval(Environment env) throws EvalException {
     try {
-      return env.lookup(name);
+      return env.lookup(this);
     } catch (Environment.NoSuchVariableException e) {
       if (name.equals("$error$")) {
         throw new EvalException(getLocation(), "contains syntax error(s)", true);
@@ -65,6 +82,7 @@ public final class Ident extends Expression {
   @Override
   SkylarkType validate(ValidationEnvironment env) throws EvalException {
     if (env.hasSymbolInEnvironment(name)) {
+      env.resolve(this);
       return env.getVartype(name);
     } else {
       throw new EvalException(getLocation(), "name '" + name + "' is not defined");
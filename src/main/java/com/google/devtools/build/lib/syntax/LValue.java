@@ -91,7 +91,7 @@ public class LValue implements Serializable {
             + "' is referenced before assignment."
             + "The variable is defined in the global scope.");
       }
-      Class<?> variableType = skylarkEnv.getVariableType(ident.getName());
+      Class<?> variableType = skylarkEnv.getVariableType(ident);
       Class<?> resultType = EvalUtils.getSkylarkType(result.getClass());
       if (variableType != null && !variableType.equals(resultType)
           && !resultType.equals(Environment.NoneType.class)
@@ -104,7 +104,7 @@ public class LValue implements Serializable {
             EvalUtils.getDataTypeNameFromClass(variableType)));
       }
     }
-    env.update(ident.getName(), result);
+    env.update(ident, result);
   }
 
   void validate(ValidationEnvironment env, Location loc, SkylarkType rvalueType)
@@ -117,6 +117,7 @@ public class LValue implements Serializable {
     if (expr instanceof Ident) {
       Ident ident = (Ident) expr;
       env.update(ident.getName(), rvalueType, loc);
+      env.resolve(ident);
       return;
     }
     if (expr instanceof ListLiteral) {
@@ -37,6 +37,11 @@ import java.util.Stack;
  * <p>
  * Since BUILD files are small, we just tokenize the entire file a-priori
  * instead of interleaving scanning with parsing.
+ * <p>
+ * Identifiers and string literals without escapes are looked up in a table by
+ * their range in the buffer, so that each distinct value is only copied into a
+ * String once. Generated BUILD files repeat the same attribute names, labels
+ * and visibility declarations thousands of times.
  */
 public final class Lexer {
 
@@ -77,6 +82,8 @@ public final class Lexer {
 
   private final List<Token> tokens = new ArrayList<>();
 
+  private final StringTable stringTable = new StringTable();
+
   // The number of unclosed open-parens ("(", '{', '[') at the current point in
   // the stream. Whitespace is handled differently when this is nonzero.
   private int openParenStackDepth = 0;
@@ -404,6 +411,7 @@ public final class Lexer {
     }
 
     // first quick optimistic scan for a simple non-escaped string
+    int hash = 0;
     while (pos < buffer.length) {
       char c = buffer[pos++];
       switch (c) {
@@ -416,6 +424,10 @@ public final class Lexer {
         case '\\':
           if (isRaw) {
             // skip the next character
+            if (pos < buffer.length) {
+              hash = 31 * hash + c;
+              c = buffer[pos];
+            }
             pos++;
             break;
           } else {
@@ -428,9 +440,10 @@ public final class Lexer {
           if (c == quot) {
             // close-quote, all done.
             return new Token(TokenKind.STRING, oldPos, pos,
-                             bufferSlice(oldPos + 1, pos - 1));
+                             stringTable.get(buffer, oldPos + 1, pos - 1, hash));
           }
       }
+      hash = 31 * hash + c;
     }
 
     error("unterminated string literal at eof", oldPos, pos);
@@ -468,8 +481,10 @@ public final class Lexer {
 
   private String scanIdentifier() {
     int oldPos = pos - 1;
+    int hash = buffer[oldPos];
     while (pos < buffer.length) {
-      switch (buffer[pos]) {
+      char c = buffer[pos];
+      switch (c) {
         case '_':
         case 'a': case 'b': case 'c': case 'd': case 'e': case 'f':
         case 'g': case 'h': case 'i': case 'j': case 'k': case 'l':
@@ -483,13 +498,14 @@ public final class Lexer {
         case 'Y': case 'Z':
         case '0': case '1': case '2': case '3': case '4': case '5':
         case '6': case '7': case '8': case '9':
+          hash = 31 * hash + c;
           pos++;
           break;
        default:
-          return bufferSlice(oldPos, pos);
+          return stringTable.get(buffer, oldPos, pos, hash);
       }
     }
-    return bufferSlice(oldPos, pos);
+    return stringTable.get(buffer, oldPos, pos, hash);
   }
 
   /**
@@ -796,4 +812,75 @@ public final class Lexer {
     return new String(this.buffer, start, end - start);
   }
 
+  /**
+   * The distinct strings of a buffer, in an open-addressing hash table that is
+   * probed with a range of the buffer. A String is only created for a range
+   * whose content is not in the table yet.
+   */
+  private static final class StringTable {
+
+    private int[] hashes = new int[256];
+    private String[] strings = new String[256];
+    private int size;
+
+    /**
+     * Returns the string with the content of buffer[start..end), which is the
+     * same instance for every range with that content. The scanner computes
+     * {@code hash} as {@link String#hashCode} would while it reads the range.
+     */
+    String get(char[] buffer, int start, int end, int hash) {
+      int mask = strings.length - 1;
+      int index = spread(hash) & mask;
+      String s;
+      while ((s = strings[index]) != null) {
+        if (hashes[index] == hash && contentEquals(s, buffer, start, end)) {
+          return s;
+        }
+        index = (index + 1) & mask;
+      }
+      s = new String(buffer, start, end - start);
+      hashes[index] = hash;
+      strings[index] = s;
+      if (++size * 2 > strings.length) {
+        resize();
+      }
+      return s;
+    }
+
+    private void resize() {
+      int[] oldHashes = hashes;
+      String[] oldStrings = strings;
+      hashes = new int[oldStrings.length * 2];
+      strings = new String[oldStrings.length * 2];
+      int mask = strings.length - 1;
+      for (int i = 0; i < oldStrings.length; i++) {
+        if (oldStrings[i] != null) {
+          int index = spread(oldHashes[i]) & mask;
+          while (strings[index] != null) {
+            index = (index + 1) & mask;
+          }
+          hashes[index] = oldHashes[i];
+          strings[index] = oldStrings[i];
+        }
+      }
+    }
+
+    private static int spread(int hash) {
+      return hash ^ (hash >>> 16);
+    }
+
+    private static boolean contentEquals(String s, char[] buffer, int start, int end) {
+      if (s.length() != end - start) {
+        return false;
+      }
+      for (int i = 0; i < s.length(); i++) {
+        if (s.charAt(i) != buffer[start + i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+
 }
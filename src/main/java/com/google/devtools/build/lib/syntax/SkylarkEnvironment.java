@@ -48,6 +48,17 @@ public class SkylarkEnvironment extends Environment implements Serializable {
 
   @Nullable private String fileContentHashCode;
 
+  // The number of calls after which the bodies of functions defined in this global Environment
+  // are compiled, or -1 to never compile them.
+  private int compileThreshold = -1;
+
+  /**
+   * The local variables of the function this Environment executes, whose values are kept in
+   * {@link #frame} rather than in the variable map. Null if the Environment has no frame.
+   */
+  @Nullable private final FrameLayout frameLayout;
+  @Nullable private final Object[] frame;
+
   /**
    * Creates a Skylark Environment for function calling, from the global Environment of the
    * caller Environment (which must be a Skylark Environment).
@@ -63,10 +74,21 @@ public class SkylarkEnvironment extends Environment implements Serializable {
         .addAll(callerEnv.getStackTrace())
         .add(function.getName())
         .build();
+    FrameLayout frameLayout = function.getFrameLayout();
+    if (frameLayout != null) {
+      for (String varname : callerEnv.disabledVariables) {
+        if (frameLayout.indexOf(varname) >= 0) {
+          // Disabled variables must not be found even if they are local, which the frame would
+          // not check; keep all variables in the map instead.
+          frameLayout = null;
+          break;
+        }
+      }
+    }
     SkylarkEnvironment childEnv =
         // Always use the caller Environment's EventHandler. We cannot assume that the
         // definition Environment's EventHandler is still working properly.
-        new SkylarkEnvironment(definitionEnv, stackTrace, callerEnv.eventHandler);
+        new SkylarkEnvironment(definitionEnv, stackTrace, callerEnv.eventHandler, frameLayout);
     try {
       for (String varname : callerEnv.propagatingVariables) {
         childEnv.updateAndPropagate(varname, callerEnv.lookup(varname));
@@ -81,11 +103,13 @@ public class SkylarkEnvironment extends Environment implements Serializable {
   }
 
   private SkylarkEnvironment(SkylarkEnvironment definitionEnv, ImmutableList<String> stackTrace,
-      EventHandler eventHandler) {
+      EventHandler eventHandler, @Nullable FrameLayout frameLayout) {
     super(definitionEnv.getGlobalEnvironment());
     this.stackTrace = stackTrace;
     this.eventHandler = Preconditions.checkNotNull(eventHandler,
         "EventHandler cannot be null in an Environment which calls into Skylark");
+    this.frameLayout = frameLayout;
+    this.frame = frameLayout == null ? null : new Object[frameLayout.size()];
   }
 
   /**
@@ -96,6 +120,8 @@ public class SkylarkEnvironment extends Environment implements Serializable {
     stackTrace = ImmutableList.of();
     this.eventHandler = eventHandler;
     this.fileContentHashCode = astFileContentHashCode;
+    this.frameLayout = null;
+    this.frame = null;
   }
 
   @VisibleForTesting
@@ -107,6 +133,8 @@ public class SkylarkEnvironment extends Environment implements Serializable {
     super(globalEnv);
     stackTrace = ImmutableList.of();
     this.eventHandler = globalEnv.eventHandler;
+    this.frameLayout = null;
+    this.frame = null;
   }
 
   @Override
@@ -120,6 +148,7 @@ public class SkylarkEnvironment extends Environment implements Serializable {
   public SkylarkEnvironment cloneEnv(EventHandler eventHandler) {
     Preconditions.checkArgument(isGlobalEnvironment());
     SkylarkEnvironment newEnv = new SkylarkEnvironment(eventHandler, this.fileContentHashCode);
+    newEnv.compileThreshold = compileThreshold;
     for (Entry<String, Object> entry : env.entrySet()) {
       newEnv.env.put(entry.getKey(), entry.getValue());
     }
@@ -138,6 +167,23 @@ public class SkylarkEnvironment extends Environment implements Serializable {
     return parent != null ? (SkylarkEnvironment) parent : this;
   }
 
+  /**
+   * Sets the number of times the functions defined in this global environment are interpreted
+   * before their bodies are compiled; see {@link CompiledFunctionBody}. A negative threshold
+   * disables compilation.
+   */
+  public void setCompileThreshold(int compileThreshold) {
+    Preconditions.checkState(isGlobalEnvironment());
+    this.compileThreshold = compileThreshold;
+  }
+
+  /**
+   * Returns the compile threshold of the global environment.
+   */
+  int getCompileThreshold() {
+    return getGlobalEnvironment().compileThreshold;
+  }
+
   /**
    * Returns true if this is a Skylark global environment.
    */
@@ -157,6 +203,25 @@ public class SkylarkEnvironment extends Environment implements Serializable {
     return true;
   }
 
+  /**
+   * Returns the value of a variable of this Environment, ignoring the global Environment.
+   */
+  @Nullable
+  private Object getLocal(String varname) {
+    if (frameLayout != null) {
+      int slot = frameLayout.indexOf(varname);
+      if (slot >= 0) {
+        return frame[slot];
+      }
+    }
+    return env.get(varname);
+  }
+
+  @Override
+  protected boolean hasVariable(String varname) {
+    return getLocal(varname) != null;
+  }
+
   /**
    * @return the value from the environment whose name is "varname".
    * @throws NoSuchVariableException if the variable is not defined in the environment.
@@ -166,7 +231,7 @@ public class SkylarkEnvironment extends Environment implements Serializable {
     if (disabledVariables.contains(varname)) {
       throw new NoSuchVariableException(varname);
     }
-    Object value = env.get(varname);
+    Object value = getLocal(varname);
     if (value == null) {
       if (parent != null && parent.hasVariable(varname)) {
         readGlobalVariables.add(varname);
@@ -177,6 +242,18 @@ public class SkylarkEnvironment extends Environment implements Serializable {
     return value;
   }
 
+  @Override
+  Object lookup(Ident ident) throws NoSuchVariableException {
+    if (frameLayout != null && ident.getLayout() == frameLayout) {
+      Object value = frame[ident.getSlot()];
+      if (value != null) {
+        return value;
+      }
+    }
+    // Not assigned yet, or not a local variable: this may be a global variable.
+    return lookup(ident.getName());
+  }
+
   /**
    * Like <code>lookup(String)</code>, but instead of throwing an exception in
    * the case where "varname" is not defined, "defaultValue" is returned instead.
@@ -193,18 +270,73 @@ public class SkylarkEnvironment extends Environment implements Serializable {
   @Override
   public void update(String varname, Object value) {
     Preconditions.checkNotNull(value, "update(value == null)");
+    if (frameLayout != null) {
+      int slot = frameLayout.indexOf(varname);
+      if (slot >= 0) {
+        frame[slot] = value;
+        return;
+      }
+    }
     env.put(varname, value);
   }
 
+  @Override
+  void update(Ident ident, Object value) {
+    if (frameLayout != null && ident.getLayout() == frameLayout) {
+      frame[ident.getSlot()] = Preconditions.checkNotNull(value, "update(value == null)");
+    } else {
+      update(ident.getName(), value);
+    }
+  }
+
+  /**
+   * Binds the parameters of the function this Environment executes to their values. With a
+   * frame, the parameters are the first slots of the frame, in the same order.
+   */
+  void bindParameters(List<String> names, Object[] arguments) {
+    for (int i = 0; i < names.size(); i++) {
+      if (frameLayout != null) {
+        frame[i] = Preconditions.checkNotNull(arguments[i], "update(value == null)");
+      } else {
+        update(names.get(i), arguments[i]);
+      }
+    }
+  }
+
   /**
    * Returns the class of the variable or null if the variable does not exist. This function
    * works only in the local Environment, it doesn't check the global Environment.
    */
   public Class<?> getVariableType(String varname) {
-    Object variable = env.get(varname);
+    return getSkylarkType(getLocal(varname));
+  }
+
+  Class<?> getVariableType(Ident ident) {
+    if (frameLayout != null && ident.getLayout() == frameLayout) {
+      return getSkylarkType(frame[ident.getSlot()]);
+    }
+    return getVariableType(ident.getName());
+  }
+
+  @Nullable
+  private static Class<?> getSkylarkType(@Nullable Object variable) {
     return variable != null ? EvalUtils.getSkylarkType(variable.getClass()) : null;
   }
 
+  @Override
+  public Set<String> getVariableNames() {
+    Set<String> vars = super.getVariableNames();
+    if (frameLayout != null) {
+      vars = new HashSet<>(vars);
+      for (int i = 0; i < frame.length; i++) {
+        if (frame[i] != null) {
+          vars.add(frameLayout.getName(i));
+        }
+      }
+    }
+    return vars;
+  }
+
   /**
    * Removes the functions and the modules (i.e. the symbol of the module from the top level
    * Environment and the functions attached to it) from the Environment which should be present
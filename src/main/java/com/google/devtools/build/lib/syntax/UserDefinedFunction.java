@@ -16,6 +16,10 @@ package com.google.devtools.build.lib.syntax;
 import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.events.Location;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
 /**
  * The actual function registered in the environment. This function is defined in the
  * parsed code using {@link FunctionDefStatement}.
@@ -24,14 +28,19 @@ public class UserDefinedFunction extends BaseFunction {
 
   private final ImmutableList<Statement> statements;
   private final SkylarkEnvironment definitionEnv;
+  @Nullable private final FrameLayout frameLayout;
+  private final AtomicInteger calls = new AtomicInteger();
+  @Nullable private volatile CompiledFunctionBody compiledBody;
 
   protected UserDefinedFunction(Ident function,
       FunctionSignature.WithValues<Object, SkylarkType> signature,
-      ImmutableList<Statement> statements, SkylarkEnvironment definitionEnv) {
+      ImmutableList<Statement> statements, SkylarkEnvironment definitionEnv,
+      @Nullable FrameLayout frameLayout) {
     super(function.getName(), signature, function.getLocation());
 
     this.statements = statements;
     this.definitionEnv = definitionEnv;
+    this.frameLayout = frameLayout;
   }
 
   public FunctionSignature.WithValues<Object, SkylarkType> getFunctionSignature() {
@@ -46,6 +55,14 @@ public class UserDefinedFunction extends BaseFunction {
     return location;
   }
 
+  /**
+   * Returns the local variables of the function, or null if the function was not validated.
+   */
+  @Nullable
+  FrameLayout getFrameLayout() {
+    return frameLayout;
+  }
+
 
   @Override
   public Object call(Object[] arguments, FuncallExpression ast, Environment env)
@@ -55,11 +72,12 @@ public class UserDefinedFunction extends BaseFunction {
     ImmutableList<String> names = signature.getSignature().getNames();
 
     // Registering the functions's arguments as variables in the local Environment
-    int i = 0;
-    for (String name : names) {
-      functionEnv.update(name, arguments[i++]);
-    }
+    functionEnv.bindParameters(names, arguments);
 
+    CompiledFunctionBody body = getCompiledBody();
+    if (body != null) {
+      return body.exec(functionEnv);
+    }
     try {
       for (Statement stmt : statements) {
         stmt.exec(functionEnv);
@@ -69,4 +87,22 @@ public class UserDefinedFunction extends BaseFunction {
     }
     return Environment.NONE;
   }
+
+  /**
+   * Returns the compiled body of the function, compiling it if the function has been called
+   * often enough, or null if the function should be interpreted.
+   */
+  @Nullable
+  private CompiledFunctionBody getCompiledBody() {
+    CompiledFunctionBody body = compiledBody;
+    if (body == null) {
+      int threshold = definitionEnv.getCompileThreshold();
+      if (threshold >= 0 && calls.incrementAndGet() > threshold) {
+        // Racing threads may compile the body more than once, which is harmless.
+        body = CompiledFunctionBody.compile(statements);
+        compiledBody = body;
+      }
+    }
+    return body;
+  }
 }
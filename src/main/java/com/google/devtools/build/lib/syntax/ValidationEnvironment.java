@@ -52,12 +52,16 @@ public class ValidationEnvironment {
   // Whether this validation environment is not modified therefore clonable or not.
   private boolean clonable;
 
+  // The local variables of the function we are currently validating, null at the top level.
+  private final FrameLayout frameLayout;
+
   public ValidationEnvironment(
       ImmutableMap<SkylarkType, ImmutableMap<String, SkylarkType>> builtinVariableTypes) {
     parent = null;
     variableTypes = CollectionUtils.copyOf(builtinVariableTypes);
     readOnlyVariables.addAll(builtinVariableTypes.get(SkylarkType.GLOBAL).keySet());
     clonable = true;
+    frameLayout = null;
   }
 
   private ValidationEnvironment(Map<SkylarkType, Map<String, SkylarkType>> builtinVariableTypes,
@@ -66,6 +70,7 @@ public class ValidationEnvironment {
     this.variableTypes = CollectionUtils.copyOf(builtinVariableTypes);
     this.readOnlyVariables = new HashSet<>(readOnlyVariables);
     clonable = false;
+    frameLayout = null;
   }
 
   // ValidationEnvironment for a new Environment()
@@ -99,6 +104,7 @@ public class ValidationEnvironment {
       }
     }
     this.clonable = false;
+    this.frameLayout = new FrameLayout();
   }
 
   /**
@@ -130,9 +136,33 @@ public class ValidationEnvironment {
     }
     variableTypes.get(SkylarkType.GLOBAL).put(varname, newVartype);
     variableLocations.put(varname, location);
+    if (frameLayout != null) {
+      frameLayout.add(varname);
+    }
     clonable = false;
   }
 
+  /**
+   * Gives {@code ident} the slot of its variable if it is a local variable of the function being
+   * validated. Names that are only assigned later in the function body are left unresolved, and
+   * are looked up by name at runtime.
+   */
+  void resolve(Ident ident) {
+    if (frameLayout != null) {
+      int slot = frameLayout.indexOf(ident.getName());
+      if (slot >= 0) {
+        ident.setSlot(frameLayout, slot);
+      }
+    }
+  }
+
+  /**
+   * Returns the local variables of the function being validated, or null at the top level.
+   */
+  FrameLayout getFrameLayout() {
+    return frameLayout;
+  }
+
   private void checkReadonly(String varname, Location location) throws EvalException {
     if (readOnlyVariables.contains(varname)) {
       throw new EvalException(location, String.format("Variable %s is read only", varname));
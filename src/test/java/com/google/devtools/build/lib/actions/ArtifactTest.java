@@ -267,6 +267,47 @@ public class ArtifactTest {
     assertSame(a.getExecPath(), a.getRootRelativePath());
   }
 
+  @Test
+  public void testDerivedRootRelativePath() throws Exception {
+    Artifact a = new Artifact(scratch.file("/exec/root/dir/file"), rootDir,
+        new PathFragment("root/dir/file"));
+    assertFalse(a.isSourceArtifact());
+    assertEquals(new PathFragment("dir/file"), a.getRootRelativePath());
+    assertEquals("dir/file", a.getRootRelativePathString());
+  }
+
+  @Test
+  public void testRootsAreShared() throws Exception {
+    assertSame(Root.asSourceRoot(scratch.dir("/src")), Root.asSourceRoot(scratch.dir("/src")));
+    assertSame(rootDir, Root.asDerivedRoot(scratch.dir("/exec/root")));
+    Root middlemanRoot = Root.middlemanRoot(execDir, scratch.dir("/exec/root"));
+    assertTrue(middlemanRoot.isMiddlemanRoot());
+    assertFalse(Root.asDerivedRoot(execDir, scratch.dir("/exec/root/internal"))
+        .isMiddlemanRoot());
+  }
+
+  /**
+   * Guards the per-artifact heap footprint: artifacts under the same root, even when the root is
+   * created anew as it is with every configuration, share one {@link Root} instance, and a source
+   * artifact looked up under an equal root is the same instance.
+   */
+  @Test
+  public void testArtifactsShareRoots() throws Exception {
+    Artifact a = new Artifact(scratch.file("/exec/root/dir/a"),
+        Root.asDerivedRoot(execDir, scratch.dir("/exec/root")), new PathFragment("root/dir/a"));
+    Artifact b = new Artifact(scratch.file("/exec/root/dir/b"),
+        Root.asDerivedRoot(execDir, scratch.dir("/exec/root")), new PathFragment("root/dir/b"));
+    assertSame(a.getRoot(), b.getRoot());
+
+    ArtifactFactory artifactFactory = new ArtifactFactory(execDir);
+    Artifact source = artifactFactory.getSourceArtifact(new PathFragment("dir/c"),
+        Root.asSourceRoot(scratch.dir("/src")));
+    Artifact again = artifactFactory.getSourceArtifact(new PathFragment("dir/c"),
+        Root.asSourceRoot(scratch.dir("/src")));
+    assertSame(source, again);
+    assertSame(Root.asSourceRoot(scratch.dir("/src")), source.getRoot());
+  }
+
   @Test
   public void testToDetailString() throws Exception {
     Artifact a = new Artifact(scratch.file("/a/b/c"), Root.asDerivedRoot(scratch.dir("/a/b")),
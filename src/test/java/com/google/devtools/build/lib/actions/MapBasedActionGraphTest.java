@@ -13,6 +13,9 @@
 // limitations under the License.
 package com.google.devtools.build.lib.actions;
 
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
@@ -73,6 +76,29 @@ public class MapBasedActionGraphTest {
     actionGraph.unregisterAction(action);
   }
 
+  @Test
+  public void testConflictingActionLeavesNoTrace() throws Exception {
+    MutableActionGraph actionGraph = new MapBasedActionGraph();
+    FileSystem fileSystem = new InMemoryFileSystem(BlazeClock.instance());
+    Path path = fileSystem.getPath("/root/foo");
+    Artifact foo = new Artifact(path, Root.asDerivedRoot(path));
+    path = fileSystem.getPath("/root/bar");
+    Artifact bar = new Artifact(path, Root.asDerivedRoot(path));
+    Action action = new TestAction(TestAction.NO_EFFECT,
+        ImmutableSet.<Artifact>of(), ImmutableSet.of(foo));
+    actionGraph.registerAction(action);
+    Action conflictingAction = new TestAction(TestAction.NO_EFFECT,
+        ImmutableSet.<Artifact>of(), ImmutableSet.of(bar, foo));
+    try {
+      actionGraph.registerAction(conflictingAction);
+      fail();
+    } catch (ActionConflictException e) {
+      // Expected.
+    }
+    assertNull(actionGraph.getGeneratingAction(bar));
+    assertSame(action, actionGraph.getGeneratingAction(foo));
+  }
+
   private class ActionRegisterer extends AbstractQueueVisitor {
     private final MutableActionGraph graph = new MapBasedActionGraph();
     private final Artifact output;
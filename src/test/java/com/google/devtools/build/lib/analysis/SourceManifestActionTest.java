@@ -0,0 +1,112 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.analysis;
+
+import static com.google.devtools.build.lib.actions.util.ActionsTestUtil.NULL_ACTION_OWNER;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.Root;
+import com.google.devtools.build.lib.analysis.SourceManifestAction.ManifestType;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Tests for {@link SourceManifestAction}.
+ */
+@RunWith(JUnit4.class)
+public class SourceManifestActionTest {
+  private static final int LARGE_TREE_SIZE = 50000;
+
+  private Root sourceRoot;
+  private Artifact manifestOutput;
+
+  @Before
+  public void setUp() throws Exception {
+    FileSystem fs = new InMemoryFileSystem();
+    sourceRoot = Root.asSourceRoot(fs.getPath("/workspace"));
+    manifestOutput = new Artifact(fs.getPath("/out/foo.runfiles_manifest"),
+        Root.asDerivedRoot(fs.getPath("/out")));
+  }
+
+  private Artifact source(String path) {
+    return new Artifact(new PathFragment(path), sourceRoot);
+  }
+
+  private String writeManifest(Runfiles runfiles) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    SourceManifestAction.forRunfiles(ManifestType.SOURCE_SYMLINKS, NULL_ACTION_OWNER,
+        manifestOutput, runfiles).writeOutputFile(out, null);
+    return new String(out.toByteArray(), ISO_8859_1);
+  }
+
+  @Test
+  public void testEntriesAreSortedAndRootedAtSuffix() throws Exception {
+    Runfiles runfiles = new Runfiles.Builder()
+        .setSuffix("ws")
+        .addArtifact(source("pkg/b"))
+        .addArtifact(source("pkg/a"))
+        .addRootSymlinks(ImmutableMap.of(new PathFragment("top"), source("pkg/c")))
+        .build();
+    assertEquals(
+        "top /workspace/pkg/c\n"
+        + "ws/pkg/a /workspace/pkg/a\n"
+        + "ws/pkg/b /workspace/pkg/b\n",
+        writeManifest(runfiles));
+  }
+
+  @Test
+  public void testObscuredSymlinksAreDropped() throws Exception {
+    Runfiles runfiles = new Runfiles.Builder()
+        .setSuffix("ws")
+        .addSymlink(new PathFragment("dir"), source("real"))
+        .addSymlink(new PathFragment("dir/file"), source("real/file"))
+        .build();
+    assertEquals("ws/dir /workspace/real\n", writeManifest(runfiles));
+  }
+
+  /**
+   * Streams a synthetic 50k-entry runfiles tree, built the way deep binaries build theirs, out
+   * to a manifest, which must list every entry once, in order.
+   */
+  @Test
+  public void testLargeRunfilesTree() throws Exception {
+    NestedSetBuilder<Artifact> level = NestedSetBuilder.compileOrder();
+    Runfiles.Builder builder = new Runfiles.Builder().setSuffix("ws");
+    for (int i = 0; i < LARGE_TREE_SIZE; i++) {
+      level.add(source(String.format("pkg%d/file%05d", i % 100, i)));
+      if (i % 500 == 499) {
+        builder.addTransitiveArtifacts(level.build());
+        level = NestedSetBuilder.compileOrder();
+      }
+    }
+    String[] lines = writeManifest(builder.build()).split("\n");
+    assertEquals(LARGE_TREE_SIZE, lines.length);
+    for (int i = 1; i < lines.length; i++) {
+      assertTrue(lines[i - 1] + " >= " + lines[i], lines[i - 1].compareTo(lines[i]) < 0);
+    }
+  }
+}
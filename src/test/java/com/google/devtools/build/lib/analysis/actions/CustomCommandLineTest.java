@@ -18,8 +18,12 @@ import static com.google.common.truth.Truth.assertThat;
 import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.analysis.util.BuildViewTestCase;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
 import com.google.devtools.build.lib.vfs.PathFragment;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class CustomCommandLineTest extends BuildViewTestCase {
   public void testAddBeforeEachPath() {
     CustomCommandLine commandLine = new CustomCommandLine.Builder()
@@ -75,4 +79,28 @@ public class CustomCommandLineTest extends BuildViewTestCase {
         .containsExactly("foo", "bar", "-X'42'", "-X'1011'", "baz")
         .inOrder();
   }
+
+  public void testWriteArgumentsMatchesArguments() throws Exception {
+    CustomCommandLine commandLine = new CustomCommandLine.Builder()
+        .add("foo")
+        .addBeforeEach("-D", NestedSetBuilder.<String>stableOrder().add("A").add("B").build())
+        .addJoinExecPaths("-cp", ":",
+            ImmutableList.of(getSourceArtifact("pkg/a.jar"), getSourceArtifact("pkg/b.jar")))
+        .addFormatEach("-X%s", ImmutableList.of("1"))
+        .build();
+    final List<String> written = new ArrayList<>();
+    commandLine.writeArguments(new CommandLine.ArgumentWriter() {
+      @Override
+      public void write(String argument) {
+        written.add(argument);
+      }
+    });
+    assertThat(written).containsExactlyElementsIn(commandLine.arguments()).inOrder();
+
+    long length = 0;
+    for (String argument : commandLine.arguments()) {
+      length += argument.length() + 1;
+    }
+    assertThat(commandLine.getArgumentsLength()).isEqualTo(length);
+  }
 }
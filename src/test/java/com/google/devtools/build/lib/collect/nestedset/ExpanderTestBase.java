@@ -25,6 +25,7 @@ import junit.framework.TestCase;
 
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -253,6 +254,20 @@ public abstract class ExpanderTestBase extends TestCase  {
     assertEquals(expected, Lists.newArrayList(set.toCollection()));
     assertEquals(expected, Lists.newArrayList(set.toList()));
     assertEquals(expected, Lists.newArrayList(set.toSet()));
+    // Once more, now that the uniqueness memo has been recorded.
+    assertEquals(expected, forEachElement(set));
+    assertEquals(expected, forEachElement(set));
+  }
+
+  private static List<String> forEachElement(NestedSet<String> set) {
+    final List<String> result = new ArrayList<>();
+    set.forEachElement(new NestedSetVisitor.Receiver<String>() {
+      @Override
+      public void accept(String arg) {
+        result.add(arg);
+      }
+    });
+    return result;
   }
 
   protected final void assertCollectionsEqual(
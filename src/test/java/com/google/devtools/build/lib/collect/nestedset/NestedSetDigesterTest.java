@@ -0,0 +1,86 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import com.google.devtools.build.lib.util.Fingerprint;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Arrays;
+
+/**
+ * Tests for {@link NestedSetDigester}.
+ */
+@RunWith(JUnit4.class)
+public class NestedSetDigesterTest {
+
+  private int elementsDigested = 0;
+
+  private final NestedSetDigester<String> digester = new NestedSetDigester<>(
+      new NestedSetDigester.ElementFingerprinter<String>() {
+        @Override
+        public void addElement(Fingerprint fingerprint, String element) {
+          elementsDigested++;
+          fingerprint.addString(element);
+        }
+      });
+
+  private static NestedSet<String> set(Order order, NestedSet<String> subset, String... direct) {
+    return new NestedSetBuilder<String>(order)
+        .addAll(Arrays.asList(direct))
+        .addTransitive(subset)
+        .build();
+  }
+
+  private static NestedSet<String> leaf(String... direct) {
+    return NestedSetBuilder.<String>stableOrder().addAll(Arrays.asList(direct)).build();
+  }
+
+  @Test
+  public void sameStructureSameDigest() {
+    assertArrayEquals(
+        digester.digest(set(Order.STABLE_ORDER, leaf("a", "b"), "c")),
+        digester.digest(set(Order.STABLE_ORDER, leaf("a", "b"), "c")));
+  }
+
+  @Test
+  public void digestDependsOnContentsAndOrder() {
+    byte[] digest = digester.digest(set(Order.STABLE_ORDER, leaf("a", "b"), "c"));
+    assertFalse(Arrays.equals(digest,
+        digester.digest(set(Order.STABLE_ORDER, leaf("a", "x"), "c"))));
+    assertFalse(Arrays.equals(digest,
+        digester.digest(set(Order.STABLE_ORDER, leaf("b", "a"), "c"))));
+    assertFalse(Arrays.equals(digest,
+        digester.digest(set(Order.LINK_ORDER, leaf("a", "b"), "c"))));
+  }
+
+  @Test
+  public void sharedSubsetsAreDigestedOnce() {
+    NestedSet<String> shared = set(Order.STABLE_ORDER, leaf("a", "b", "c"), "d");
+    byte[] sharedDigest = digester.digest(shared);
+    assertEquals(4, elementsDigested);
+    assertSame(sharedDigest, digester.digest(shared));
+
+    digester.digest(set(Order.STABLE_ORDER, shared, "e"));
+    digester.digest(set(Order.STABLE_ORDER, shared, "f"));
+    assertEquals(6, elementsDigested);
+  }
+}
@@ -0,0 +1,113 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.collect.nestedset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link NestedSetFlattenCache}.
+ */
+@RunWith(JUnit4.class)
+public class NestedSetFlattenCacheTest {
+
+  @Before
+  public void enableCache() {
+    NestedSetFlattenCache.setMaximumElements(1024 * 1024);
+  }
+
+  @After
+  public void disableCache() {
+    NestedSetFlattenCache.setMaximumElements(0);
+  }
+
+  private static NestedSet<String> transitiveSet(String prefix, int size) {
+    NestedSetBuilder<String> inner = NestedSetBuilder.stableOrder();
+    for (int i = 0; i < size - 1; i++) {
+      inner.add(prefix + i);
+    }
+    return NestedSetBuilder.<String>stableOrder()
+        .add(prefix + "direct")
+        .addTransitive(inner.build())
+        .build();
+  }
+
+  @Test
+  public void largeSetsAreFlattenedOnce() {
+    NestedSet<String> set = transitiveSet("large", NestedSetFlattenCache.MIN_CACHED_SIZE * 2);
+    long hits = NestedSetFlattenCache.getStatistics().get("hits");
+    List<String> first = set.toList();
+    assertSame(first, set.toList());
+    assertSame(first, set.toCollection());
+    assertEquals(hits + 2, (long) NestedSetFlattenCache.getStatistics().get("hits"));
+    assertTrue(NestedSetFlattenCache.getStatistics().get("bytes") > 0);
+  }
+
+  @Test
+  public void smallSetsAreNotCached() {
+    NestedSet<String> set = transitiveSet("small", 3);
+    long misses = NestedSetFlattenCache.getStatistics().get("misses");
+    assertNotSame(set.toList(), set.toList());
+    // Sets that are never cached do not count as misses.
+    assertEquals(misses, (long) NestedSetFlattenCache.getStatistics().get("misses"));
+  }
+
+  @Test
+  public void largeSetMissesOnce() {
+    NestedSet<String> set = transitiveSet("miss", NestedSetFlattenCache.MIN_CACHED_SIZE * 2);
+    long misses = NestedSetFlattenCache.getStatistics().get("misses");
+    set.toList();
+    set.toList();
+    assertEquals(misses + 1, (long) NestedSetFlattenCache.getStatistics().get("misses"));
+  }
+
+  @Test
+  public void retainedElementsAreBounded() {
+    int size = NestedSetFlattenCache.MIN_CACHED_SIZE;
+    NestedSetFlattenCache.setMaximumElements(100 * size);
+    List<NestedSet<String>> sets = new ArrayList<>();
+    for (int i = 0; i < 500; i++) {
+      NestedSet<String> set = transitiveSet("set" + i + "_", size);
+      sets.add(set);
+      set.toList();
+    }
+    long elements = NestedSetFlattenCache.getStatistics().get("elements");
+    assertTrue(elements > 0);
+    assertTrue(elements <= 100 * size);
+    // The most recently flattened set is still there.
+    NestedSet<String> last = sets.get(sets.size() - 1);
+    assertSame(last.toList(), last.toList());
+  }
+
+  @Test
+  public void zeroSizeDisablesCaching() {
+    NestedSetFlattenCache.setMaximumElements(0);
+    NestedSet<String> set = transitiveSet("disabled", NestedSetFlattenCache.MIN_CACHED_SIZE * 2);
+    long misses = NestedSetFlattenCache.getStatistics().get("misses");
+    assertNotSame(set.toList(), set.toList());
+    assertEquals(misses, (long) NestedSetFlattenCache.getStatistics().get("misses"));
+    assertEquals(0, (long) NestedSetFlattenCache.getStatistics().get("elements"));
+  }
+}
@@ -0,0 +1,131 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.exec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.Symlinks;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link RunfilesTreeUpdater}.
+ */
+@RunWith(JUnit4.class)
+public class RunfilesTreeUpdaterTest {
+
+  private Path treeRoot;
+  private Path inputManifest;
+  private Path previousManifest;
+  private RunfilesTreeUpdater updater;
+
+  @Before
+  public final void createTree() throws Exception {
+    InMemoryFileSystem fs = new InMemoryFileSystem(BlazeClock.instance());
+    treeRoot = fs.getPath("/exec/bin/foo.runfiles");
+    inputManifest = fs.getPath("/exec/bin/foo.runfiles_manifest");
+    previousManifest = fs.getPath("/exec/bin/foo.runfiles/MANIFEST");
+    FileSystemUtils.createDirectoryAndParents(treeRoot);
+    updater = new RunfilesTreeUpdater(1);
+  }
+
+  /** Builds the tree from scratch for {@code manifest}, starting from an empty tree. */
+  private void buildTree(String manifest) throws Exception {
+    FileSystemUtils.writeContentAsLatin1(previousManifest, "");
+    FileSystemUtils.writeContentAsLatin1(inputManifest, manifest);
+    assertTrue(updater.update(inputManifest, treeRoot, previousManifest));
+  }
+
+  private void assertSymlink(String entry, String target) throws Exception {
+    Path path = treeRoot.getRelative(entry);
+    assertTrue(entry, path.isSymbolicLink());
+    assertEquals(new PathFragment(target), path.readSymbolicLink());
+  }
+
+  @Test
+  public void testNoPreviousManifest() throws Exception {
+    FileSystemUtils.writeContentAsLatin1(inputManifest, "a /src/a\n");
+    assertFalse(updater.update(inputManifest, treeRoot, previousManifest));
+    assertFalse(treeRoot.getChild("a").exists(Symlinks.NOFOLLOW));
+  }
+
+  @Test
+  public void testAppliesDifference() throws Exception {
+    buildTree("dir/kept /src/kept\ndir/changed /src/old\ngone/removed /src/removed\nempty \n");
+    assertSymlink("dir/kept", "/src/kept");
+    assertTrue(treeRoot.getChild("empty").isFile(Symlinks.NOFOLLOW));
+
+    FileSystemUtils.writeContentAsLatin1(inputManifest,
+        "dir/kept /src/kept\ndir/changed /src/new\nnew/added /src/added\nempty \n");
+    assertTrue(updater.update(inputManifest, treeRoot, previousManifest));
+    assertSymlink("dir/kept", "/src/kept");
+    assertSymlink("dir/changed", "/src/new");
+    assertSymlink("new/added", "/src/added");
+    assertFalse(treeRoot.getRelative("gone").exists(Symlinks.NOFOLLOW));
+    assertEquals(new String(FileSystemUtils.readContentAsLatin1(inputManifest)),
+        new String(FileSystemUtils.readContentAsLatin1(treeRoot.getChild("MANIFEST"))));
+  }
+
+  @Test
+  public void testRepairsDamagedTree() throws Exception {
+    String manifest = "a/deleted /src/deleted\na/retargeted /src/retargeted\nb/dir /src/dir\n";
+    buildTree(manifest);
+    treeRoot.getRelative("a/deleted").delete();
+    treeRoot.getRelative("a/retargeted").delete();
+    treeRoot.getRelative("a/retargeted").createSymbolicLink(new PathFragment("/elsewhere"));
+    FileSystemUtils.deleteTree(treeRoot.getRelative("b"));
+
+    assertTrue(updater.update(inputManifest, treeRoot, previousManifest));
+    assertSymlink("a/deleted", "/src/deleted");
+    assertSymlink("a/retargeted", "/src/retargeted");
+    assertSymlink("b/dir", "/src/dir");
+  }
+
+  @Test
+  public void testMalformedManifestLeavesNoOutputManifest() throws Exception {
+    buildTree("a /src/a\n");
+    FileSystemUtils.writeContentAsLatin1(inputManifest, "a relative/target\n");
+    assertFalse(updater.update(inputManifest, treeRoot, previousManifest));
+    assertFalse(treeRoot.getChild("MANIFEST").exists());
+  }
+
+  @Test
+  public void testParallelUpdate() throws Exception {
+    updater = new RunfilesTreeUpdater(4);
+    StringBuilder before = new StringBuilder();
+    StringBuilder after = new StringBuilder();
+    for (int i = 0; i < 200; i++) {
+      before.append(String.format("d%d/f%d /src/old%d\n", i % 7, i, i));
+      after.append(String.format("d%d/f%d /src/%s%d\n", i % 5, i, i % 2 == 0 ? "old" : "new", i));
+    }
+    buildTree(before.toString());
+    FileSystemUtils.writeContentAsLatin1(inputManifest, after.toString());
+    assertTrue(updater.update(inputManifest, treeRoot, previousManifest));
+    for (int i = 0; i < 200; i++) {
+      assertSymlink(String.format("d%d/f%d", i % 5, i),
+          String.format("/src/%s%d", i % 2 == 0 ? "old" : "new", i));
+    }
+    assertFalse(treeRoot.getRelative("d6").exists(Symlinks.NOFOLLOW));
+  }
+}
@@ -0,0 +1,244 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.exec;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.actions.ActionInput;
+import com.google.devtools.build.lib.actions.ActionInputFileCache;
+import com.google.devtools.build.lib.actions.ActionInputHelper;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.Spawn;
+import com.google.devtools.build.lib.testutil.ManualClock;
+import com.google.devtools.build.lib.util.io.FileOutErr;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.protobuf.ByteString;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link SpawnOutputCache}.
+ */
+@RunWith(JUnit4.class)
+public class SpawnOutputCacheTest {
+
+  private ManualClock clock;
+  private Path cacheRoot;
+  private Path execRoot;
+  private ActionInputFileCache inputFileCache;
+
+  @Before
+  public final void createFileSystem() throws Exception {
+    clock = new ManualClock();
+    clock.advanceMillis(System.currentTimeMillis());
+    InMemoryFileSystem fs = new InMemoryFileSystem(clock);
+    cacheRoot = fs.getPath("/cache");
+    execRoot = fs.getPath("/exec");
+    FileSystemUtils.createDirectoryAndParents(execRoot);
+    inputFileCache = mock(ActionInputFileCache.class);
+    when(inputFileCache.getDigest(any(ActionInput.class))).thenReturn(ByteString.copyFromUtf8("d"));
+  }
+
+  private static Spawn spawn(String output, String... arguments) {
+    Spawn spawn = mock(Spawn.class);
+    when(spawn.getArguments()).thenReturn(ImmutableList.copyOf(arguments));
+    when(spawn.getEnvironment()).thenReturn(ImmutableMap.<String, String>of());
+    when(spawn.getExecutionInfo()).thenReturn(ImmutableMap.<String, String>of());
+    when(spawn.getRunfilesManifests()).thenReturn(ImmutableMap.<PathFragment, Artifact>of());
+    when(spawn.getFilesetManifests()).thenReturn(ImmutableList.<Artifact>of());
+    doReturn(ImmutableList.of(ActionInputHelper.fromPath("in"))).when(spawn).getInputFiles();
+    doReturn(ImmutableList.of(ActionInputHelper.fromPath(output))).when(spawn).getOutputFiles();
+    return spawn;
+  }
+
+  private FileOutErr newOutErr(String name) {
+    return new FileOutErr(execRoot.getRelative(name + ".out"), execRoot.getRelative(name + ".err"));
+  }
+
+  /** Runs the spawn "by hand", writing {@code content} to its output, and stores it. */
+  private String execute(SpawnOutputCache cache, Spawn spawn, String content) throws IOException {
+    String key = cache.computeKey(spawn, inputFileCache, null);
+    assertFalse(cache.tryMaterialize(key, execRoot, newOutErr("miss")));
+    ActionInput outputFile = spawn.getOutputFiles().iterator().next();
+    Path output = execRoot.getRelative(outputFile.getExecPathString());
+    FileSystemUtils.writeContentAsLatin1(output, content);
+    cache.store(key, spawn.getOutputFiles(), execRoot, newOutErr("miss"));
+    clock.advanceMillis(1000);
+    return key;
+  }
+
+  @Test
+  public void testHitRestoresDeletedOutput() throws Exception {
+    SpawnOutputCache cache = new SpawnOutputCache(cacheRoot, 1000);
+    Spawn spawn = spawn("out", "touch", "out");
+    String key = execute(cache, spawn, "content");
+
+    Path output = execRoot.getRelative("out");
+    output.delete();
+    assertEquals(key, cache.computeKey(spawn, inputFileCache, null));
+    assertTrue(cache.tryMaterialize(key, execRoot, newOutErr("hit")));
+    assertEquals("content", new String(FileSystemUtils.readContentAsLatin1(output)));
+    assertTrue(output.isWritable());
+    assertEquals(1, cache.getStatistics().getHits());
+  }
+
+  @Test
+  public void testDifferentArgumentsHaveDifferentKeys() throws Exception {
+    SpawnOutputCache cache = new SpawnOutputCache(cacheRoot, 1000);
+    assertThat(cache.computeKey(spawn("out", "a"), inputFileCache, null))
+        .isNotEqualTo(cache.computeKey(spawn("out", "b"), inputFileCache, null));
+  }
+
+  @Test
+  public void testLocalSpawnIsNotCached() throws Exception {
+    SpawnOutputCache cache = new SpawnOutputCache(cacheRoot, 1000);
+    Spawn spawn = spawn("out", "a");
+    when(spawn.getExecutionInfo()).thenReturn(ImmutableMap.of("local", ""));
+    assertNull(cache.computeKey(spawn, inputFileCache, null));
+  }
+
+  @Test
+  public void testChangingMaterializedOutputDoesNotChangeCache() throws Exception {
+    SpawnOutputCache cache = new SpawnOutputCache(cacheRoot, 1000);
+    Spawn spawn = spawn("out", "a");
+    String key = execute(cache, spawn, "content");
+
+    Path output = execRoot.getRelative("out");
+    assertTrue(cache.tryMaterialize(key, execRoot, newOutErr("hit")));
+    output.setExecutable(true);
+    FileSystemUtils.writeContentAsLatin1(output, "changed");
+
+    output.delete();
+    assertTrue(cache.tryMaterialize(key, execRoot, newOutErr("hit")));
+    assertEquals("content", new String(FileSystemUtils.readContentAsLatin1(output)));
+    assertFalse(output.isExecutable());
+  }
+
+  @Test
+  public void testStdoutAndStderrAreReplayed() throws Exception {
+    SpawnOutputCache cache = new SpawnOutputCache(cacheRoot, 1000);
+    Spawn spawn = spawn("out", "a");
+    String key = cache.computeKey(spawn, inputFileCache, null);
+    FileSystemUtils.writeContentAsLatin1(execRoot.getRelative("out"), "content");
+    FileOutErr outErr = newOutErr("first");
+    outErr.printOut("hello");
+    outErr.printErr("warning");
+    cache.store(key, spawn.getOutputFiles(), execRoot, outErr);
+
+    FileOutErr replayed = newOutErr("second");
+    assertTrue(cache.tryMaterialize(key, execRoot, replayed));
+    assertEquals("hello", replayed.outAsLatin1());
+    assertEquals("warning", replayed.errAsLatin1());
+  }
+
+  @Test
+  public void testNothingIsReplayedIfAnOutputCannotBeCopied() throws Exception {
+    SpawnOutputCache cache = new SpawnOutputCache(cacheRoot, 1000);
+    Spawn spawn = spawn("dir/out", "a");
+    String key = cache.computeKey(spawn, inputFileCache, null);
+    FileSystemUtils.createDirectoryAndParents(execRoot.getRelative("dir"));
+    FileSystemUtils.writeContentAsLatin1(execRoot.getRelative("dir/out"), "content");
+    FileOutErr outErr = newOutErr("first");
+    outErr.printOut("hello");
+    cache.store(key, spawn.getOutputFiles(), execRoot, outErr);
+
+    // A file where the output directory should be makes the copy fail.
+    FileSystemUtils.deleteTree(execRoot.getRelative("dir"));
+    FileSystemUtils.writeContentAsLatin1(execRoot.getRelative("dir"), "in the way");
+    FileOutErr replayed = newOutErr("second");
+    try {
+      cache.tryMaterialize(key, execRoot, replayed);
+      fail();
+    } catch (IOException e) {
+      // Expected.
+    }
+    assertFalse(replayed.hasRecordedOutput());
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() throws Exception {
+    SpawnOutputCache cache = new SpawnOutputCache(cacheRoot, 100);
+    String first = execute(cache, spawn("a", "a"), "0123456789012345678901234567890123456789");
+    String second = execute(cache, spawn("b", "b"), "abcdefghijabcdefghijabcdefghijabcdefghij");
+    assertTrue(cache.tryMaterialize(first, execRoot, newOutErr("hit")));
+    clock.advanceMillis(1000);
+    execute(cache, spawn("c", "c"), "ABCDEFGHIJABCDEFGHIJABCDEFGHIJABCDEFGHIJ");
+
+    assertTrue(cache.tryMaterialize(first, execRoot, newOutErr("hit")));
+    assertFalse(cache.tryMaterialize(second, execRoot, newOutErr("miss")));
+    assertEquals(1, cache.getStatistics().getEvictions());
+    assertEquals(80, cache.getStatistics().getSizeBytes());
+  }
+
+  @Test
+  public void testLimitIsSharedBetweenServers() throws Exception {
+    SpawnOutputCache server1 = new SpawnOutputCache(cacheRoot, 100);
+    SpawnOutputCache server2 = new SpawnOutputCache(cacheRoot, 100);
+    String first = execute(server1, spawn("a", "a"), "0123456789012345678901234567890123456789");
+    execute(server2, spawn("b", "b"), "abcdefghijabcdefghijabcdefghijabcdefghij");
+    execute(server2, spawn("c", "c"), "ABCDEFGHIJABCDEFGHIJABCDEFGHIJABCDEFGHIJ");
+
+    // Neither server stored more than the limit, but together they did.
+    assertEquals(1, server2.getStatistics().getEvictions());
+    assertFalse(server1.tryMaterialize(first, execRoot, newOutErr("miss")));
+  }
+
+  @Test
+  public void testOnlyStaleTemporaryFilesAreDeleted() throws Exception {
+    new SpawnOutputCache(cacheRoot, 100);
+    Path fresh = cacheRoot.getRelative("cas/abc.tmp.fresh");
+    Path stale = cacheRoot.getRelative("cas/def.tmp.stale");
+    FileSystemUtils.writeContentAsLatin1(fresh, "being written");
+    FileSystemUtils.writeContentAsLatin1(stale, "left behind");
+    fresh.setLastModifiedTime(System.currentTimeMillis());
+    stale.setLastModifiedTime(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2));
+
+    SpawnOutputCache cache = new SpawnOutputCache(cacheRoot, 100);
+    assertTrue(fresh.exists());
+    assertFalse(stale.exists());
+    assertEquals(0, cache.getStatistics().getSizeBytes());
+  }
+
+  @Test
+  public void testPicksUpBlobsOfPreviousServer() throws Exception {
+    String key = execute(new SpawnOutputCache(cacheRoot, 100), spawn("out", "a"), "content");
+    execRoot.getRelative("out").delete();
+
+    SpawnOutputCache cache = new SpawnOutputCache(cacheRoot, 100);
+    assertNotNull(key);
+    assertTrue(cache.tryMaterialize(key, execRoot, newOutErr("hit")));
+    assertEquals(7, cache.getStatistics().getSizeBytes());
+  }
+}
@@ -0,0 +1,178 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.packages;
+
+import static com.google.devtools.build.lib.packages.Attribute.attr;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.events.StoredEventHandler;
+import com.google.devtools.build.lib.syntax.Label;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.util.FsApparatus;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Map;
+
+/**
+ * Tests of how a {@link Rule} stores its attribute values in an {@link AttributeContainer}.
+ */
+@RunWith(JUnit4.class)
+public class AttributeContainerTest {
+
+  private static final int NUM_IMPLICIT_ATTRIBUTES = 40;
+
+  private FsApparatus scratch = FsApparatus.newInMemory();
+  private RuleClass ruleClass;
+  private Path buildFile;
+  private Package.LegacyBuilder pkgBuilder;
+  private StoredEventHandler eventHandler;
+
+  @Before
+  public void setUp() throws Exception {
+    RuleClass.Builder builder =
+        new RuleClass.Builder("fake_library", RuleClass.Builder.RuleClassType.NORMAL, false)
+            .factory(new RuleClass.ConfiguredTargetFactory<Object, Object>() {
+              @Override
+              public Object create(Object ruleContext) {
+                throw new UnsupportedOperationException();
+              }
+            })
+            .add(attr("tags", Type.STRING_LIST))
+            .add(attr("visibility", Type.NODEP_LABEL_LIST))
+            .add(attr("licenses", Type.LICENSE))
+            .add(attr("srcs", Type.LABEL_LIST).legacyAllowAnyFileType())
+            .add(attr("deps", Type.LABEL_LIST).legacyAllowAnyFileType())
+            .add(attr("copts", Type.STRING_LIST));
+    // Real rule classes have many implicit dependencies, which rules almost never override.
+    for (int i = 0; i < NUM_IMPLICIT_ATTRIBUTES; i++) {
+      builder.add(attr("$tool" + i, Type.LABEL)
+          .value(Label.parseAbsoluteUnchecked("//tools:tool" + i)));
+    }
+    ruleClass = builder.build();
+    buildFile = scratch.path("/pkg/BUILD");
+    pkgBuilder = new Package.LegacyBuilder(PackageIdentifier.createInDefaultRepo("pkg"));
+    pkgBuilder.setFilename(buildFile);
+    eventHandler = new StoredEventHandler();
+  }
+
+  private Rule createRule(Map<String, Object> attributeValues) throws Exception {
+    Rule rule = RuleFactory.createAndAddRule(pkgBuilder, ruleClass, attributeValues,
+        eventHandler, null, Location.fromFile(buildFile));
+    assertTrue(eventHandler.getEvents().toString(), eventHandler.isEmpty());
+    return rule;
+  }
+
+  private Rule createRule(String name, String... deps) throws Exception {
+    return createRule(ImmutableMap.<String, Object>of(
+        "name", name,
+        "srcs", ImmutableList.of(name + ".cc"),
+        "deps", ImmutableList.copyOf(deps),
+        "visibility", ImmutableList.of("//visibility:public")));
+  }
+
+  @Test
+  public void testUnsetAttributesHaveTheDefaultValue() throws Exception {
+    Rule rule = createRule("lib", "//base:base");
+    RawAttributeMapper attributes = RawAttributeMapper.of(rule);
+    assertEquals(ImmutableList.of(Label.parseAbsolute("//pkg:lib.cc")),
+        attributes.get("srcs", Type.LABEL_LIST));
+    assertEquals(Label.parseAbsolute("//tools:tool3"), attributes.get("$tool3", Type.LABEL));
+    assertEquals(ImmutableList.of(), attributes.get("copts", Type.STRING_LIST));
+    assertEquals(License.NO_LICENSE, attributes.get("licenses", Type.LICENSE));
+    assertTrue(attributes.isAttributeValueExplicitlySpecified("srcs"));
+    assertFalse(attributes.isAttributeValueExplicitlySpecified("copts"));
+    assertFalse(attributes.isAttributeValueExplicitlySpecified("$tool3"));
+  }
+
+  @Test
+  public void testExplicitDefaultValue() throws Exception {
+    Rule rule = createRule(ImmutableMap.<String, Object>of(
+        "name", "lib",
+        "copts", ImmutableList.of()));
+    AttributeContainer attributes = rule.getAttributeContainer();
+    assertEquals(ImmutableList.of(), attributes.getAttr("copts"));
+    assertTrue(attributes.isAttributeValueExplicitlySpecified("copts"));
+    assertFalse(attributes.isAttributeValueExplicitlySpecified("tags"));
+  }
+
+  @Test
+  public void testLocationOfAttributeWithDefaultValue() throws Exception {
+    Rule rule = createRule("lib");
+    AttributeContainer attributes = rule.getAttributeContainer();
+    Location location = Location.fromFileAndOffsets(buildFile, 10, 20);
+    assertNull(attributes.getAttributeLocation("$tool3"));
+    attributes.setAttributeLocation(ruleClass.getAttributeIndex("$tool3"), location);
+    assertSame(location, attributes.getAttributeLocation("$tool3"));
+    assertEquals(Label.parseAbsolute("//tools:tool3"), attributes.getAttr("$tool3"));
+    assertNull(attributes.getAttributeLocation("$tool4"));
+  }
+
+  @Test
+  public void testOverriddenDefaultValue() throws Exception {
+    Rule rule = createRule(ImmutableMap.<String, Object>of(
+        "name", "lib",
+        "$tool3", "//other:tool"));
+    AttributeContainer attributes = rule.getAttributeContainer();
+    assertEquals(Label.parseAbsolute("//other:tool"), attributes.getAttr("$tool3"));
+    assertEquals(Label.parseAbsolute("//tools:tool2"), attributes.getAttr("$tool2"));
+    assertEquals(Label.parseAbsolute("//tools:tool4"), attributes.getAttr("$tool4"));
+  }
+
+  @Test
+  public void testEqualListValuesAreShared() throws Exception {
+    Rule first = createRule("first", "//base:base", "//util:util");
+    Rule second = createRule("second", "//base:base", "//util:util");
+    assertSame(first.getAttributeContainer().getAttr("deps"),
+        second.getAttributeContainer().getAttr("deps"));
+    assertSame(first.getAttributeContainer().getAttr("visibility"),
+        second.getAttributeContainer().getAttr("visibility"));
+  }
+
+  @Test
+  public void testLargePackageOnlyStoresNonDefaultValues() throws Exception {
+    int numRules = 10000;
+    Object sharedDeps = null;
+    for (int i = 0; i < numRules; i++) {
+      Rule rule = i % 2 == 0
+          ? createRule(ImmutableMap.<String, Object>of("name", "plain" + i))
+          : createRule("lib" + i, "//base:base", "//util:util");
+      AttributeContainer attributes = rule.getAttributeContainer();
+      if (i % 2 == 0) {
+        // Only the name was set; every other attribute, including all implicit ones, has the
+        // default value of the rule class.
+        assertEquals(1, attributes.getSlotCount());
+        assertSame(ruleClass.getSharedDefaultValue(ruleClass.getAttributeIndex("$tool7")),
+            attributes.getAttr("$tool7"));
+      } else {
+        // name, srcs, deps and visibility.
+        assertEquals(4, attributes.getSlotCount());
+        if (sharedDeps == null) {
+          sharedDeps = attributes.getAttr("deps");
+        }
+        assertSame(sharedDeps, attributes.getAttr("deps"));
+      }
+    }
+  }
+}
@@ -0,0 +1,269 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.remote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.actions.ActionExecutionContext;
+import com.google.devtools.build.lib.actions.ActionInput;
+import com.google.devtools.build.lib.actions.ActionInputFileCache;
+import com.google.devtools.build.lib.actions.ActionInputHelper;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.EnvironmentalExecException;
+import com.google.devtools.build.lib.actions.Executor;
+import com.google.devtools.build.lib.actions.Spawn;
+import com.google.devtools.build.lib.actions.SpawnActionContext;
+import com.google.devtools.build.lib.actions.UserExecException;
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.util.Fingerprint;
+import com.google.devtools.build.lib.util.io.FileOutErr;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.util.FileSystems;
+import com.google.protobuf.ByteString;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Round-trip tests of {@link RemoteSpawnStrategy} against a {@link RemoteWorker}.
+ */
+@RunWith(JUnit4.class)
+public class RemoteSpawnStrategyTest {
+
+  private Path execRoot;
+  private Path workRoot;
+  private RemoteWorker worker;
+  private SpawnActionContext fallbackStrategy;
+  private ActionExecutionContext actionExecutionContext;
+  private FileOutErr outErr;
+
+  @Before
+  public final void startWorker() throws Exception {
+    Path tmp = FileSystems.initDefaultAsJavaIo().getPath(TestUtils.makeTempDir().getPath());
+    execRoot = tmp.getChild("exec");
+    workRoot = tmp.getChild("worker");
+    FileSystemUtils.createDirectoryAndParents(execRoot);
+    worker = RemoteWorker.start(workRoot, 1 << 20);
+    fallbackStrategy = mock(SpawnActionContext.class);
+
+    ActionInputFileCache inputFileCache = new ActionInputFileCache() {
+      @Override
+      public ByteString getDigest(ActionInput input) throws IOException {
+        return ByteString.copyFromUtf8(Fingerprint.hexDigest(path(input).getMD5Digest()));
+      }
+
+      @Override
+      public long getSizeInBytes(ActionInput input) throws IOException {
+        return path(input).getFileSize();
+      }
+
+      @Override
+      public boolean contentsAvailableLocally(ByteString digest) {
+        return false;
+      }
+
+      @Override
+      public File getFileFromDigest(ByteString digest) {
+        return null;
+      }
+
+      private Path path(ActionInput input) {
+        return execRoot.getRelative(input.getExecPathString());
+      }
+    };
+    outErr = new FileOutErr(tmp.getChild("stdout"), tmp.getChild("stderr"));
+    actionExecutionContext = new ActionExecutionContext(mock(Executor.class), inputFileCache,
+        null, outErr, null);
+  }
+
+  @After
+  public final void stopWorker() throws Exception {
+    worker.close();
+    FileSystemUtils.deleteTree(execRoot.getParentDirectory());
+  }
+
+  private RemoteSpawnStrategy createStrategy(byte[] token) {
+    return createStrategy(worker.getPort(), token, 10000);
+  }
+
+  private RemoteSpawnStrategy createStrategy(int port, byte[] token, int timeoutMillis) {
+    return new RemoteSpawnStrategy(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+        token, execRoot, fallbackStrategy, false, timeoutMillis);
+  }
+
+  private static Spawn spawn(String command, String input, String output) {
+    Spawn spawn = mock(Spawn.class);
+    when(spawn.isRemotable()).thenReturn(true);
+    when(spawn.getArguments()).thenReturn(ImmutableList.of("/bin/sh", "-c", command));
+    when(spawn.getEnvironment()).thenReturn(ImmutableMap.<String, String>of());
+    when(spawn.getRunfilesManifests()).thenReturn(ImmutableMap.<PathFragment, Artifact>of());
+    when(spawn.getFilesetManifests()).thenReturn(ImmutableList.<Artifact>of());
+    doReturn(ImmutableList.of(ActionInputHelper.fromPath(input))).when(spawn).getInputFiles();
+    doReturn(ImmutableList.of(ActionInputHelper.fromPath(output))).when(spawn).getOutputFiles();
+    return spawn;
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    FileSystemUtils.createDirectoryAndParents(execRoot.getRelative("in"));
+    FileSystemUtils.writeContentAsLatin1(execRoot.getRelative("in/data.txt"), "hello");
+    Spawn spawn = spawn("cat in/data.txt > out/copy.txt; echo done", "in/data.txt",
+        "out/copy.txt");
+    RemoteSpawnStrategy strategy = createStrategy(worker.getToken());
+
+    strategy.exec(spawn, actionExecutionContext);
+    assertEquals("hello",
+        new String(FileSystemUtils.readContentAsLatin1(execRoot.getRelative("out/copy.txt"))));
+    assertEquals("done\n", outErr.outAsLatin1());
+    assertEquals(5, strategy.getStatistics().getBytesUploaded());
+    assertEquals(5, strategy.getStatistics().getBytesDownloaded());
+
+    // The worker still has the input, so it is not uploaded again.
+    execRoot.getRelative("out/copy.txt").delete();
+    strategy.exec(spawn, actionExecutionContext);
+    assertTrue(execRoot.getRelative("out/copy.txt").exists());
+    assertEquals(5, strategy.getStatistics().getBytesUploaded());
+    assertEquals(5, strategy.getStatistics().getBytesDeduplicated());
+    assertEquals(2, strategy.getStatistics().getRemoteSpawns());
+    verify(fallbackStrategy, never()).exec(spawn, actionExecutionContext);
+  }
+
+  @Test
+  public void testFailingCommand() throws Exception {
+    FileSystemUtils.writeContentAsLatin1(execRoot.getRelative("in.txt"), "hello");
+    try {
+      createStrategy(worker.getToken()).exec(spawn("exit 3", "in.txt", "out.txt"),
+          actionExecutionContext);
+      fail();
+    } catch (UserExecException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("exit 3"));
+    }
+    assertFalse(execRoot.getRelative("out.txt").exists());
+  }
+
+  @Test
+  public void testWrongTokenIsRejected() throws Exception {
+    FileSystemUtils.writeContentAsLatin1(execRoot.getRelative("in.txt"), "hello");
+    try {
+      createStrategy("wrong".getBytes()).exec(spawn("touch out.txt", "in.txt", "out.txt"),
+          actionExecutionContext);
+      fail();
+    } catch (EnvironmentalExecException e) {
+      // Expected.
+    }
+    assertEquals(0, worker.getBlobCount());
+    assertFalse(workRoot.getRelative("1/out.txt").exists());
+  }
+
+  @Test
+  public void testBlobStoreIsBounded() throws Exception {
+    worker.close();
+    worker = RemoteWorker.start(workRoot, 10);
+    RemoteSpawnStrategy strategy = createStrategy(worker.getToken());
+    FileSystemUtils.writeContentAsLatin1(execRoot.getRelative("a.txt"), "aaaaaaaa");
+    FileSystemUtils.writeContentAsLatin1(execRoot.getRelative("b.txt"), "bbbbbbbb");
+
+    strategy.exec(spawn("cp a.txt a.out", "a.txt", "a.out"), actionExecutionContext);
+    strategy.exec(spawn("cp b.txt b.out", "b.txt", "b.out"), actionExecutionContext);
+    assertEquals(1, worker.getBlobCount());
+    assertEquals(8, worker.getBlobBytes());
+
+    // a.txt was evicted, so it is uploaded again.
+    strategy.exec(spawn("cp a.txt a.out", "a.txt", "a.out"), actionExecutionContext);
+    assertEquals(24, strategy.getStatistics().getBytesUploaded());
+    assertEquals("aaaaaaaa",
+        new String(FileSystemUtils.readContentAsLatin1(execRoot.getRelative("a.out"))));
+  }
+
+  @Test
+  public void testInputsEvictedOnEveryAttempt() throws Exception {
+    worker.close();
+    worker = RemoteWorker.start(workRoot, 10);
+    FileSystemUtils.writeContentAsLatin1(execRoot.getRelative("a.txt"), "aaaaaaaa");
+    FileSystemUtils.writeContentAsLatin1(execRoot.getRelative("b.txt"), "bbbbbbbb");
+    // Uploading b.txt evicts a.txt, so the worker never holds both inputs at once.
+    Spawn spawn = spawn("cat a.txt b.txt > out.txt", "a.txt", "out.txt");
+    doReturn(ImmutableList.of(ActionInputHelper.fromPath("a.txt"),
+        ActionInputHelper.fromPath("b.txt"))).when(spawn).getInputFiles();
+    try {
+      createStrategy(worker.getToken()).exec(spawn, actionExecutionContext);
+      fail();
+    } catch (EnvironmentalExecException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("evicted the inputs"));
+    }
+    assertFalse(execRoot.getRelative("out.txt").exists());
+  }
+
+  @Test
+  public void testSilentWorkerTimesOut() throws Exception {
+    FileSystemUtils.writeContentAsLatin1(execRoot.getRelative("in.txt"), "hello");
+    // The connection is queued in the backlog, but nothing ever reads from or answers it.
+    try (ServerSocket silentWorker = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+      createStrategy(silentWorker.getLocalPort(), new byte[0], 200)
+          .exec(spawn("touch out.txt", "in.txt", "out.txt"), actionExecutionContext);
+      fail();
+    } catch (EnvironmentalExecException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("no answer from the worker"));
+    }
+  }
+
+  @Test
+  public void testInterruptWhileWaitingForWorker() throws Exception {
+    FileSystemUtils.writeContentAsLatin1(execRoot.getRelative("in.txt"), "hello");
+    try (ServerSocket silentWorker = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+      final RemoteSpawnStrategy strategy =
+          createStrategy(silentWorker.getLocalPort(), new byte[0], 60000);
+      final Spawn spawn = spawn("touch out.txt", "in.txt", "out.txt");
+      final AtomicReference<Exception> thrown = new AtomicReference<>();
+      Thread thread = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            strategy.exec(spawn, actionExecutionContext);
+          } catch (Exception e) {
+            thrown.set(e);
+          }
+        }
+      });
+      thread.start();
+      Thread.sleep(100);
+      thread.interrupt();
+      thread.join(10000);
+      assertFalse(thread.isAlive());
+      assertTrue(String.valueOf(thrown.get()), thrown.get() instanceof InterruptedException);
+    }
+  }
+}
@@ -0,0 +1,117 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.rules.test;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link TestShardQueue} and {@link TestTimingHistory}.
+ */
+@RunWith(JUnit4.class)
+public class TestShardQueueTest {
+
+  private Path baseDir;
+  private Path historyFile;
+
+  @Before
+  public final void createBaseDir() throws Exception {
+    baseDir = new InMemoryFileSystem(BlazeClock.instance()).getPath("/exec/testlogs/pkg/test");
+    FileSystemUtils.createDirectoryAndParents(baseDir);
+    historyFile = TestTimingHistory.getHistoryFile(baseDir);
+  }
+
+  @Test
+  public void testNoQueueWithoutHistory() throws Exception {
+    assertNull(new TestShardQueue().getOrCreateQueue(baseDir, 0));
+  }
+
+  @Test
+  public void testQueueIsOrderedSlowestFirst() throws Exception {
+    TestTimingHistory.update(historyFile, ImmutableMap.of("fast", 10L, "slow", 300L, "mid", 50L));
+
+    TestShardQueue queue = new TestShardQueue();
+    Path queueDir = queue.getOrCreateQueue(baseDir, 0);
+    assertEquals("slow\n", new String(FileSystemUtils.readContentAsLatin1(
+        queueDir.getChild("00000000"))));
+    assertEquals("mid\n", new String(FileSystemUtils.readContentAsLatin1(
+        queueDir.getChild("00000001"))));
+    assertEquals("fast\n", new String(FileSystemUtils.readContentAsLatin1(
+        queueDir.getChild("00000002"))));
+    assertThat(queueDir.getChild("claimed").isDirectory()).isTrue();
+
+    // The other shards of the run share the queue, which is not repopulated.
+    queueDir.getChild("00000000").renameTo(queueDir.getRelative("claimed/00000000"));
+    assertSame(queueDir, queue.getOrCreateQueue(baseDir, 0));
+    assertThat(queueDir.getChild("00000000").exists()).isFalse();
+    assertThat(queue.getOrCreateQueue(baseDir, 1)).isNotEqualTo(queueDir);
+  }
+
+  @Test
+  public void testUpdateMergesDurations() throws Exception {
+    TestTimingHistory.update(historyFile, ImmutableMap.of("a", 10L, "b", 20L));
+    TestTimingHistory.update(historyFile, ImmutableMap.of("b", 30L, "c", 40L));
+    assertEquals(ImmutableMap.of("a", 10L, "b", 30L, "c", 40L),
+        TestTimingHistory.load(historyFile));
+  }
+
+  @Test
+  public void testDamagedHistoryIsIgnored() throws Exception {
+    FileSystemUtils.writeContentAsLatin1(historyFile, "10\ta\nnot a number\tb\n");
+    assertThat(TestTimingHistory.load(historyFile)).isEmpty();
+  }
+
+  @Test
+  public void testCompleteRunDropsDeletedTestCases() throws Exception {
+    TestTimingHistory.update(historyFile, ImmutableMap.of("a", 10L, "deleted", 20L));
+
+    TestShardQueue queue = new TestShardQueue();
+    queue.recordShard(baseDir, 0, 2, ImmutableMap.of("a", 15L));
+    // Until all shards reported, the other test cases may still be running.
+    assertEquals(ImmutableMap.of("a", 15L, "deleted", 20L), TestTimingHistory.load(historyFile));
+
+    queue.recordShard(baseDir, 0, 2, ImmutableMap.of("new", 5L));
+    assertEquals(ImmutableMap.of("a", 15L, "new", 5L), TestTimingHistory.load(historyFile));
+  }
+
+  @Test
+  public void testRunsAreCountedSeparately() throws Exception {
+    TestTimingHistory.update(historyFile, ImmutableMap.of("deleted", 20L));
+
+    TestShardQueue queue = new TestShardQueue();
+    queue.recordShard(baseDir, 0, 2, ImmutableMap.of("a", 15L));
+    queue.recordShard(baseDir, 1, 2, ImmutableMap.of("b", 15L));
+    assertEquals(ImmutableMap.of("a", 15L, "b", 15L, "deleted", 20L),
+        TestTimingHistory.load(historyFile));
+  }
+
+  @Test
+  public void testSlowestFirstBreaksTiesByName() {
+    assertThat(TestTimingHistory.slowestFirst(ImmutableMap.of("b", 10L, "a", 10L, "c", 20L)))
+        .containsExactly("c", "a", "b").inOrder();
+  }
+}
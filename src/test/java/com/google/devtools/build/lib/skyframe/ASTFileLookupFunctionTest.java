@@ -0,0 +1,149 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.Iterables;
+import com.google.devtools.build.lib.events.StoredEventHandler;
+import com.google.devtools.build.lib.packages.CachingPackageLocator;
+import com.google.devtools.build.lib.pkgcache.PathPackageLocator;
+import com.google.devtools.build.lib.syntax.BuildFileAST;
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests for the {@link ASTFileCache} of {@link ASTFileLookupFunction} and the equality of
+ * {@link ASTFileLookupValue}.
+ */
+@RunWith(JUnit4.class)
+public class ASTFileLookupFunctionTest {
+
+  private Path workspace;
+  private ASTFileLookupFunction function;
+  private StoredEventHandler eventHandler;
+
+  @Before
+  public final void createFunction() throws Exception {
+    workspace = new InMemoryFileSystem(BlazeClock.instance()).getPath("/ws");
+    CachingPackageLocator locator = new CachingPackageLocator() {
+      @Override
+      public Path getBuildFileForPackage(String packageName) {
+        Path buildFile = workspace.getRelative(packageName).getChild("BUILD");
+        return buildFile.exists() ? buildFile : null;
+      }
+    };
+    function = new ASTFileLookupFunction(
+        new AtomicReference<PathPackageLocator>(), locator, null);
+    eventHandler = new StoredEventHandler();
+  }
+
+  private Path write(String name, String content) throws Exception {
+    Path path = workspace.getRelative(name);
+    FileSystemUtils.createDirectoryAndParents(path.getParentDirectory());
+    FileSystemUtils.writeContentAsLatin1(path, content);
+    return path;
+  }
+
+  private BuildFileAST parse(Path path) throws Exception {
+    return function.parse(path, false, eventHandler);
+  }
+
+  @Test
+  public void testUnchangedContentReturnsCachedTree() throws Exception {
+    Path buildFile = write("pkg/BUILD", "x = 1\n");
+    BuildFileAST ast = parse(buildFile);
+    assertSame(ast, parse(buildFile));
+
+    write("pkg/BUILD", "x = 2\n");
+    BuildFileAST changed = parse(buildFile);
+    assertNotSame(ast, changed);
+    assertThat(changed.getStatements().toString()).contains("2");
+
+    write("pkg/BUILD", "x = 1\n");
+    assertSame(ast, parse(buildFile));
+  }
+
+  @Test
+  public void testTreeWithErrorsIsNotCached() throws Exception {
+    Path buildFile = write("pkg/BUILD", "x = (\n");
+    BuildFileAST ast = parse(buildFile);
+    assertTrue(ast.containsErrors());
+    assertNotSame(ast, parse(buildFile));
+  }
+
+  @Test
+  public void testTreeWithIncludeIsNotCached() throws Exception {
+    write("inc/BUILD", "");
+    write("inc/defs", "y = 1\n");
+    Path buildFile = write("pkg/BUILD", "include('//inc:defs')\n");
+    BuildFileAST ast = parse(buildFile);
+    assertTrue(ASTFileCache.hasIncludes(ast));
+    assertThat(Iterables.getLast(ast.getStatements()).toString()).contains("y");
+
+    // The including file did not change, but the included one did.
+    write("inc/defs", "z = 1\n");
+    BuildFileAST changed = parse(buildFile);
+    assertNotSame(ast, changed);
+    assertThat(Iterables.getLast(changed.getStatements()).toString()).contains("z");
+    assertThat(eventHandler.getEvents()).isEmpty();
+  }
+
+  @Test
+  public void testHasIncludes() throws Exception {
+    assertFalse(ASTFileCache.hasIncludes(parse(write("pkg/BUILD", "x = 1\n"))));
+    assertFalse(ASTFileCache.hasIncludes(parse(write("pkg/BUILD", "subinclude('//a:b')\n"))));
+  }
+
+  @Test
+  public void testKeyCoversPathKindAndContent() throws Exception {
+    Path a = workspace.getRelative("a");
+    Path b = workspace.getRelative("b");
+    String key = ASTFileCache.key(a, false, "x = 1".toCharArray());
+    assertEquals(key, ASTFileCache.key(a, false, "x = 1".toCharArray()));
+    assertThat(ASTFileCache.key(b, false, "x = 1".toCharArray())).isNotEqualTo(key);
+    assertThat(ASTFileCache.key(a, true, "x = 1".toCharArray())).isNotEqualTo(key);
+    assertThat(ASTFileCache.key(a, false, "x = 2".toCharArray())).isNotEqualTo(key);
+  }
+
+  @Test
+  public void testValuesAreEqualOnlyForTheSameTree() throws Exception {
+    Path buildFile = write("pkg/BUILD", "x = 1\n");
+    BuildFileAST ast = parse(buildFile);
+    assertEquals(ASTFileLookupValue.withFile(ast), ASTFileLookupValue.withFile(ast));
+    assertEquals(ASTFileLookupValue.withFile(ast).hashCode(),
+        ASTFileLookupValue.withFile(ast).hashCode());
+
+    // A tree parsed from the same content without the cache is a different tree.
+    BuildFileAST reparsed = BuildFileAST.parseBuildFile(buildFile, eventHandler, null, false);
+    assertThat(ASTFileLookupValue.withFile(reparsed))
+        .isNotEqualTo(ASTFileLookupValue.withFile(ast));
+    assertThat(ASTFileLookupValue.withFile(ast)).isNotEqualTo(ASTFileLookupValue.noFile());
+    assertEquals(ASTFileLookupValue.noFile(), ASTFileLookupValue.noFile());
+  }
+}
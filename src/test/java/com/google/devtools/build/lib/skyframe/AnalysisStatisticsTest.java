@@ -0,0 +1,70 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link AnalysisStatistics}.
+ */
+@RunWith(JUnit4.class)
+public class AnalysisStatisticsTest {
+
+  private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Test
+  public void testCountsByRuleClass() {
+    AnalysisStatistics statistics = new AnalysisStatistics();
+    statistics.record("java_library", true, MILLIS);
+    statistics.record("java_library", false, MILLIS);
+    statistics.record("genrule", false, MILLIS);
+    assertEquals(3, statistics.getEvaluations());
+    assertEquals(1, statistics.getRestarts());
+    assertEquals(2, statistics.getEvaluations("java_library"));
+    assertEquals(1, statistics.getRestarts("java_library"));
+    assertEquals(0, statistics.getRestarts("genrule"));
+    assertEquals(0, statistics.getEvaluations("cc_library"));
+  }
+
+  @Test
+  public void testClear() {
+    AnalysisStatistics statistics = new AnalysisStatistics();
+    statistics.record("java_library", true, MILLIS);
+    statistics.clear();
+    assertEquals(0, statistics.getEvaluations());
+    assertEquals(0, statistics.getRestarts("java_library"));
+  }
+
+  @Test
+  public void testReportListsMostExpensiveRuleClassesFirst() {
+    AnalysisStatistics statistics = new AnalysisStatistics();
+    statistics.record("cheap", false, MILLIS);
+    statistics.record("expensive", true, 30 * MILLIS);
+    statistics.record("expensive", false, 20 * MILLIS);
+    statistics.record("middle", false, 10 * MILLIS);
+
+    String[] lines = statistics.report(2).split("\n");
+    assertEquals(3, lines.length);
+    assertEquals("Analysis: 4 configured target evaluations, 1 restarts", lines[0]);
+    assertEquals("  expensive: 2 evaluations, 1 restarts, 50 ms", lines[1]);
+    assertTrue(lines[2], lines[2].startsWith("  middle: 1 evaluations"));
+  }
+}
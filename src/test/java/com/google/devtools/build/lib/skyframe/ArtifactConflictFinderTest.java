@@ -0,0 +1,160 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.actions.Action;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.Root;
+import com.google.devtools.build.lib.actions.util.ActionsTestUtil.NullAction;
+import com.google.devtools.build.lib.skyframe.SkyframeActionExecutor.ConflictException;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.vfs.PathFragment;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tests for {@link ArtifactConflictFinder}.
+ */
+@RunWith(JUnit4.class)
+public class ArtifactConflictFinderTest {
+
+  private Root root;
+  private ArtifactConflictFinder finder;
+
+  @Before
+  public final void createRoot() throws Exception {
+    Scratch scratch = new Scratch();
+    root = Root.asDerivedRoot(scratch.dir("/exec"), scratch.dir("/exec/out"));
+    finder = new ArtifactConflictFinder();
+  }
+
+  private Artifact artifact(String rootRelativePath) {
+    return new Artifact(new PathFragment(rootRelativePath), root);
+  }
+
+  private static ActionLookupValue value(Action... actions) {
+    return new ActionLookupValue(ImmutableList.copyOf(actions));
+  }
+
+  /** Returns an action that cannot be shared with a {@link NullAction} for the same outputs. */
+  private static Action otherAction(Artifact... outputs) {
+    return new NullAction(outputs) {
+      @Override
+      public String getMnemonic() {
+        return "Other";
+      }
+    };
+  }
+
+  private ImmutableMap<Action, ConflictException> update(ActionLookupValue... values)
+      throws InterruptedException {
+    return finder.update(ImmutableList.copyOf(values));
+  }
+
+  @Test
+  public void testActionHeldByRemainingValueStaysRegistered() throws Exception {
+    Action shared = new NullAction(artifact("a"));
+    ActionLookupValue first = value(shared);
+    ActionLookupValue second = value(shared);
+    assertThat(update(first, second)).isEmpty();
+    assertThat(update(second)).isEmpty();
+
+    // The output of the shared action is still known, so conflicts with it are reported.
+    Action conflicting = otherAction(artifact("a"));
+    assertThat(update(second, value(conflicting)).keySet()).containsExactly(conflicting);
+    Action below = new NullAction(artifact("a/b"));
+    assertThat(update(second, value(below)).keySet()).containsExactly(shared, below);
+  }
+
+  @Test
+  public void testSharedTwinOfRemovedValueStaysRegistered() throws Exception {
+    Action twin = new NullAction(artifact("a"));
+    ActionLookupValue first = value(new NullAction(artifact("a")));
+    ActionLookupValue second = value(twin);
+    assertThat(update(first, second)).isEmpty();
+    assertThat(update(second)).isEmpty();
+
+    Action below = new NullAction(artifact("a/b"));
+    assertThat(update(second, value(below)).keySet()).containsExactly(twin, below);
+  }
+
+  @Test
+  public void testConflictGoesAway() throws Exception {
+    ActionLookupValue first = value(new NullAction(artifact("a")));
+    ActionLookupValue second = value(otherAction(artifact("a")));
+    ImmutableMap<Action, ConflictException> conflicts = update(first, second);
+    assertThat(conflicts).hasSize(1);
+    assertTrue(conflicts.values().iterator().next().isActionConflict());
+
+    assertThat(update(second)).isEmpty();
+    assertThat(update(first, second)).hasSize(1);
+  }
+
+  @Test
+  public void testPrefixConflictIntroducedIncrementally() throws Exception {
+    Action outer = new NullAction(artifact("a"));
+    ActionLookupValue first = value(outer, new NullAction(artifact("b/c")));
+    assertThat(update(first)).isEmpty();
+
+    Action inner = new NullAction(artifact("a/b"));
+    ImmutableMap<Action, ConflictException> conflicts = update(first, value(inner));
+    assertThat(conflicts.keySet()).containsExactly(outer, inner);
+    assertFalse(conflicts.get(inner).isActionConflict());
+
+    assertThat(update(first)).isEmpty();
+  }
+
+  @Test
+  public void testFailureStartsOver() throws Exception {
+    final AtomicBoolean broken = new AtomicBoolean(false);
+    Action brokenAction = new NullAction(artifact("b")) {
+      @Override
+      public ImmutableSet<Artifact> getOutputs() {
+        if (broken.get()) {
+          throw new IllegalStateException("broken");
+        }
+        return super.getOutputs();
+      }
+    };
+    ActionLookupValue first = value(new NullAction(artifact("a")));
+    ActionLookupValue brokenValue = value(brokenAction);
+    assertThat(update(first)).isEmpty();
+
+    broken.set(true);
+    try {
+      update(first, brokenValue);
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e).hasMessage("broken");
+    }
+
+    // All actions are registered again, so the conflict with the action of the first value is
+    // found.
+    Action conflicting = otherAction(artifact("a"));
+    assertThat(update(first, value(conflicting)).keySet()).containsExactly(conflicting);
+  }
+}
@@ -0,0 +1,45 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.devtools.build.lib.analysis.config.BuildConfiguration;
+import com.google.devtools.build.lib.analysis.util.ConfigurationTestCase;
+import com.google.devtools.build.lib.packages.Attribute.ConfigurationTransition;
+import com.google.devtools.build.lib.rules.cpp.CppConfiguration;
+import com.google.devtools.build.lib.rules.java.Jvm;
+
+/**
+ * Tests that {@link ConfigurationFragmentFunction} shares fragments between configurations.
+ */
+public class ConfigurationFragmentFunctionTest extends ConfigurationTestCase {
+
+  public void testTargetAndHostShareFragmentsThatReadTheSameOptions() throws Exception {
+    BuildConfiguration target = create();
+    BuildConfiguration host = target.getConfiguration(ConfigurationTransition.HOST);
+    assertNotSame(target, host);
+    // Jvm only reads --javabase and --java_cpu, which the host takes over by default.
+    assertSame(target.getFragment(Jvm.class), host.getFragment(Jvm.class));
+    // The C++ fragment reads the compilation mode, which is "opt" for the host.
+    assertNotSame(target.getFragment(CppConfiguration.class),
+        host.getFragment(CppConfiguration.class));
+  }
+
+  public void testUnrelatedOptionChangeKeepsFragment() throws Exception {
+    Jvm jvm = create().getFragment(Jvm.class);
+    BuildConfiguration debug = create("-c", "dbg");
+    assertSame(jvm, debug.getFragment(Jvm.class));
+    assertNotSame(create().getFragment(CppConfiguration.class),
+        debug.getFragment(CppConfiguration.class));
+  }
+}
@@ -0,0 +1,49 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.devtools.build.lib.analysis.util.AnalysisTestCase;
+
+/**
+ * Tests for {@link ConfiguredTargetFunction}.
+ */
+public class ConfiguredTargetFunctionTest extends AnalysisTestCase {
+
+  private AnalysisStatistics getAnalysisStatistics() {
+    return skyframeExecutor.skyframeBuildView.getAnalysisStatistics();
+  }
+
+  public void testDependenciesAndAnalysisEnvironmentAreRequestedTogether() throws Exception {
+    StringBuilder build = new StringBuilder("filegroup(name = 'top', srcs = [");
+    for (int i = 0; i < 10; i++) {
+      build.append("':dep").append(i).append("', ");
+    }
+    build.append("])\n");
+    for (int i = 0; i < 10; i++) {
+      build.append("filegroup(name = 'dep").append(i).append("', srcs = ['file")
+          .append(i).append(".txt'])\n");
+    }
+    scratch.file("a/BUILD", build.toString());
+    update("//a:top");
+
+    AnalysisStatistics statistics = getAnalysisStatistics();
+    long evaluations = statistics.getEvaluations("filegroup");
+    long restarts = statistics.getRestarts("filegroup");
+    assertEquals(11, evaluations - restarts);
+    // The dependencies, their aspects and the workspace status values that the analysis
+    // environment needs are requested in one batch, so no filegroup waits twice. Requesting the
+    // workspace status only once the dependencies were done cost a second restart.
+    assertTrue(statistics.report(20), restarts <= 11);
+  }
+}
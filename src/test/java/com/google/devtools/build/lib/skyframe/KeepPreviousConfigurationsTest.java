@@ -0,0 +1,151 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ObjectArrays;
+import com.google.devtools.build.lib.actions.AbstractActionOwner;
+import com.google.devtools.build.lib.actions.Action;
+import com.google.devtools.build.lib.actions.util.ActionsTestUtil;
+import com.google.devtools.build.lib.actions.util.ActionsTestUtil.NullAction;
+import com.google.devtools.build.lib.analysis.ConfiguredAspectFactory;
+import com.google.devtools.build.lib.analysis.ConfiguredTarget;
+import com.google.devtools.build.lib.analysis.FileProvider;
+import com.google.devtools.build.lib.analysis.LabelAndConfiguration;
+import com.google.devtools.build.lib.analysis.buildinfo.BuildInfoFactory.BuildInfoKey;
+import com.google.devtools.build.lib.analysis.config.BuildConfiguration;
+import com.google.devtools.build.lib.analysis.util.AnalysisTestCase;
+import com.google.devtools.build.lib.skyframe.BuildInfoCollectionValue.BuildInfoKeyAndConfig;
+import com.google.devtools.build.lib.syntax.Label;
+import com.google.devtools.build.skyframe.SkyKey;
+
+/**
+ * Tests for {@code --experimental_keep_previous_configurations}, which makes
+ * {@link SkyframeExecutor#dropConfiguredTargetsExcept} keep the analysis of the previous
+ * configurations.
+ */
+public class KeepPreviousConfigurationsTest extends AnalysisTestCase {
+
+  private void updateWithKeptConfigurations(String... options) throws Exception {
+    useConfiguration(
+        ObjectArrays.concat("--experimental_keep_previous_configurations", options));
+    update("//a:a");
+  }
+
+  private static Action actionOwnedBy(final BuildConfiguration configuration) {
+    return new NullAction(new AbstractActionOwner() {
+      @Override
+      public String getConfigurationMnemonic() {
+        return configuration.getMnemonic();
+      }
+
+      @Override
+      public String getConfigurationShortCacheKey() {
+        return configuration.shortCacheKey();
+      }
+    }, ActionsTestUtil.DUMMY_ARTIFACT);
+  }
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    scratch.file("a/BUILD", "filegroup(name = 'a', srcs = ['a.txt'])");
+  }
+
+  public void testDeletionPredicate() throws Exception {
+    updateWithKeptConfigurations();
+    BuildConfiguration retained = getTargetConfiguration();
+    ConfiguredTarget retainedTarget = getConfiguredTarget("//a:a");
+    updateWithKeptConfigurations("-c", "dbg");
+    BuildConfiguration dropped = getTargetConfiguration();
+    ConfiguredTarget droppedTarget = getConfiguredTarget("//a:a");
+    assertNotSame(retained, dropped);
+
+    Predicate<SkyKey> deleted =
+        SequencedSkyframeExecutor.deletedUnlessRetained(ImmutableSet.of(retained));
+    Label label = Label.parseAbsolute("//a:a");
+    assertFalse(deleted.apply(ConfiguredTargetValue.key(label, retained)));
+    assertTrue(deleted.apply(ConfiguredTargetValue.key(label, dropped)));
+    // Input files do not belong to a configuration.
+    assertFalse(deleted.apply(ConfiguredTargetValue.key(label, null)));
+
+    assertFalse(deleted.apply(AspectValue.key(label, retained, ConfiguredAspectFactory.class)));
+    assertTrue(deleted.apply(AspectValue.key(label, dropped, ConfiguredAspectFactory.class)));
+
+    BuildInfoKey buildInfoKey = new BuildInfoKey("test");
+    assertFalse(deleted.apply(new SkyKey(SkyFunctions.BUILD_INFO_COLLECTION,
+        new BuildInfoKeyAndConfig(buildInfoKey, retained))));
+    assertTrue(deleted.apply(new SkyKey(SkyFunctions.BUILD_INFO_COLLECTION,
+        new BuildInfoKeyAndConfig(buildInfoKey, dropped))));
+
+    assertFalse(deleted.apply(
+        TargetCompletionValue.key(new LabelAndConfiguration(retainedTarget))));
+    assertTrue(deleted.apply(TargetCompletionValue.key(new LabelAndConfiguration(droppedTarget))));
+
+    assertFalse(deleted.apply(ActionExecutionValue.key(actionOwnedBy(retained))));
+    assertTrue(deleted.apply(ActionExecutionValue.key(actionOwnedBy(dropped))));
+
+    assertFalse(deleted.apply(WorkspaceStatusValue.SKY_KEY));
+    assertFalse(deleted.apply(PackageValue.key(label.getPackageIdentifier())));
+  }
+
+  public void testPreviousConfigurationIsReused() throws Exception {
+    updateWithKeptConfigurations();
+    ConfiguredTarget first = getConfiguredTarget("//a:a");
+
+    updateWithKeptConfigurations("-c", "dbg");
+    assertFalse(getSkyframeEvaluatedTargetKeys().isEmpty());
+
+    updateWithKeptConfigurations();
+    assertTrue(getSkyframeEvaluatedTargetKeys().isEmpty());
+    assertSame(first, getConfiguredTarget("//a:a"));
+  }
+
+  public void testOlderConfigurationsAreDropped() throws Exception {
+    updateWithKeptConfigurations();
+    ConfiguredTarget first = getConfiguredTarget("//a:a");
+    updateWithKeptConfigurations("-c", "dbg");
+    updateWithKeptConfigurations("-c", "opt");
+
+    updateWithKeptConfigurations();
+    assertFalse(getSkyframeEvaluatedTargetKeys().isEmpty());
+    assertNotSame(first, getConfiguredTarget("//a:a"));
+  }
+
+  public void testChangeWhileConfigurationIsInactiveIsNoticed() throws Exception {
+    updateWithKeptConfigurations();
+    updateWithKeptConfigurations("-c", "dbg");
+    scratch.overwriteFile("a/BUILD", "filegroup(name = 'a', srcs = ['a.txt', 'b.txt'])");
+
+    updateWithKeptConfigurations();
+    assertFalse(getSkyframeEvaluatedTargetKeys().isEmpty());
+    assertEquals("a.txt b.txt", ActionsTestUtil.baseNamesOf(
+        getConfiguredTarget("//a:a").getProvider(FileProvider.class).getFilesToBuild()));
+  }
+
+  public void testOutputFilesAreCheckedWhileConfigurationsAreRetained() throws Exception {
+    updateWithKeptConfigurations();
+    assertFalse(skyframeExecutor.shouldCheckOutputFiles(false));
+
+    updateWithKeptConfigurations("-c", "dbg");
+    assertTrue(skyframeExecutor.shouldCheckOutputFiles(false));
+
+    // Without the option, the configured targets of the previous configurations are dropped.
+    useConfiguration("-c", "opt");
+    update("//a:a");
+    assertFalse(skyframeExecutor.shouldCheckOutputFiles(false));
+    assertTrue(skyframeExecutor.shouldCheckOutputFiles(true));
+  }
+}
@@ -0,0 +1,131 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.analysis.util.BuildViewTestCase;
+import com.google.devtools.build.lib.events.EventHandler;
+import com.google.devtools.build.lib.packages.CachingPackageLocator;
+import com.google.devtools.build.lib.packages.PackageFactory.Globber;
+import com.google.devtools.build.lib.packages.PackageIdentifier;
+import com.google.devtools.build.lib.packages.Preprocessor;
+import com.google.devtools.build.lib.packages.RawAttributeMapper;
+import com.google.devtools.build.lib.packages.Rule;
+import com.google.devtools.build.lib.packages.Type;
+import com.google.devtools.build.lib.syntax.Environment;
+import com.google.devtools.build.lib.syntax.Label;
+import com.google.devtools.build.lib.syntax.ParserInputSource;
+import com.google.devtools.build.skyframe.EvaluationResult;
+import com.google.devtools.build.skyframe.SkyKey;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests for {@link PackageFunction} with a preprocessor, which the
+ * {@link PreprocessedBuildFileFunction} runs.
+ */
+public class PackageFunctionPreprocessingTest extends BuildViewTestCase {
+
+  private static final PackageIdentifier PKG = PackageIdentifier.createInDefaultRepo("pkg");
+
+  /** Turns a BUILD file saying "# txt" into a filegroup of the .txt files of the package. */
+  private static final Preprocessor PREPROCESSOR = new Preprocessor() {
+    @Override
+    public Result preprocess(ParserInputSource in, String packageName, Globber globber,
+        EventHandler eventHandler, Environment globalEnv, Set<String> ruleNames)
+        throws InterruptedException {
+      if (!new String(in.getContent()).equals("# txt")) {
+        return Result.noPreprocessing(in);
+      }
+      List<String> srcs = new ArrayList<>();
+      try {
+        for (String match : globber.fetch(globber.runAsync(ImmutableList.of("*.txt"),
+            ImmutableList.<String>of(), false))) {
+          srcs.add("'" + match + "'");
+        }
+      } catch (Exception e) {
+        return Result.transientError(in.getPath());
+      }
+      return Result.success(ParserInputSource.create(
+          "filegroup(name = 'txt', srcs = [" + Joiner.on(", ").join(srcs) + "])", in.getPath()),
+          false);
+    }
+  };
+
+  @Override
+  protected Preprocessor.Factory.Supplier getPreprocessorFactorySupplier() {
+    return new Preprocessor.Factory.Supplier() {
+      @Override
+      public Preprocessor.Factory getFactory(CachingPackageLocator loc) {
+        return new Preprocessor.Factory() {
+          @Override
+          public boolean isStillValid() {
+            return true;
+          }
+
+          @Override
+          public Preprocessor getPreprocessor() {
+            return PREPROCESSOR;
+          }
+        };
+      }
+    };
+  }
+
+  private List<Label> getSrcs() throws Exception {
+    Rule rule = (Rule) getTarget("//pkg:txt");
+    return RawAttributeMapper.of(rule).get("srcs", Type.LABEL_LIST);
+  }
+
+  public void testPackageDependsOnGlobsOfThePreprocessor() throws Exception {
+    scratch.file("pkg/BUILD", "# txt");
+    scratch.file("pkg/a.txt");
+    assertThat(getSrcs()).containsExactly(Label.parseAbsolute("//pkg:a.txt"));
+
+    SkyKey packageKey = PackageValue.key(PKG);
+    EvaluationResult<PackageValue> result = getSkyframeExecutor().getDriverForTesting()
+        .evaluate(ImmutableList.of(packageKey), false, 1, reporter);
+    assertThat(result.getWalkableGraph().getDirectDeps(packageKey)).containsAllOf(
+        PreprocessedBuildFileValue.key(PKG), GlobValue.key(PKG, "*.txt", false));
+  }
+
+  public void testChangedGlobOfThePreprocessorReloadsPackage() throws Exception {
+    scratch.file("pkg/BUILD", "# txt");
+    scratch.file("pkg/a.txt");
+    assertThat(getSrcs()).containsExactly(Label.parseAbsolute("//pkg:a.txt"));
+
+    scratch.file("pkg/b.txt");
+    invalidatePackages();
+    assertThat(getSrcs()).containsExactly(Label.parseAbsolute("//pkg:a.txt"),
+        Label.parseAbsolute("//pkg:b.txt"));
+  }
+
+  public void testUnpreprocessedPackageDoesNotDependOnGlobs() throws Exception {
+    scratch.file("pkg/BUILD", "filegroup(name = 'txt', srcs = ['a.txt'])");
+    scratch.file("pkg/a.txt");
+    assertThat(getSrcs()).containsExactly(Label.parseAbsolute("//pkg:a.txt"));
+
+    SkyKey packageKey = PackageValue.key(PKG);
+    EvaluationResult<PackageValue> result = getSkyframeExecutor().getDriverForTesting()
+        .evaluate(ImmutableList.of(packageKey), false, 1, reporter);
+    for (SkyKey dep : result.getWalkableGraph().getDirectDeps(packageKey)) {
+      assertFalse(dep.toString(), dep.functionName().equals(SkyFunctions.GLOB));
+    }
+  }
+}
@@ -0,0 +1,360 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
+import com.google.devtools.build.lib.events.Reporter;
+import com.google.devtools.build.lib.packages.CachingPackageLocator;
+import com.google.devtools.build.lib.packages.ConstantRuleVisibility;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.PackageDeserializer;
+import com.google.devtools.build.lib.packages.PackageFactory;
+import com.google.devtools.build.lib.packages.PackageIdentifier;
+import com.google.devtools.build.lib.packages.PackageSerializer;
+import com.google.devtools.build.lib.packages.RuleClassProvider;
+import com.google.devtools.build.lib.packages.RuleVisibility;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.query2.proto.proto2api.Build;
+import com.google.devtools.build.lib.syntax.SkylarkEnvironment;
+import com.google.devtools.build.lib.testutil.TestRuleClassProvider;
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.util.Pair;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.devtools.build.skyframe.EvaluationResult;
+import com.google.devtools.build.skyframe.InMemoryMemoizingEvaluator;
+import com.google.devtools.build.skyframe.RecordingDifferencer;
+import com.google.devtools.build.skyframe.SequentialBuildDriver;
+import com.google.devtools.build.skyframe.SkyFunction;
+import com.google.devtools.build.skyframe.SkyFunctionName;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * Tests for {@link PersistentPackageCache}.
+ */
+@RunWith(JUnit4.class)
+public class PersistentPackageCacheTest {
+
+  private static final PackageIdentifier PKG = PackageIdentifier.createInDefaultRepo("pkg");
+
+  private InMemoryFileSystem fs;
+  private Path cacheDir;
+  private PersistentPackageCache cache;
+
+  @Before
+  public final void createCache() throws Exception {
+    fs = new InMemoryFileSystem(BlazeClock.instance());
+    cacheDir = fs.getPath("/output_base/package_cache");
+    cache = new PersistentPackageCache(cacheDir, "install");
+    cache.setEnabled(true, 1 << 20);
+  }
+
+  private String key(String installation, PackageIdentifier packageId, String buildFile,
+      String content, @Nullable String preludeHash, Map<PathFragment, SkylarkEnvironment> imports,
+      RuleVisibility defaultVisibility, String workspaceName) {
+    return new PersistentPackageCache(cacheDir, installation).key(packageId,
+        fs.getPath(buildFile), content.toCharArray(), preludeHash, imports, defaultVisibility,
+        workspaceName);
+  }
+
+  private static Map<PathFragment, SkylarkEnvironment> imports(String path, String hash) {
+    return ImmutableMap.of(new PathFragment(path), new SkylarkEnvironment(null, hash));
+  }
+
+  @Test
+  public void testKeyCoversEveryInput() {
+    Map<PathFragment, SkylarkEnvironment> imports = imports("/ws/ext.bzl", "hash");
+    String key = key("install", PKG, "/ws/pkg/BUILD", "content", "prelude", imports,
+        ConstantRuleVisibility.PUBLIC, "workspace");
+    assertEquals(key, key("install", PKG, "/ws/pkg/BUILD", "content", "prelude",
+        imports("/ws/ext.bzl", "hash"), ConstantRuleVisibility.PUBLIC, "workspace"));
+
+    Set<String> keys = new HashSet<>();
+    keys.add(key);
+    keys.add(key("other", PKG, "/ws/pkg/BUILD", "content", "prelude", imports,
+        ConstantRuleVisibility.PUBLIC, "workspace"));
+    keys.add(key("install", PackageIdentifier.createInDefaultRepo("other"), "/ws/pkg/BUILD",
+        "content", "prelude", imports, ConstantRuleVisibility.PUBLIC, "workspace"));
+    keys.add(key("install", PKG, "/other/pkg/BUILD", "content", "prelude", imports,
+        ConstantRuleVisibility.PUBLIC, "workspace"));
+    keys.add(key("install", PKG, "/ws/pkg/BUILD", "changed", "prelude", imports,
+        ConstantRuleVisibility.PUBLIC, "workspace"));
+    keys.add(key("install", PKG, "/ws/pkg/BUILD", "content", "changed", imports,
+        ConstantRuleVisibility.PUBLIC, "workspace"));
+    keys.add(key("install", PKG, "/ws/pkg/BUILD", "content", null, imports,
+        ConstantRuleVisibility.PUBLIC, "workspace"));
+    keys.add(key("install", PKG, "/ws/pkg/BUILD", "content", "prelude",
+        imports("/ws/other.bzl", "hash"), ConstantRuleVisibility.PUBLIC, "workspace"));
+    keys.add(key("install", PKG, "/ws/pkg/BUILD", "content", "prelude",
+        imports("/ws/ext.bzl", "changed"), ConstantRuleVisibility.PUBLIC, "workspace"));
+    keys.add(key("install", PKG, "/ws/pkg/BUILD", "content", "prelude",
+        ImmutableMap.<PathFragment, SkylarkEnvironment>of(), ConstantRuleVisibility.PUBLIC,
+        "workspace"));
+    keys.add(key("install", PKG, "/ws/pkg/BUILD", "content", "prelude", imports,
+        ConstantRuleVisibility.PRIVATE, "workspace"));
+    keys.add(key("install", PKG, "/ws/pkg/BUILD", "content", "prelude", imports,
+        ConstantRuleVisibility.PUBLIC, "other"));
+    assertEquals(12, keys.size());
+  }
+
+  @Test
+  public void testEntryRoundTrip() throws Exception {
+    Map<Pair<String, Boolean>, String> globDigests = ImmutableMap.of(
+        Pair.of("*.txt", true), "digest1", Pair.of("**", false), "digest2");
+    Build.Package packagePb = Build.Package.newBuilder().setName("pkg").build();
+    cache.put("key", globDigests, packagePb);
+
+    PersistentPackageCache.Entry entry = cache.get("key");
+    assertNotNull(entry);
+    assertThat(entry.getGlobDigests().entrySet())
+        .containsExactlyElementsIn(globDigests.entrySet()).inOrder();
+    assertEquals(packagePb, entry.getPackage());
+    assertNull(cache.get("other"));
+  }
+
+  @Test
+  public void testUnreadableEntryIsMiss() throws Exception {
+    FileSystemUtils.createDirectoryAndParents(cacheDir);
+    FileSystemUtils.writeContentAsLatin1(cacheDir.getChild("truncated"), "xy");
+    assertNull(cache.get("truncated"));
+
+    try (OutputStream out = cacheDir.getChild("old").getOutputStream()) {
+      DataOutputStream data = new DataOutputStream(out);
+      data.writeInt(1);
+      data.writeInt(0);
+    }
+    assertNull(cache.get("old"));
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() throws Exception {
+    Build.Package packagePb = Build.Package.newBuilder().setName("pkg").build();
+    cache.put("a", ImmutableMap.<Pair<String, Boolean>, String>of(), packagePb);
+    cache.put("b", ImmutableMap.<Pair<String, Boolean>, String>of(), packagePb);
+    cache.put("c", ImmutableMap.<Pair<String, Boolean>, String>of(), packagePb);
+    long entrySize = cacheDir.getChild("a").getFileSize();
+    long now = System.currentTimeMillis();
+    cacheDir.getChild("a").setLastModifiedTime(now - 3000);
+    cacheDir.getChild("b").setLastModifiedTime(now - 2000);
+    cacheDir.getChild("c").setLastModifiedTime(now - 1000);
+
+    // Reading an entry makes it the most recently used one.
+    assertNotNull(cache.get("a"));
+    cache.setEnabled(true, 2 * entrySize);
+    cache.evict();
+    assertNotNull(cache.get("a"));
+    assertNull(cache.get("b"));
+    assertNotNull(cache.get("c"));
+  }
+
+  @Test
+  public void testFirstEnablingEvictsEntriesOfPreviousServers() throws Exception {
+    cache.put("a", ImmutableMap.<Pair<String, Boolean>, String>of(),
+        Build.Package.newBuilder().setName("pkg").build());
+    Path fresh = cacheDir.getChild("b.tmp1");
+    Path stale = cacheDir.getChild("c.tmp1");
+    FileSystemUtils.writeContentAsLatin1(fresh, "being written");
+    FileSystemUtils.writeContentAsLatin1(stale, "left behind");
+    fresh.setLastModifiedTime(System.currentTimeMillis());
+    stale.setLastModifiedTime(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2));
+
+    PersistentPackageCache newServer = new PersistentPackageCache(cacheDir, "install");
+    newServer.setEnabled(false, 0);
+    assertTrue(cacheDir.getChild("a").exists());
+    newServer.setEnabled(true, 0);
+    assertNull(newServer.get("a"));
+    assertTrue(fresh.exists());
+    assertFalse(stale.exists());
+  }
+
+  private static GlobValue globValue(String... matches) {
+    NestedSetBuilder<PathFragment> builder = NestedSetBuilder.stableOrder();
+    for (String match : matches) {
+      builder.add(new PathFragment(match));
+    }
+    return new GlobValue(builder.build());
+  }
+
+  @Test
+  public void testGlobDigestDependsOnlyOnMatches() {
+    assertEquals(PersistentPackageCache.globDigest(globValue("a", "b")),
+        PersistentPackageCache.globDigest(globValue("b", "a")));
+    assertThat(PersistentPackageCache.globDigest(globValue("a")))
+        .isNotEqualTo(PersistentPackageCache.globDigest(globValue("a", "b")));
+    assertThat(PersistentPackageCache.globDigest(globValue()))
+        .isNotEqualTo(PersistentPackageCache.globDigest(globValue("")));
+  }
+
+  private static final SkyFunctionName GLOB_DIGESTS = SkyFunctionName.computed("GLOB_DIGESTS");
+
+  private static final class GlobDigestsValue implements SkyValue {
+    @Nullable private final Map<Pair<String, Boolean>, String> globDigests;
+
+    private GlobDigestsValue(@Nullable Map<Pair<String, Boolean>, String> globDigests) {
+      this.globDigests = globDigests;
+    }
+  }
+
+  @Test
+  public void testGetGlobDigestsReflectsCurrentMatches() throws Exception {
+    final Map<String, GlobValue> globs = new HashMap<>();
+    globs.put("*.txt", globValue("a.txt"));
+    globs.put("*.cc", globValue("a.cc"));
+    SkyFunction globFunction = new SkyFunction() {
+      @Override
+      public SkyValue compute(SkyKey skyKey, Environment env) {
+        return globs.get(((GlobDescriptor) skyKey.argument()).pattern);
+      }
+
+      @Nullable
+      @Override
+      public String extractTag(SkyKey skyKey) {
+        return null;
+      }
+    };
+    SkyFunction globDigestsFunction = new SkyFunction() {
+      @SuppressWarnings("unchecked")
+      @Override
+      public SkyValue compute(SkyKey skyKey, Environment env) {
+        Map<Pair<String, Boolean>, String> globDigests = PersistentPackageCache.getGlobDigests(
+            PKG, (List<Pair<String, Boolean>>) skyKey.argument(), env);
+        return env.valuesMissing() ? null : new GlobDigestsValue(globDigests);
+      }
+
+      @Nullable
+      @Override
+      public String extractTag(SkyKey skyKey) {
+        return null;
+      }
+    };
+    RecordingDifferencer differencer = new RecordingDifferencer();
+    SequentialBuildDriver driver = new SequentialBuildDriver(new InMemoryMemoizingEvaluator(
+        ImmutableMap.of(SkyFunctions.GLOB, globFunction, GLOB_DIGESTS, globDigestsFunction),
+        differencer));
+    SkyKey key = new SkyKey(GLOB_DIGESTS, ImmutableList.of(
+        Pair.of("*.txt", false), Pair.of("*.cc", true)));
+    Reporter reporter = new Reporter();
+
+    EvaluationResult<GlobDigestsValue> result =
+        driver.evaluate(ImmutableList.of(key), false, 1, reporter);
+    Map<Pair<String, Boolean>, String> before = result.get(key).globDigests;
+    assertEquals(ImmutableMap.of(
+        Pair.of("*.txt", false), PersistentPackageCache.globDigest(globValue("a.txt")),
+        Pair.of("*.cc", true), PersistentPackageCache.globDigest(globValue("a.cc"))), before);
+
+    globs.put("*.txt", globValue("a.txt", "b.txt"));
+    differencer.invalidate(ImmutableList.of(GlobValue.key(PKG, "*.txt", false)));
+    result = driver.evaluate(ImmutableList.of(key), false, 1, reporter);
+    Map<Pair<String, Boolean>, String> after = result.get(key).globDigests;
+    assertThat(after.get(Pair.of("*.txt", false)))
+        .isNotEqualTo(before.get(Pair.of("*.txt", false)));
+    assertEquals(before.get(Pair.of("*.cc", true)), after.get(Pair.of("*.cc", true)));
+
+    SkyKey invalidKey = new SkyKey(GLOB_DIGESTS, ImmutableList.of(Pair.of("a**", false)));
+    result = driver.evaluate(ImmutableList.of(invalidKey), false, 1, reporter);
+    assertNull(result.get(invalidKey).globDigests);
+  }
+
+  /** Creates the package //pkg, which has the files a.txt and b.txt, from a BUILD file. */
+  private Package createPackage(RuleClassProvider ruleClassProvider, String... lines)
+      throws Exception {
+    Path buildFile = fs.getPath("/ws/pkg/BUILD");
+    FileSystemUtils.createDirectoryAndParents(buildFile.getParentDirectory());
+    FileSystemUtils.writeContentAsLatin1(fs.getPath("/ws/pkg/a.txt"), "");
+    FileSystemUtils.writeContentAsLatin1(fs.getPath("/ws/pkg/b.txt"), "");
+    FileSystemUtils.writeIsoLatin1(buildFile, lines);
+    Package pkg = new PackageFactory(ruleClassProvider).createPackageForTesting(PKG, buildFile,
+        new CachingPackageLocator() {
+          @Override
+          public Path getBuildFileForPackage(String packageName) {
+            return null;
+          }
+        }, new Reporter());
+    assertFalse(pkg.containsErrors());
+    return pkg;
+  }
+
+  @Test
+  public void testPackageRoundTrip() throws Exception {
+    RuleClassProvider ruleClassProvider = TestRuleClassProvider.getRuleClassProvider();
+    Package pkg = createPackage(ruleClassProvider,
+        "package(default_visibility = ['//visibility:public'])",
+        "exports_files(['a.txt'])",
+        "filegroup(name = 'files', srcs = glob(['*.txt']), tags = ['manual'])",
+        "genrule(name = 'gen', srcs = [':files'], outs = ['out.txt'], cmd = 'cat $(SRCS) > $@')");
+
+    assertTrue(cache.put("key", ImmutableMap.<Pair<String, Boolean>, String>of(), pkg,
+        ruleClassProvider.getRuleClassMap()));
+    Package copy = new PackageDeserializer(fs, ruleClassProvider)
+        .deserialize(cache.get("key").getPackage());
+
+    assertEquals(pkg.getName(), copy.getName());
+    assertEquals(pkg.getFilename(), copy.getFilename());
+    assertEquals(targetNames(pkg), targetNames(copy));
+    assertEquals(PackageSerializer.serializePackage(pkg), PackageSerializer.serializePackage(copy));
+  }
+
+  @Test
+  public void testPackageWithConfigurableAttributesIsNotSaved() throws Exception {
+    RuleClassProvider ruleClassProvider = TestRuleClassProvider.getRuleClassProvider();
+    Package pkg = createPackage(ruleClassProvider,
+        "config_setting(name = 'opt', values = {'compilation_mode': 'opt'})",
+        "filegroup(name = 'files', srcs = select({",
+        "    ':opt': ['a.txt'],",
+        "    '//conditions:default': ['b.txt'],",
+        "}))");
+
+    assertFalse(PersistentPackageCache.canSerialize(pkg, ruleClassProvider.getRuleClassMap()));
+    assertFalse(cache.put("key", ImmutableMap.<Pair<String, Boolean>, String>of(), pkg,
+        ruleClassProvider.getRuleClassMap()));
+    assertNull(cache.get("key"));
+  }
+
+  private static Set<String> targetNames(Package pkg) {
+    ImmutableSet.Builder<String> names = ImmutableSet.builder();
+    for (Target target : pkg.getTargets()) {
+      names.add(target.getName());
+    }
+    return names.build();
+  }
+}
@@ -0,0 +1,239 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.events.EventHandler;
+import com.google.devtools.build.lib.events.Reporter;
+import com.google.devtools.build.lib.packages.CachingPackageLocator;
+import com.google.devtools.build.lib.packages.PackageFactory;
+import com.google.devtools.build.lib.packages.PackageFactory.Globber;
+import com.google.devtools.build.lib.packages.PackageIdentifier;
+import com.google.devtools.build.lib.packages.Preprocessor;
+import com.google.devtools.build.lib.pkgcache.PathPackageLocator;
+import com.google.devtools.build.lib.syntax.Environment;
+import com.google.devtools.build.lib.syntax.ParserInputSource;
+import com.google.devtools.build.lib.testutil.TestRuleClassProvider;
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.util.Pair;
+import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.RootedPath;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.devtools.build.skyframe.EvaluationResult;
+import com.google.devtools.build.skyframe.InMemoryMemoizingEvaluator;
+import com.google.devtools.build.skyframe.RecordingDifferencer;
+import com.google.devtools.build.skyframe.SequentialBuildDriver;
+import com.google.devtools.build.skyframe.SkyFunction;
+import com.google.devtools.build.skyframe.SkyFunctionName;
+import com.google.devtools.build.skyframe.SkyKey;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests for {@link PreprocessedBuildFileFunction}.
+ */
+@RunWith(JUnit4.class)
+public class PreprocessedBuildFileFunctionTest {
+
+  private static final PackageIdentifier PKG = PackageIdentifier.createInDefaultRepo("pkg");
+  private static final SkyKey KEY = PreprocessedBuildFileValue.key(PKG);
+
+  private Path root;
+  private Path buildFile;
+  private final AtomicInteger preprocessorCalls = new AtomicInteger();
+  private final PreprocessorResultCache preprocessorResultCache = new PreprocessorResultCache();
+  private RecordingDifferencer differencer;
+  private SequentialBuildDriver driver;
+
+  /** Appends the names of the .txt files of the package to the BUILD file. */
+  private final Preprocessor preprocessor = new Preprocessor() {
+    @Override
+    public Result preprocess(ParserInputSource in, String packageName, Globber globber,
+        EventHandler eventHandler, Environment globalEnv, Set<String> ruleNames)
+        throws InterruptedException {
+      preprocessorCalls.incrementAndGet();
+      List<String> matches;
+      try {
+        matches = globber.fetch(globber.runAsync(ImmutableList.of("*.txt"),
+            ImmutableList.<String>of(), false));
+      } catch (Exception e) {
+        return Result.transientError(in.getPath());
+      }
+      return Result.success(ParserInputSource.create(
+          new String(in.getContent()) + "# " + Joiner.on(' ').join(matches), in.getPath()),
+          false);
+    }
+  };
+
+  @Before
+  public final void createEvaluator() throws Exception {
+    InMemoryFileSystem fs = new InMemoryFileSystem(BlazeClock.instance());
+    root = fs.getPath("/workspace");
+    buildFile = root.getRelative("pkg/BUILD");
+    FileSystemUtils.createDirectoryAndParents(buildFile.getParentDirectory());
+    FileSystemUtils.writeContentAsLatin1(buildFile, "");
+    FileSystemUtils.writeContentAsLatin1(root.getRelative("pkg/a.txt"), "");
+
+    PackageFactory packageFactory =
+        new PackageFactory(TestRuleClassProvider.getRuleClassProvider());
+    packageFactory.setPreprocessorFactory(new Preprocessor.Factory() {
+      @Override
+      public boolean isStillValid() {
+        return true;
+      }
+
+      @Override
+      public Preprocessor getPreprocessor() {
+        return preprocessor;
+      }
+    });
+    CachingPackageLocator packageLocator = new CachingPackageLocator() {
+      @Override
+      public Path getBuildFileForPackage(String packageName) {
+        return root.getRelative(packageName).getChild("BUILD");
+      }
+    };
+    AtomicReference<PathPackageLocator> pkgLocator =
+        new AtomicReference<>(new PathPackageLocator(root));
+    ExternalFilesHelper externalFilesHelper = new ExternalFilesHelper(pkgLocator);
+    differencer = new RecordingDifferencer();
+    driver = new SequentialBuildDriver(new InMemoryMemoizingEvaluator(
+        ImmutableMap.<SkyFunctionName, SkyFunction>builder()
+            .put(SkyFunctions.PRECOMPUTED, new PrecomputedFunction())
+            .put(SkyFunctions.FILE_STATE, new FileStateFunction(
+                new TimestampGranularityMonitor(BlazeClock.instance()), externalFilesHelper))
+            .put(SkyFunctions.DIRECTORY_LISTING_STATE,
+                new DirectoryListingStateFunction(externalFilesHelper))
+            .put(SkyFunctions.FILE_SYMLINK_CYCLE_UNIQUENESS,
+                new FileSymlinkCycleUniquenessFunction())
+            .put(SkyFunctions.FILE, new FileFunction(pkgLocator, externalFilesHelper))
+            .put(SkyFunctions.DIRECTORY_LISTING, new DirectoryListingFunction())
+            .put(SkyFunctions.PACKAGE_LOOKUP,
+                new PackageLookupFunction(new AtomicReference<>(ImmutableSet.<String>of())))
+            .put(SkyFunctions.GLOB, new GlobFunction())
+            .put(SkyFunctions.PREPROCESSED_BUILD_FILE, new PreprocessedBuildFileFunction(
+                packageFactory, packageLocator, preprocessorResultCache))
+            .build(),
+        differencer));
+    PrecomputedValue.PATH_PACKAGE_LOCATOR.set(differencer, pkgLocator.get());
+    PrecomputedValue.BUILD_ID.set(differencer, UUID.randomUUID());
+  }
+
+  private EvaluationResult<PreprocessedBuildFileValue> evaluate() throws Exception {
+    EvaluationResult<PreprocessedBuildFileValue> result =
+        driver.evaluate(ImmutableList.of(KEY), false, 1, new Reporter());
+    assertFalse(result.hasError());
+    return result;
+  }
+
+  private String preprocessedContent() throws Exception {
+    return new String(evaluate().get(KEY).getResult().result.getContent());
+  }
+
+  private void changeFile(String relativePath, String content) throws Exception {
+    Path path = root.getRelative(relativePath);
+    boolean existed = path.exists();
+    FileSystemUtils.writeContentAsLatin1(path, content);
+    ImmutableList.Builder<SkyKey> changed = ImmutableList.builder();
+    changed.add(FileStateValue.key(RootedPath.toRootedPath(root, path)));
+    if (!existed) {
+      changed.add(DirectoryListingStateValue.key(
+          RootedPath.toRootedPath(root, path.getParentDirectory())));
+    }
+    differencer.invalidate(changed.build());
+  }
+
+  @Test
+  public void testPreprocessesOnceAndDependsOnExpandedGlobs() throws Exception {
+    EvaluationResult<PreprocessedBuildFileValue> result = evaluate();
+    PreprocessedBuildFileValue value = result.get(KEY);
+    assertEquals("# a.txt", new String(value.getResult().result.getContent()));
+    // The function was restarted for the glob, but did not preprocess again.
+    assertEquals(1, preprocessorCalls.get());
+    assertEquals(ImmutableSet.of(Pair.of("*.txt", false)), value.getGlobPatterns());
+    assertThat(result.getWalkableGraph().getDirectDeps(KEY))
+        .contains(GlobValue.key(PKG, "*.txt", false));
+    assertNull(preprocessorResultCache.getPending(PKG));
+  }
+
+  @Test
+  public void testGlobberIsHandedToThePackage() throws Exception {
+    evaluate();
+    Globber globber = preprocessorResultCache.takeGlobber(PKG);
+    assertNotNull(globber);
+    assertThat(globber.getGlobPatterns()).containsExactly(Pair.of("*.txt", false));
+
+    // A cached result did not glob anything.
+    changeFile("pkg/BUILD", "# changed\n");
+    evaluate();
+    assertNotNull(preprocessorResultCache.takeGlobber(PKG));
+    changeFile("pkg/BUILD", "");
+    evaluate();
+    assertNull(preprocessorResultCache.takeGlobber(PKG));
+  }
+
+  @Test
+  public void testChangedBackBuildFileIsNotPreprocessedAgain() throws Exception {
+    assertEquals("# a.txt", preprocessedContent());
+    changeFile("pkg/BUILD", "# changed\n");
+    assertEquals("# changed\n# a.txt", preprocessedContent());
+    assertEquals(2, preprocessorCalls.get());
+
+    changeFile("pkg/BUILD", "");
+    assertEquals("# a.txt", preprocessedContent());
+    assertEquals(2, preprocessorCalls.get());
+  }
+
+  @Test
+  public void testChangedGlobMatchesArePreprocessedAgain() throws Exception {
+    assertEquals("# a.txt", preprocessedContent());
+    changeFile("pkg/BUILD", "# changed\n");
+    preprocessedContent();
+    changeFile("pkg/b.txt", "");
+    changeFile("pkg/BUILD", "");
+    assertEquals("# a.txt b.txt", preprocessedContent());
+    assertEquals(3, preprocessorCalls.get());
+  }
+
+  @Test
+  public void testMissingBuildFileIsNotPreprocessed() throws Exception {
+    buildFile.delete();
+    differencer.invalidate(ImmutableList.of(
+        FileStateValue.key(RootedPath.toRootedPath(root, buildFile))));
+    assertTrue(evaluate().get(KEY) == PreprocessedBuildFileValue.NOT_PREPROCESSED);
+    assertEquals(0, preprocessorCalls.get());
+  }
+}
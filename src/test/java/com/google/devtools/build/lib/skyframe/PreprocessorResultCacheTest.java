@@ -0,0 +1,151 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.packages.PackageFactory.Globber;
+import com.google.devtools.build.lib.packages.PackageIdentifier;
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.util.Pair;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests for {@link PreprocessorResultCache}.
+ */
+@RunWith(JUnit4.class)
+public class PreprocessorResultCacheTest {
+
+  private static final PackageIdentifier PKG = PackageIdentifier.createInDefaultRepo("pkg");
+
+  private final PreprocessorResultCache cache = new PreprocessorResultCache();
+
+  /** A globber that only records how it was completed. */
+  private static final class RecordingGlobber implements Globber {
+    private boolean completed;
+    private boolean interrupted;
+
+    @Override
+    public Token runAsync(List<String> includes, List<String> excludes, boolean excludeDirs) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<String> fetch(Token token) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void onInterrupt() {
+      interrupted = true;
+    }
+
+    @Override
+    public void onCompletion() {
+      completed = true;
+    }
+
+    @Override
+    public Set<Pair<String, Boolean>> getGlobPatterns() {
+      return ImmutableSet.of();
+    }
+  }
+
+  @Test
+  public void testKeyCoversPathAndContent() {
+    Path buildFile = new InMemoryFileSystem(BlazeClock.instance()).getPath("/ws/pkg/BUILD");
+    String key = PreprocessorResultCache.key(buildFile, "content".toCharArray());
+    assertEquals(key, PreprocessorResultCache.key(buildFile, "content".toCharArray()));
+    assertFalse(key.equals(PreprocessorResultCache.key(buildFile, "changed".toCharArray())));
+    assertFalse(key.equals(PreprocessorResultCache.key(
+        buildFile.getRelative("../../other/BUILD"), "content".toCharArray())));
+  }
+
+  @Test
+  public void testPendingEntryIsOnlyFoundAfterPut() {
+    PreprocessorResultCache.Entry pending = cache.putPending(PKG, "key",
+        PreprocessedBuildFileValue.NOT_PREPROCESSED, 42);
+    assertSame(pending, cache.getPending(PKG));
+    assertNull(pending.getGlobDigests());
+    assertNull(cache.get("key"));
+
+    Map<Pair<String, Boolean>, String> globDigests = ImmutableMap.of(Pair.of("*.txt", false), "d");
+    cache.put(PKG, pending, globDigests);
+    assertNull(cache.getPending(PKG));
+    PreprocessorResultCache.Entry entry = cache.get("key");
+    assertSame(PreprocessedBuildFileValue.NOT_PREPROCESSED, entry.getValue());
+    assertEquals(globDigests, entry.getGlobDigests());
+    assertEquals(42, entry.getPreprocessingTimeNanos());
+  }
+
+  @Test
+  public void testRemovedPendingEntryIsNotCached() {
+    cache.putPending(PKG, "key", PreprocessedBuildFileValue.NOT_PREPROCESSED, 42);
+    cache.removePending(PKG);
+    assertNull(cache.getPending(PKG));
+    assertNull(cache.get("key"));
+  }
+
+  @Test
+  public void testClearPendingKeepsCompleteEntries() {
+    cache.put(PKG, cache.putPending(PKG, "complete", PreprocessedBuildFileValue.NOT_PREPROCESSED,
+        1), ImmutableMap.<Pair<String, Boolean>, String>of());
+    cache.putPending(PKG, "pending", PreprocessedBuildFileValue.NOT_PREPROCESSED, 1);
+    cache.clearPending();
+    assertNull(cache.getPending(PKG));
+    assertEquals("complete", cache.get("complete").getKey());
+
+    cache.clear();
+    assertNull(cache.get("complete"));
+  }
+
+  @Test
+  public void testGlobberIsTakenOnce() {
+    RecordingGlobber globber = new RecordingGlobber();
+    cache.putGlobber(PKG, globber);
+    assertSame(globber, cache.takeGlobber(PKG));
+    assertNull(cache.takeGlobber(PKG));
+    cache.clearPending();
+    assertFalse(globber.completed);
+    assertFalse(globber.interrupted);
+  }
+
+  @Test
+  public void testGlobbersLeftBehindAreInterrupted() {
+    RecordingGlobber replaced = new RecordingGlobber();
+    RecordingGlobber leftBehind = new RecordingGlobber();
+    cache.putGlobber(PKG, replaced);
+    cache.putGlobber(PKG, leftBehind);
+    assertTrue(replaced.completed);
+
+    cache.clearPending();
+    assertTrue(leftBehind.interrupted);
+    assertNull(cache.takeGlobber(PKG));
+  }
+}
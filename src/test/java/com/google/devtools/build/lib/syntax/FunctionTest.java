@@ -16,6 +16,8 @@ package com.google.devtools.build.lib.syntax;
 import static com.google.common.truth.Truth.assertThat;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 
 import com.google.common.base.Joiner;
@@ -31,6 +33,7 @@ import org.junit.runners.JUnit4;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * A test class for functions and scoping.
@@ -47,7 +50,11 @@ public class FunctionTest extends AbstractEvaluationTestCase {
   @Before
   public void setUp() throws Exception {
 
-    env = new SkylarkEnvironment(syntaxEvents.collector());
+    env = newEnvironment();
+  }
+
+  protected SkylarkEnvironment newEnvironment() {
+    return new SkylarkEnvironment(syntaxEvents.collector());
   }
 
   @Test
@@ -475,6 +482,127 @@ public class FunctionTest extends AbstractEvaluationTestCase {
     assertEquals("abfg|cde", env.lookup("v5"));
   }
 
+  @Test
+  public void testLocalVariablesAreResolvedToSlots() throws Exception {
+    List<Statement> input = parseFileForSkylark(
+        "def func(a, b):\n"
+        + "  c = a\n"
+        + "  return c + b\n"
+        + "v = func(1, 2)\n");
+    exec(input, env);
+    assertEquals(3, env.lookup("v"));
+
+    UserDefinedFunction func = (UserDefinedFunction) env.lookup("func");
+    FrameLayout layout = func.getFrameLayout();
+    // Parameters come first, in the order of the signature.
+    assertEquals(0, layout.indexOf("a"));
+    assertEquals(1, layout.indexOf("b"));
+    assertEquals(2, layout.indexOf("c"));
+    assertEquals(3, layout.size());
+    assertEquals(-1, layout.indexOf("func"));
+
+    AssignmentStatement assignment = (AssignmentStatement) func.getStatements().get(0);
+    assertSlot(layout, 2, assignment.getLValue().getExpression());
+    assertSlot(layout, 0, assignment.getExpression());
+    BinaryOperatorExpression sum = (BinaryOperatorExpression)
+        ((ReturnStatement) func.getStatements().get(1)).getReturnExpression();
+    assertSlot(layout, 2, sum.getLhs());
+    assertSlot(layout, 1, sum.getRhs());
+  }
+
+  private static void assertSlot(FrameLayout layout, int slot, Expression expression) {
+    Ident ident = (Ident) expression;
+    assertSame(layout, ident.getLayout());
+    assertEquals(slot, ident.getSlot());
+  }
+
+  @Test
+  public void testGlobalVariableIsNotResolved() throws Exception {
+    List<Statement> input = parseFileForSkylark(
+        "a = 1\n"
+        + "def func():\n"
+        + "  return a\n"
+        + "v = func()\n");
+    exec(input, env);
+    assertEquals(1, env.lookup("v"));
+    UserDefinedFunction func = (UserDefinedFunction) env.lookup("func");
+    Ident ident = (Ident) ((ReturnStatement) func.getStatements().get(0)).getReturnExpression();
+    assertNull(ident.getLayout());
+  }
+
+  @Test
+  public void testVariableAssignedLaterIsLookedUpByName() throws Exception {
+    // The 'y' in the return statement is validated before 'y' is assigned, so it is not resolved
+    // to the slot of the local variable. It is looked up by name, which finds the slot.
+    List<Statement> input = parseFileForSkylark(
+        "y = 0\n"
+        + "def func():\n"
+        + "  for i in [1, 2]:\n"
+        + "    if i == 2:\n"
+        + "      return y\n"
+        + "    y = i\n"
+        + "v = func()\n");
+    exec(input, env);
+    assertEquals(1, env.lookup("v"));
+  }
+
+  @Test
+  public void testUnassignedLocalVariableFallsBackToGlobal() throws Exception {
+    List<Statement> input = parseFileForSkylark(
+        "x = 'global'\n"
+        + "def func(flag):\n"
+        + "  if flag:\n"
+        + "    x = 'local'\n"
+        + "  return x\n"
+        + "v1 = func(False)\n"
+        + "v2 = func(True)\n");
+    exec(input, env);
+    assertEquals("global", env.lookup("v1"));
+    assertEquals("local", env.lookup("v2"));
+  }
+
+  /** A module that must not be visible outside of the loading phase. */
+  @SkylarkModule(name = "phase", doc = "", onlyLoadingPhase = true)
+  private static final class LoadingPhaseModule {}
+
+  @Test
+  public void testDisabledVariableShadowsLocalVariable() throws Exception {
+    // A disabled variable is not found, even if a function assigns a local variable of the same
+    // name. The call keeps its variables in the map instead of a frame to check that.
+    env.update("phase", new LoadingPhaseModule());
+    ((SkylarkEnvironment) env).disableOnlyLoadingPhaseObjects();
+    checkError("name 'phase' is not defined",
+        "def func():",
+        "  phase = 'analysis'",
+        "  return phase",
+        "func()");
+  }
+
+  @Test
+  public void testVariableNamesIncludeAssignedSlots() throws Exception {
+    final List<Set<String>> variableNames = new ArrayList<>();
+    env.update("capture", new BaseFunction("capture") {
+      @Override
+      public Object call(List<Object> args, Map<String, Object> kwargs, FuncallExpression ast,
+          Environment env) throws EvalException, InterruptedException {
+        variableNames.add(env.getVariableNames());
+        return Environment.NONE;
+      }
+    });
+    List<Statement> input = parseFileForSkylark(
+        "def func(a):\n"
+        + "  b = 1\n"
+        + "  if a:\n"
+        + "    c = 2\n"
+        + "  capture()\n"
+        + "func(0)\n",
+        ImmutableMap.<String, SkylarkType>of(
+            "capture", SkylarkFunctionType.of("capture", SkylarkType.NONE)));
+    exec(input, env);
+    assertThat(variableNames.get(0)).containsAllOf("a", "b", "capture", "func");
+    assertThat(variableNames.get(0)).doesNotContain("c");
+  }
+
   private void checkError(String msg, String... lines)
       throws Exception {
     try {
@@ -15,6 +15,8 @@ package com.google.devtools.build.lib.syntax;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import com.google.devtools.build.lib.events.Event;
@@ -421,4 +423,20 @@ public class LexerTest {
     assertEquals(s.length(), lastErrorLocation.getEndOffset());
     assertEquals("STRING(unterminated) NEWLINE EOF", values(tokens(s)));
   }
+
+  @Test
+  public void testRepeatedValuesAreShared() throws Exception {
+    Token[] tokens = tokens("name = 'a'\nname = r'a'\nnames = \"a\"\nname = 'b'");
+    assertEquals("IDENTIFIER(name) EQUALS STRING(a) NEWLINE "
+        + "IDENTIFIER(name) EQUALS STRING(a) NEWLINE "
+        + "IDENTIFIER(names) EQUALS STRING(a) NEWLINE "
+        + "IDENTIFIER(name) EQUALS STRING(b) NEWLINE EOF",
+        values(tokens));
+    assertSame(tokens[0].value, tokens[4].value);
+    assertSame(tokens[0].value, tokens[12].value);
+    assertNotSame(tokens[0].value, tokens[8].value);
+    assertSame(tokens[2].value, tokens[6].value);
+    assertSame(tokens[2].value, tokens[10].value);
+    assertNotSame(tokens[2].value, tokens[14].value);
+  }
 }
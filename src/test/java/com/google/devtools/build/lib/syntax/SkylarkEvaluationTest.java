@@ -39,6 +39,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -150,17 +151,21 @@ public class SkylarkEvaluationTest extends EvaluationTest {
   public void setUp() throws Exception {
     super.setUp();
     syntaxEvents = new EventCollectionApparatus(EventKind.ALL_EVENTS);
-    env = new SkylarkEnvironment(syntaxEvents.collector());
+    env = newSkylarkEnvironment();
     MethodLibrary.setupMethodEnvironment(env);
   }
 
   @Override
   public Environment singletonEnv(String id, Object value) {
-    SkylarkEnvironment env = new SkylarkEnvironment(syntaxEvents.collector());
+    SkylarkEnvironment env = newSkylarkEnvironment();
     env.update(id, value);
     return env;
   }
 
+  protected SkylarkEnvironment newSkylarkEnvironment() {
+    return new SkylarkEnvironment(syntaxEvents.collector());
+  }
+
   @Test
   public void testSimpleIf() throws Exception {
     exec(parseFileForSkylark(
@@ -418,6 +423,53 @@ public class SkylarkEvaluationTest extends EvaluationTest {
     assertEquals(Boolean.FALSE, env.lookup("b"));
   }
 
+  @Test
+  public void testJavaCallSiteWithChangingReceiverClass() throws Exception {
+    List<Statement> input = parseFileForSkylark(
+        "b = mock.is_empty('')", MOCK_TYPES);
+    env.update("mock", new Mock());
+    exec(input, env);
+    assertEquals(Boolean.TRUE, env.lookup("b"));
+    env.update("mock", new MockSubClass());
+    exec(input, env);
+    assertEquals(Boolean.TRUE, env.lookup("b"));
+    env.update("mock", new MockMultipleMethodClass());
+    checkEvalError(input, env,
+        "No matching method found for is_empty(string) in MockMultipleMethodClass");
+  }
+
+  /**
+   * Runs a loop like those of rule implementations, which call the same few Java methods for
+   * every file, so that the call sites are reused across iterations and calls.
+   */
+  @Test
+  public void testJavaCallsInLoop() throws Exception {
+    List<String> files = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      files.add(i % 10 == 0 ? "" : "1");
+    }
+    env.update("mock", new MockSubClass());
+    env.update("files", SkylarkList.list(files, String.class));
+    List<Statement> input = parseFileForSkylark(
+        "def impl():\n"
+        + "  count = 0\n"
+        + "  for f in files:\n"
+        + "    if not mock.is_empty(f):\n"
+        + "      if not mock.is_empty_interface(f):\n"
+        + "        count += mock.value_of(f)\n"
+        + "  return count\n",
+        ImmutableMap.<String, SkylarkType>builder()
+            .putAll(MOCK_TYPES)
+            .put("files", SkylarkType.of(SkylarkList.class, String.class))
+            .build());
+    exec(input, env);
+    List<Statement> call = parseFileForSkylark("n = impl()");
+    exec(call, env);
+    assertEquals(180, env.lookup("n"));
+    exec(call, env);
+    assertEquals(180, env.lookup("n"));
+  }
+
   @Test
   public void testJavaCallsNotSkylarkCallable() throws Exception {
     env.update("mock", new Mock());
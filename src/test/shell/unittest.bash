@@ -387,12 +387,62 @@ function __update_shards() {
     [ "$TEST_SHARD_INDEX" -lt 0 -o "$TEST_SHARD_INDEX" -ge  "$TEST_TOTAL_SHARDS" ] &&
       { echo "Invalid shard $shard_index" >&2; exit 1; }
 
-    TESTS=$(for test in "${TESTS[@]}"; do echo "$test"; done |
+    __all_tests=$TESTS
+    __queued_tests=""
+    if [ -n "${TEST_SHARD_QUEUE_DIR-}" ] && [ -d "$TEST_SHARD_QUEUE_DIR/claimed" ]; then
+      # The tests in the queue are claimed by whichever shard is free; see
+      # TestShardQueue.java. An entry is either still queued or already claimed.
+      __queued_tests=$(for entry in $(ls "$TEST_SHARD_QUEUE_DIR" | grep -v '^claimed$'); do
+          cat "$TEST_SHARD_QUEUE_DIR/$entry" 2>/dev/null ||
+            cat "$TEST_SHARD_QUEUE_DIR/claimed/$entry"
+        done; cat "$TEST_SHARD_QUEUE_DIR"/claimed/* 2>/dev/null || true)
+    fi
+
+    # The tests that are not in the queue, e.g. new ones, are sharded statically.
+    TESTS=$(echo "$__all_tests" | grep -vxF "${__queued_tests:-}" |
       awk "NR % $TEST_TOTAL_SHARDS == $TEST_SHARD_INDEX")
 
     [ -n "$TEST_SHARD_STATUS_FILE" ] && touch "$TEST_SHARD_STATUS_FILE"
 }
 
+# Usage: __claim_queued_test
+# Claims the next entry of the shard queue by renaming it into the claimed
+# directory, and prints the name of its test. Returns non-zero once the queue is
+# empty.
+function __claim_queued_test() {
+    local entry
+    for entry in $(ls "$TEST_SHARD_QUEUE_DIR" | grep -v '^claimed$'); do
+      # The rename fails if another shard claimed the entry first.
+      if mv "$TEST_SHARD_QUEUE_DIR/$entry" "$TEST_SHARD_QUEUE_DIR/claimed/$entry" \
+          2>/dev/null; then
+        cat "$TEST_SHARD_QUEUE_DIR/claimed/$entry"
+        return 0
+      fi
+    done
+    return 1
+}
+
+# Usage: __next_test
+# Sets TEST_name to the next test to run: first the tests claimed from the
+# shard queue, if any, then the tests of this shard. Returns non-zero when there
+# are no more tests.
+function __next_test() {
+    if [ -n "${__queued_tests-}" ]; then
+      local claimed
+      while claimed=$(__claim_queued_test); do
+        # Tests deleted since the queue was written are skipped.
+        if echo "$__all_tests" | grep -qxF "$claimed"; then
+          TEST_name=$claimed
+          return 0
+        fi
+      done
+      __queued_tests=""
+    fi
+    __test_index=$((${__test_index-0} + 1))
+    TEST_name=$(echo "$TESTS" | sed -n "${__test_index}p")
+    [ -n "$TEST_name" ]
+}
+
 # Usage: __test_terminated <signal-number>
 # Handler that is called when the test terminated unexpectedly
 function __test_terminated() {
@@ -483,9 +533,10 @@ function run_suite() {
       fi
     fi
 
+    TESTS=$(for test in ${TESTS[@]}; do echo "$test"; done)
     __update_shards
 
-    for TEST_name in ${TESTS[@]}; do
+    while __next_test; do
       >$TEST_log # Reset the log.
       TEST_passed=true
 